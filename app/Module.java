@@ -0,0 +1,39 @@
+import com.google.inject.AbstractModule;
+import util.DestinationSearchIndex;
+import util.LikeCache;
+import util.NewsFeedPublisher;
+import util.PhotoStorageSweeper;
+import util.ThumbnailGenerator;
+import util.TrendingEngine;
+import util.TrendingFollowers;
+
+/**
+ * Guice module loaded by Play on startup (any class called Module in the root package is). Binds
+ * the services that need to start running as soon as the application does.
+ */
+public class Module extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        // Starts the schedule that keeps the explore feed's trending scores decayed
+        bind(TrendingEngine.class).asEagerSingleton();
+
+        // Loads every like into memory and starts the schedule that writes new ones
+        bind(LikeCache.class).asEagerSingleton();
+
+        // Counts every follow into memory and starts listening for new ones
+        bind(TrendingFollowers.class).asEagerSingleton();
+
+        // Starts listening for new events to push to the live news feed
+        bind(NewsFeedPublisher.class).asEagerSingleton();
+
+        // Starts generating the thumbnails of any photos left waiting for them
+        bind(ThumbnailGenerator.class).asEagerSingleton();
+
+        // Starts the schedule that deletes stored photo files no photo uses any more
+        bind(PhotoStorageSweeper.class).asEagerSingleton();
+
+        // Starts building the destination search index and listening for destination changes
+        bind(DestinationSearchIndex.class).asEagerSingleton();
+    }
+}
@@ -10,15 +10,14 @@ import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import javax.inject.Inject;
-import models.User;
 import play.libs.Json;
 import play.mvc.Action;
 import play.mvc.Http;
 import play.mvc.Http.Cookie;
 import play.mvc.Result;
-import repository.ProfileRepository;
-import repository.UserRepository;
 import util.CryptoManager;
+import util.PrincipalCache;
+import util.PrincipalCache.Principal;
 
 public class Authenticator extends Action.Simple {
 
@@ -26,15 +25,12 @@ public class Authenticator extends Action.Simple {
     private static final String API = "/api/";
     private static final String FORBIDDEN = "Forbidden";
     private final Config config;
-    private final UserRepository userRepository;
-    private final ProfileRepository profileRepository;
+    private final PrincipalCache principalCache;
 
     @Inject
-    public Authenticator(Config config, UserRepository userRepository,
-        ProfileRepository profileRepository) {
+    public Authenticator(Config config, PrincipalCache principalCache) {
         this.config = config;
-        this.userRepository = userRepository;
-        this.profileRepository = profileRepository;
+        this.principalCache = principalCache;
     }
 
     /**
@@ -91,9 +87,10 @@ public class Authenticator extends Action.Simple {
                 .verifyToken(token, config.getString("play.http.secret.key"));
 
             if (userId != null) {
-                return userRepository.findID(userId).thenComposeAsync(user -> {
-                    if (user != null) {
-                        return roleMatch(request, user);
+                // Usually served from memory, so no database hop is needed to authenticate
+                return principalCache.get(userId).thenComposeAsync(principal -> {
+                    if (principal != null) {
+                        return roleMatch(request, principal);
                     } else {
                         // if user is no longer in database
                         return supplyAsync(() -> fail);
@@ -111,10 +108,10 @@ public class Authenticator extends Action.Simple {
      * Compares user role to roles.
      *
      * @param request request object
-     * @param user User object
+     * @param principal User object and whether they have a profile
      * @return A redirect or delegate depending on roles
      */
-    private CompletionStage<Result> roleMatch(Http.Request request, User user) {
+    private CompletionStage<Result> roleMatch(Http.Request request, Principal principal) {
         List<String> roles = Authenticator.getRoles(request);
         // if no roles have been set assume redirect to home
         if (roles.isEmpty()) {
@@ -123,63 +120,64 @@ public class Authenticator extends Action.Simple {
         }
         // if roles set to everyone delegate
         if (roles.contains("everyone")) {
-            return haveProfile(request, user, true);
+            return haveProfile(request, principal, true);
         }
 
         //Loop through roles (this is only for future proofing for when we need more roles)
         for (String role : roles) {
             switch (role) {
                 case "everyone":
-                    return haveProfile(request, user, true);
+                    return haveProfile(request, principal, true);
                 case "admin":
-                    if (user.admin) {
-                        return haveProfile(request, user, true);
+                    if (principal.admin) {
+                        return haveProfile(request, principal, true);
                     }
                     break;
                 case "generalUser":
-                    if (!user.admin) { //add other roles when they come
-                        return haveProfile(request, user, true);
+                    if (!principal.admin) { //add other roles when they come
+                        return haveProfile(request, principal, true);
                     }
                     break;
                 default:
                     throw new IllegalArgumentException();
             }
         }
-        return haveProfile(request, user, false);
+        return haveProfile(request, principal, false);
     }
 
     /**
      * Checks if user has created a profile, if not, redirects them.
      *
      * @param request Http request object
-     * @param user auth-ed user obj
+     * @param principal auth-ed user obj and whether they have a profile
      * @return Redirect to profile page if fails else delegates incoming request
      */
-    private CompletionStage<Result> haveProfile(Http.Request request, User user, Boolean matched) {
-        return profileRepository.findID(user.id).thenComposeAsync(profile -> {
-            if (!(request.uri().equals(
-                controllers.frontend.routes.ProfileController.createProfileIndex().toString()) ||
-                request.uri().equals(
-                    controllers.backend.routes.ProfileController.addNewProfile().toString()))
-                && profile == null) {
-                if (request.uri().contains(API)) {
-                    return supplyAsync(() -> forbidden(Json.toJson(FORBIDDEN)));
-                } else {
-                    return supplyAsync(() -> redirect(
-                        controllers.frontend.routes.ProfileController.createProfileIndex()));
-                }
-            } else if (profile != null && request.uri().equals(
-                controllers.frontend.routes.ProfileController.createProfileIndex().toString())) {
+    private CompletionStage<Result> haveProfile(Http.Request request, Principal principal,
+        Boolean matched) {
+        if (!(request.uri().equals(
+            controllers.frontend.routes.ProfileController.createProfileIndex().toString()) ||
+            request.uri().equals(
+                controllers.backend.routes.ProfileController.addNewProfile().toString()))
+            && !principal.hasProfile) {
+            if (request.uri().contains(API)) {
+                return supplyAsync(() -> forbidden(Json.toJson(FORBIDDEN)));
+            } else {
                 return supplyAsync(() -> redirect(
-                    controllers.frontend.routes.ApplicationController.home()));
+                    controllers.frontend.routes.ProfileController.createProfileIndex()));
             }
-            CompletableFuture<Result> fail;
-            fail =
-                request.uri().contains(API) ? supplyAsync(() -> forbidden(Json.toJson(FORBIDDEN)))
-                    : supplyAsync(
-                        () -> redirect(controllers.frontend.routes.ApplicationController.cover())
-                            .discardingCookie(JWT_AUTH));
-            return matched ? delegate.call(request.addAttr(ActionState.USER, user)) : fail;
-        });
+        } else if (principal.hasProfile && request.uri().equals(
+            controllers.frontend.routes.ProfileController.createProfileIndex().toString())) {
+            return supplyAsync(() -> redirect(
+                controllers.frontend.routes.ApplicationController.home()));
+        }
+        CompletableFuture<Result> fail;
+        fail =
+            request.uri().contains(API) ? supplyAsync(() -> forbidden(Json.toJson(FORBIDDEN)))
+                : supplyAsync(
+                    () -> redirect(controllers.frontend.routes.ApplicationController.cover())
+                        .discardingCookie(JWT_AUTH));
+        // Each request gets its own copy of the cached user, so one can't change another's
+        return matched ? delegate.call(request.addAttr(ActionState.USER, principal.getUser()))
+            : fail;
     }
 }
\ No newline at end of file
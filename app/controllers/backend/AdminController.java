@@ -3,6 +3,8 @@ package controllers.backend;
 import actions.ActionState;
 import actions.Authenticator;
 import actions.roles.Admin;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.time.LocalDateTime;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import javax.inject.Inject;
@@ -13,6 +15,10 @@ import play.mvc.Result;
 import play.mvc.With;
 import play.routing.JavaScriptReverseRouter;
 import repository.UserRepository;
+import util.DestinationDeduplicator;
+import util.PasswordHasher;
+import util.PhotoStorageSweeper;
+import util.PrincipalCache;
 
 /**
  * Manage a database of users.
@@ -20,10 +26,20 @@ import repository.UserRepository;
 public class AdminController extends TEABackController {
 
     private final UserRepository userRepository;
+    private final PrincipalCache principalCache;
+    private final PasswordHasher passwordHasher;
+    private final PhotoStorageSweeper photoStorageSweeper;
+    private final DestinationDeduplicator destinationDeduplicator;
 
     @Inject
-    public AdminController(UserRepository userRepository) {
+    public AdminController(UserRepository userRepository, PrincipalCache principalCache,
+        PasswordHasher passwordHasher, PhotoStorageSweeper photoStorageSweeper,
+        DestinationDeduplicator destinationDeduplicator) {
         this.userRepository = userRepository;
+        this.principalCache = principalCache;
+        this.passwordHasher = passwordHasher;
+        this.photoStorageSweeper = photoStorageSweeper;
+        this.destinationDeduplicator = destinationDeduplicator;
     }
 
     /**
@@ -50,6 +66,103 @@ public class AdminController extends TEABackController {
         });
     }
 
+    /**
+     * Gets how well the cache of authenticated users is working
+     *
+     * @param request Request object
+     * @return Ok with the number of hits and misses, the hit rate and the number of users cached
+     */
+    @With({Admin.class, Authenticator.class})
+    public Result getPrincipalCacheStats(Http.Request request) {
+        ObjectNode stats = Json.newObject();
+        stats.put("hits", principalCache.getHitCount());
+        stats.put("misses", principalCache.getMissCount());
+        stats.put("hitRate", principalCache.getHitRate());
+        stats.put("size", principalCache.size());
+        return ok(stats);
+    }
+
+    /**
+     * Gets how busy the password hashing threads are
+     *
+     * @param request Request object
+     * @return Ok with the queue depth, average hashing time in milliseconds, and the number of
+     * hashes done and rejected
+     */
+    @With({Admin.class, Authenticator.class})
+    public Result getPasswordHashingStats(Http.Request request) {
+        ObjectNode stats = Json.newObject();
+        stats.put("queueDepth", passwordHasher.getQueueDepth());
+        stats.put("averageLatency", passwordHasher.getAverageLatency());
+        stats.put("hashes", passwordHasher.getHashCount());
+        stats.put("rejected", passwordHasher.getRejectedCount());
+        return ok(stats);
+    }
+
+    /**
+     * Gets how much photo storage the sweeps of unused files have freed
+     *
+     * @param request Request object
+     * @return Ok with the time of the last sweep, the files it deleted and bytes it freed, and the
+     * bytes freed by every sweep since starting
+     */
+    @With({Admin.class, Authenticator.class})
+    public Result getPhotoStorageStats(Http.Request request) {
+        ObjectNode stats = Json.newObject();
+        LocalDateTime lastSwept = photoStorageSweeper.getLastSwept();
+        stats.put("lastSwept", lastSwept == null ? null : lastSwept.toString());
+        stats.put("filesDeleted", photoStorageSweeper.getLastFilesDeleted());
+        stats.put("bytesFreed", photoStorageSweeper.getLastBytesFreed());
+        stats.put("totalBytesFreed", photoStorageSweeper.getTotalBytesFreed());
+        return ok(stats);
+    }
+
+    /**
+     * Starts a job that finds and merges every duplicate public destination in the background
+     *
+     * @param request Request object
+     * @return Accepted with the job's progress if it was started, or conflict if one is already
+     * running
+     */
+    @With({Admin.class, Authenticator.class})
+    public Result startDestinationDedup(Http.Request request) {
+        if (!destinationDeduplicator.start(MASTER_ADMIN_ID)) {
+            return status(CONFLICT, Json.toJson("Destination deduplication is already running"));
+        }
+        return status(ACCEPTED, getDestinationDedupProgress());
+    }
+
+    /**
+     * Gets the progress of the current or last destination deduplication job
+     *
+     * @param request Request object
+     * @return Ok with whether it is running, when it started and finished, the cells and
+     * comparisons done, the duplicates found and merged, and the comparisons done per second
+     */
+    @With({Admin.class, Authenticator.class})
+    public Result getDestinationDedupStats(Http.Request request) {
+        return ok(getDestinationDedupProgress());
+    }
+
+    /**
+     * Describes the progress of the current or last destination deduplication job
+     */
+    private ObjectNode getDestinationDedupProgress() {
+        ObjectNode stats = Json.newObject();
+        LocalDateTime startedAt = destinationDeduplicator.getStartedAt();
+        LocalDateTime finishedAt = destinationDeduplicator.getFinishedAt();
+        stats.put("running", destinationDeduplicator.isRunning());
+        stats.put("startedAt", startedAt == null ? null : startedAt.toString());
+        stats.put("finishedAt", finishedAt == null ? null : finishedAt.toString());
+        stats.put("cells", destinationDeduplicator.getCellCount());
+        stats.put("cellsCompared", destinationDeduplicator.getCellsCompared());
+        stats.put("comparisons", destinationDeduplicator.getComparisons());
+        stats.put("comparisonsPerSecond", destinationDeduplicator.getComparisonsPerSecond());
+        stats.put("duplicatesFound", destinationDeduplicator.getDuplicatesFound());
+        stats.put("duplicatesMerged", destinationDeduplicator.getDuplicatesMerged());
+        return stats;
+    }
+
     /**
      * Lists routes to put in JS router for use from frontend.
      *
@@ -7,6 +7,7 @@ import actions.roles.Everyone;
 import com.fasterxml.jackson.databind.JsonNode;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -35,6 +36,8 @@ import repository.ProfileRepository;
 import repository.TagRepository;
 import repository.TravellerTypeDefinitionRepository;
 import repository.UserRepository;
+import util.DestinationSearchIndex;
+import util.objects.GeoArea;
 import util.objects.PagingResponse;
 import util.validation.DestinationValidator;
 import util.validation.ErrorResponse;
@@ -53,6 +56,7 @@ public class DestinationController extends TEABackController {
     private final PhotoRepository photoRepository;
     private final NewsFeedEventRepository newsFeedEventRepository;
     private final ProfileRepository profileRepository;
+    private final DestinationSearchIndex destinationSearchIndex;
 
 
     @Inject
@@ -60,7 +64,7 @@ public class DestinationController extends TEABackController {
         TravellerTypeDefinitionRepository travellerTypeDefinitionRepository, WSClient ws,
         TagRepository tagRepository, UserRepository userRepository,
         PhotoRepository photoRepository, NewsFeedEventRepository newsFeedEventRepository,
-        ProfileRepository profileRepository) {
+        ProfileRepository profileRepository, DestinationSearchIndex destinationSearchIndex) {
 
         this.destinationRepository = destinationRepository;
         this.travellerTypeDefinitionRepository = travellerTypeDefinitionRepository;
@@ -70,6 +74,7 @@ public class DestinationController extends TEABackController {
         this.photoRepository = photoRepository;
         this.newsFeedEventRepository = newsFeedEventRepository;
         this.profileRepository = profileRepository;
+        this.destinationSearchIndex = destinationSearchIndex;
     }
 
     /**
@@ -114,10 +119,10 @@ public class DestinationController extends TEABackController {
             userRepository.updateUsedTags(user, newDestination);
             newDestination.tags = existingTags;
             return destinationRepository.addDestination(newDestination)
+                // Merge similar destinations to new destination
+                .thenComposeAsync(id -> mergeSimilarDestinations(newDestination)
+                    .thenApply(merged -> id))
                 .thenComposeAsync(id -> {
-                    // Merge similar destinations to new destination
-                    mergeSimilarDestinations(newDestination);
-
                     // Create news feed event for newly added destination if destination is public
                     if (newDestination.isPublic) {
                         NewsFeedEvent newsFeedEvent = new NewsFeedEvent();
@@ -180,17 +185,20 @@ public class DestinationController extends TEABackController {
 
             // Set destination to public and merge similar destinations
             destination.isPublic = true;
-            destinationRepository.updateDestination(destination);
-            mergeSimilarDestinations(destination);
-
-            // Create news feed event for updating destination
-            NewsFeedEvent newsFeedEvent = new NewsFeedEvent();
-            newsFeedEvent.userId = user.id;
-            newsFeedEvent.refId = destination.id;
-            newsFeedEvent.eventType = NewsFeedEventType.UPDATED_EXISTING_DESTINATION.name();
-
-            return newsFeedEventRepository.addNewsFeedEvent(newsFeedEvent)
-                .thenApplyAsync(eventId -> ok(Json.toJson("Successfully made destination public")));
+            return destinationRepository.updateDestination(destination)
+                .thenComposeAsync(this::mergeSimilarDestinations)
+                .thenComposeAsync(merged -> {
+                    // Create news feed event for updating destination
+                    NewsFeedEvent newsFeedEvent = new NewsFeedEvent();
+                    newsFeedEvent.userId = user.id;
+                    newsFeedEvent.refId = destination.id;
+                    newsFeedEvent.eventType = NewsFeedEventType.UPDATED_EXISTING_DESTINATION
+                        .name();
+
+                    return newsFeedEventRepository.addNewsFeedEvent(newsFeedEvent)
+                        .thenApplyAsync(
+                            eventId -> ok(Json.toJson("Successfully made destination public")));
+                });
         });
     }
 
@@ -269,10 +277,11 @@ public class DestinationController extends TEABackController {
                         userRepository.updateUsedTags(user, destination, editedDestination);
                         editedDestination.tags = existingTags;
                         return destinationRepository.updateDestination(editedDestination)
+                            // Merges destinations with the updated destination if similar
+                            .thenComposeAsync(updatedDestination ->
+                                mergeSimilarDestinations(updatedDestination)
+                                    .thenApply(merged -> updatedDestination))
                             .thenComposeAsync(updatedDestination -> {
-                                // Merges destinations with the updated destination if similar
-                                mergeSimilarDestinations(updatedDestination);
-
                                 if (updatedDestination.isPublic) {
                                     // Create news feed event for updating destination
                                     NewsFeedEvent newsFeedEvent = new NewsFeedEvent();
@@ -304,8 +313,9 @@ public class DestinationController extends TEABackController {
      * when new destination is made, destination is edited, or destination is made public
      *
      * @param destination Destination being updated
+     * @return Future completed once the similar destinations have been merged
      */
-    private void mergeSimilarDestinations(Destination destination) {
+    private CompletableFuture<Void> mergeSimilarDestinations(Destination destination) {
         // Destination must be public for it to merge with other destinations
         if (destination.isPublic) {
 
@@ -323,14 +333,18 @@ public class DestinationController extends TEABackController {
                 destinationRepository.mergeDestinationsPhotos(similarIds, destination.id);
 
                 // Transfer new destinations ownership to admin
-                destinationRepository.changeDestinationOwner(destination.id, MASTER_ADMIN_ID);
+                List<CompletableFuture<Integer>> changes = new ArrayList<>();
+                changes.add(
+                    destinationRepository.changeDestinationOwner(destination.id, MASTER_ADMIN_ID));
 
                 // Delete old destinations which are no longer needed
                 for (Long simId : similarIds) {
-                    destinationRepository.deleteDestination(simId);
+                    changes.add(destinationRepository.deleteDestination(simId));
                 }
+                return CompletableFuture.allOf(changes.toArray(new CompletableFuture[0]));
             }
         }
+        return CompletableFuture.completedFuture(null);
     }
 
     /**
@@ -676,12 +690,82 @@ public class DestinationController extends TEABackController {
             sortBy = "id";
         }
 
-        return destinationRepository
-            .getPagedDestinations(userId, searchQuery, onlyGetMine, sortBy, ascending, pageNum,
-                pageSize)
+        return destinationSearchIndex
+            .search(userId, searchQuery, onlyGetMine, sortBy, ascending, pageNum, pageSize)
             .thenApplyAsync(destinations -> ok(Json.toJson(
-                new PagingResponse<>(destinations.getList(), requestOrder,
-                    destinations.getTotalPageCount()))));
+                new PagingResponse<>(destinations.getKey(), requestOrder,
+                    destinations.getValue()))));
+    }
+
+    /**
+     * Gets a paged list of the destinations visible to the currently logged in user near a point
+     * or inside a bounding box, closest to the centre first. Either lat, lng and radius, or all of
+     * minLat, minLng, maxLat and maxLng must be given. A box with minLng greater than maxLng
+     * crosses the 180th meridian.
+     *
+     * @param request Http request
+     * @param lat Latitude of the point to search around
+     * @param lng Longitude of the point to search around
+     * @param radius Distance from the point to search within, in kilometres
+     * @param minLat Latitude of the south edge of the box
+     * @param minLng Longitude of the west edge of the box
+     * @param maxLat Latitude of the north edge of the box
+     * @param maxLng Longitude of the east edge of the box
+     * @param pageNum Page number to get
+     * @param pageSize Number of results to show per page
+     * @param requestOrder The order of this request compared to others from the same page
+     * @return Paged list of destinations, or badRequest if the area given is not valid
+     */
+    @With({Everyone.class, Authenticator.class})
+    public CompletableFuture<Result> getNearbyDestinations(
+        Http.Request request,
+        Double lat,
+        Double lng,
+        Double radius,
+        Double minLat,
+        Double minLng,
+        Double maxLat,
+        Double maxLng,
+        Integer pageNum,
+        Integer pageSize,
+        Integer requestOrder) {
+        // Set hard limit of 100 destinations to return, and minimum 1
+        pageSize = pageSize > 100 ? 100 : pageSize;
+        pageSize = pageSize < 1 ? 1 : pageSize;
+
+        boolean isCircle = lat != null && lng != null && radius != null;
+        boolean isBox = minLat != null && minLng != null && maxLat != null && maxLng != null;
+        GeoArea area;
+        if (isCircle && !isBox && isLatitude(lat) && isLongitude(lng) && radius > 0) {
+            area = GeoArea.circle(lat, lng, radius);
+        } else if (isBox && !isCircle && isLatitude(minLat) && isLatitude(maxLat)
+            && minLat <= maxLat && isLongitude(minLng) && isLongitude(maxLng)) {
+            area = GeoArea.box(minLat, minLng, maxLat, maxLng);
+        } else {
+            return CompletableFuture.supplyAsync(() -> badRequest(Json.toJson(
+                "Provide a valid lat, lng and positive radius, or minLat, minLng, maxLat and "
+                    + "maxLng")));
+        }
+
+        Long userId = request.attrs().get(ActionState.USER).id;
+        return destinationSearchIndex.nearby(userId, area, pageNum, pageSize)
+            .thenApplyAsync(destinations -> ok(Json.toJson(
+                new PagingResponse<>(destinations.getKey(), requestOrder,
+                    destinations.getValue()))));
+    }
+
+    /**
+     * Checks whether a number is a valid latitude
+     */
+    private static boolean isLatitude(double latitude) {
+        return latitude >= -90 && latitude <= 90;
+    }
+
+    /**
+     * Checks whether a number is a valid longitude
+     */
+    private static boolean isLongitude(double longitude) {
+        return longitude >= -180 && longitude <= 180;
     }
 
     /**
@@ -3,6 +3,8 @@ package controllers.backend;
 import actions.ActionState;
 import actions.Authenticator;
 import actions.roles.Everyone;
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.ebean.PagedList;
@@ -10,17 +12,18 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import javax.inject.Inject;
 import models.BaseNewsFeedEvent;
 import models.GroupedNewsFeedEvent;
-import models.Likes;
 import models.NewsFeedEvent;
 import models.NewsFeedResponseItem;
 import models.enums.NewsFeedEventType;
+import models.strategies.NewsFeedDataLoader;
 import models.strategies.NewsFeedStrategy;
 import models.strategies.destinations.user.concrete.CreateDestinationStrategy;
 import models.strategies.destinations.user.concrete.UpdateDestinationStrategy;
@@ -32,10 +35,10 @@ import models.strategies.photos.user.concrete.NewProfilePhotoStrategy;
 import models.strategies.trips.concrete.CreateTripStrategy;
 import models.strategies.trips.concrete.MultipleUpdateTripStrategy;
 import org.apache.commons.lang3.NotImplementedException;
+import play.libs.EventSource;
 import play.libs.Json;
 import play.mvc.Http;
 import play.mvc.Result;
-import play.mvc.Results;
 import play.mvc.With;
 import play.routing.JavaScriptReverseRouter;
 import repository.DestinationRepository;
@@ -43,6 +46,11 @@ import repository.NewsFeedEventRepository;
 import repository.PhotoRepository;
 import repository.ProfileRepository;
 import repository.TripRepository;
+import util.LikeCache;
+import util.NewsFeedPublisher;
+import util.TrendingEngine;
+import util.TrendingFollowers;
+import util.objects.PageCursor;
 import util.objects.PagingResponse;
 import util.objects.Pair;
 
@@ -57,6 +65,18 @@ public class NewsFeedController extends TEABackController {
     private TripRepository tripRepository;
     private PhotoRepository photoRepository;
 
+    // Ranks events for the explore feed
+    private TrendingEngine trendingEngine;
+
+    // Serves and records likes without waiting on the database
+    private LikeCache likeCache;
+
+    // Tracks the users and destinations gaining the most followers
+    private TrendingFollowers trendingFollowers;
+
+    // Pushes new events to users connected to the live news feed
+    private NewsFeedPublisher newsFeedPublisher;
+
     private static final List<NewsFeedEventType> GROUP_EVENT_TYPES = Arrays.asList(
         NewsFeedEventType.UPLOADED_USER_PHOTO,
         NewsFeedEventType.UPDATED_EXISTING_TRIP,
@@ -70,16 +90,26 @@ public class NewsFeedController extends TEABackController {
      * @param profileRepository Instance of ProfileRepository
      * @param tripRepository Instance of TripRepository
      * @param photoRepository Instance of PhotoRepository
+     * @param trendingEngine Instance of TrendingEngine
+     * @param likeCache Instance of LikeCache
+     * @param trendingFollowers Instance of TrendingFollowers
+     * @param newsFeedPublisher Instance of NewsFeedPublisher
      */
     @Inject
     public NewsFeedController(NewsFeedEventRepository newsFeedEventRepository,
         DestinationRepository destinationRepository, ProfileRepository profileRepository,
-        TripRepository tripRepository, PhotoRepository photoRepository) {
+        TripRepository tripRepository, PhotoRepository photoRepository,
+        TrendingEngine trendingEngine, LikeCache likeCache,
+        TrendingFollowers trendingFollowers, NewsFeedPublisher newsFeedPublisher) {
         this.newsFeedEventRepository = newsFeedEventRepository;
         this.destinationRepository = destinationRepository;
         this.profileRepository = profileRepository;
         this.tripRepository = tripRepository;
         this.photoRepository = photoRepository;
+        this.trendingEngine = trendingEngine;
+        this.likeCache = likeCache;
+        this.trendingFollowers = trendingFollowers;
+        this.newsFeedPublisher = newsFeedPublisher;
     }
 
     /**
@@ -90,13 +120,14 @@ public class NewsFeedController extends TEABackController {
      * @param pageNum Page number to retrieve
      * @param pageSize Number of results to give per page
      * @param requestOrder The order of the request we are showing
+     * @param cursor Cursor to the page to retrieve, empty for the first page, null to page by number
      * @return Paging response with all values needed to create cards for each event
      */
     @With({Everyone.class, Authenticator.class})
     public CompletableFuture<Result> getProfileNewsFeed(Http.Request request, Long userId,
-        Integer pageNum, Integer pageSize, Integer requestOrder) {
-        return getNewsFeedData(Collections.singletonList(userId), null, pageNum, pageSize,
-            requestOrder);
+        Integer pageNum, Integer pageSize, Integer requestOrder, String cursor) {
+        return getNewsFeedData(request.attrs().get(ActionState.USER).id,
+            Collections.singletonList(userId), null, pageNum, pageSize, requestOrder, cursor);
     }
 
     /**
@@ -107,11 +138,12 @@ public class NewsFeedController extends TEABackController {
      * @param pageNum Page number to retrieve
      * @param pageSize Number of results to give per page
      * @param requestOrder The order of the request we are showing
+     * @param cursor Cursor to the page to retrieve, empty for the first page, null to page by number
      * @return Paging response with all values needed to create cards for each event
      */
     @With({Everyone.class, Authenticator.class})
-    public CompletableFuture<Result> getDestinationNewsFeed(Http.Request request, Long destinationId, Integer pageNum, Integer pageSize, Integer requestOrder) {
-        return getNewsFeedData(null, Collections.singletonList(destinationId), pageNum, pageSize, requestOrder);
+    public CompletableFuture<Result> getDestinationNewsFeed(Http.Request request, Long destinationId, Integer pageNum, Integer pageSize, Integer requestOrder, String cursor) {
+        return getNewsFeedData(request.attrs().get(ActionState.USER).id, null, Collections.singletonList(destinationId), pageNum, pageSize, requestOrder, cursor);
     }
 
     /**
@@ -121,18 +153,53 @@ public class NewsFeedController extends TEABackController {
      * @param pageNum Page number to retrieve
      * @param pageSize Number of results to give per page
      * @param requestOrder The order of the request we are showing
+     * @param cursor Cursor to the page to retrieve, empty for the first page, null to page by number
      * @return Paging response with all values needed to create cards for each event
      */
     @With({Everyone.class, Authenticator.class})
-    public CompletableFuture<Result> getMainNewsFeed(Http.Request request, Integer pageNum, Integer pageSize, Integer requestOrder) {
+    public CompletableFuture<Result> getMainNewsFeed(Http.Request request, Integer pageNum, Integer pageSize, Integer requestOrder, String cursor) {
         // Get id of currently logged in user
         Long id = request.attrs().get(ActionState.USER).id;
 
-        return profileRepository.getDestinationIdsFollowedBy(id).thenComposeAsync(destIds ->
-            profileRepository.getUserIdsFollowedBy(id).thenComposeAsync(userIds ->
-                getNewsFeedData(userIds, destIds, pageNum, pageSize, requestOrder)
-            )
-        );
+        // Read straight from the user's timeline, which already holds the events of everyone
+        // and everything they follow
+        if (cursor != null) {
+            PageCursor pageCursor;
+            try {
+                pageCursor = PageCursor.decode(cursor);
+            } catch (IllegalArgumentException e) {
+                return CompletableFuture.supplyAsync(() -> badRequest(Json.toJson("Invalid cursor")));
+            }
+            return newsFeedEventRepository.getTimelineEventsAfterCursor(id, pageCursor, pageSize)
+                .thenComposeAsync(page -> cursorPageToResult(id, page, requestOrder, true));
+        }
+
+        return newsFeedEventRepository.getPagedTimelineEvents(id, pageNum, pageSize)
+            .thenComposeAsync(pagedEvents -> pagedEventsToResult(id, pagedEvents, requestOrder));
+    }
+
+    /**
+     * Endpoint to stream new events for the destinations and users they follow as they are
+     * added, as server sent events. Each event is sent as the same response item the main news
+     * feed gives, so the frontend can put it straight at the top of the feed without fetching
+     * anything. Events grouped into an earlier event carry the ids of the whole group.
+     *
+     * @param request HTTP request containing user auth
+     * @return Chunked event stream that stays open until the client disconnects
+     */
+    @With({Everyone.class, Authenticator.class})
+    public Result getLiveNewsFeed(Http.Request request) {
+        Long id = request.attrs().get(ActionState.USER).id;
+
+        // Only the events for this user are built, one at a time as the client reads them
+        Source<EventSource.Event, NotUsed> events = newsFeedPublisher.subscribe(id)
+            .mapAsync(1, event -> convertEventsToData(id, Collections.singletonList(event)))
+            .mapConcat(items -> items)
+            .map(item -> EventSource.Event.event(Json.toJson(item)))
+            .keepAlive(newsFeedPublisher.getKeepAlive(),
+                () -> EventSource.Event.event("").withName("keepalive"));
+
+        return ok().chunked(events.via(EventSource.flow())).as(Http.MimeTypes.EVENT_STREAM);
     }
 
     /**
@@ -142,33 +209,54 @@ public class NewsFeedController extends TEABackController {
      * @param pageNum Page number to retrieve
      * @param pageSize Number of results to give per page
      * @param requestOrder The order of the request we are showing
+     * @param cursor Cursor to the page to retrieve, empty for the first page, null to page by number
      * @return Paging response with all values needed to create cards for each event
      */
     @With({Everyone.class, Authenticator.class})
-    public CompletableFuture<Result> getExploreFeed(Http.Request request, Integer pageNum, Integer pageSize, Integer requestOrder) {
-        return getTrendingNewsFeed(pageNum, pageSize, requestOrder);
+    public CompletableFuture<Result> getExploreFeed(Http.Request request, Integer pageNum, Integer pageSize, Integer requestOrder, String cursor) {
+        return getTrendingNewsFeed(request.attrs().get(ActionState.USER).id, pageNum, pageSize,
+            requestOrder, cursor);
     }
 
     /**
      * Gets the news feed data of trending
      *
+     * @param viewerId id of the user viewing the feed
      * @param pageNum page number
      * @param pageSize page size
+     * @param cursor cursor to the page, empty for the first page, null to page by number
      */
     private CompletableFuture<Result> getTrendingNewsFeed(
+        Long viewerId,
         Integer pageNum,
         Integer pageSize,
-        Integer requestOrder) {
-        // Perform repository call
-        return newsFeedEventRepository.getPagedTrendingEvents(pageNum, pageSize)
+        Integer requestOrder,
+        String cursor) {
+        if (cursor != null) {
+            PageCursor pageCursor;
+            try {
+                pageCursor = PageCursor.decode(cursor);
+            } catch (IllegalArgumentException e) {
+                return CompletableFuture.supplyAsync(() -> badRequest(Json.toJson("Invalid cursor")));
+            }
+            if (pageCursor != null && pageCursor.getScore() == null) {
+                return CompletableFuture.supplyAsync(() -> badRequest(Json.toJson("Invalid cursor")));
+            }
+            // Trending order is kept, rather than sorting by creation date
+            return trendingEngine.getPageAfter(pageCursor, pageSize)
+                .thenComposeAsync(page -> cursorPageToResult(viewerId, page, requestOrder, false));
+        }
+
+        // Perform trending engine call
+        return trendingEngine.getPage(pageNum, pageSize)
         .thenComposeAsync(pagedEvents -> {
-            return convertEventsToData(pagedEvents)
+            return convertEventsToData(viewerId, pagedEvents.getKey())
             .thenApplyAsync(completedStrategies -> {
                 // Serialize and return a paging response with all created NewsFeedResponseItems
                 return ok(Json.toJson(new PagingResponse<>(
                     completedStrategies,
                     requestOrder,
-                    pagedEvents.getTotalPageCount())));
+                    pagedEvents.getValue())));
             });
         });
     }
@@ -176,20 +264,49 @@ public class NewsFeedController extends TEABackController {
     /**
      * Gets the news feed data
      *
+     * @param viewerId id of the user viewing the feed
      * @param userIds list of userIds
      * @param destIds list of destIds
      * @param pageNum page number
      * @param pageSize page size
+     * @param cursor cursor to the page, empty for the first page, null to page by number
      */
-    private CompletableFuture<Result> getNewsFeedData(List<Long> userIds, // Possibly null
+    private CompletableFuture<Result> getNewsFeedData(Long viewerId,
+        List<Long> userIds, // Possibly null
         List<Long> destIds,
         Integer pageNum,
         Integer pageSize,
-        Integer requestOrder) {
+        Integer requestOrder,
+        String cursor) {
+        if (cursor != null) {
+            PageCursor pageCursor;
+            try {
+                pageCursor = PageCursor.decode(cursor);
+            } catch (IllegalArgumentException e) {
+                return CompletableFuture.supplyAsync(() -> badRequest(Json.toJson("Invalid cursor")));
+            }
+            return newsFeedEventRepository
+                .getEventsAfterCursor(userIds, destIds, pageCursor, pageSize)
+                .thenComposeAsync(page -> cursorPageToResult(viewerId, page, requestOrder, true));
+        }
+
         // Perform repository call
         return newsFeedEventRepository.getPagedEvents(userIds, destIds, pageNum, pageSize)
-        .thenComposeAsync(pagedEvents -> {
-            return convertEventsToData(pagedEvents)
+            .thenComposeAsync(pagedEvents -> pagedEventsToResult(viewerId, pagedEvents,
+                requestOrder));
+    }
+
+    /**
+     * Converts a page of events into the paging response sent to the frontend, sorted by most
+     * recent first
+     *
+     * @param viewerId id of the user viewing the feed
+     * @param pagedEvents a PagedList of newsfeedevents
+     * @param requestOrder The order of the request we are showing
+     */
+    private CompletableFuture<Result> pagedEventsToResult(Long viewerId,
+        PagedList<NewsFeedEvent> pagedEvents, Integer requestOrder) {
+        return convertEventsToData(viewerId, pagedEvents.getList())
             .thenApplyAsync(completedStrategies -> {
                 // Sort all completed strategies by creation date (most recent first)
                 completedStrategies
@@ -201,36 +318,96 @@ public class NewsFeedController extends TEABackController {
                     requestOrder,
                     pagedEvents.getTotalPageCount())));
             });
-        });
     }
 
     /**
-     * Takes a paged list of newsfeedevents and converts them to a list of newsfeed response items
-     * for the frontend.
+     * Converts a cursor page of events into the paging response sent to the frontend, which holds
+     * the cursor to the next page rather than a total page count
      *
-     * @param pagedEvents a PagedList of newsfeedevents
+     * @param viewerId id of the user viewing the feed
+     * @param page Pair of the events on the page and the cursor to the next page
+     * @param requestOrder The order of the request we are showing
+     * @param sortByCreated Whether to sort by most recent first, or keep the order given
+     */
+    private CompletableFuture<Result> cursorPageToResult(Long viewerId,
+        Pair<List<NewsFeedEvent>, PageCursor> page, Integer requestOrder, boolean sortByCreated) {
+        return convertEventsToData(viewerId, page.getKey())
+            .thenApplyAsync(completedStrategies -> {
+                if (sortByCreated) {
+                    completedStrategies
+                        .sort(Collections.reverseOrder(Comparator.comparing(cs -> cs.created)));
+                }
+
+                return ok(Json.toJson(new PagingResponse<>(
+                    completedStrategies,
+                    requestOrder,
+                    page.getValue() == null ? null : page.getValue().encode())));
+            });
+    }
+
+    /**
+     * Takes a list of newsfeedevents and converts them to a list of newsfeed response items
+     * for the frontend, including the like count and like status of every event so the frontend
+     * does not need to fetch them for each card.
+     *
+     * @param viewerId id of the user viewing the feed, whose like status is given
+     * @param eventList a list of newsfeedevents
      * @return completedStrategies
      */
-    private CompletableFuture<List<NewsFeedResponseItem>> convertEventsToData(PagedList<NewsFeedEvent> pagedEvents) {
+    private CompletableFuture<List<NewsFeedResponseItem>> convertEventsToData(Long viewerId,
+        List<NewsFeedEvent> eventList) {
+        List<Long> groupIds = eventList.stream()
+            .filter(x -> GROUP_EVENT_TYPES.contains(NewsFeedEventType.valueOf(x.eventType)))
+            .map(x -> x.guid)
+            .collect(Collectors.toList());
+
+        return newsFeedEventRepository.getGroupedEvents(groupIds).thenComposeAsync(groups ->
+            convertEventsToData(viewerId, eventList, groups));
+    }
+
+    /**
+     * Takes a list of newsfeedevents, with the events grouped into them, and converts them to a
+     * list of newsfeed response items for the frontend.
+     *
+     * @param viewerId id of the user viewing the feed, whose like status is given
+     * @param eventList a list of newsfeedevents
+     * @param groups Events grouped into each event of the list, by the id of the event
+     * @return completedStrategies
+     */
+    private CompletableFuture<List<NewsFeedResponseItem>> convertEventsToData(Long viewerId,
+        List<NewsFeedEvent> eventList, Map<Long, List<NewsFeedEvent>> groups) {
         // Modify returned events list to only include singular events, and create a new list of grouped events
         Pair<List<NewsFeedEvent>, List<GroupedNewsFeedEvent>> pair = filterOutGroupedEvents(
-            pagedEvents.getList());
+            eventList, groups);
         List<NewsFeedEvent> events = pair.getKey();
         List<GroupedNewsFeedEvent> groupedEvents = pair.getValue();
-        // Collect a list of the completable strategies created for each event, singular and grouped
-        List<CompletableFuture<NewsFeedResponseItem>> completableStrategies = events
+        // Create the strategy for each event, singular and grouped
+        List<NewsFeedStrategy> strategies = events
             .stream()
-            .map(x -> getStrategyForEvent(x).execute())
+            .map(this::getStrategyForEvent)
             .collect(Collectors.toList());
 
-        completableStrategies.addAll(groupedEvents.stream()
-            .map(x -> getStrategyForEvent(x).execute())
+        strategies.addAll(groupedEvents.stream()
+            .map(this::getStrategyForEvent)
             .collect(Collectors.toList()));
 
+        // Fetch everything the strategies need up front, with one query per type of entity
+        NewsFeedDataLoader dataLoader = new NewsFeedDataLoader(profileRepository,
+            photoRepository, tripRepository, destinationRepository);
+        strategies.forEach(strategy -> strategy.registerWith(dataLoader));
+
         // Wait until all strategies have executed then return paging response
-        return CompletableFuture
-        .allOf(completableStrategies.toArray(new CompletableFuture[0]))
-        .thenApplyAsync(v -> {
+        return dataLoader.load().thenComposeAsync(loaded -> {
+            List<CompletableFuture<NewsFeedResponseItem>> completableStrategies = strategies
+                .stream()
+                .map(NewsFeedStrategy::execute)
+                .collect(Collectors.toList());
+
+            return CompletableFuture
+                .allOf(completableStrategies.toArray(new CompletableFuture[0]))
+                .thenApply(v -> completableStrategies);
+        })
+        .thenApplyAsync(completableStrategies -> {
             // Append the correct created time and event type to each complete event
             List<NewsFeedResponseItem> completedStrategies = completableStrategies
                 .stream().map(CompletableFuture::join).collect(Collectors.toList());
@@ -246,6 +423,15 @@ public class NewsFeedController extends TEABackController {
                 completedStrategies.get(i).eventType = groupedEvents
                     .get(i - events.size()).eventType;
             }
+            // Likes are all held in memory by the like cache, so no queries are needed
+            for (NewsFeedResponseItem item : completedStrategies) {
+                item.likeCounts = new HashMap<>();
+                item.liked = new HashMap<>();
+                for (Long eventId : item.eventIds) {
+                    item.likeCounts.put(eventId, likeCache.getLikeCount(eventId));
+                    item.liked.put(eventId, likeCache.isLiked(eventId, viewerId));
+                }
+            }
             return completedStrategies;
         });
     }
@@ -320,119 +506,61 @@ public class NewsFeedController extends TEABackController {
     }
 
     /**
-     * Sorts through a list, and where a group of like events are found, removes them from the
-     * eventList, and adds them to a new list. This new list is made of groupedEvents, where the
-     * created values and referenced ids are decided from the events they are made up of
-     * <p>
-     * The creation date assigned to a grouped event is the latest of the creation dates of all
-     * grouped events.
+     * Splits a list of events into the events shown on their own, and the events shown as a group.
+     * Events are grouped when they are added (see NewsFeedEventRepository.addNewsFeedEvent), so
+     * each event of a grouped type is the latest of its group and only needs the events grouped
+     * into it added to it.
      * <p>
-     * Only objects within a 12 hour range (from most recent) will be grouped
+     * The creation date assigned to a grouped event is the creation date of its latest event.
      *
      * @param eventList List of events to filter
+     * @param groups Events grouped into each event of the list, by the id of the event
      * @return Pair containing the singular events list and grouped events list
      */
     private Pair<List<NewsFeedEvent>, List<GroupedNewsFeedEvent>> filterOutGroupedEvents(
-        List<NewsFeedEvent> eventList) {
+        List<NewsFeedEvent> eventList, Map<Long, List<NewsFeedEvent>> groups) {
         List<NewsFeedEvent> singularEventList = new ArrayList<>();
         List<GroupedNewsFeedEvent> groupedEventsList = new ArrayList<>();
         for (final NewsFeedEvent event : eventList) {
             final NewsFeedEventType eventType = NewsFeedEventType.valueOf(event.eventType);
             if (!GROUP_EVENT_TYPES.contains(eventType)) {
                 singularEventList.add(event);
-            } else {
-                switch (NewsFeedEventType.valueOf(event.eventType)) {
-                    case UPDATED_EXISTING_TRIP:
-                        final Optional<GroupedNewsFeedEvent> matchedTripUpdates = groupedEventsList
-                            .stream()
-                            .filter(x -> x.eventType
-                                .equals(NewsFeedEventType.GROUPED_TRIP_UPDATES.name()))
-                            .filter(x -> x.created.minusHours(12).isBefore(event.created))
-                            .filter(x -> x.tripId.equals(event.refId))
-                            .findFirst();
-
-                        if (matchedTripUpdates.isPresent()) {
-                            int eventIndex = groupedEventsList.indexOf(matchedTripUpdates.get());
-                            if (!groupedEventsList.get(eventIndex).refIds.contains(event.destId)) {
-                                groupedEventsList.get(eventIndex).refIds.add(event.destId);
-                                groupedEventsList.get(eventIndex).eventIds.add(event.guid);
-                            }
-                        } else {
-                            GroupedNewsFeedEvent newGroupEvent = new GroupedNewsFeedEvent();
-                            newGroupEvent.refIds = new ArrayList<>();
-                            newGroupEvent.eventIds = new ArrayList<>();
-                            newGroupEvent.refIds.add(event.destId);
-                            newGroupEvent.eventIds.add(event.guid);
-                            newGroupEvent.created = event.created;
-                            newGroupEvent.tripId = event.refId;
-                            newGroupEvent.userId = event.userId;
-                            newGroupEvent.eventType = NewsFeedEventType.GROUPED_TRIP_UPDATES.name();
-                            groupedEventsList.add(newGroupEvent);
-                        }
-                        break;
-
-                    case UPLOADED_USER_PHOTO:
-                        final Optional<GroupedNewsFeedEvent> matchedUserPhotos = groupedEventsList
-                            .stream()
-                            .filter(x -> x.eventType
-                                .equals(NewsFeedEventType.MULTIPLE_GALLERY_PHOTOS.name()))
-                            .filter(x -> x.created.minusHours(12).isBefore(event.created))
-                            .filter(x -> x.userId.equals(event.userId))
-                            .findFirst();
-
-                        if (matchedUserPhotos.isPresent()) {
-                            int eventIndex = groupedEventsList.indexOf(matchedUserPhotos.get());
-                            if (!groupedEventsList.get(eventIndex).refIds.contains(event.refId)) {
-                                groupedEventsList.get(eventIndex).refIds.add(event.refId);
-                                groupedEventsList.get(eventIndex).eventIds.add(event.guid);
-                            }
-                        } else {
-                            GroupedNewsFeedEvent newGroupEvent = new GroupedNewsFeedEvent();
-                            newGroupEvent.refIds = new ArrayList<>();
-                            newGroupEvent.eventIds = new ArrayList<>();
-                            newGroupEvent.refIds.add(event.refId);
-                            newGroupEvent.eventIds.add(event.guid);
-                            newGroupEvent.created = event.created;
-                            newGroupEvent.userId = event.userId;
-                            newGroupEvent.eventType = NewsFeedEventType.MULTIPLE_GALLERY_PHOTOS
-                                .name();
-                            groupedEventsList.add(newGroupEvent);
-                        }
-                        break;
-
-                    case LINK_DESTINATION_PHOTO:
-                        final Optional<GroupedNewsFeedEvent> matchedDestinationPhotoLinks = groupedEventsList
-                            .stream()
-                            .filter(x -> x.eventType
-                                .equals(NewsFeedEventType.MULTIPLE_DESTINATION_PHOTO_LINKS.name()))
-                            .filter(x -> x.created.minusHours(12).isBefore(event.created))
-                            .filter(x -> x.userId.equals(event.userId))
-                            .filter(x -> x.destId.equals(event.destId))
-                            .findFirst();
-
-                        if (matchedDestinationPhotoLinks.isPresent()) {
-                            int eventIndex = groupedEventsList
-                                .indexOf(matchedDestinationPhotoLinks.get());
-                            if (!groupedEventsList.get(eventIndex).refIds.contains(event.refId)) {
-                                groupedEventsList.get(eventIndex).refIds.add(event.refId);
-                                groupedEventsList.get(eventIndex).eventIds.add(event.guid);
-                            }
-                        } else {
-                            GroupedNewsFeedEvent newGroupEvent = new GroupedNewsFeedEvent();
-                            newGroupEvent.refIds = new ArrayList<>();
-                            newGroupEvent.eventIds = new ArrayList<>();
-                            newGroupEvent.refIds.add(event.refId);
-                            newGroupEvent.eventIds.add(event.guid);
-                            newGroupEvent.created = event.created;
-                            newGroupEvent.destId = event.destId;
-                            newGroupEvent.userId = event.userId;
-                            newGroupEvent.eventType = NewsFeedEventType.MULTIPLE_DESTINATION_PHOTO_LINKS
-                                .name();
-                            groupedEventsList.add(newGroupEvent);
-                        }
-                        break;
+                continue;
+            }
+
+            GroupedNewsFeedEvent newGroupEvent = new GroupedNewsFeedEvent();
+            newGroupEvent.refIds = new ArrayList<>();
+            newGroupEvent.eventIds = new ArrayList<>();
+            newGroupEvent.created = event.created;
+            newGroupEvent.userId = event.userId;
+            switch (eventType) {
+                case UPDATED_EXISTING_TRIP:
+                    newGroupEvent.tripId = event.refId;
+                    newGroupEvent.eventType = NewsFeedEventType.GROUPED_TRIP_UPDATES.name();
+                    break;
+                case UPLOADED_USER_PHOTO:
+                    newGroupEvent.eventType = NewsFeedEventType.MULTIPLE_GALLERY_PHOTOS.name();
+                    break;
+                case LINK_DESTINATION_PHOTO:
+                    newGroupEvent.destId = event.destId;
+                    newGroupEvent.eventType = NewsFeedEventType.MULTIPLE_DESTINATION_PHOTO_LINKS
+                        .name();
+                    break;
+            }
+
+            List<NewsFeedEvent> grouped = new ArrayList<>();
+            grouped.add(event);
+            grouped.addAll(groups.getOrDefault(event.guid, Collections.emptyList()));
+            for (NewsFeedEvent groupedEvent : grouped) {
+                // Trip updates reference the destinations updated, the others reference photos
+                Long refId = eventType == NewsFeedEventType.UPDATED_EXISTING_TRIP
+                    ? groupedEvent.destId : groupedEvent.refId;
+                if (!newGroupEvent.refIds.contains(refId)) {
+                    newGroupEvent.refIds.add(refId);
+                    newGroupEvent.eventIds.add(groupedEvent.guid);
                 }
             }
+            groupedEventsList.add(newGroupEvent);
         }
 
         return new Pair<>(singularEventList, groupedEventsList);
@@ -449,28 +577,14 @@ public class NewsFeedController extends TEABackController {
     public CompletableFuture<Result> toggleLikeStatus(Http.Request request, Long eventId) {
         Long userId = request.attrs().get(ActionState.USER).id;
 
-        return newsFeedEventRepository.getEvent(eventId).thenComposeAsync(event -> {
+        return newsFeedEventRepository.getEvent(eventId).thenApplyAsync(event -> {
             if (event == null) {
-                return CompletableFuture.supplyAsync(Results::notFound);
-            } else {
-                return newsFeedEventRepository.getLikes(eventId, userId)
-                    .thenComposeAsync(likes -> {
-                        if (likes == null) {
-                            Likes newLikes = new Likes();
-                            newLikes.eventId = eventId;
-                            newLikes.userId = userId;
-                            return newsFeedEventRepository.insertLike(newLikes)
-                                .thenApplyAsync(guid ->
-                                    ok(Json.toJson("liked")));
-                        } else {
-                            return newsFeedEventRepository.deleteLike(likes.guid)
-                                .thenApplyAsync(delete ->
-                                    ok(Json.toJson("unliked")));
-                        }
-                    });
+                return notFound();
             }
+            // Written to the database in the background by the like cache
+            boolean liked = likeCache.toggleLike(eventId, userId);
+            return ok(Json.toJson(liked ? "liked" : "unliked"));
         });
-
     }
 
     /**
@@ -484,21 +598,11 @@ public class NewsFeedController extends TEABackController {
     public CompletableFuture<Result> getLikeStatus(Http.Request request, Long eventId) {
         Long userId = request.attrs().get(ActionState.USER).id;
 
-        return newsFeedEventRepository.getEvent(eventId).thenComposeAsync(event -> {
+        return newsFeedEventRepository.getEvent(eventId).thenApplyAsync(event -> {
             if (event == null) {
-                return CompletableFuture.supplyAsync(Results::notFound);
-            } else {
-                return newsFeedEventRepository.getLikes(eventId, userId)
-                    .thenComposeAsync(likes -> {
-                        if (likes == null) {
-                            //Not liked
-                            return CompletableFuture.supplyAsync(() -> ok(Json.toJson(false)));
-                        } else {
-                            //Liked
-                            return CompletableFuture.supplyAsync(() -> ok(Json.toJson(true)));
-                        }
-                    });
+                return notFound();
             }
+            return ok(Json.toJson(likeCache.isLiked(eventId, userId)));
         });
     }
 
@@ -511,15 +615,9 @@ public class NewsFeedController extends TEABackController {
      */
     @With({Everyone.class, Authenticator.class})
     public CompletableFuture<Result> getLikeCount(Http.Request request, Long eventId) {
-        return newsFeedEventRepository.getEventLikeCounts(eventId).thenComposeAsync(count -> {
-            if (count == null) {
-                return CompletableFuture.supplyAsync(Results::notFound);
-            } else {
-                ObjectNode returnObject = new ObjectNode(new JsonNodeFactory(false));
-                returnObject.set("likeCount", Json.toJson(count));
-                return CompletableFuture.supplyAsync(() -> ok(returnObject));
-            }
-        });
+        ObjectNode returnObject = new ObjectNode(new JsonNodeFactory(false));
+        returnObject.set("likeCount", Json.toJson(likeCache.getLikeCount(eventId)));
+        return CompletableFuture.completedFuture(ok(returnObject));
     }
 
     /**
@@ -530,9 +628,8 @@ public class NewsFeedController extends TEABackController {
      */
     @With({Everyone.class, Authenticator.class})
     public CompletableFuture<Result> getTrendingUsers(Http.Request request) {
-        return newsFeedEventRepository.getTrendingUsers().thenApplyAsync(trending -> 
-            ok(Json.toJson(trending))
-        );
+        return CompletableFuture.completedFuture(
+            ok(Json.toJson(trendingFollowers.getTrendingUsers())));
     }
 
     /**
@@ -543,9 +640,8 @@ public class NewsFeedController extends TEABackController {
      */
     @With({Everyone.class, Authenticator.class})
     public CompletableFuture<Result> getTrendingDestinations(Http.Request request) {
-        return newsFeedEventRepository.getTrendingDestinations().thenApplyAsync(trending ->
-           ok(Json.toJson(trending))
-        );
+        return CompletableFuture.completedFuture(
+            ok(Json.toJson(trendingFollowers.getTrendingDestinations())));
     }
 
     /**
@@ -563,6 +659,7 @@ public class NewsFeedController extends TEABackController {
                 controllers.backend.routes.javascript.NewsFeedController.getProfileNewsFeed(),
                 controllers.backend.routes.javascript.NewsFeedController.getDestinationNewsFeed(),
                 controllers.backend.routes.javascript.NewsFeedController.getMainNewsFeed(),
+                controllers.backend.routes.javascript.NewsFeedController.getLiveNewsFeed(),
                 controllers.backend.routes.javascript.NewsFeedController.getExploreFeed(),
                 controllers.backend.routes.javascript.NewsFeedController.getTrendingUsers(),
                 controllers.backend.routes.javascript.NewsFeedController.getTrendingDestinations()
@@ -7,14 +7,17 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.inject.Inject;
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
-import java.awt.image.BufferedImage;
+import com.typesafe.config.Config;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -24,18 +27,22 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
-import javax.imageio.ImageIO;
 import models.NewsFeedEvent;
 import models.Photo;
 import models.Tag;
 import models.User;
 import models.enums.NewsFeedEventType;
+import models.enums.PhotoState;
 import play.libs.Files;
 import play.libs.Json;
 import play.mvc.Http;
+import play.mvc.RangeResults;
 import play.mvc.Result;
 import play.mvc.Results;
+import play.mvc.StaticFileMimeTypes;
 import play.mvc.With;
 import play.routing.JavaScriptReverseRouter;
 import repository.DestinationRepository;
@@ -43,6 +50,12 @@ import repository.NewsFeedEventRepository;
 import repository.PhotoRepository;
 import repository.ProfileRepository;
 import repository.TagRepository;
+import util.ImageExecutionContext;
+import util.ImageProcessor;
+import util.PhotoFileCache;
+import util.PhotoStorage;
+import util.PhotoVariants;
+import util.ThumbnailGenerator;
 import util.objects.PagingResponse;
 import util.objects.Pair;
 import util.validation.ErrorResponse;
@@ -58,11 +71,6 @@ public class PhotoController extends TEABackController {
     // Constant fields defining the directory of publicly available files
     private static final String PUBLIC_DIRECTORY = "/public";
 
-    // Default dimensions of thumbnail images
-    private static final int THUMB_WIDTH = 400;
-    private static final int THUMB_HEIGHT = 266;
-    private static final int PROFILE_THUMB_HEIGHT = 150;
-    private static final int PROFILE_THUMB_WIDTH = 150;
     private final String savePath;
 
     // Caption and tag field name constants
@@ -76,18 +84,49 @@ public class PhotoController extends TEABackController {
     private TagRepository tagRepository;
     private NewsFeedEventRepository newsFeedEventRepository;
 
+    // Generates thumbnails of uploaded photos in the background
+    private ThumbnailGenerator thumbnailGenerator;
+
+    // Renders photos at smaller widths when asked for
+    private PhotoVariants photoVariants;
+
+    // Describes photo files being served, and keeps the small ones in memory
+    private PhotoFileCache photoFileCache;
+
+    // Stores uploaded files under the hash of their contents
+    private PhotoStorage photoStorage;
+
+    // Pool uploads are checked and stored on, shared by every request
+    private ImageExecutionContext imageExecutionContext;
+
+    // Cache-Control header sent with photo files
+    private final String photoCacheControl;
+
     @Inject
     public PhotoController(DestinationRepository destinationRepository,
         PhotoRepository photoRepository,
         ProfileRepository profileRepository,
         TagRepository tagRepository,
-        NewsFeedEventRepository newsFeedEventRepository) {
+        NewsFeedEventRepository newsFeedEventRepository,
+        ThumbnailGenerator thumbnailGenerator,
+        PhotoVariants photoVariants,
+        PhotoFileCache photoFileCache,
+        PhotoStorage photoStorage,
+        ImageExecutionContext imageExecutionContext,
+        Config config) {
 
         this.destinationRepository = destinationRepository;
         this.photoRepository = photoRepository;
         this.profileRepository = profileRepository;
         this.tagRepository = tagRepository;
         this.newsFeedEventRepository = newsFeedEventRepository;
+        this.thumbnailGenerator = thumbnailGenerator;
+        this.photoVariants = photoVariants;
+        this.photoFileCache = photoFileCache;
+        this.photoStorage = photoStorage;
+        this.imageExecutionContext = imageExecutionContext;
+        this.photoCacheControl = "private, max-age="
+            + config.getDuration("photos.serving.maxAge", TimeUnit.SECONDS);
 
         // Create photo directories if none exist
         String directoryName = System.getProperty("user.dir");
@@ -104,13 +143,116 @@ public class PhotoController extends TEABackController {
     }
 
     /**
-     * Takes a path to a file and returns the file object.
+     * Takes a path to a file and returns the file object. If a size is given, a variant of the
+     * photo scaled down to that width is returned instead, which is rendered the first time it
+     * is asked for.
      *
+     * @param request Request, whose conditional and range headers are answered
      * @param filePath path to file to read
+     * @param size Width of the variant to return, null for the file itself
+     * @return OK with the file, bad request if the size is not one variants are rendered at, not
+     * found if there is no stored photo to render a variant of
+     */
+    public CompletableFuture<Result> getPhotoFromPath(Http.Request request, String filePath,
+        Integer size) {
+        if (size == null) {
+            return CompletableFuture.completedFuture(servePhoto(request, Paths.get(filePath)));
+        } else if (!photoVariants.isAllowedWidth(size)) {
+            return CompletableFuture.completedFuture(
+                badRequest(Json.toJson("Photos can't be resized to that size")));
+        }
+
+        return photoVariants.getVariant(Paths.get(filePath), size).handle((variant, error) -> {
+            if (error != null) {
+                return internalServerError(Json.toJson("Failed to resize photo"));
+            } else if (variant == null) {
+                return notFound(Json.toJson("Photo does not exist"));
+            }
+            return servePhoto(request, variant);
+        });
+    }
+
+    /**
+     * Serves a photo file with validators, so browsers can keep it and check it is unchanged
+     * rather than downloading it again. Answers If-None-Match and If-Modified-Since with not
+     * modified, and Range with the parts asked for. Small files are served from memory.
+     *
+     * @param request Request being answered
+     * @param path Path of the file to serve
+     * @return The file, not modified, or not found if there is no such file
+     */
+    private Result servePhoto(Http.Request request, Path path) {
+        PhotoFileCache.PhotoFile file;
+        try {
+            file = photoFileCache.get(path);
+        } catch (IOException e) {
+            return internalServerError(Json.toJson("Failed to read photo"));
+        }
+        if (file == null) {
+            return notFound(Json.toJson("Photo does not exist"));
+        }
+
+        String eTag = file.getETag();
+        // If-Modified-Since is only used by clients that don't send If-None-Match
+        boolean notModified = request.header(IF_NONE_MATCH)
+            .map(tags -> matchesETag(tags, eTag))
+            .orElseGet(() -> request.header(IF_MODIFIED_SINCE)
+                .map(since -> !modifiedSince(file.lastModified, since))
+                .orElse(false));
+
+        Result result;
+        if (notModified) {
+            result = status(NOT_MODIFIED);
+        } else if (request.header(RANGE).isPresent()) {
+            result = RangeResults.ofPath(request, path);
+        } else if (file.getContents() != null) {
+            result = ok(file.getContents()).as(StaticFileMimeTypes.fileMimeTypes()
+                .forFileName(path.getFileName().toString())
+                .orElse(Http.MimeTypes.BINARY));
+        } else {
+            result = ok(path.toFile(), true);
+        }
+
+        return result.withHeaders(
+            ETAG, eTag,
+            LAST_MODIFIED, DateTimeFormatter.RFC_1123_DATE_TIME
+                .format(Instant.ofEpochMilli(file.lastModified).atZone(ZoneOffset.UTC)),
+            CACHE_CONTROL, photoCacheControl,
+            ACCEPT_RANGES, "bytes");
+    }
+
+    /**
+     * Checks whether an If-None-Match header matches an entity tag
+     *
+     * @param header Value of the If-None-Match header, a list of entity tags or *
+     * @param eTag Entity tag of the file
+     * @return True if any of the tags match, ignoring whether they are weak
      */
-    public Result getPhotoFromPath(String filePath) {
-        File file = new File(filePath);
-        return ok(file, true);
+    private static boolean matchesETag(String header, String eTag) {
+        for (String tag : header.split(",")) {
+            String trimmed = tag.trim();
+            if (trimmed.equals("*") || trimmed.replaceFirst("^W/", "").equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a file has been modified since the date of an If-Modified-Since header
+     *
+     * @param lastModified Time the file was last modified, in milliseconds since the epoch
+     * @param header Value of the If-Modified-Since header
+     * @return True if the file was modified after the date, or the date can't be read
+     */
+    private static boolean modifiedSince(long lastModified, String header) {
+        try {
+            // HTTP dates are only precise to the second
+            return lastModified / 1000 > ZonedDateTime
+                .parse(header, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+        } catch (DateTimeParseException e) {
+            return true;
+        }
     }
 
     /**
@@ -415,64 +557,157 @@ public class PhotoController extends TEABackController {
                 return CompletableFuture
                     .supplyAsync(() -> badRequest(Json.toJson("No files given")));
             } else {
-                try {
-                    return saveMultiplePhotos(photos, loggedInUser, profilePhotoFilename != null);
-                } catch (IOException e) {
-                    return CompletableFuture.supplyAsync(() -> internalServerError(
-                        Json.toJson("Unknown number of photos failed to save")));
-                }
+                return saveMultiplePhotos(photos, loggedInUser, profilePhotoFilename != null);
             }
         });
     }
 
     /**
      * Saves multiple photo files to storage folder, and inserts reference to them to database.
+     * Files are stored under the hash of their contents, so a file that is already stored is
+     * reused rather than stored again. The uploads are checked and copied into storage in
+     * parallel, and are all added in one transaction, so if any of them fails none are saved.
+     * Only the originals are stored here, their thumbnails are generated in the background.
      *
      * @param photos Collection of pairs of Photo and HTTP multipart form data file parts
      */
     private CompletableFuture<Result> saveMultiplePhotos(
         Collection<Pair<Photo, Http.MultipartFormData.FilePart<Files.TemporaryFile>>> photos,
-        User user, Boolean useProfileThumbnailSize)
-        throws IOException {
-        // Add all the photos we found to the database
-        int thumbWidth = THUMB_WIDTH;
-        int thumbHeight = THUMB_HEIGHT;
+        User user, Boolean isProfilePhoto) {
+        // Check and copy the uploads into storage at the same time, hashing them to find the
+        // names they will be stored as
+        List<CompletableFuture<PhotoStorage.StagedFile>> staging = new ArrayList<>();
         for (Pair<Photo, Http.MultipartFormData.FilePart<Files.TemporaryFile>> pair : photos) {
-            // if photo to add is marked as new profile pic, clear any existing profile pic first
-            if (useProfileThumbnailSize) {
-                // Profile picture small thumbnail dimensions
-                thumbWidth = PROFILE_THUMB_WIDTH;
-                thumbHeight = PROFILE_THUMB_HEIGHT;
-            }
+            Path upload = pair.getValue().getRef().path();
+            String uploadName = pair.getValue().getFilename();
+            Path provisional = Paths.get(pair.getKey().filename);
+            staging.add(CompletableFuture.supplyAsync(
+                () -> stageUpload(upload, uploadName, provisional), imageExecutionContext));
+        }
+
+        return CompletableFuture.allOf(staging.toArray(new CompletableFuture[0]))
+            .handle((v, error) -> {
+                List<PhotoStorage.StagedFile> stagedFiles = staging.stream()
+                    .filter(future -> !future.isCompletedExceptionally())
+                    .map(CompletableFuture::join)
+                    .collect(Collectors.toList());
+
+                // If any upload can't be stored, none of them are
+                if (error != null) {
+                    stagedFiles.forEach(photoStorage::discard);
+                    Throwable cause = error instanceof CompletionException
+                        ? error.getCause() : error;
+                    if (cause instanceof IllegalArgumentException) {
+                        return CompletableFuture.completedFuture(
+                            badRequest(Json.toJson(cause.getMessage())));
+                    }
+                    return CompletableFuture.completedFuture(internalServerError(
+                        Json.toJson("Unknown number of photos failed to save")));
+                }
 
-            // Buffer the image and use same file creation process as
-            BufferedImage fullImage = ImageIO.read(pair.getValue().getRef().path().toFile());
-            // Create and save main image
-            createPhotoFromFile(pair.getValue().getRef(), fullImage.getWidth(),
-                fullImage.getHeight()).copyTo(Paths.get(pair.getKey().filename));
-            // Create and save thumbnail image
-            createPhotoFromFile(pair.getValue().getRef(), thumbWidth, thumbHeight)
-                .copyTo(Paths.get(pair.getKey().thumbnailFilename));
+                Iterator<PhotoStorage.StagedFile> stagedFile = stagedFiles.iterator();
+                for (Pair<Photo, Http.MultipartFormData.FilePart<Files.TemporaryFile>> pair
+                    : photos) {
+                    pair.getKey().filename = stagedFile.next().filename;
+                }
+                return addStagedPhotos(photos, stagedFiles, user, isProfilePhoto);
+            }).thenCompose(result -> result);
+    }
 
+    /**
+     * Checks an upload is an image then copies it into storage, hashing it as it is copied
+     *
+     * @param upload Path of the uploaded file
+     * @param uploadName Name the file was uploaded with
+     * @param provisional Provisional filename of its photo, in the directory and with the
+     * extension it will be stored with
+     * @return The staged upload
+     * @throws IllegalArgumentException Thrown when the upload isn't an image
+     * @throws CompletionException Thrown when the upload can't be read or copied
+     */
+    private PhotoStorage.StagedFile stageUpload(Path upload, String uploadName,
+        Path provisional) {
+        try {
+            if (!ImageProcessor.isImage(upload)) {
+                throw new IllegalArgumentException("Invalid image given: " + uploadName);
+            }
+            String[] filenameParts = provisional.getFileName().toString().split("\\.");
+            return photoStorage.stage(upload, provisional.getParent(),
+                filenameParts[filenameParts.length - 1].toLowerCase());
+        } catch (IOException e) {
+            throw new CompletionException(e);
         }
+    }
+
+    /**
+     * Adds the photos of staged uploads to the database, then stores the uploads and queues their
+     * thumbnails. If the photos can't be added, the uploads are discarded. If an upload can't be
+     * stored, the photos are deleted again and the uploads not yet stored are discarded.
+     *
+     * @param photos Collection of pairs of Photo and HTTP multipart form data file parts
+     * @param stagedFiles Staged uploads of the photos
+     */
+    private CompletableFuture<Result> addStagedPhotos(
+        Collection<Pair<Photo, Http.MultipartFormData.FilePart<Files.TemporaryFile>>> photos,
+        List<PhotoStorage.StagedFile> stagedFiles, User user, Boolean isProfilePhoto) {
         // Collect all keys from the list to upload
         List<Photo> photosToAdd = photos.stream().map(Pair::getKey)
             .collect(Collectors.toList());
 
-        // If this photo is going to be added as profile picture, return the name of it
-        if (useProfileThumbnailSize) {
+        // If this photo is going to be added as profile picture, mark it as one
+        if (isProfilePhoto) {
             photosToAdd.get(0).usedForProfile = true;
-            return photoRepository.addPhotos(photosToAdd, user).thenApplyAsync(addedPhotos -> {
-                // Return filename of photo that was just added
-                addedPhotos.get(0).thumbnailFilename =
-                    "../user_content/" + addedPhotos.get(0).thumbnailFilename;
-                addedPhotos.get(0).filename = "../user_content/" + addedPhotos.get(0).filename;
-                return created(Json.toJson(addedPhotos.get(0)));
-            });
-        } else {
-            return photoRepository.addPhotos(photosToAdd, user).thenApplyAsync(
-                addedPhotos -> created(Json.toJson("File(s) uploaded successfully")));
         }
+
+        // Storing the uploads is file I/O, so it runs on the image context rather than the pool
+        // that completed the database work
+        return photoRepository.addPhotos(photosToAdd, user).handleAsync((addedPhotos, error) -> {
+            if (error != null) {
+                stagedFiles.forEach(photoStorage::discard);
+                return CompletableFuture.completedFuture(
+                    internalServerError(Json.toJson("Failed to save photos")));
+            }
+
+            // Now the photos use the files, store them, unless they are already stored
+            for (int i = 0; i < stagedFiles.size(); i++) {
+                try {
+                    photoStorage.commit(stagedFiles.get(i));
+                } catch (IOException e) {
+                    // Without their files the photos are broken, so they are deleted again,
+                    // along with any of their files already stored that no other photo uses
+                    stagedFiles.subList(i, stagedFiles.size()).forEach(photoStorage::discard);
+                    return deleteAddedPhotos(addedPhotos).handle((deleted, deleteError) ->
+                        internalServerError(Json.toJson("Failed to save photos")));
+                }
+            }
+
+            // Queue the thumbnails now the photos have ids to fill them in with
+            addedPhotos.forEach(thumbnailGenerator::generate);
+
+            // If this photo was added as profile picture, return it. The original is used as
+            // its thumbnail until the thumbnail has been generated
+            if (isProfilePhoto) {
+                Photo profilePhoto = addedPhotos.get(0);
+                profilePhoto.thumbnailFilename = "../user_content/" + profilePhoto.filename;
+                profilePhoto.filename = "../user_content/" + profilePhoto.filename;
+                return CompletableFuture.completedFuture(created(Json.toJson(profilePhoto)));
+            } else {
+                return CompletableFuture.completedFuture(
+                    created(Json.toJson("File(s) uploaded successfully")));
+            }
+        }, imageExecutionContext).thenCompose(result -> result);
+    }
+
+    /**
+     * Deletes photos that were added but whose files couldn't be stored
+     *
+     * @param addedPhotos Photos to delete
+     * @return Future completing once every photo has been deleted
+     */
+    private CompletableFuture<Void> deleteAddedPhotos(List<Photo> addedPhotos) {
+        return CompletableFuture.allOf(addedPhotos.stream()
+            .map(photo -> photoRepository.deletePhoto(photo.guid))
+            .toArray(CompletableFuture[]::new));
     }
 
     /**
@@ -484,7 +719,8 @@ public class PhotoController extends TEABackController {
      * @param userId ID of user who is uploading the files
      * @param isTest Whether or not these photos should be added to test folder of storage
      * @param caption Caption for photo
-     * @return Photo object to be added to database
+     * @return Photo object to be added to database, with a provisional filename in the directory
+     * and with the extension it will be stored with
      * @throws IOException Thrown when an unsupported file type added (i.e not image/jpeg or
      * image/png)
      */
@@ -508,8 +744,7 @@ public class PhotoController extends TEABackController {
         photo.filename = (savePath + ((isTest) ? TEST_PHOTO_DIRECTORY : PHOTO_DIRECTORY)
             + fileName);
         photo.isPublic = publicPhotoFileNames.contains(file.getFilename());
-        photo.thumbnailFilename = (savePath + ((isTest) ? TEST_PHOTO_DIRECTORY : PHOTO_DIRECTORY)
-            + "thumbnails/" + fileName);
+        photo.processingState = PhotoState.PROCESSING;
         photo.uploaded = LocalDateTime.now();
         photo.userId = userId;
         photo.usedForProfile = false;
@@ -518,75 +753,6 @@ public class PhotoController extends TEABackController {
         return photo;
     }
 
-    /**
-     * Creates a new image at default thumbnail size of a given image.
-     *
-     * @param fullImageFile The full image to create a filename for
-     * @return Temporary file of thumbnail
-     */
-    private Files.TemporaryFile createPhotoFromFile(Files.TemporaryFile fullImageFile,
-        int thumbWidth, int thumbHeight) throws IOException {
-        BufferedImage thumbImage = new BufferedImage(thumbWidth, thumbHeight,
-            BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics2D = thumbImage
-            .createGraphics(); //create a graphics object to paint to
-        graphics2D.setBackground(Color.WHITE);
-        graphics2D.setPaint(Color.WHITE);
-        graphics2D.fillRect(0, 0, thumbWidth, thumbHeight);
-        graphics2D.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-
-        // Convert full image file to java.awt image
-        BufferedImage fullImage = ImageIO.read(fullImageFile.path().toFile());
-
-        // If image is smaller than thumbnail size then center with bars on each side
-        if (fullImage.getWidth() < thumbWidth && fullImage.getHeight() < thumbHeight) {
-            graphics2D.drawImage(fullImage, thumbWidth / 2 - fullImage.getWidth() / 2,
-                thumbHeight / 2 - fullImage.getHeight() / 2, fullImage.getWidth(),
-                fullImage.getHeight(), null);
-        } // Otherwise scale image down so biggest side
-        // is set to max of thumbnail and rest is scaled proportionally
-        else {
-            // Determine which side is proportionally bigger
-            boolean fitWidth =
-                fullImage.getWidth() / thumbWidth > fullImage.getHeight() / thumbHeight;
-            double scaleFactor =
-                (fitWidth) ? (double) thumbWidth / (double) fullImage.getWidth()
-                    : (double) thumbHeight / (double) fullImage.getHeight();
-            if (fitWidth) {
-                int newHeight = (int) Math.floor(fullImage.getHeight() * scaleFactor);
-                graphics2D
-                    .drawImage(fullImage, 0, thumbHeight / 2 - newHeight / 2, thumbWidth,
-                        newHeight,
-                        null);
-            } else {
-                int newWidth = (int) Math.floor(fullImage.getWidth() * scaleFactor);
-                graphics2D
-                    .drawImage(fullImage, thumbWidth / 2 - newWidth / 2, 0, newWidth,
-                        thumbHeight,
-                        null);
-            }
-        }
-
-        int randomNumber = (int) (Math.random() * 496148154 + 1);
-        String fileName = System.currentTimeMillis() + "_" + randomNumber + ".jpg";
-
-        // Create file to store output of thumbnail write
-        File thumbFile = new File(savePath + TEST_PHOTO_DIRECTORY + fileName);
-
-        // Write buffered image to thumbnail file
-        ImageIO.write(thumbImage, "jpg", thumbFile);
-
-        // Return temporary file created from the file
-        Files.TemporaryFile temporaryFile = (new Files.SingletonTemporaryFileCreator())
-            .create(thumbFile.toPath());
-
-        // Delete the file that it was buffered to
-        thumbFile.deleteOnExit();
-
-        return temporaryFile;
-    }
-
     /**
      * Deletes a photo with given id. Return a result with a json int which represents the number of
      * rows that were deleted. So if the return value is 0, no photo was found to delete
@@ -602,26 +768,11 @@ public class PhotoController extends TEABackController {
                 errorResponse.map("Photo not found", "other");
                 return CompletableFuture.supplyAsync(() -> badRequest(errorResponse.toJson()));
             } else {
-                // Delete any newsfeed events related to that photo
+                // Delete any newsfeed events related to that photo. Its files were deleted with
+                // it if no other photo uses them
                 return newsFeedEventRepository.cleanUpPhotoEvents(photoDeleted)
-                    .thenApplyAsync(rows -> {
-                        // Mark the files for deletion
-                        File thumbFile = new File(savePath + photoDeleted.thumbnailFilename);
-                        File mainFile = new File(savePath + photoDeleted.filename);
-                        if (!thumbFile.delete()) {
-                            // If file fails to delete immediately,
-                            // mark file for deletion when VM shuts down
-                            thumbFile.deleteOnExit();
-                        }
-                        if (!mainFile.delete()) {
-                            // If file fails to delete immediately,
-                            // mark file for deletion when VM shuts down
-                            mainFile.deleteOnExit();
-                        }
-
-                        // Return number of photos deleted
-                        return ok(Json.toJson(1));
-                    });
+                    // Return number of photos deleted
+                    .thenApplyAsync(rows -> ok(Json.toJson(1)));
             }
         });
     }
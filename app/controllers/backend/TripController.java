@@ -248,10 +248,10 @@ public class TripController extends TEABackController {
                                             }
                                         }
 
-                                        // Add all to repo concurrently and return ok
-                                        return CompletableFuture.allOf(newsFeedEvents.stream()
-                                            .map(newsFeedEventRepository::addNewsFeedEvent)
-                                            .toArray(CompletableFuture[]::new)
+                                        // Add all to repo in one batch and return ok
+                                        return CompletableFuture.allOf(newsFeedEventRepository
+                                            .addNewsFeedEvents(newsFeedEvents)
+                                            .toArray(new CompletableFuture[0])
                                         ).thenApplyAsync(v -> ok(Json.toJson(trip.id)));
                                     } else {
                                         return CompletableFuture
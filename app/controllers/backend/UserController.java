@@ -9,11 +9,11 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.typesafe.config.Config;
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
-import java.util.Base64;
+import java.security.GeneralSecurityException;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 import javax.inject.Inject;
 import models.FollowerUser;
@@ -30,6 +30,7 @@ import play.routing.JavaScriptReverseRouter;
 import repository.ProfileRepository;
 import repository.UserRepository;
 import util.CryptoManager;
+import util.PasswordHasher;
 import util.objects.PagingResponse;
 import util.validation.ErrorResponse;
 import util.validation.UserValidator;
@@ -49,17 +50,20 @@ public class UserController extends TEABackController {
     private final ProfileRepository profileRepository;
     private final HttpExecutionContext httpExecutionContext;
     private final Config config;
+    private final PasswordHasher passwordHasher;
 
     @Inject
     public UserController(UserRepository userRepository,
         ProfileRepository profileRepository,
         HttpExecutionContext httpExecutionContext,
-        Config config) {
+        Config config,
+        PasswordHasher passwordHasher) {
 
         this.userRepository = userRepository;
         this.profileRepository = profileRepository;
         this.httpExecutionContext = httpExecutionContext;
         this.config = config;
+        this.passwordHasher = passwordHasher;
     }
 
     /**
@@ -187,20 +191,14 @@ public class UserController extends TEABackController {
             //Generate a new salt for the new user
             newUser.salt = CryptoManager.generateNewSalt();
 
-            try {
-                //Generate the salted password
-                newUser.password = CryptoManager
-                    .hashPassword(newUser.password, Base64.getDecoder().decode(newUser.salt));
-            } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-                return CompletableFuture.supplyAsync(() ->
-                    internalServerError(Json.toJson("Error hashing password"))
-                );
-            }
-
-            //This block ensures that the username (email) is
-            // not taken already, and returns a CompletableFuture<Result>
-            //Check whether the username is already in the database
-            return userRepository.findUserName(newUser.username)
+            //Generate the salted password on the password hashing threads, then ensure that
+            // the username (email) is not taken already, and return a CompletableFuture<Result>
+            return passwordHasher.hashPassword(newUser.password, newUser.salt)
+                .thenComposeAsync(hashedPassword -> {
+                    newUser.password = hashedPassword;
+                    //Check whether the username is already in the database
+                    return userRepository.findUserName(newUser.username);
+                })
                 //Pass that result (a User object) into the new function using thenCompose
                 .thenComposeAsync(user -> {
                     if (user != null) {
@@ -230,7 +228,8 @@ public class UserController extends TEABackController {
                             return ok(Json.toJson(user.id));
                         }
                     }
-                });
+                })
+                .exceptionally(this::passwordHashingFailed);
         }
     }
 
@@ -256,19 +255,20 @@ public class UserController extends TEABackController {
 
         // Find user with username on database
         return userRepository.findUserName(json.get("username").asText(""))
-            .thenApplyAsync(foundUser -> {
+            .thenComposeAsync(foundUser -> {
                 // If no such user was found with that username, return bad request
                 if (foundUser == null) {
                     errorResponse.map("Incorrect email", ERR_OTHER);
-                    return status(401, errorResponse.toJson());
+                    return CompletableFuture
+                        .completedFuture(status(401, errorResponse.toJson()));
                 }
-                // Otherwise if a user was found, check if correct password
-                else {
-                    // Check if password given matches hashed and salted password on db
-                    try {
-                        if (CryptoManager
-                            .checkPasswordMatch(json.get("password").asText(""), foundUser.salt,
-                                foundUser.password)) {
+
+                // Otherwise check if password given matches hashed and salted password on db,
+                // on the password hashing threads
+                return passwordHasher.checkPasswordMatch(json.get("password").asText(""),
+                    foundUser.salt, foundUser.password)
+                    .thenApplyAsync(matches -> {
+                        if (matches) {
                             return ok(Json.toJson(SUCCESS)).withCookies(
                                 Cookie.builder(JWT_AUTH, createToken(foundUser)).build(),
                                 Cookie.builder(U_ID, foundUser.id.toString())
@@ -282,13 +282,26 @@ public class UserController extends TEABackController {
                             errorResponse.map("Incorrect password", ERR_OTHER);
                             return status(401, errorResponse.toJson());
                         }
+                    });
+            })
+            .exceptionally(this::passwordHashingFailed);
+    }
 
-                    } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-                        return internalServerError(Json.toJson("Error checking password!"));
-                    }
-
-                }
-            });
+    /**
+     * Turns a failure to hash a password into a response. If too many passwords are already
+     * waiting to be hashed the client is told to try again later, rather than making them wait.
+     *
+     * @param error Error the hashing failed with
+     * @return 503 if the hashing was rejected, 500 if hashing failed
+     */
+    private Result passwordHashingFailed(Throwable error) {
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        if (cause instanceof RejectedExecutionException) {
+            return status(SERVICE_UNAVAILABLE, Json.toJson("Server busy, please try again"));
+        } else if (cause instanceof GeneralSecurityException) {
+            return internalServerError(Json.toJson("Error hashing password"));
+        }
+        throw new CompletionException(cause);
     }
 
     /**
@@ -421,8 +434,8 @@ public class UserController extends TEABackController {
      * @return authToken
      */
     private String createToken(User user) {
-        return CryptoManager
-            .createToken(user.id, config.getString("play.http.secret.key"));
+        return CryptoManager.createToken(user.id, config.getString("play.http.secret.key"),
+            config.getDuration("auth.tokenExpiry"));
     }
 
     /**
@@ -50,6 +50,16 @@ public class Destination extends BaseModel implements Taggable {
     @Constraints.Required
     public Double longitude;
 
+    // Grid cell the destination is in, so destinations near it can be found by index. Set by
+    // DestinationRepository whenever the destination is saved
+    @JsonIgnore
+    @Column(name = "lat_cell")
+    public Integer latCell;
+
+    @JsonIgnore
+    @Column(name = "lng_cell")
+    public Integer lngCell;
+
     @Constraints.Required
     @Column(name = "is_public")
     public boolean isPublic;
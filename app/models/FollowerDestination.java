@@ -1,5 +1,6 @@
 package models;
 
+import java.time.LocalDateTime;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
@@ -27,4 +28,6 @@ public class FollowerDestination extends BaseModel {
     @Column(name = "follower_id")
     public Long followerId;
 
+    public LocalDateTime followTime;
+
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package models;
 
+import java.time.LocalDateTime;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.Table;
@@ -22,4 +23,6 @@ public class FollowerUser extends BaseModel {
     @Constraints.Required
     public Long followerId;
 
+    public LocalDateTime followTime;
+
 }
\ No newline at end of file
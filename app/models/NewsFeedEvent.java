@@ -17,4 +17,13 @@ public class NewsFeedEvent extends BaseNewsFeedEvent {
 
     public Long refId;
 
+    // Number of likes the event has, kept up to date as likes are added and removed
+    public long likeCount;
+
+    // Score used to rank the event in the explore feed, see NewsFeedEventRepository
+    public double trendingScore;
+
+    // Event this one has been grouped into, null if it is shown on its own (see addNewsFeedEvent)
+    public Long groupId;
+
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.datatype.jsr310.deser.LocalDateTimeDeserializer;
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 
 public class NewsFeedResponseItem {
 
@@ -14,6 +15,10 @@ public class NewsFeedResponseItem {
     public Object data;
     public List<Long> eventIds;
 
+    // Number of likes of each event in eventIds, and whether the requesting user liked it
+    public Map<Long, Long> likeCounts;
+    public Map<Long, Boolean> liked;
+
     @JsonDeserialize(using = LocalDateTimeDeserializer.class)
     public LocalDateTime created;
 
@@ -30,7 +35,8 @@ public class NewsFeedResponseItem {
     public NewsFeedResponseItem(String message, String name, Photo photo, Long eventerId, Object data, List<Long> eventIds) {
         this.message = message;
         this.name = name;
-        this.thumbnail = photo != null ? photo.thumbnailFilename : null;
+        this.thumbnail = photo == null ? null
+            : photo.thumbnailFilename != null ? photo.thumbnailFilename : photo.filename;
         this.eventerId = eventerId;
         this.data = data;
         this.eventIds = eventIds;
@@ -6,12 +6,15 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.datatype.jsr310.deser.LocalDateTimeDeserializer;
 import io.ebean.Model;
+import models.enums.PhotoState;
 
 import java.time.LocalDateTime;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
@@ -37,8 +40,12 @@ public class Photo extends Model implements Taggable {
 
     public String filename;
 
+    // Null until the thumbnail has been generated
     public String thumbnailFilename;
 
+    @Enumerated(EnumType.STRING)
+    public PhotoState processingState = PhotoState.READY;
+
     public String caption;
 
     public Boolean isPublic;
@@ -0,0 +1,29 @@
+package models;
+
+import io.ebean.Model;
+import java.time.LocalDateTime;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * A class that models the PhotoFile database table. Each stored photo file has one row, however
+ * many photos use it, and the row is locked while photos using the file are added or deleted so
+ * the file is never deleted while a new photo is starting to use it. Rows are kept under where the
+ * file is inside the storage directory, as photos may hold its path in different forms.
+ */
+@Entity
+@Table(name = "PhotoFile")
+public class PhotoFile extends Model {
+
+    // Path of the file relative to the storage directory
+    @Id
+    public String filename;
+
+    public LocalDateTime stored;
+
+    public PhotoFile(String filename) {
+        this.filename = filename;
+        this.stored = LocalDateTime.now();
+    }
+}
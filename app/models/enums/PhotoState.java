@@ -0,0 +1,20 @@
+package models.enums;
+
+/**
+ * The processing states of an uploaded photo
+ */
+public enum PhotoState {
+
+    /**
+     * The original has been stored, and its thumbnail is still being generated
+     */
+    PROCESSING,
+    /**
+     * The thumbnail has been generated
+     */
+    READY,
+    /**
+     * The thumbnail could not be generated, e.g the file could not be read as an image
+     */
+    FAILED
+}
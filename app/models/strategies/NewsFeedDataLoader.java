@@ -0,0 +1,219 @@
+package models.strategies;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import models.Destination;
+import models.Photo;
+import models.Profile;
+import models.Trip;
+import repository.DestinationRepository;
+import repository.PhotoRepository;
+import repository.ProfileRepository;
+import repository.TripRepository;
+
+/**
+ * Loads all the profiles, photos, trips and destinations needed by the strategies of one page of
+ * news feed events. Every strategy registers the ids it needs, then load() fetches each type of
+ * entity with a single query, so an author appearing on many events is only fetched once.
+ *
+ * A new loader should be created for every request.
+ */
+public class NewsFeedDataLoader {
+
+    private final ProfileRepository profileRepository;
+    private final PhotoRepository photoRepository;
+    private final TripRepository tripRepository;
+    private final DestinationRepository destinationRepository;
+
+    // Ids registered by strategies before loading
+    private final Set<Long> profileIds = new HashSet<>();
+    private final Set<Long> photoIds = new HashSet<>();
+    private final Set<Long> tripIds = new HashSet<>();
+    private final Set<Long> destinationIds = new HashSet<>();
+
+    // Entities found when loading, keyed by id
+    private final Map<Long, Profile> profiles = new ConcurrentHashMap<>();
+    private final Map<Long, Photo> photos = new ConcurrentHashMap<>();
+    private final Map<Long, Trip> trips = new ConcurrentHashMap<>();
+    private final Map<Long, Destination> destinations = new ConcurrentHashMap<>();
+
+    private volatile boolean loaded = false;
+
+    /**
+     * Constructor which takes the repositories used to load each type of entity
+     *
+     * @param profileRepository Instance of ProfileRepository
+     * @param photoRepository Instance of PhotoRepository
+     * @param tripRepository Instance of TripRepository
+     * @param destinationRepository Instance of DestinationRepository
+     */
+    public NewsFeedDataLoader(ProfileRepository profileRepository,
+        PhotoRepository photoRepository, TripRepository tripRepository,
+        DestinationRepository destinationRepository) {
+        this.profileRepository = profileRepository;
+        this.photoRepository = photoRepository;
+        this.tripRepository = tripRepository;
+        this.destinationRepository = destinationRepository;
+    }
+
+    /**
+     * Registers a profile to be fetched when loading
+     *
+     * @param userId ID of profile, ignored if null
+     */
+    public void requireProfile(Long userId) {
+        if (userId != null) {
+            profileIds.add(userId);
+        }
+    }
+
+    /**
+     * Registers a photo to be fetched when loading
+     *
+     * @param photoId ID of photo, ignored if null
+     */
+    public void requirePhoto(Long photoId) {
+        if (photoId != null) {
+            photoIds.add(photoId);
+        }
+    }
+
+    /**
+     * Registers many photos to be fetched when loading
+     *
+     * @param ids IDs of photos
+     */
+    public void requirePhotos(Collection<Long> ids) {
+        ids.forEach(this::requirePhoto);
+    }
+
+    /**
+     * Registers a trip to be fetched when loading
+     *
+     * @param tripId ID of trip, ignored if null
+     */
+    public void requireTrip(Long tripId) {
+        if (tripId != null) {
+            tripIds.add(tripId);
+        }
+    }
+
+    /**
+     * Registers a destination to be fetched when loading
+     *
+     * @param destinationId ID of destination, ignored if null
+     */
+    public void requireDestination(Long destinationId) {
+        if (destinationId != null) {
+            destinationIds.add(destinationId);
+        }
+    }
+
+    /**
+     * Fetches every registered entity, with one query for each type of entity that is needed
+     *
+     * @return Completable future that completes once all entities are loaded
+     */
+    public CompletableFuture<Void> load() {
+        return CompletableFuture.allOf(
+            profileIds.isEmpty() ? CompletableFuture.completedFuture(null)
+                : profileRepository.findIDs(profileIds)
+                    .thenAccept(found -> putAll(profiles, found, x -> x.userId)),
+            photoIds.isEmpty() ? CompletableFuture.completedFuture(null)
+                : photoRepository.getPhotosByIds(photoIds)
+                    .thenAccept(found -> putAll(photos, found, x -> x.guid)),
+            tripIds.isEmpty() ? CompletableFuture.completedFuture(null)
+                : tripRepository.getTripsByIds(tripIds)
+                    .thenAccept(found -> putAll(trips, found, x -> x.id)),
+            destinationIds.isEmpty() ? CompletableFuture.completedFuture(null)
+                : destinationRepository.getDestinationsByIds(destinationIds)
+                    .thenAccept(found -> putAll(destinations, found, x -> x.id))
+        ).thenRun(() -> loaded = true);
+    }
+
+    /**
+     * Returns a loaded profile, or fetches it on its own if it was never registered
+     *
+     * @param userId ID of profile to get
+     * @return Completable future that will return profile, or null if none found
+     */
+    public CompletableFuture<Profile> getProfile(Long userId) {
+        if (loaded && profileIds.contains(userId)) {
+            return CompletableFuture.completedFuture(profiles.get(userId));
+        }
+        return profileRepository.findID(userId);
+    }
+
+    /**
+     * Returns a loaded photo, or fetches it on its own if it was never registered
+     *
+     * @param photoId ID of photo to get
+     * @return Completable future that will return photo, or null if none found
+     */
+    public CompletableFuture<Photo> getPhoto(Long photoId) {
+        if (loaded && photoIds.contains(photoId)) {
+            return CompletableFuture.completedFuture(photos.get(photoId));
+        }
+        return photoRepository.getPhotoById(photoId);
+    }
+
+    /**
+     * Returns loaded photos in the order of the ids given, or fetches them if any were never
+     * registered. Ids with no photo are left out.
+     *
+     * @param ids IDs of photos to get
+     * @return Completable future that will return list of photos found
+     */
+    public CompletableFuture<List<Photo>> getPhotos(Collection<Long> ids) {
+        if (loaded && photoIds.containsAll(ids)) {
+            return CompletableFuture.completedFuture(ids.stream()
+                .map(photos::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList()));
+        }
+        return photoRepository.getPhotosByIds(ids);
+    }
+
+    /**
+     * Returns a loaded trip, or fetches it on its own if it was never registered
+     *
+     * @param tripId ID of trip to get
+     * @return Completable future that will return trip, or null if none found
+     */
+    public CompletableFuture<Trip> getTrip(Long tripId) {
+        if (loaded && tripIds.contains(tripId)) {
+            return CompletableFuture.completedFuture(trips.get(tripId));
+        }
+        return tripRepository.getTripById(tripId);
+    }
+
+    /**
+     * Returns a loaded destination, or fetches it on its own if it was never registered
+     *
+     * @param destinationId ID of destination to get
+     * @return Completable future that will return destination, or null if none found
+     */
+    public CompletableFuture<Destination> getDestination(Long destinationId) {
+        if (loaded && destinationIds.contains(destinationId)) {
+            return CompletableFuture.completedFuture(destinations.get(destinationId));
+        }
+        return destinationRepository.getDestination(destinationId);
+    }
+
+    /**
+     * Puts a list of found entities into a map by their ids
+     */
+    private static <T> void putAll(Map<Long, T> map, List<T> found, Function<T, Long> getId) {
+        for (T entity : found) {
+            map.put(getId.apply(entity), entity);
+        }
+    }
+}
@@ -8,6 +8,9 @@ public abstract class NewsFeedStrategy {
 
     protected List<Long> eventIds;
 
+    // Loader shared by all strategies on the same page, null if entities are fetched one by one
+    protected NewsFeedDataLoader dataLoader;
+
     /**
      * Constructor to instantiate both required fields
      * @param eventIds list of relevent eventIds
@@ -16,6 +19,17 @@ public abstract class NewsFeedStrategy {
         this.eventIds = eventIds;
     }
 
+    /**
+     * Registers the ids of everything this strategy needs with a loader, so they can all be
+     * fetched together with those of the other strategies on the page before execute() is called.
+     * Subclasses that need more entities should register them as well.
+     *
+     * @param dataLoader Loader for the page this strategy is on
+     */
+    public void registerWith(NewsFeedDataLoader dataLoader) {
+        this.dataLoader = dataLoader;
+    }
+
     /**
      * The method that handles executing whatever relevant code for any news feed strategy
      * @return JSON node containing data that will be sent to front end
@@ -4,6 +4,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.List;
 import models.Destination;
 import models.Photo;
+import models.strategies.NewsFeedDataLoader;
 import models.strategies.NewsFeedStrategy;
 import repository.DestinationRepository;
 import repository.PhotoRepository;
@@ -28,11 +29,23 @@ public abstract class DestinationStrategy extends NewsFeedStrategy {
         this.destinationRepository = destinationRepository;
     }
 
+    /**
+     * Registers the ids of everything this strategy needs with a loader
+     *
+     * @param dataLoader Loader for the page this strategy is on
+     */
+    @Override
+    public void registerWith(NewsFeedDataLoader dataLoader) {
+        super.registerWith(dataLoader);
+        dataLoader.requireDestination(destId);
+    }
+
     /**
      * Returns the destination which has been referenced by id given on object construction
      * @return Completable future that will return referenced destination when allowed to complete
      */
     protected CompletableFuture<Destination> getReferencedDestinationAsync() {
-        return destinationRepository.getDestination(destId);
+        return dataLoader == null ? destinationRepository.getDestination(destId)
+            : dataLoader.getDestination(destId);
     }
 }
@@ -3,6 +3,7 @@ package models.strategies.destinations.user;
 import java.util.concurrent.CompletableFuture;
 import java.util.List;
 import models.Profile;
+import models.strategies.NewsFeedDataLoader;
 import models.strategies.destinations.DestinationStrategy;
 import repository.DestinationRepository;
 import repository.ProfileRepository;
@@ -30,12 +31,24 @@ public abstract class UserDestinationStrategy extends DestinationStrategy {
         this.profileRepository = profileRepository;
     }
 
+    /**
+     * Registers the ids of everything this strategy needs with a loader
+     *
+     * @param dataLoader Loader for the page this strategy is on
+     */
+    @Override
+    public void registerWith(NewsFeedDataLoader dataLoader) {
+        super.registerWith(dataLoader);
+        dataLoader.requireProfile(userId);
+    }
+
     /**
      * Returns the destination which has been referenced by id given on object construction
      * @return Completable future that will return referenced destination when allowed to complete
      */
     protected CompletableFuture<Profile> getUserProfileAsync() {
-        return profileRepository.findID(userId);
+        return dataLoader == null ? profileRepository.findID(userId)
+            : dataLoader.getProfile(userId);
     }
 
 }
@@ -4,6 +4,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.List;
 import javax.inject.Inject;
 import models.Photo;
+import models.strategies.NewsFeedDataLoader;
 import models.strategies.NewsFeedStrategy;
 import repository.PhotoRepository;
 
@@ -26,11 +27,23 @@ public abstract class PhotoStrategy extends NewsFeedStrategy {
         this.photoRepository = photoRepository;
     }
 
+    /**
+     * Registers the ids of everything this strategy needs with a loader
+     *
+     * @param dataLoader Loader for the page this strategy is on
+     */
+    @Override
+    public void registerWith(NewsFeedDataLoader dataLoader) {
+        super.registerWith(dataLoader);
+        dataLoader.requirePhoto(photoId);
+    }
+
     /**
      * Returns the photo which has been referenced by id given on object construction
      * @return Completable future that will return referenced photo when allowed to complete
      */
     protected CompletableFuture<Photo> getReferencedPhotoAsync() {
-        return photoRepository.getPhotoById(photoId);
+        return dataLoader == null ? photoRepository.getPhotoById(photoId)
+            : dataLoader.getPhoto(photoId);
     }
 }
@@ -4,6 +4,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.List;
 import javax.inject.Inject;
 import models.Destination;
+import models.strategies.NewsFeedDataLoader;
 import models.strategies.photos.PhotoStrategy;
 import repository.DestinationRepository;
 import repository.PhotoRepository;
@@ -29,11 +30,23 @@ public abstract class DestinationPhotoStrategy extends PhotoStrategy {
         this.destinationRepository = destinationRepository;
     }
 
+    /**
+     * Registers the ids of everything this strategy needs with a loader
+     *
+     * @param dataLoader Loader for the page this strategy is on
+     */
+    @Override
+    public void registerWith(NewsFeedDataLoader dataLoader) {
+        super.registerWith(dataLoader);
+        dataLoader.requireDestination(destinationId);
+    }
+
     /**
      * Returns the destination which has been referenced by id given on object construction
      * @return Completable future that will return referenced destination when allowed to complete
      */
     protected CompletableFuture<Destination> getReferencedDestinationAsync() {
-        return destinationRepository.getDestination(destinationId);
+        return dataLoader == null ? destinationRepository.getDestination(destinationId)
+            : dataLoader.getDestination(destinationId);
     }
 }
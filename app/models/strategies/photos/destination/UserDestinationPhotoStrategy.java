@@ -3,6 +3,7 @@ package models.strategies.photos.destination;
 import java.util.concurrent.CompletableFuture;
 import java.util.List;
 import models.Profile;
+import models.strategies.NewsFeedDataLoader;
 import repository.DestinationRepository;
 import repository.PhotoRepository;
 import repository.ProfileRepository;
@@ -31,12 +32,24 @@ public abstract class UserDestinationPhotoStrategy extends DestinationPhotoStrat
         this.profileRepository = profileRepository;
     }
 
+    /**
+     * Registers the ids of everything this strategy needs with a loader
+     *
+     * @param dataLoader Loader for the page this strategy is on
+     */
+    @Override
+    public void registerWith(NewsFeedDataLoader dataLoader) {
+        super.registerWith(dataLoader);
+        dataLoader.requireProfile(userId);
+    }
+
     /**
      * Returns the profile which has been referenced by id given on object construction
      *
      * @return Completable future that will return referenced profile when allowed to complete
      */
     protected CompletableFuture<Profile> getUserProfileAsync() {
-        return profileRepository.findID(userId);
+        return dataLoader == null ? profileRepository.findID(userId)
+            : dataLoader.getProfile(userId);
     }
 }
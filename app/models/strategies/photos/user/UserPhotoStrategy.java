@@ -6,6 +6,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.List;
 import javax.inject.Inject;
 import models.Profile;
+import models.strategies.NewsFeedDataLoader;
 import models.strategies.photos.PhotoStrategy;
 import repository.PhotoRepository;
 import repository.ProfileRepository;
@@ -30,11 +31,23 @@ public abstract class UserPhotoStrategy extends PhotoStrategy {
         this.profileRepository = profileRepository;
     }
 
+    /**
+     * Registers the ids of everything this strategy needs with a loader
+     *
+     * @param dataLoader Loader for the page this strategy is on
+     */
+    @Override
+    public void registerWith(NewsFeedDataLoader dataLoader) {
+        super.registerWith(dataLoader);
+        dataLoader.requireProfile(userId);
+    }
+
     /**
      * Returns the destination which has been referenced by id given on object construction
      * @return Completable future that will return referenced destination when allowed to complete
      */
     protected CompletableFuture<Profile> getUserProfileAsync() {
-        return profileRepository.findID(userId);
+        return dataLoader == null ? profileRepository.findID(userId)
+            : dataLoader.getProfile(userId);
     }
 }
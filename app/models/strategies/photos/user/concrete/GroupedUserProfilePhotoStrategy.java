@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import models.NewsFeedResponseItem;
 import models.Photo;
+import models.strategies.NewsFeedDataLoader;
 import models.strategies.photos.user.UserPhotoStrategy;
 import play.libs.Json;
 import repository.PhotoRepository;
@@ -22,8 +23,20 @@ public class GroupedUserProfilePhotoStrategy extends UserPhotoStrategy {
         this.photoIds = photoIds;
     }
 
+    /**
+     * Registers the ids of everything this strategy needs with a loader, including all the photos
+     *
+     * @param dataLoader Loader for the page this strategy is on
+     */
+    @Override
+    public void registerWith(NewsFeedDataLoader dataLoader) {
+        super.registerWith(dataLoader);
+        dataLoader.requirePhotos(photoIds);
+    }
+
     private CompletableFuture<List<Photo>> getReferencedPhotos() {
-        return photoRepository.getPhotosByIds(photoIds);
+        return dataLoader == null ? photoRepository.getPhotosByIds(photoIds)
+            : dataLoader.getPhotos(photoIds);
     }
 
     @Override
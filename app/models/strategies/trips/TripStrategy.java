@@ -5,6 +5,7 @@ import java.util.List;
 import javax.inject.Inject;
 import models.Profile;
 import models.Trip;
+import models.strategies.NewsFeedDataLoader;
 import models.strategies.NewsFeedStrategy;
 import repository.ProfileRepository;
 import repository.TripRepository;
@@ -38,12 +39,25 @@ public abstract class TripStrategy extends NewsFeedStrategy {
         this.tripRepository = tripRepository;
     }
 
+    /**
+     * Registers the ids of everything this strategy needs with a loader
+     *
+     * @param dataLoader Loader for the page this strategy is on
+     */
+    @Override
+    public void registerWith(NewsFeedDataLoader dataLoader) {
+        super.registerWith(dataLoader);
+        dataLoader.requireProfile(userId);
+        dataLoader.requireTrip(tripId);
+    }
+
     /**
      * Returns the profile for the user who has performed the event
      * @return Completable future that will return profile when allowed to complete
      */
     protected CompletableFuture<Profile> getUserProfileAsync() {
-        return profileRepository.findID(userId);
+        return dataLoader == null ? profileRepository.findID(userId)
+            : dataLoader.getProfile(userId);
     }
 
     /**
@@ -51,6 +65,7 @@ public abstract class TripStrategy extends NewsFeedStrategy {
      * @return Completable future that will return referenced trip when allowed to complete
      */
     protected CompletableFuture<Trip> getReferencedTripAsync() {
-        return tripRepository.getTripById(tripId);
+        return dataLoader == null ? tripRepository.getTripById(tripId)
+            : dataLoader.getTrip(tripId);
     }
 }
@@ -6,15 +6,25 @@ import io.ebean.Ebean;
 import io.ebean.EbeanServer;
 import io.ebean.Expr;
 import io.ebean.Expression;
+import io.ebean.ExpressionList;
 import io.ebean.PagedList;
+import io.ebean.Query;
+import io.ebean.Transaction;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -24,8 +34,9 @@ import models.DestinationTravellerTypePending;
 import models.FollowerDestination;
 import models.PendingDestinationPhoto;
 import models.TripData;
-import org.apache.commons.text.similarity.LevenshteinDistance;
 import play.db.ebean.EbeanConfig;
+import util.NameMatcher;
+import util.objects.Pair;
 
 /**
  * A repository that executes database operations for the Destination table.
@@ -39,18 +50,33 @@ public class DestinationRepository {
     // The number of decimal places to check for determining similarity of destinations
     // (2 = 1km, 3 = 100m, 4 = 10m, 5 = 1m, ...)
     private static final int COORD_DECIMAL_PLACES = 3;
+    // Destinations are kept in grid cells this many degrees wide, so two destinations close
+    // enough to be similar are always in the same or neighbouring cells
+    private static final double CELL_SIZE = Math.pow(10, -COORD_DECIMAL_PLACES);
     // The maximum Levenshtein distance that two destination names
     // may have and still be considered similar
     // (0 = require exact strings, 1000000000 = every string is a match to every other string)
     private static final int NAME_SIMILARITY_THRESHOLD = 10;
+    private static final NameMatcher NAME_MATCHER = new NameMatcher(NAME_SIMILARITY_THRESHOLD);
     private final EbeanServer ebeanServer;
     private final DatabaseExecutionContext executionContext;
+    private final NewsFeedEventRepository newsFeedEventRepository;
+
+    // Called with each destination follow (true) or unfollow (false) once it has been committed
+    private final List<BiConsumer<FollowerDestination, Boolean>> followerListeners =
+        new CopyOnWriteArrayList<>();
+
+    // Called with the ids of destinations added, changed or deleted, once it has been committed
+    private final List<Consumer<Collection<Long>>> destinationListeners =
+        new CopyOnWriteArrayList<>();
 
     @Inject
     public DestinationRepository(EbeanConfig ebeanConfig,
-        DatabaseExecutionContext executionContext) {
+        DatabaseExecutionContext executionContext,
+        NewsFeedEventRepository newsFeedEventRepository) {
         this.ebeanServer = Ebean.getServer(ebeanConfig.defaultServer());
         this.executionContext = executionContext;
+        this.newsFeedEventRepository = newsFeedEventRepository;
     }
 
     /**
@@ -62,7 +88,9 @@ public class DestinationRepository {
     public CompletableFuture<Long> addDestination(Destination destination) {
         return supplyAsync(() -> {
             destination.deleted = false;
+            setGridCell(destination);
             ebeanServer.insert(destination);
+            notifyDestinationListeners(Collections.singletonList(destination.id));
             return destination.id;
         }, executionContext);
     }
@@ -74,12 +102,14 @@ public class DestinationRepository {
      * @return The number of rows deleted
      */
     public CompletableFuture<Integer> deleteDestination(Long id) {
-        return supplyAsync(() ->
-                ebeanServer.find(Destination.class)
-                    .where()
-                    .idEq(id)
-                    .delete()
-            , executionContext);
+        return supplyAsync(() -> {
+            int rows = ebeanServer.find(Destination.class)
+                .where()
+                .idEq(id)
+                .delete();
+            notifyDestinationListeners(Collections.singletonList(id));
+            return rows;
+        }, executionContext);
     }
 
     /**
@@ -94,11 +124,36 @@ public class DestinationRepository {
                 ebeanServer.find(DestinationTag.class).where().eq("destination_id", destination.id)
                     .delete();
             }
+            setGridCell(destination);
             ebeanServer.update(destination);
+            notifyDestinationListeners(Collections.singletonList(destination.id));
             return destination;
         }, executionContext);
     }
 
+    /**
+     * Gets the grid cell a coordinate is in, along one axis. Cells are CELL_SIZE degrees wide.
+     * The evolutions fill in the cells of their destinations with the same calculation.
+     *
+     * @param coordinate Latitude or longitude
+     * @return Number of the cell the coordinate is in
+     */
+    public static int getGridCell(double coordinate) {
+        return (int) Math.floor(coordinate * Math.pow(10, COORD_DECIMAL_PLACES));
+    }
+
+    /**
+     * Puts a destination in the grid cell of its coordinates, ready to be saved
+     *
+     * @param destination Destination to put in its cell
+     */
+    private void setGridCell(Destination destination) {
+        if (destination.latitude != null && destination.longitude != null) {
+            destination.latCell = getGridCell(destination.latitude);
+            destination.lngCell = getGridCell(destination.longitude);
+        }
+    }
+
     /**
      * Sets the owner of a destination.
      *
@@ -107,13 +162,15 @@ public class DestinationRepository {
      * @return The number of rows that were updated
      */
     public CompletableFuture<Integer> changeDestinationOwner(Long destinationId, Long newUserId) {
-        return supplyAsync(() ->
-            ebeanServer.createUpdate(Destination.class,
+        return supplyAsync(() -> {
+            int rows = ebeanServer.createUpdate(Destination.class,
                 "UPDATE Destination SET user_id=:newUserId WHERE id=:id")
                 .setParameter("newUserId", newUserId)
                 .setParameter("id", destinationId)
-                .execute()
-        );
+                .execute();
+            notifyDestinationListeners(Collections.singletonList(destinationId));
+            return rows;
+        });
     }
 
     /**
@@ -133,6 +190,7 @@ public class DestinationRepository {
         if (destination != null) {
             destination.isPublic = true;
             ebeanServer.update(destination);
+            notifyDestinationListeners(Collections.singletonList(destinationId));
         }
     }
 
@@ -208,40 +266,98 @@ public class DestinationRepository {
      *
      *
      * This is checked by comparing their locations, and if these are similar to within some range,
-     * then their names are also checked for similarity
+     * then their names are also checked for similarity. Only the destination's grid cell and the
+     * cells around it are looked in, using the index on the cells.
      *
      * @param destination New destination to check against existing destinations
      * @return Destinations found to be sufficiently similar
      */
     public List<Destination> getSimilarDestinations(Destination destination) {
+        int latCell = getGridCell(destination.latitude);
+        int lngCell = getGridCell(destination.longitude);
         return ebeanServer.find(Destination.class)
-            // Add where clause to make sure longitudes are the same
-            // (to specified number of decimal places)
-            .where(Expr.raw("TRUNCATE(longitude, ?) = ?", new Object[]{
-                COORD_DECIMAL_PLACES,
-                Math.floor(destination.longitude * Math.pow(10, COORD_DECIMAL_PLACES)) / Math
-                    .pow(10, COORD_DECIMAL_PLACES)
-                // A slightly hacky way to truncate to COORD_DECIMAL_PLACES dp
-            }))
-            // Add where clause to make sure latitudes are the
-            // same (to specified number of decimal places)
-            .where(Expr.raw("TRUNCATE(latitude, ?) = ?", new Object[]{
-                COORD_DECIMAL_PLACES,
-                Math.floor(destination.latitude * Math.pow(10, COORD_DECIMAL_PLACES)) / Math
-                    .pow(10, COORD_DECIMAL_PLACES)
-                // A slightly hacky way to truncate to COORD_DECIMAL_PLACES dp
-            }))
+            .where()
+            // Only look in the destination's cell and its neighbours, which hold every
+            // destination close enough to be similar
+            .between("latCell", latCell - 1, latCell + 1)
+            .between("lngCell", lngCell - 1, lngCell + 1)
             .findList().stream()
-            // only return results for which the name is suitably
-            // similar (i.e Levenshtein distance is less than specified value)
-            .filter(x -> new LevenshteinDistance().apply(x.name, destination.name)
-                <= NAME_SIMILARITY_THRESHOLD)
+            // only return results that are close by with a similar name
+            .filter(x -> isSimilar(x, destination))
             // do not include the destination we are finding similarities for
             .filter(x -> !x.id.equals(destination.id))
             // collect all found destinations into list
             .collect(Collectors.toList());
     }
 
+    /**
+     * Checks whether two destinations are similar enough to be merged, i.e their latitudes and
+     * longitudes are both within COORD_DECIMAL_PLACES of each other, even across a cell boundary,
+     * and the Levenshtein distance between their names is within NAME_SIMILARITY_THRESHOLD
+     *
+     * @param destination First destination
+     * @param other Second destination
+     * @return True if the destinations are similar
+     */
+    public static boolean isSimilar(Destination destination, Destination other) {
+        return Math.abs(destination.latitude - other.latitude) < CELL_SIZE
+            && Math.abs(destination.longitude - other.longitude) < CELL_SIZE
+            && NAME_MATCHER.isSimilar(destination.name, other.name);
+    }
+
+    /**
+     * Gets the id, name and location of every public destination, e.g to look for duplicates
+     * among them
+     *
+     * @return List of public destinations with only those fields loaded
+     */
+    public CompletableFuture<List<Destination>> getPublicDestinationLocations() {
+        return supplyAsync(() -> ebeanServer.find(Destination.class)
+                .select("id, name, latitude, longitude")
+                .where()
+                .eq("is_public", true)
+                .findList()
+            , executionContext);
+    }
+
+    /**
+     * Merges groups of duplicate destinations in one transaction. For each group, the trip data
+     * and photos of the duplicates are moved to the destination they are merged into, which is
+     * transferred to the given owner, then the duplicates are deleted.
+     *
+     * @param merges Ids of the duplicates to merge, keyed by the id of the destination each group
+     * is merged into
+     * @param ownerId Id of the user to transfer merged destinations to, i.e the master admin
+     * @return Number of duplicates deleted
+     */
+    public CompletableFuture<Integer> mergeDestinations(Map<Long, ? extends Collection<Long>> merges,
+        Long ownerId) {
+        return supplyAsync(() -> {
+            int deleted = 0;
+            try (Transaction transaction = ebeanServer.beginTransaction()) {
+                for (Map.Entry<Long, ? extends Collection<Long>> merge : merges.entrySet()) {
+                    mergeDestinationsTripData(merge.getValue(), merge.getKey());
+                    mergeDestinationsPhotos(merge.getValue(), merge.getKey());
+                    ebeanServer.createUpdate(Destination.class,
+                        "UPDATE Destination SET user_id=:ownerId WHERE id=:id")
+                        .setParameter("ownerId", ownerId)
+                        .setParameter("id", merge.getKey())
+                        .execute();
+                    deleted += ebeanServer.find(Destination.class)
+                        .where()
+                        .idIn(merge.getValue())
+                        .delete();
+                }
+                transaction.commit();
+            }
+
+            List<Long> merged = new ArrayList<>(merges.keySet());
+            merges.values().forEach(merged::addAll);
+            notifyDestinationListeners(merged);
+            return deleted;
+        }, executionContext);
+    }
+
     /**
      * Gets a single destination given the destination ID.
      *
@@ -256,6 +372,19 @@ public class DestinationRepository {
             .orElse(null), executionContext);
     }
 
+    /**
+     * Gets all destinations with some destination IDs in a single query.
+     *
+     * @param ids Unique destination IDs of the requested destinations
+     * @return List of destinations found, ids with no destination are left out
+     */
+    public CompletableFuture<List<Destination>> getDestinationsByIds(Collection<Long> ids) {
+        return supplyAsync(() -> ebeanServer.find(Destination.class)
+            .where()
+            .idIn(ids)
+            .findList(), executionContext);
+    }
+
     /**
      * Gets a single including deleted destination given the destination ID.
      *
@@ -403,6 +532,96 @@ public class DestinationRepository {
             .findPagedList());
     }
 
+    /**
+     * Gets the fields of every destination that destinations are searched and sorted by, e.g to
+     * build a search index from
+     *
+     * @return List of destinations with only those fields, and their country's name, loaded
+     */
+    public List<Destination> getSearchableDestinations() {
+        return searchableDestinations().findList();
+    }
+
+    /**
+     * Gets the fields that destinations are searched and sorted by of some destinations
+     *
+     * @param ids Unique destination IDs of the requested destinations
+     * @return List of destinations found with only those fields loaded, ids with no destination
+     * are left out
+     */
+    public CompletableFuture<List<Destination>> getSearchableDestinations(Collection<Long> ids) {
+        return supplyAsync(() -> searchableDestinations()
+                .where()
+                .idIn(ids)
+                .findList()
+            , executionContext);
+    }
+
+    /**
+     * Gets the fields that destinations are searched and sorted by of the destinations visible to
+     * a user inside a bounding box
+     *
+     * @param userId ID of the user the destinations must be public to or owned by
+     * @param south Latitude of the south edge
+     * @param north Latitude of the north edge
+     * @param west Longitude of the west edge
+     * @param east Longitude of the east edge, west of the west edge if the box crosses the 180th
+     * meridian
+     * @return List of destinations in the box with only those fields loaded
+     */
+    public CompletableFuture<List<Destination>> getSearchableDestinationsInBox(Long userId,
+        double south, double north, double west, double east) {
+        return supplyAsync(() -> {
+            ExpressionList<Destination> query = searchableDestinations()
+                .where()
+                // Narrowed to the rows of grid cells first, as those are indexed
+                .between("latCell", getGridCell(south), getGridCell(north))
+                .between("latitude", south, north)
+                .or()
+                .eq("is_public", true)
+                .eq("user_id", userId)
+                .endOr();
+            if (west <= east) {
+                query.between("longitude", west, east);
+            } else {
+                query.or()
+                    .ge("longitude", west)
+                    .le("longitude", east)
+                    .endOr();
+            }
+            return query.findList();
+        }, executionContext);
+    }
+
+    /**
+     * Builds the query for the fields that destinations are searched and sorted by
+     */
+    private Query<Destination> searchableDestinations() {
+        return ebeanServer.find(Destination.class)
+            .select("name, destType, district, latitude, longitude, isPublic, user")
+            .fetch("country", "name");
+    }
+
+    /**
+     * Gets destinations with their countries, in the order of the ids given
+     *
+     * @param ids Unique destination IDs of the requested destinations, in order
+     * @return List of destinations in the same order, ids with no destination are left out
+     */
+    public CompletableFuture<List<Destination>> getDestinationsInOrder(List<Long> ids) {
+        return supplyAsync(() -> {
+            Map<Long, Destination> destinationsById = new HashMap<>();
+            if (!ids.isEmpty()) {
+                ebeanServer.find(Destination.class).fetch("country").where().idIn(ids).findList()
+                    .forEach(destination -> destinationsById.put(destination.id, destination));
+            }
+            return ids.stream()
+                .map(destinationsById::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        }, executionContext);
+    }
+
     /**
      * Transfers the ownership of a destination to master admin if the destination is being used by
      * another user.
@@ -421,11 +640,15 @@ public class DestinationRepository {
             + "AND user_id != :masterId "
             + "AND id IN (:destinations);";
 
-        return ebeanServer.createUpdate(Destination.class, sql)
+        int rows = ebeanServer.createUpdate(Destination.class, sql)
             .setParameter("destinations", destinations)
             .setParameter("userId", userId)
             .setParameter("masterId", masterId)
             .execute();
+        if (rows > 0) {
+            notifyDestinationListeners(destinations);
+        }
+        return rows;
     }
 
     /**
@@ -465,28 +688,97 @@ public class DestinationRepository {
     }
 
     /**
-     * Inserts a follower destination pair
+     * Inserts a follower destination pair, and adds the destination's events to the follower's
+     * news feed timeline
      *
      * @param followerDestination the object to add
      * @return the guid of the inserted followerUser
      */
     public CompletableFuture<Long> insertFollower(FollowerDestination followerDestination) {
+        if (followerDestination.followTime == null) {
+            followerDestination.followTime = LocalDateTime.now();
+        }
         return supplyAsync(() -> {
-            ebeanServer.insert(followerDestination);
+            try (Transaction transaction = ebeanServer.beginTransaction()) {
+                ebeanServer.insert(followerDestination);
+                newsFeedEventRepository.addFollowedDestinationToTimeline(
+                    followerDestination.followerId, followerDestination.destinationId);
+                transaction.commit();
+            }
+            followerListeners.forEach(listener -> listener.accept(followerDestination, true));
             return followerDestination.guid;
         }, executionContext);
     }
 
     /**
-     * Deletes a destination follower pair
+     * Deletes a destination follower pair, and removes the destination's events from the
+     * follower's news feed timeline
      *
      * @param id guid of the FollowerDestination to delete
      * @return the number of rows that were deleted
      */
     public CompletableFuture<Long> deleteFollower(Long id) {
-        return supplyAsync(() ->
-                Long.valueOf(ebeanServer.delete(FollowerDestination.class, id))
-            , executionContext);
+        return supplyAsync(() -> {
+            try (Transaction transaction = ebeanServer.beginTransaction()) {
+                FollowerDestination followerDestination = ebeanServer
+                    .find(FollowerDestination.class, id);
+                Long rows = Long.valueOf(ebeanServer.delete(FollowerDestination.class, id));
+                if (followerDestination != null) {
+                    newsFeedEventRepository.removeFollowedDestinationFromTimeline(
+                        followerDestination.followerId, followerDestination.destinationId);
+                }
+                transaction.commit();
+
+                if (followerDestination != null && rows > 0) {
+                    followerListeners.forEach(listener -> listener.accept(followerDestination, false));
+                }
+                return rows;
+            }
+        }, executionContext);
+    }
+
+    /**
+     * Registers a listener to be called with each destination follow or unfollow, once it has been
+     * committed
+     *
+     * @param listener Called with the follow, and true if it was added or false if removed
+     */
+    public void addFollowerListener(BiConsumer<FollowerDestination, Boolean> listener) {
+        followerListeners.add(listener);
+    }
+
+    /**
+     * Registers a listener to be called with the ids of destinations added, changed or deleted,
+     * once the change has been committed. Listeners should reload the destinations if they need
+     * them, as some are changed without being loaded.
+     *
+     * @param listener Called with the ids of the destinations changed
+     */
+    public void addDestinationListener(Consumer<Collection<Long>> listener) {
+        destinationListeners.add(listener);
+    }
+
+    /**
+     * Tells every destination listener that some destinations have changed
+     */
+    private void notifyDestinationListeners(Collection<Long> ids) {
+        destinationListeners.forEach(listener -> listener.accept(ids));
+    }
+
+    /**
+     * Gets every destination follow that has not been removed
+     *
+     * @return List of pairs of the followed destination id and the time they were followed
+     */
+    public List<Pair<Long, LocalDateTime>> getAllFollows() {
+        List<Pair<Long, LocalDateTime>> follows = new ArrayList<>();
+        ebeanServer.createSqlQuery("SELECT destination_id, follow_time FROM FollowerDestination WHERE deleted = 0")
+            .findEachRow(((resultSet, rowNum) -> {
+                Timestamp followTime = resultSet.getTimestamp(2);
+                follows.add(new Pair<>(resultSet.getLong(1),
+                    followTime == null ? null : followTime.toLocalDateTime()));
+            }));
+        return follows;
     }
 
     /**
@@ -2,33 +2,54 @@ package repository;
 
 import static java.util.concurrent.CompletableFuture.supplyAsync;
 
+import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
 import io.ebean.Ebean;
 import io.ebean.EbeanServer;
 import io.ebean.Expr;
 import io.ebean.Expression;
 import io.ebean.ExpressionList;
 import io.ebean.PagedList;
+import io.ebean.Query;
+import io.ebean.SqlUpdate;
+import io.ebean.Transaction;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import javax.persistence.PersistenceException;
 import models.Destination;
-import models.FollowerDestination;
-import models.FollowerUser;
 import models.Likes;
 import models.NewsFeedEvent;
 import models.Photo;
-import models.Profile;
-import models.TrendingDestination;
-import models.TrendingUser;
 import models.Trip;
 import models.enums.NewsFeedEventType;
 import play.db.ebean.EbeanConfig;
+import play.inject.ApplicationLifecycle;
+import scala.concurrent.duration.Duration;
+import util.objects.PageCursor;
+import util.objects.Pair;
 
 /**
  * A repository that executes database operations for the News feed events table.
@@ -42,31 +63,389 @@ public class NewsFeedEventRepository {
     private final Expression SQL_FALSE = Expr.raw("false");
     private final Expression SQL_TRUE = Expr.raw("true");
 
-    private final Double TRENDING_TIME_TUNING = 3000.0; // The bigger this gets, the longer it takes for a post to fall off
-    private final Double TRENDING_LIKE_TUNING = 0.5; // The bigger this gets, the less influence the amount of likes has
+    private final Double TRENDING_TIME_TUNING; // The bigger this gets, the longer it takes for a post to fall off
+    private final Double TRENDING_LIKE_TUNING; // The bigger this gets, the less influence the amount of likes has
     private final Double E = 2.718281828459045;
 
+    // Largest power E is raised to, so very old events decay to 0 rather than overflowing
+    private static final int MAX_TRENDING_EXPONENT = 700;
+
+    // Events are grouped with a matching event added less than this many hours before them
+    private static final int GROUP_WINDOW_HOURS = 12;
+
+    // Most likes inserted in one JDBC batch, and event ids in one unlike statement
+    private static final int LIKE_BATCH_SIZE = 500;
+
+    // Time the trending scores were last all calculated at, so single updates rank the same way
+    private volatile LocalDateTime trendingAsOf;
+
+    // Told the new score whenever the trending score of a single event changes
+    private final List<BiConsumer<Long, Double>> trendingListeners = new CopyOnWriteArrayList<>();
+
+    // Told each new event, and the ids of the users whose timelines it was added to
+    private final List<BiConsumer<NewsFeedEvent, List<Long>>> eventListeners =
+        new CopyOnWriteArrayList<>();
+
+    // Events waiting to be written, with the futures to complete once they are
+    private final BlockingQueue<Pair<NewsFeedEvent, CompletableFuture<Long>>> ingestQueue;
+
+    // Most events written to the database in one batch
+    private final int ingestBatchSize;
+
+    // Longest an event waits for a batch to fill up before it is written anyway, in milliseconds
+    private final long ingestMaxDelay;
+
+    // Whether a flush has been scheduled for when the oldest waiting event reaches the max delay
+    private final AtomicBoolean ingestFlushScheduled = new AtomicBoolean(false);
+
+    // Whether the queue is being flushed, so only one connection is ever used to write it
+    private final AtomicBoolean ingestFlushing = new AtomicBoolean(false);
+
+    private final ActorSystem actorSystem;
+
     @Inject
     public NewsFeedEventRepository(EbeanConfig ebeanConfig,
-        DatabaseExecutionContext executionContext) {
+        DatabaseExecutionContext executionContext, Config config, ActorSystem actorSystem,
+        ApplicationLifecycle lifecycle) {
         this.ebeanServer = Ebean.getServer(ebeanConfig.defaultServer());
         this.executionContext = executionContext;
+        this.actorSystem = actorSystem;
+        this.TRENDING_TIME_TUNING = config.getDouble("trending.timeTuning");
+        this.TRENDING_LIKE_TUNING = config.getDouble("trending.likeTuning");
+        this.ingestQueue = new ArrayBlockingQueue<>(config.getInt("newsfeed.ingest.queueSize"));
+        this.ingestBatchSize = config.getInt("newsfeed.ingest.batchSize");
+        this.ingestMaxDelay = config.getDuration("newsfeed.ingest.maxDelay",
+            TimeUnit.MILLISECONDS);
+
+        // Write anything still waiting before the database is shut down
+        lifecycle.addStopHook(() -> CompletableFuture.runAsync(this::flushIngestQueue,
+            executionContext));
     }
 
     /**
      * Adds a new News feed event to the database.
      *
+     * Events are not written straight away, but queued and written in batches, each in a single
+     * transaction on a single connection. A batch is written once it is full or its oldest event
+     * has waited the max delay, so a burst of events (e.g adding many destinations to a trip) takes
+     * one connection and a few statements rather than a connection and transaction each.
+     *
+     * If the event is of a type that is grouped (e.g uploading a photo to a gallery) and a matching
+     * event was added less than 12 hours before it, the new event takes over the group: the
+     * earlier event and everything grouped into it is grouped into the new event instead. Only the
+     * latest event of each group is then shown in feeds, so pages never need regrouping on read.
+     *
      * @param newsFeedEvent the new newsFeedEvent to add
-     * @return A CompletableFuture with the new event's id
+     * @return A CompletableFuture with the new event's id once it has been written. Completes
+     * exceptionally with a RejectedExecutionException if too many events are already waiting
      */
     public CompletableFuture<Long> addNewsFeedEvent(NewsFeedEvent newsFeedEvent) {
+        return addNewsFeedEvents(Collections.singletonList(newsFeedEvent)).get(0);
+    }
+
+    /**
+     * Adds several new News feed events to the database, in the order given. Queued together, so
+     * they are written in the same batch unless it fills up. See addNewsFeedEvent.
+     *
+     * @param newsFeedEvents the new newsFeedEvents to add
+     * @return A CompletableFuture with each new event's id, in the same order as the events
+     */
+    public List<CompletableFuture<Long>> addNewsFeedEvents(List<NewsFeedEvent> newsFeedEvents) {
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        for (NewsFeedEvent newsFeedEvent : newsFeedEvents) {
+            CompletableFuture<Long> future = new CompletableFuture<>();
+            if (!ingestQueue.offer(new Pair<>(newsFeedEvent, future))) {
+                future.completeExceptionally(new RejectedExecutionException(
+                    "Too many news feed events waiting to be added"));
+            }
+            futures.add(future);
+        }
+
+        if (ingestQueue.size() >= ingestBatchSize) {
+            executionContext.execute(this::flushIngestQueue);
+        } else if (ingestFlushScheduled.compareAndSet(false, true)) {
+            actorSystem.scheduler().scheduleOnce(
+                Duration.create(ingestMaxDelay, TimeUnit.MILLISECONDS),
+                () -> {
+                    ingestFlushScheduled.set(false);
+                    flushIngestQueue();
+                },
+                executionContext);
+        }
+        return futures;
+    }
+
+    /**
+     * Writes every queued event in batches, until the queue is empty. Returns straight away if the
+     * queue is already being flushed, as that flush will also write anything queued since.
+     */
+    private void flushIngestQueue() {
+        // Checked again after letting go, in case events were queued just as the last flush ended
+        while (!ingestQueue.isEmpty() && ingestFlushing.compareAndSet(false, true)) {
+            try {
+                List<Pair<NewsFeedEvent, CompletableFuture<Long>>> batch = new ArrayList<>();
+                while (ingestQueue.drainTo(batch, ingestBatchSize) > 0) {
+                    writeBatch(batch);
+                    batch.clear();
+                }
+            } finally {
+                ingestFlushing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of events in a single transaction and completes their futures. If the batch
+     * fails, each event is tried again on its own, so one bad event only fails itself.
+     *
+     * @param batch Events to write, in the order they were added, and their futures
+     */
+    private void writeBatch(List<Pair<NewsFeedEvent, CompletableFuture<Long>>> batch) {
+        List<NewsFeedEvent> events = batch.stream().map(Pair::getKey).collect(Collectors.toList());
+        Set<Long> changedIds = new LinkedHashSet<>();
+        Map<Long, List<Long>> followerIds = Collections.emptyMap();
+
+        try (Transaction transaction = ebeanServer.beginTransaction()) {
+            LocalDateTime now = LocalDateTime.now();
+            events.forEach(event -> event.created = now);
+
+            // Insert every event with one JDBC batch
+            transaction.setBatchMode(true);
+            transaction.setBatchSize(events.size());
+            ebeanServer.insertAll(events);
+            transaction.flush();
+            transaction.setBatchMode(false);
+
+            // Grouped one at a time in order, so events in the same batch can group together
+            for (NewsFeedEvent event : events) {
+                changedIds.add(event.guid);
+                NewsFeedEvent group = findOpenGroup(event);
+                if (group != null) {
+                    ebeanServer.createSqlUpdate("UPDATE NewsFeedEvent SET group_id = :newGroupId "
+                        + "WHERE guid = :groupId OR group_id = :groupId")
+                        .setParameter("newGroupId", event.guid)
+                        .setParameter("groupId", group.guid)
+                        .execute();
+                    changedIds.add(group.guid);
+                }
+            }
+
+            List<Long> eventIds = events.stream().map(x -> x.guid).collect(Collectors.toList());
+            fanOutToTimelines(eventIds);
+            if (!eventListeners.isEmpty()) {
+                followerIds = getTimelineFollowers(eventIds);
+            }
+            updateTrendingScores(eventIds);
+            transaction.commit();
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                batch.get(0).getValue().completeExceptionally(e);
+            } else {
+                batch.forEach(entry -> writeBatch(Collections.singletonList(entry)));
+            }
+            return;
+        }
+
+        notifyTrendingListeners(changedIds);
+        for (NewsFeedEvent event : events) {
+            List<Long> followers = followerIds.getOrDefault(event.guid, Collections.emptyList());
+            eventListeners.forEach(listener -> listener.accept(event, followers));
+        }
+        batch.forEach(entry -> entry.getValue().complete(entry.getKey().guid));
+    }
+
+    /**
+     * Finds the latest event an event should be grouped with, i.e one of the same type added less
+     * than 12 hours before it that is not already grouped into another event. The event found is
+     * locked until the transaction ends, so two events can't take over the same group at once.
+     * Events inserted after it (e.g later in the same batch) are never matched.
+     *
+     * Trip updates are grouped by trip, gallery photos by user, and destination photo links by
+     * user and destination. Other types of events are never grouped.
+     *
+     * @param newsFeedEvent Event that has just been inserted
+     * @return Event to group with, or null if none
+     */
+    private NewsFeedEvent findOpenGroup(NewsFeedEvent newsFeedEvent) {
+        ExpressionList<NewsFeedEvent> matching = ebeanServer.find(NewsFeedEvent.class)
+            .where()
+            .eq("eventType", newsFeedEvent.eventType)
+            .isNull("groupId")
+            .lt("guid", newsFeedEvent.guid)
+            .gt("created", newsFeedEvent.created.minusHours(GROUP_WINDOW_HOURS));
+
+        switch (NewsFeedEventType.valueOf(newsFeedEvent.eventType)) {
+            case UPDATED_EXISTING_TRIP:
+                matching.eq("refId", newsFeedEvent.refId);
+                break;
+            case UPLOADED_USER_PHOTO:
+                matching.eq("userId", newsFeedEvent.userId);
+                break;
+            case LINK_DESTINATION_PHOTO:
+                matching.eq("userId", newsFeedEvent.userId)
+                    .eq("destId", newsFeedEvent.destId);
+                break;
+            default:
+                return null;
+        }
+
+        return matching.orderBy("created desc, guid desc")
+            .setMaxRows(1)
+            .forUpdate()
+            .findOneOrEmpty()
+            .orElse(null);
+    }
+
+    /**
+     * Gets the events grouped into each of some events, most recent first
+     *
+     * @param groupIds IDs of the events to get the groups of
+     * @return Map from each event id to the events grouped into it. Events with nothing grouped
+     * into them are left out
+     */
+    public CompletableFuture<Map<Long, List<NewsFeedEvent>>> getGroupedEvents(
+        Collection<Long> groupIds) {
         return supplyAsync(() -> {
-            newsFeedEvent.created = LocalDateTime.now();
-            ebeanServer.insert(newsFeedEvent);
-            return newsFeedEvent.guid;
+            Map<Long, List<NewsFeedEvent>> groups = new HashMap<>();
+            if (!groupIds.isEmpty()) {
+                ebeanServer.find(NewsFeedEvent.class)
+                    .where()
+                    .in("groupId", groupIds)
+                    .orderBy("created desc, guid desc")
+                    .findList()
+                    .forEach(event ->
+                        groups.computeIfAbsent(event.groupId, id -> new ArrayList<>()).add(event));
+            }
+            return groups;
         }, executionContext);
     }
 
+    /**
+     * Appends events to the timeline of every user that follows either the user or the
+     * destination of each event. A follower of both only gets each event once.
+     *
+     * @param eventIds IDs of the events that have just been inserted
+     */
+    private void fanOutToTimelines(Collection<Long> eventIds) {
+        String sql = "INSERT INTO NewsFeedTimeline (follower_id, event_id, created) "
+            + "SELECT F.follower_id, E.guid, E.created FROM NewsFeedEvent E "
+            + "JOIN FollowerUser F ON F.user_id = E.user_id "
+            + "WHERE E.guid IN (:eventIds) AND F.deleted = 0 "
+            + "UNION "
+            + "SELECT F.follower_id, E.guid, E.created FROM NewsFeedEvent E "
+            + "JOIN FollowerDestination F ON F.destination_id = E.dest_id "
+            + "WHERE E.guid IN (:eventIds) AND F.deleted = 0";
+
+        ebeanServer.createSqlUpdate(sql)
+            .setParameter("eventIds", eventIds)
+            .execute();
+    }
+
+    /**
+     * Gets the ids of every user whose timeline each of some events is on
+     *
+     * @param eventIds IDs of the events
+     * @return Map from each event id to the ids of the users. Events on no timelines are left out
+     */
+    private Map<Long, List<Long>> getTimelineFollowers(Collection<Long> eventIds) {
+        Map<Long, List<Long>> followerIds = new HashMap<>();
+        ebeanServer.createSqlQuery("SELECT event_id, follower_id FROM NewsFeedTimeline "
+            + "WHERE event_id IN (:eventIds)")
+            .setParameter("eventIds", eventIds)
+            .findEachRow((resultSet, rowNum) -> followerIds
+                .computeIfAbsent(resultSet.getLong(1), id -> new ArrayList<>())
+                .add(resultSet.getLong(2)));
+        return followerIds;
+    }
+
+    /**
+     * Copies all existing events of a user into the timeline of someone who has just started
+     * following them. Events already on the timeline (e.g from a followed destination) are skipped.
+     *
+     * @param followerId ID of the user who is now following
+     * @param userId ID of the user being followed
+     * @return Number of events added to the timeline
+     */
+    public int addFollowedUserToTimeline(Long followerId, Long userId) {
+        String sql = "INSERT INTO NewsFeedTimeline (follower_id, event_id, created) "
+            + "SELECT :followerId, E.guid, E.created FROM NewsFeedEvent E "
+            + "WHERE E.user_id = :userId "
+            + "AND NOT EXISTS (SELECT 1 FROM NewsFeedTimeline T "
+            + "WHERE T.follower_id = :followerId AND T.event_id = E.guid)";
+
+        return ebeanServer.createSqlUpdate(sql)
+            .setParameter("followerId", followerId)
+            .setParameter("userId", userId)
+            .execute();
+    }
+
+    /**
+     * Removes the events of a user from the timeline of someone who has stopped following them.
+     * Events that are still reachable through a followed destination are kept.
+     *
+     * @param followerId ID of the user who has unfollowed
+     * @param userId ID of the user no longer being followed
+     * @return Number of events removed from the timeline
+     */
+    public int removeFollowedUserFromTimeline(Long followerId, Long userId) {
+        String sql = "DELETE FROM NewsFeedTimeline "
+            + "WHERE follower_id = :followerId "
+            + "AND event_id IN (SELECT E.guid FROM NewsFeedEvent E "
+            + "WHERE E.user_id = :userId "
+            + "AND NOT EXISTS (SELECT 1 FROM FollowerDestination F "
+            + "WHERE F.destination_id = E.dest_id AND F.follower_id = :followerId "
+            + "AND F.deleted = 0))";
+
+        return ebeanServer.createSqlUpdate(sql)
+            .setParameter("followerId", followerId)
+            .setParameter("userId", userId)
+            .execute();
+    }
+
+    /**
+     * Copies all existing events of a destination into the timeline of someone who has just started
+     * following it. Events already on the timeline (e.g from a followed user) are skipped.
+     *
+     * @param followerId ID of the user who is now following
+     * @param destinationId ID of the destination being followed
+     * @return Number of events added to the timeline
+     */
+    public int addFollowedDestinationToTimeline(Long followerId, Long destinationId) {
+        String sql = "INSERT INTO NewsFeedTimeline (follower_id, event_id, created) "
+            + "SELECT :followerId, E.guid, E.created FROM NewsFeedEvent E "
+            + "WHERE E.dest_id = :destinationId "
+            + "AND NOT EXISTS (SELECT 1 FROM NewsFeedTimeline T "
+            + "WHERE T.follower_id = :followerId AND T.event_id = E.guid)";
+
+        return ebeanServer.createSqlUpdate(sql)
+            .setParameter("followerId", followerId)
+            .setParameter("destinationId", destinationId)
+            .execute();
+    }
+
+    /**
+     * Removes the events of a destination from the timeline of someone who has stopped following
+     * it. Events that are still reachable through a followed user are kept.
+     *
+     * @param followerId ID of the user who has unfollowed
+     * @param destinationId ID of the destination no longer being followed
+     * @return Number of events removed from the timeline
+     */
+    public int removeFollowedDestinationFromTimeline(Long followerId, Long destinationId) {
+        String sql = "DELETE FROM NewsFeedTimeline "
+            + "WHERE follower_id = :followerId "
+            + "AND event_id IN (SELECT E.guid FROM NewsFeedEvent E "
+            + "WHERE E.dest_id = :destinationId "
+            + "AND NOT EXISTS (SELECT 1 FROM FollowerUser F "
+            + "WHERE F.user_id = E.user_id AND F.follower_id = :followerId "
+            + "AND F.deleted = 0))";
+
+        return ebeanServer.createSqlUpdate(sql)
+            .setParameter("followerId", followerId)
+            .setParameter("destinationId", destinationId)
+            .execute();
+    }
+
     /**
      * Gets a single event given the event ID.
      *
@@ -82,7 +461,9 @@ public class NewsFeedEventRepository {
     }
 
     /**
-     * For some photo, removes any event that were associated with it
+     * For some photo, removes any event that were associated with it. Timeline entries of the
+     * removed events are dropped by the database (cascade on NewsFeedTimeline.event_id), and the
+     * groups of removed events are handed over to the latest event left in them (see deleteEvents)
      *
      * @param photo The photo to clean up events from
      * @return Number of events cleaned up (removed)
@@ -96,17 +477,17 @@ public class NewsFeedEventRepository {
             NewsFeedEventType.NEW_PRIMARY_DESTINATION_PHOTO.name()
         );
 
-        return supplyAsync(() ->
+        return supplyAsync(() -> deleteEvents(
             ebeanServer.find(NewsFeedEvent.class)
                 .where()
                 .eq("ref_id", photo.guid)
                 .in("event_type", relevantTypes)
-                .delete()
-        );
+        ), executionContext);
     }
 
     /**
-     * Cleans up all the news feed events related to some destination
+     * Cleans up all the news feed events related to some destination. Timeline entries of the
+     * removed events are dropped by the database (cascade on NewsFeedTimeline.event_id)
      *
      * @param destination The destination that has been deleted
      * @return Number of events cleaned up (removed)
@@ -138,7 +519,9 @@ public class NewsFeedEventRepository {
     }
 
     /**
-     * For some trip, removes any event that were associated with it
+     * For some trip, removes any event that were associated with it. Timeline entries of the
+     * removed events are dropped by the database (cascade on NewsFeedTimeline.event_id), and the
+     * groups of removed events are handed over to the latest event left in them (see deleteEvents)
      *
      * @param trip The trip to clean up events from
      * @return Number of events cleaned up (removed)
@@ -150,13 +533,66 @@ public class NewsFeedEventRepository {
             NewsFeedEventType.GROUPED_TRIP_UPDATES.name()
         );
 
-        return supplyAsync(() ->
+        return supplyAsync(() -> deleteEvents(
             ebeanServer.find(NewsFeedEvent.class)
                 .where()
                 .eq("ref_id", trip.id)
                 .in("event_type", relevantTypes)
-                .delete()
-        );
+        ), executionContext);
+    }
+
+    /**
+     * Deletes some events in one transaction. An event that others are grouped into hands its
+     * group over to the latest of them that is left before it is deleted, so the rest of the group
+     * is still shown as one event, rather than the database ungrouping every event in it (ON
+     * DELETE SET NULL on group_id).
+     *
+     * @param events Query of the events to delete
+     * @return Number of events deleted
+     */
+    private int deleteEvents(ExpressionList<NewsFeedEvent> events) {
+        List<Long> eventIds;
+        Set<Long> newGroupIds = new LinkedHashSet<>();
+        int rows;
+        try (Transaction transaction = ebeanServer.beginTransaction()) {
+            // Locked, so no new event can take over one of the groups while they are handed over
+            eventIds = events.query().select("guid").forUpdate().findList().stream()
+                .map(event -> event.guid)
+                .collect(Collectors.toList());
+            if (eventIds.isEmpty()) {
+                return 0;
+            }
+
+            // Events left in the groups of the deleted events, latest first
+            List<NewsFeedEvent> members = ebeanServer.find(NewsFeedEvent.class)
+                .where()
+                .in("groupId", eventIds)
+                .notIn("guid", eventIds)
+                .orderBy("created desc, guid desc")
+                .findList();
+            Set<Long> handedOver = new HashSet<>();
+            for (NewsFeedEvent member : members) {
+                if (handedOver.add(member.groupId)) {
+                    ebeanServer.createSqlUpdate("UPDATE NewsFeedEvent SET group_id = CASE "
+                        + "WHEN guid = :newGroupId THEN NULL ELSE :newGroupId END "
+                        + "WHERE group_id = :groupId")
+                        .setParameter("newGroupId", member.guid)
+                        .setParameter("groupId", member.groupId)
+                        .execute();
+                    newGroupIds.add(member.guid);
+                }
+            }
+
+            rows = ebeanServer.find(NewsFeedEvent.class).where().idIn(eventIds).delete();
+            transaction.commit();
+        }
+
+        // The new heads of the groups are ranked in their place
+        notifyTrendingListeners(newGroupIds);
+        for (Long eventId : eventIds) {
+            trendingListeners.forEach(listener -> listener.accept(eventId, null));
+        }
+        return rows;
     }
 
     /**
@@ -174,29 +610,8 @@ public class NewsFeedEventRepository {
         Integer pageNum,
         Integer pageSize) {
 
-        // Below we make items for each value that we know aren't null, so that EBean won't throw NullPointer,
-        // but we must check against the original parameter when checking if the variable was null initially
-        List<Long> userIdsNotNull = userIds == null ? new ArrayList<>() : userIds;
-        List<Long> destIdsNotNull = destIds == null ? new ArrayList<>() : destIds;
-
         return supplyAsync(() -> {
-            ExpressionList<NewsFeedEvent> eventsExprList =
-                ebeanServer.find(NewsFeedEvent.class)
-                    .where()
-                    .or(
-                        Expr.in("t0.user_id", userIdsNotNull),
-                        (userIds != null && destIds == null) ? SQL_FALSE : SQL_TRUE
-                    ).endOr()
-                    // Filter nationalities by given traveller type ids, only if some were given
-                    .or(
-                        Expr.in("t0.dest_id", destIdsNotNull),
-                        (destIds != null && userIds == null) ? SQL_FALSE : SQL_TRUE
-                    ).endOr()
-                    .or()
-                    .in("t0.dest_id", destIdsNotNull)
-                    .in("t0.user_id", userIdsNotNull)
-                    .raw((destIds != null && userIds != null) ? "false" : "true")
-                    .endOr();
+            ExpressionList<NewsFeedEvent> eventsExprList = filterEvents(userIds, destIds);
 
             // Order by specified column and asc/desc if given, otherwise default to most recently created profiles first
             PagedList<NewsFeedEvent> events = eventsExprList.orderBy("created desc")
@@ -209,48 +624,328 @@ public class NewsFeedEventRepository {
     }
 
     /**
-     * Gets all the events in a pagaed fashion. TRENDING
+     * Gets the page of events straight after some cursor, filtered by user or destination ids the
+     * same way as getPagedEvents. No rows are skipped over and no total count is run, so every
+     * page costs the same no matter how deep it is.
+     *
+     * @param userIds list of users to filter by, null for no filtering
+     * @param destIds List of destinations to filter by, null for no filtering
+     * @param cursor position of the last event of the previous page, null for the first page
+     * @param pageSize length of page
+     * @return Pair of the events on the page, and the cursor to the next page (null if none)
+     */
+    public CompletableFuture<Pair<List<NewsFeedEvent>, PageCursor>> getEventsAfterCursor(
+        List<Long> userIds, // Possibly null
+        List<Long> destIds,
+        PageCursor cursor,
+        Integer pageSize) {
+
+        return supplyAsync(() -> {
+            Expression afterCursor = cursor == null ? SQL_TRUE : Expr.or(
+                Expr.lt("created", cursor.getCreated()),
+                Expr.and(
+                    Expr.eq("created", cursor.getCreated()),
+                    Expr.lt("guid", cursor.getGuid())
+                )
+            );
+
+            // Get one more than needed, so we know whether there is another page after this one
+            List<NewsFeedEvent> events = filterEvents(userIds, destIds)
+                .add(afterCursor)
+                .orderBy("created desc, guid desc")
+                .setMaxRows(pageSize + 1)
+                .findList();
+
+            return toCursorPage(events, pageSize);
+        }, executionContext);
+    }
+
+    /**
+     * Builds the where clause to filter events by user or destination ids.
      *
+     * @param userIds list of users to filter by, null for no filtering
+     * @param destIds List of destinations to filter by, null for no filtering
+     * @return Expression list of events matching the filters
+     */
+    private ExpressionList<NewsFeedEvent> filterEvents(List<Long> userIds, List<Long> destIds) {
+        // Below we make items for each value that we know aren't null, so that EBean won't throw NullPointer,
+        // but we must check against the original parameter when checking if the variable was null initially
+        List<Long> userIdsNotNull = userIds == null ? new ArrayList<>() : userIds;
+        List<Long> destIdsNotNull = destIds == null ? new ArrayList<>() : destIds;
+
+        // Events grouped into a later event are shown as part of it
+        return ebeanServer.find(NewsFeedEvent.class)
+            .where()
+            .isNull("groupId")
+            .or(
+                Expr.in("t0.user_id", userIdsNotNull),
+                (userIds != null && destIds == null) ? SQL_FALSE : SQL_TRUE
+            ).endOr()
+            // Filter nationalities by given traveller type ids, only if some were given
+            .or(
+                Expr.in("t0.dest_id", destIdsNotNull),
+                (destIds != null && userIds == null) ? SQL_FALSE : SQL_TRUE
+            ).endOr()
+            .or()
+            .in("t0.dest_id", destIdsNotNull)
+            .in("t0.user_id", userIdsNotNull)
+            .raw((destIds != null && userIds != null) ? "false" : "true")
+            .endOr();
+    }
+
+    /**
+     * Trims a list of events fetched with one extra row down to a page, and creates the cursor
+     * to the next page from the last event if the extra row was there.
+     *
+     * @param events Events fetched, at most pageSize + 1 of them
+     * @param pageSize length of page
+     * @return Pair of the events on the page, and the cursor to the next page (null if none)
+     */
+    private Pair<List<NewsFeedEvent>, PageCursor> toCursorPage(List<NewsFeedEvent> events,
+        Integer pageSize) {
+        if (events.size() <= pageSize) {
+            return new Pair<>(events, null);
+        }
+
+        List<NewsFeedEvent> page = new ArrayList<>(events.subList(0, pageSize));
+        NewsFeedEvent last = page.get(page.size() - 1);
+        return new Pair<>(page, new PageCursor(last.created, last.guid));
+    }
+
+    /**
+     * Gets the events on the timeline of some user (i.e the events of all users and destinations
+     * they follow) in a paged fashion, most recent first. This is a range scan over the timeline
+     * index of the follower, so it does not grow with the number of things they follow.
+     *
+     * @param followerId ID of the user to get the timeline of
      * @param pageNum page number
      * @param pageSize length of page
      * @return List of Events
      */
-    public CompletableFuture<PagedList<NewsFeedEvent>> getPagedTrendingEvents(
+    public CompletableFuture<PagedList<NewsFeedEvent>> getPagedTimelineEvents(Long followerId,
         Integer pageNum,
         Integer pageSize) {
 
         return supplyAsync(() -> {
-            // ### Explore algorithm ###
-            // (1 / (1+e^({changeInTime}/{time_tuner} -3 ))) * ({likes}/{likesTuner} + 1)
-
-            String changeInTime = " (UNIX_TIMESTAMP(NOW()) - UNIX_TIMESTAMP(created)) "; // Integer value of seconds
-            String numberOfLikes = " (SELECT COUNT(*) FROM Likes L WHERE L.event_id = E.guid AND deleted = 0) "; // Integer value of likes
-
-            String sql = "SELECT "
-                + "*, "
-                + "((1 / (1 + POWER(:E, ((" + changeInTime
-                + " / CAST(:TRENDING_TIME_TUNING AS DECIMAL(12,8))) - 3)))) * ((" + numberOfLikes
-                + " / CAST(:TRENDING_LIKE_TUNING AS DECIMAL(12,8)) ) + 1) ) AS weight "
-                + "FROM NewsFeedEvent E "
-                + "ORDER BY weight DESC";
-            // Order by specified column and asc/desc if given, otherwise default to most recently created profiles first
-            PagedList<NewsFeedEvent> events = ebeanServer.findNative(NewsFeedEvent.class, sql)
-                .setParameter("E", this.E)
-                .setParameter("TRENDING_TIME_TUNING", this.TRENDING_TIME_TUNING)
-                .setParameter("TRENDING_LIKE_TUNING", this.TRENDING_LIKE_TUNING)
+            String sql = "SELECT E.* FROM NewsFeedTimeline T "
+                + "JOIN NewsFeedEvent E ON E.guid = T.event_id "
+                + "WHERE T.follower_id = :followerId AND E.group_id IS NULL "
+                + "ORDER BY T.created DESC, T.event_id DESC";
+
+            return ebeanServer.findNative(NewsFeedEvent.class, sql)
+                .setParameter("followerId", followerId)
                 .setFirstRow((pageNum - 1) * pageSize)
                 .setMaxRows(pageSize)
                 .findPagedList();
+        }, executionContext);
+    }
 
-            ebeanServer.createSqlQuery(sql)
-                .setParameter("E", this.E)
-                .setParameter("TRENDING_TIME_TUNING", this.TRENDING_TIME_TUNING)
-                .setParameter("TRENDING_LIKE_TUNING", this.TRENDING_LIKE_TUNING)
-                .findEachRow(((resultSet, rowNum) -> {
-                }));
+    /**
+     * Gets the page of events on the timeline of some user straight after some cursor, most recent
+     * first. No rows are skipped over and no total count is run.
+     *
+     * @param followerId ID of the user to get the timeline of
+     * @param cursor position of the last event of the previous page, null for the first page
+     * @param pageSize length of page
+     * @return Pair of the events on the page, and the cursor to the next page (null if none)
+     */
+    public CompletableFuture<Pair<List<NewsFeedEvent>, PageCursor>> getTimelineEventsAfterCursor(
+        Long followerId,
+        PageCursor cursor,
+        Integer pageSize) {
 
-            return events;
-        });
+        return supplyAsync(() -> {
+            String sql = "SELECT E.* FROM NewsFeedTimeline T "
+                + "JOIN NewsFeedEvent E ON E.guid = T.event_id "
+                + "WHERE T.follower_id = :followerId AND E.group_id IS NULL "
+                + (cursor == null ? "" : "AND (T.created < :created "
+                + "OR (T.created = :created AND T.event_id < :guid)) ")
+                + "ORDER BY T.created DESC, T.event_id DESC";
+
+            Query<NewsFeedEvent> query = ebeanServer.findNative(NewsFeedEvent.class, sql)
+                .setParameter("followerId", followerId);
+            if (cursor != null) {
+                query.setParameter("created", cursor.getCreated())
+                    .setParameter("guid", cursor.getGuid());
+            }
+
+            // Get one more than needed, so we know whether there is another page after this one
+            return toCursorPage(query.setMaxRows(pageSize + 1).findList(), pageSize);
+        }, executionContext);
+    }
+
+    /**
+     * Gets a page of events ordered by their stored trending scores, highest first. The index on
+     * the scores is used, so the whole table is never scanned.
+     *
+     * @param firstRow Index of the first event to get
+     * @param maxRows Number of events to get
+     * @return List of events
+     */
+    public CompletableFuture<List<NewsFeedEvent>> getEventsByTrendingScore(Integer firstRow,
+        Integer maxRows) {
+        return supplyAsync(() ->
+            ebeanServer.find(NewsFeedEvent.class)
+                .where()
+                .isNull("groupId")
+                .orderBy("trendingScore desc, guid desc")
+                .setFirstRow(firstRow)
+                .setMaxRows(maxRows)
+                .findList()
+            , executionContext);
+    }
+
+    /**
+     * Gets the events straight after some event in trending order, highest score first.
+     *
+     * @param trendingScore Trending score of the event to start after
+     * @param guid ID of the event to start after
+     * @param maxRows Number of events to get
+     * @return List of events
+     */
+    public CompletableFuture<List<NewsFeedEvent>> getEventsByTrendingScoreAfter(
+        Double trendingScore, Long guid, Integer maxRows) {
+        return supplyAsync(() ->
+            ebeanServer.find(NewsFeedEvent.class)
+                .where()
+                .isNull("groupId")
+                .or(
+                    Expr.lt("trendingScore", trendingScore),
+                    Expr.and(
+                        Expr.eq("trendingScore", trendingScore),
+                        Expr.lt("guid", guid)
+                    )
+                )
+                .orderBy("trendingScore desc, guid desc")
+                .setMaxRows(maxRows)
+                .findList()
+            , executionContext);
+    }
+
+    /**
+     * Gets the events with some ids, in the same order as the ids given. Ids with no event are left
+     * out.
+     *
+     * @param guids IDs of events to get
+     * @return List of events
+     */
+    public CompletableFuture<List<NewsFeedEvent>> getEventsInOrder(List<Long> guids) {
+        return supplyAsync(() -> {
+            Map<Long, NewsFeedEvent> eventsById = new HashMap<>();
+            if (!guids.isEmpty()) {
+                ebeanServer.find(NewsFeedEvent.class).where().idIn(guids).findList()
+                    .forEach(event -> eventsById.put(event.guid, event));
+            }
+            return guids.stream()
+                .map(eventsById::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        }, executionContext);
+    }
+
+    /**
+     * Recalculates the trending score of every event as of now, so that scores decay as events get
+     * older. Runs as a single update statement.
+     *
+     * ### Explore algorithm ###
+     * (1 / (1+e^({changeInTime}/{time_tuner} -3 ))) * ({likes}/{likesTuner} + 1)
+     *
+     * @return Number of events updated
+     */
+    public int decayTrendingScores() {
+        trendingAsOf = LocalDateTime.now();
+        return updateTrendingScores(null);
+    }
+
+    /**
+     * Gets the ids and scores of the top trending events, highest score first
+     *
+     * @param limit Number of events to get
+     * @return List of pairs of event id and trending score
+     */
+    public List<Pair<Long, Double>> getTopTrendingScores(Integer limit) {
+        List<Pair<Long, Double>> scores = new ArrayList<>();
+        ebeanServer.createSqlQuery("SELECT guid, trending_score FROM NewsFeedEvent "
+            + "WHERE group_id IS NULL ORDER BY trending_score DESC, guid DESC")
+            .setMaxRows(limit)
+            .findEachRow(((resultSet, rowNum) ->
+                scores.add(new Pair<>(resultSet.getLong(1), resultSet.getDouble(2)))));
+        return scores;
+    }
+
+    /**
+     * Gets the number of events shown on their own, i.e not grouped into another event
+     *
+     * @return Number of events
+     */
+    public int countEvents() {
+        return ebeanServer.find(NewsFeedEvent.class).where().isNull("groupId").findCount();
+    }
+
+    /**
+     * Registers a listener to be told whenever the trending score of a single event changes,
+     * i.e when an event is added, liked, unliked or deleted. Not called for decayTrendingScores().
+     *
+     * @param listener Consumer of the event id and its new trending score, or null if the event
+     * is grouped into another event or deleted and so no longer ranked on its own
+     */
+    public void addTrendingListener(BiConsumer<Long, Double> listener) {
+        trendingListeners.add(listener);
+    }
+
+    /**
+     * Registers a listener to be told about every news feed event once it has been added. Called
+     * after the event has been committed, on the thread that added it.
+     *
+     * @param listener Consumer of the new event and the ids of the users whose timelines it was
+     * added to, i.e the followers of its user or destination
+     */
+    public void addEventListener(BiConsumer<NewsFeedEvent, List<Long>> listener) {
+        eventListeners.add(listener);
+    }
+
+    /**
+     * Recalculates the trending score of some or all events, from their created time and like
+     * count, as of the time the scores were last all calculated at.
+     *
+     * @param eventIds IDs of events to update, or null to update all
+     * @return Number of events updated
+     */
+    private int updateTrendingScores(Collection<Long> eventIds) {
+        LocalDateTime asOf = trendingAsOf == null ? LocalDateTime.now() : trendingAsOf;
+        String changeInTime = " (UNIX_TIMESTAMP(:asOf) - UNIX_TIMESTAMP(created)) "; // Integer value of seconds
+
+        String sql = "UPDATE NewsFeedEvent SET trending_score = "
+            + "(1 / (1 + POWER(:E, LEAST((" + changeInTime + " / :TRENDING_TIME_TUNING) - 3, "
+            + ":MAX_EXPONENT)))) * ((like_count / :TRENDING_LIKE_TUNING) + 1)"
+            + (eventIds == null ? "" : " WHERE guid IN (:eventIds)");
+
+        SqlUpdate update = ebeanServer.createSqlUpdate(sql)
+            .setParameter("asOf", asOf)
+            .setParameter("E", this.E)
+            .setParameter("MAX_EXPONENT", MAX_TRENDING_EXPONENT)
+            .setParameter("TRENDING_TIME_TUNING", this.TRENDING_TIME_TUNING)
+            .setParameter("TRENDING_LIKE_TUNING", this.TRENDING_LIKE_TUNING);
+        if (eventIds != null) {
+            update.setParameter("eventIds", eventIds);
+        }
+        return update.execute();
+    }
+
+    /**
+     * Tells all trending listeners the current score of some events
+     *
+     * @param eventIds IDs of events whose score has changed
+     */
+    private void notifyTrendingListeners(Collection<Long> eventIds) {
+        if (trendingListeners.isEmpty() || eventIds.isEmpty()) {
+            return;
+        }
+        for (NewsFeedEvent event : ebeanServer.find(NewsFeedEvent.class).where()
+            .idIn(eventIds).findList()) {
+            Double score = event.groupId == null ? event.trendingScore : null;
+            trendingListeners.forEach(listener -> listener.accept(event.guid, score));
+        }
     }
 
     /**
@@ -271,92 +966,118 @@ public class NewsFeedEventRepository {
     }
 
     /**
-     * Inserts a news feed event - user id pair
+     * Gets every like that has not been removed
      *
-     * @param like the Likes object to add
-     * @return the guid of the inserted Likes object
+     * @return List of pairs of the liked event id and the id of the user who liked it
      */
-    public CompletableFuture<Long> insertLike(Likes like) {
-        return supplyAsync(() -> {
-            ebeanServer.insert(like);
-            return like.guid;
-        }, executionContext);
+    public List<Pair<Long, Long>> getAllLikes() {
+        List<Pair<Long, Long>> likes = new ArrayList<>();
+        ebeanServer.createSqlQuery("SELECT event_id, user_id FROM Likes WHERE deleted = 0")
+            .findEachRow(((resultSet, rowNum) ->
+                likes.add(new Pair<>(resultSet.getLong(1), resultSet.getLong(2)))));
+        return likes;
     }
 
     /**
-     * Deletes a news feed event - user id pair
+     * Writes a batch of likes and unlikes in a single transaction, then recounts the likes of
+     * every event involved and recalculates their trending scores. Liking an event that is
+     * already liked, or unliking one that is not, does nothing. Likes of events or users that no
+     * longer exist are skipped.
      *
-     * @param id guid of the Like to delete
-     * @return the number of rows that were deleted
+     * @param likes Pairs of event id and user id to add likes for
+     * @param unlikes Pairs of event id and user id to remove likes for
      */
-    public CompletableFuture<Long> deleteLike(Long id) {
-        return supplyAsync(() ->
-                Long.valueOf(ebeanServer.delete(Likes.class, id))
-            , executionContext);
+    public void writeLikes(List<Pair<Long, Long>> likes, List<Pair<Long, Long>> unlikes) {
+        if (likes.isEmpty() && unlikes.isEmpty()) {
+            return;
+        }
+
+        Set<Long> eventIds = new HashSet<>();
+        try (Transaction transaction = ebeanServer.beginTransaction()) {
+            if (!likes.isEmpty()) {
+                insertLikes(transaction, likes);
+            }
+            if (!unlikes.isEmpty()) {
+                deleteLikes(unlikes);
+            }
+
+            likes.forEach(like -> eventIds.add(like.getKey()));
+            unlikes.forEach(unlike -> eventIds.add(unlike.getKey()));
+            ebeanServer.createSqlUpdate("UPDATE NewsFeedEvent E SET like_count = "
+                + "(SELECT COUNT(*) FROM Likes L WHERE L.event_id = E.guid AND L.deleted = 0) "
+                + "WHERE E.guid IN (:eventIds)")
+                .setParameter("eventIds", eventIds)
+                .execute();
+            updateTrendingScores(eventIds);
+
+            transaction.commit();
+        }
+        notifyTrendingListeners(eventIds);
     }
 
     /**
-     * Retrieves the number of likes a news feed event has
+     * Inserts many likes as JDBC batches of the same statement, skipping any that already exist or
+     * that reference an event or user that does not
      *
-     * @param eventId ID of the news feed event to retrieve likes count for
-     * @return A news feed event object with only the like count field populated
+     * @param transaction Transaction the likes are inserted in
+     * @param likes Pairs of event id and user id to add likes for
      */
-    public CompletableFuture<Long> getEventLikeCounts(Long eventId) {
-
-        return supplyAsync(() -> {
-            return (long) ebeanServer.find(Likes.class)
-                .where()
-                .eq("event_id", eventId)
-                .findCount();
+    private void insertLikes(Transaction transaction, List<Pair<Long, Long>> likes) {
+        String sql = "INSERT INTO Likes (event_id, user_id) "
+            + "SELECT E.guid, U.id FROM NewsFeedEvent E "
+            + "JOIN User U ON U.id = ? "
+            + "WHERE E.guid = ? "
+            + "AND NOT EXISTS (SELECT 1 FROM Likes L WHERE L.event_id = E.guid "
+            + "AND L.user_id = U.id AND L.deleted = 0)";
 
-        });
+        try (PreparedStatement insert = transaction.getConnection().prepareStatement(sql)) {
+            for (int i = 0; i < likes.size(); i++) {
+                insert.setLong(1, likes.get(i).getValue());
+                insert.setLong(2, likes.get(i).getKey());
+                insert.addBatch();
+                if ((i + 1) % LIKE_BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        } catch (SQLException e) {
+            throw new PersistenceException("Failed to insert likes", e);
+        }
     }
 
     /**
-     * Retrieves trending users based on the followers they have recieved in the last week
+     * Removes many likes, with one statement per user for up to LIKE_BATCH_SIZE of their events
      *
-     * @return A list of 5 trending users
+     * @param unlikes Pairs of event id and user id to remove likes for
      */
-    public CompletableFuture<List<Profile>> getTrendingUsers() {
-        return supplyAsync(() -> {
-            String sql = "select user_id, COUNT(follower_id) as followerCount from FollowerUser where follow_time >= :time group by user_id order by followerCount desc, user_id desc limit 5";
-            List<Profile> trending = ebeanServer.findNative(TrendingUser.class, sql)
-                .setParameter("time", LocalDateTime.now().minusDays(7))
-                .findList()
-                .stream()
-                .map(tu -> {
-                    tu.user.followerUsersCount = Long.valueOf(ebeanServer.find(FollowerUser.class)
-                        .where().eq("user_id", tu.user.userId)
-                        .findCount());
-                    return tu.user;
-                })
-                .collect(Collectors.toList());
-            return trending;
-        });
+    private void deleteLikes(List<Pair<Long, Long>> unlikes) {
+        Map<Long, List<Long>> eventIdsByUser = unlikes.stream().collect(Collectors.groupingBy(
+            Pair::getValue, Collectors.mapping(Pair::getKey, Collectors.toList())));
+
+        for (Map.Entry<Long, List<Long>> user : eventIdsByUser.entrySet()) {
+            List<Long> eventIds = user.getValue();
+            for (int from = 0; from < eventIds.size(); from += LIKE_BATCH_SIZE) {
+                ebeanServer.createSqlUpdate("UPDATE Likes SET deleted = 1 "
+                    + "WHERE deleted = 0 AND user_id = :userId AND event_id IN (:eventIds)")
+                    .setParameter("userId", user.getKey())
+                    .setParameter("eventIds", eventIds.subList(from,
+                        Math.min(from + LIKE_BATCH_SIZE, eventIds.size())))
+                    .execute();
+            }
+        }
     }
 
     /**
-     * Retrieves trending destinations based on the followers they have recieved in the last week
+     * Checks the like count stored on every event against the Likes table, and fixes any that
+     * do not match
      *
-     * @return A list of 5 trending destinations
+     * @return Number of events whose like count was wrong
      */
-    public CompletableFuture<List<Destination>> getTrendingDestinations() {
-        return supplyAsync(() -> {
-            String sql = "select destination_id, COUNT(follower_id) as followerCount from FollowerDestination where follow_time >= :time group by destination_id order by followerCount desc, destination_id desc limit 5";
-            List<Destination> trending = ebeanServer.findNative(TrendingDestination.class, sql)
-                .setParameter("time", LocalDateTime.now().minusDays(7))
-                .findList()
-                .stream()
-                .map(td -> {
-                    td.destination.followerCount = Long
-                        .valueOf(ebeanServer.find(FollowerDestination.class)
-                            .where().eq("destination_id", td.destination.id)
-                            .findCount());
-                    return td.destination;
-                })
-                .collect(Collectors.toList());
-            return trending;
-        });
+    public int reconcileLikeCounts() {
+        String count = "(SELECT COUNT(*) FROM Likes L WHERE L.event_id = E.guid AND L.deleted = 0)";
+        return ebeanServer.createSqlUpdate("UPDATE NewsFeedEvent E SET like_count = " + count
+            + " WHERE like_count <> " + count)
+            .execute();
     }
 }
 
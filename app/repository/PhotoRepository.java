@@ -4,20 +4,34 @@ import static java.util.concurrent.CompletableFuture.supplyAsync;
 
 import io.ebean.Ebean;
 import io.ebean.EbeanServer;
+import io.ebean.Junction;
 import io.ebean.PagedList;
-import java.util.ArrayList;
+import io.ebean.Transaction;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import models.DestinationPhoto;
 import models.Photo;
+import models.PhotoFile;
 import models.PhotoTag;
 import models.Tag;
 import models.User;
+import models.enums.PhotoState;
 import play.db.ebean.EbeanConfig;
+import util.PhotoStorage;
 import util.objects.Pair;
 
 /**
@@ -34,14 +48,16 @@ public class PhotoRepository {
     private final DatabaseExecutionContext executionContext;
     private final TagRepository tagRepository;
     private final UserRepository userRepository;
+    private final PhotoStorage photoStorage;
 
     @Inject
     public PhotoRepository(EbeanConfig ebeanConfig, DatabaseExecutionContext executionContext,
-        TagRepository tagRepository, UserRepository userRepository) {
+        TagRepository tagRepository, UserRepository userRepository, PhotoStorage photoStorage) {
         this.ebeanServer = Ebean.getServer(ebeanConfig.defaultServer());
         this.executionContext = executionContext;
         this.tagRepository = tagRepository;
         this.userRepository = userRepository;
+        this.photoStorage = photoStorage;
     }
 
     /**
@@ -57,6 +73,45 @@ public class PhotoRepository {
         }, executionContext);
     }
 
+    /**
+     * Finds all photos in a processing state, e.g the photos still waiting for their thumbnails
+     *
+     * @param state Processing state to find photos in
+     * @return List of photos in that state
+     */
+    public CompletableFuture<List<Photo>> getPhotosByProcessingState(PhotoState state) {
+        return supplyAsync(() ->
+                ebeanServer.find(Photo.class)
+                    .where()
+                    .eq("processingState", state)
+                    .findList(),
+            executionContext
+        );
+    }
+
+    /**
+     * Records the result of generating a photo's thumbnail. Only the thumbnail and processing
+     * state are written, so changes made to the photo while it was being processed are kept.
+     *
+     * @param photoId ID of photo the thumbnail was generated for
+     * @param thumbnailFilename Filename of the generated thumbnail, null if it failed
+     * @param state New processing state of the photo
+     * @return True if the photo was updated, false if it has since been deleted
+     */
+    public CompletableFuture<Boolean> setThumbnail(Long photoId, String thumbnailFilename,
+        PhotoState state) {
+        return supplyAsync(() ->
+                ebeanServer.createUpdate(Photo.class,
+                    "UPDATE Photo SET thumbnail_filename=:thumbnailFilename, "
+                        + "processing_state=:state WHERE guid=:id")
+                    .setParameter("thumbnailFilename", thumbnailFilename)
+                    .setParameter("state", state.name())
+                    .setParameter("id", photoId)
+                    .execute() > 0,
+            executionContext
+        );
+    }
+
     /**
      * Gets multiple photos by multiple ids
      *
@@ -220,8 +275,7 @@ public class PhotoRepository {
                 .findOneOrEmpty().orElse(null);
 
             if (photo != null) {
-                photo.filename = FRONTEND_APPEND_DIRECTORY + photo.filename;
-                photo.thumbnailFilename = FRONTEND_APPEND_DIRECTORY + photo.thumbnailFilename;
+                appendAssetsUrl(photo);
             }
 
             return photo;
@@ -235,45 +289,307 @@ public class PhotoRepository {
      * @return The collection of photos now containing ID's
      */
     public CompletableFuture<List<Photo>> addPhotos(List<Photo> photos, User user) {
-        List<CompletableFuture<Set<Tag>>> futures = new ArrayList<>();
+        // The tags of every photo are added at once, rather than once per photo
+        Set<Tag> tags = new HashSet<>();
         for (Photo photo : photos) {
-            userRepository.updateUsedTags(user, photo);
-            futures.add(tagRepository.addTags(photo.tags));
+            tags.addAll(photo.tags);
         }
-        CompletableFuture<Void> allFutures = CompletableFuture
-            .allOf(futures.toArray(new CompletableFuture[0]));
-
-        //This ensures that the method can be called and the actions executed without calling
-        //ThenApply/Async but also whilst allowing the tests to wait for completion before
-        //Continuing execution
-        return allFutures.thenApplyAsync(v -> {
-            ebeanServer.insertAll(photos);
+
+        // The photos and the tags they mark as used by the user are added in one transaction,
+        // so either every photo is added or none are
+        return tagRepository.addTags(tags).thenApplyAsync(addedTags -> {
+            // Photos may hold their own copies of the same tag, so point them all at the added ones
+            Map<String, Tag> tagsByName = new HashMap<>();
+            for (Tag tag : addedTags) {
+                tagsByName.put(tag.name, tag);
+            }
+            for (Photo photo : photos) {
+                Set<Tag> photoTags = new HashSet<>();
+                for (Tag tag : photo.tags) {
+                    photoTags.add(tagsByName.getOrDefault(tag.name, tag));
+                }
+                photo.tags = photoTags;
+            }
+
+            try (Transaction transaction = ebeanServer.beginTransaction()) {
+                userRepository.updateUsedTags(user, () -> new HashSet<>(addedTags));
+                lockPhotoFiles(photos);
+                ebeanServer.insertAll(photos);
+                transaction.commit();
+            }
             return photos;
         }, executionContext);
     }
 
     /**
-     * Deletes a photo from the database.
+     * Locks the PhotoFile rows of the files some photos use for the rest of the transaction,
+     * adding rows for files that don't have one yet. While locked, the files can't be deleted by
+     * the last photo using them being deleted. Rows are locked in filename order so two
+     * transactions can't each hold a lock the other is waiting for.
+     *
+     * Each row is added, or left as it is if it already exists, in a single statement, so two
+     * uploads of the same new file can't both find no row and both add one. On a duplicate the
+     * statement locks the existing row exclusively, so the lock taken after it never has to be
+     * upgraded from a shared one.
+     *
+     * Rows are kept under where their file is inside the storage directory, so photos holding
+     * the same file's path in different forms share one row. Files outside storage have no row.
+     *
+     * @param photos Photos whose files to lock
+     */
+    private void lockPhotoFiles(Collection<Photo> photos) {
+        Set<String> filenames = new HashSet<>();
+        for (Photo photo : photos) {
+            String storageKey = PhotoStorage.storageKey(photo.filename);
+            if (storageKey != null) {
+                filenames.add(storageKey);
+            }
+        }
+        lockFiles(filenames);
+    }
+
+    /**
+     * Locks PhotoFile rows for the rest of the transaction, in filename order, adding any that
+     * don't exist yet
+     *
+     * @param filenames Filenames the rows are kept under
+     */
+    private void lockFiles(Collection<String> filenames) {
+        for (String filename : new TreeSet<>(filenames)) {
+            ebeanServer.createSqlUpdate("INSERT INTO PhotoFile (filename, stored) "
+                + "VALUES (:filename, :stored) ON DUPLICATE KEY UPDATE stored = stored")
+                .setParameter("filename", filename)
+                .setParameter("stored", LocalDateTime.now())
+                .execute();
+            ebeanServer.find(PhotoFile.class)
+                .where()
+                .idEq(filename)
+                .forUpdate()
+                .findOne();
+        }
+    }
+
+    /**
+     * Deletes a photo from the database. If no other photo uses the same stored file, whatever
+     * form their filenames are in, the file and its thumbnails are deleted as well. They are
+     * moved aside while the file's row is still locked, so a photo added in the meantime stores
+     * the file again rather than using one about to be deleted, and only deleted once the
+     * photo's deletion has committed.
      *
      * @param id Unique photo ID of destination to be deleted
      * @return The deleted photo, or null if a photo with that id was not found
      */
     public CompletableFuture<Photo> deletePhoto(Long id) {
         return supplyAsync(() -> {
-                Photo photo = ebeanServer.find(Photo.class)
-                    .where()
-                    .eq("guid", id)
-                    .findOneOrEmpty()
-                    .orElse(null);
+                try (Transaction transaction = ebeanServer.beginTransaction()) {
+                    Photo photo = ebeanServer.find(Photo.class)
+                        .where()
+                        .eq("guid", id)
+                        .findOneOrEmpty()
+                        .orElse(null);
+
+                    if (photo == null) {
+                        return null;
+                    }
+
+                    // Photos added before files were shared have no row, so are the only user
+                    String storageKey = PhotoStorage.storageKey(photo.filename);
+                    PhotoFile file = storageKey == null ? null : ebeanServer.find(PhotoFile.class)
+                        .where()
+                        .idEq(storageKey)
+                        .forUpdate()
+                        .findOne();
+                    ebeanServer.delete(photo);
+
+                    // Other photos may hold the same file's path in a different form
+                    boolean used = storageKey == null
+                        ? ebeanServer.find(Photo.class)
+                            .where()
+                            .eq("filename", photo.filename)
+                            .findCount() > 0
+                        : !findUsedFiles(Collections.singleton(storageKey)).isEmpty();
+                    PhotoStorage.DeletedFiles deletedFiles = null;
+                    if (!used) {
+                        if (file != null) {
+                            ebeanServer.delete(file);
+                        }
+                        deletedFiles = photoStorage.moveAside(photo);
+                    }
 
-                if (photo != null) {
-                    photo.delete();
+                    commit(transaction, deletedFiles);
+                    return photo;
                 }
-                return photo;
             }
             , executionContext);
     }
 
+    /**
+     * Commits a transaction that deletes stored files, then deletes the files it moved aside. If
+     * the commit fails the files are put back, as the photos using them are still there.
+     *
+     * @param transaction Transaction to commit
+     * @param deletedFiles Files moved aside in the transaction, or null if there are none
+     * @return Number of bytes freed
+     */
+    private long commit(Transaction transaction, PhotoStorage.DeletedFiles deletedFiles) {
+        try {
+            transaction.commit();
+        } catch (RuntimeException e) {
+            if (deletedFiles != null) {
+                photoStorage.restore(deletedFiles);
+            }
+            throw e;
+        }
+        return deletedFiles == null ? 0 : photoStorage.delete(deletedFiles);
+    }
+
+    /**
+     * Gets the filenames of stored files that have a PhotoFile row, a page at a time in filename
+     * order
+     *
+     * @param after Filename to start after, or an empty string to start from the first
+     * @param storedBefore Only files stored before this time are included
+     * @param limit Most filenames to get
+     * @return Filenames of the stored files
+     */
+    public CompletableFuture<List<String>> getStoredFilenames(String after,
+        LocalDateTime storedBefore, int limit) {
+        return supplyAsync(() ->
+            ebeanServer.find(PhotoFile.class)
+                .select("filename")
+                .where()
+                .gt("filename", after)
+                .lt("stored", storedBefore)
+                .orderBy("filename")
+                .setMaxRows(limit)
+                .findSingleAttributeList(), executionContext);
+    }
+
+    /**
+     * Deletes the stored files in a batch that no photo uses, with their thumbnails, their
+     * variants and their PhotoFile rows, in one transaction. The files' rows are locked first,
+     * and added if they don't exist, so a photo can't start using a file while it is deleted. The
+     * photos using any of the files are then found in one query. Unused files are moved aside
+     * while their rows are locked and deleted once the rows' deletion has committed.
+     *
+     * Photos are matched to files on where their file is inside the storage directory, as their
+     * filenames may be in different forms. A photo whose filename can't be resolved to a place in
+     * storage is taken to use every file with the same name, so those files are kept.
+     *
+     * @param filenames Filenames the files are listed under, i.e their paths relative to the
+     * storage directory, or the filenames of PhotoFile rows added before rows were kept under them
+     * @return Pair of the number of files deleted and the number of bytes freed
+     */
+    public CompletableFuture<Pair<Integer, Long>> deleteUnusedFiles(Collection<String> filenames) {
+        return supplyAsync(() -> {
+            // Where each file is in storage, keyed by the filename it was listed under
+            Map<String, String> storageKeys = new TreeMap<>();
+            for (String filename : filenames) {
+                storageKeys.put(filename, getRowStorageKey(filename));
+            }
+
+            // The rows the files are listed under, and the rows photos being added lock
+            Set<String> rows = new HashSet<>(storageKeys.keySet());
+            for (String storageKey : storageKeys.values()) {
+                if (storageKey != null) {
+                    rows.add(storageKey);
+                }
+            }
+
+            try (Transaction transaction = ebeanServer.beginTransaction()) {
+                lockFiles(rows);
+                Set<String> used = findUsedFiles(storageKeys.values());
+
+                Set<String> unusedRows = new HashSet<>();
+                Set<String> unusedFiles = new TreeSet<>();
+                for (Map.Entry<String, String> file : storageKeys.entrySet()) {
+                    String storageKey = file.getValue();
+                    if (storageKey == null) {
+                        // A row for a file outside storage protects nothing, so only it goes
+                        unusedRows.add(file.getKey());
+                    } else if (!used.contains(storageKey)) {
+                        unusedRows.add(file.getKey());
+                        unusedRows.add(storageKey);
+                        unusedFiles.add(storageKey);
+                    }
+                }
+
+                PhotoStorage.DeletedFiles deletedFiles = new PhotoStorage.DeletedFiles();
+                for (String row : unusedRows) {
+                    ebeanServer.delete(PhotoFile.class, row);
+                }
+                for (String storageKey : unusedFiles) {
+                    photoStorage.moveAside(PhotoStorage.storedPath(storageKey), deletedFiles);
+                }
+                return new Pair<>(unusedFiles.size(), commit(transaction, deletedFiles));
+            }
+        }, executionContext);
+    }
+
+    /**
+     * Gets where the file a PhotoFile row is kept under is inside the storage directory. Rows are
+     * kept under that path, but were once kept under the filenames of photos.
+     *
+     * @param filename Filename the row is kept under
+     * @return Path of the file relative to the storage directory, or null if the row isn't for a
+     * file in storage
+     */
+    private static String getRowStorageKey(String filename) {
+        String storageKey = PhotoStorage.storageKey(filename);
+        if (storageKey != null) {
+            return storageKey;
+        }
+        try {
+            Path path = Paths.get(filename).normalize();
+            return path.isAbsolute() || path.startsWith("..") || path.toString().isEmpty()
+                ? null : path.toString();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds which of some stored files are used by a photo, or might be because the photo's
+     * filename can't be resolved to a place in storage, in one query
+     *
+     * @param storageKeys Paths of the stored files relative to the storage directory
+     * @return Paths of the files that may be used
+     */
+    private Set<String> findUsedFiles(Collection<String> storageKeys) {
+        Map<String, Set<String>> storageKeysByName = new HashMap<>();
+        for (String storageKey : storageKeys) {
+            if (storageKey != null) {
+                storageKeysByName.computeIfAbsent(
+                    Paths.get(storageKey).getFileName().toString(), name -> new HashSet<>())
+                    .add(storageKey);
+            }
+        }
+        Set<String> used = new HashSet<>();
+        if (storageKeysByName.isEmpty()) {
+            return used;
+        }
+
+        Junction<Photo> names = ebeanServer.find(Photo.class)
+            .select("filename")
+            .where()
+            .or();
+        for (String name : storageKeysByName.keySet()) {
+            names.like("filename", "%" + name);
+        }
+        List<String> filenames = names.endOr().findSingleAttributeList();
+
+        for (String filename : filenames) {
+            String storageKey = PhotoStorage.storageKey(filename);
+            if (storageKey == null) {
+                used.addAll(storageKeysByName.getOrDefault(
+                    filename.substring(filename.lastIndexOf('/') + 1), Collections.emptySet()));
+            } else if (storageKeys.contains(storageKey)) {
+                used.add(storageKey);
+            }
+        }
+        return used;
+    }
+
     /**
      * For a list of photos, append the default assets path to them.
      *
@@ -281,8 +597,7 @@ public class PhotoRepository {
      */
     public PagedList<Photo> appendAssetsUrl(PagedList<Photo> photos) {
         for (Photo photo : photos.getList()) {
-            photo.filename = FRONTEND_APPEND_DIRECTORY + photo.filename;
-            photo.thumbnailFilename = FRONTEND_APPEND_DIRECTORY + photo.thumbnailFilename;
+            appendAssetsUrl(photo);
         }
         return photos;
     }
@@ -294,12 +609,23 @@ public class PhotoRepository {
      */
     public List<Photo> appendAssetsUrlNoPage(List<Photo> photos) {
         for (Photo photo : photos) {
-            photo.filename = FRONTEND_APPEND_DIRECTORY + photo.filename;
-            photo.thumbnailFilename = FRONTEND_APPEND_DIRECTORY + photo.thumbnailFilename;
+            appendAssetsUrl(photo);
         }
         return photos;
     }
 
+    /**
+     * Appends the default assets path to a photo. Until its thumbnail has been generated the
+     * original is used as the thumbnail.
+     *
+     * @param photo Photo to append path to
+     */
+    private void appendAssetsUrl(Photo photo) {
+        photo.thumbnailFilename = FRONTEND_APPEND_DIRECTORY
+            + (photo.thumbnailFilename == null ? photo.filename : photo.thumbnailFilename);
+        photo.filename = FRONTEND_APPEND_DIRECTORY + photo.filename;
+    }
+
     /**
      * Get photo object form db.
      *
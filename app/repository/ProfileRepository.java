@@ -12,8 +12,11 @@ import io.ebean.Query;
 import java.sql.Timestamp;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import models.FollowerDestination;
@@ -31,6 +34,9 @@ public class ProfileRepository {
     private final Expression SQL_FALSE = Expr.raw("false");
     private final Expression SQL_TRUE = Expr.raw("true");
 
+    // Called with the user id of each profile once it has been added or updated
+    private final List<Consumer<Long>> profileListeners = new CopyOnWriteArrayList<>();
+
     @Inject
     public ProfileRepository(EbeanConfig ebeanConfig, DatabaseExecutionContext executionContext) {
         this.ebeanServer = Ebean.getServer(ebeanConfig.defaultServer());
@@ -51,6 +57,7 @@ public class ProfileRepository {
     public CompletableFuture<Long> addProfile(Profile profile) {
         return supplyAsync(() -> {
             ebeanServer.insert(profile);
+            notifyProfileListeners(profile.userId);
             return profile.userId;
         }, executionContext);
     }
@@ -71,6 +78,22 @@ public class ProfileRepository {
             , executionContext);
     }
 
+    /**
+     * Gets all the profiles with some ids from the database in a single query. Ids with no
+     * profile are left out.
+     *
+     * @param userIds Unique IDs of profiles (owning users' ids) to retrieve
+     * @return List of profiles found
+     */
+    public CompletableFuture<List<Profile>> findIDs(Collection<Long> userIds) {
+        return supplyAsync(() ->
+                ebeanServer.find(Profile.class)
+                    .where()
+                    .idIn(userIds)
+                    .findList()
+            , executionContext);
+    }
+
     /**
      * Updates a profile on the database, ID must not have been changed though.
      *
@@ -80,10 +103,30 @@ public class ProfileRepository {
     public CompletableFuture<Long> updateProfile(Profile profile) {
         return supplyAsync(() -> {
             ebeanServer.update(profile);
+            notifyProfileListeners(profile.userId);
             return profile.userId;
         }, executionContext);
     }
 
+    /**
+     * Registers a listener to be told whenever a profile is added or updated, e.g to drop any
+     * copy of it they hold
+     *
+     * @param listener Consumer of the user id of the profile
+     */
+    public void addProfileListener(Consumer<Long> listener) {
+        profileListeners.add(listener);
+    }
+
+    /**
+     * Tells all profile listeners that a profile has changed
+     *
+     * @param userId User id of the profile
+     */
+    private void notifyProfileListeners(Long userId) {
+        profileListeners.forEach(listener -> listener.accept(userId));
+    }
+
     /**
      * Retrieves a profile even if it is soft deleted
      *
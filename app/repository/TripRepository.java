@@ -8,6 +8,7 @@ import io.ebean.Expr;
 import io.ebean.Expression;
 import io.ebean.PagedList;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import javax.inject.Inject;
@@ -146,6 +147,21 @@ public class TripRepository {
             , executionContext);
     }
 
+    /**
+     * Returns all trips with some IDs in a single query. Ids with no trip are left out.
+     *
+     * @param tripIds IDs of trips to return
+     * @return List of trips found
+     */
+    public CompletableFuture<List<Trip>> getTripsByIds(Collection<Long> tripIds) {
+        return supplyAsync(() ->
+                ebeanServer.find(Trip.class)
+                    .where()
+                    .idIn(tripIds)
+                    .findList()
+            , executionContext);
+    }
+
     /**
      * Returns a single trip as specified by its ID including delete trips
      *
@@ -6,11 +6,17 @@ import io.ebean.Ebean;
 import io.ebean.EbeanServer;
 import io.ebean.Expr;
 import io.ebean.PagedList;
+import io.ebean.Transaction;
+import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import models.FollowerUser;
@@ -19,6 +25,7 @@ import models.Taggable;
 import models.UsedTag;
 import models.User;
 import play.db.ebean.EbeanConfig;
+import util.objects.Pair;
 
 /**
  * A repository that executes database operations on the User table in a different execution
@@ -29,11 +36,21 @@ public class UserRepository {
 
     private final EbeanServer ebeanServer;
     private final DatabaseExecutionContext executionContext;
+    private final NewsFeedEventRepository newsFeedEventRepository;
+
+    // Called with each user follow (true) or unfollow (false) once it has been committed
+    private final List<BiConsumer<FollowerUser, Boolean>> followerListeners =
+        new CopyOnWriteArrayList<>();
+
+    // Called with the id of each user once they have been updated or deleted
+    private final List<Consumer<Long>> userListeners = new CopyOnWriteArrayList<>();
 
     @Inject
-    public UserRepository(EbeanConfig ebeanConfig, DatabaseExecutionContext executionContext) {
+    public UserRepository(EbeanConfig ebeanConfig, DatabaseExecutionContext executionContext,
+        NewsFeedEventRepository newsFeedEventRepository) {
         this.ebeanServer = Ebean.getServer(ebeanConfig.defaultServer());
         this.executionContext = executionContext;
+        this.newsFeedEventRepository = newsFeedEventRepository;
     }
 
     /**
@@ -118,6 +135,7 @@ public class UserRepository {
         return supplyAsync(() -> {
             ebeanServer.saveAll(updatedUser.usedTags);
             ebeanServer.update(updatedUser);
+            notifyUserListeners(updatedUser.id);
             return updatedUser.id;
         }, executionContext);
     }
@@ -144,9 +162,30 @@ public class UserRepository {
      * @return the number of rows that were deleted
      */
     public CompletableFuture<Integer> deleteUser(Long id) {
-        return supplyAsync(() ->
-                ebeanServer.delete(User.class, id)
-            , executionContext);
+        return supplyAsync(() -> {
+            int rows = ebeanServer.delete(User.class, id);
+            notifyUserListeners(id);
+            return rows;
+        }, executionContext);
+    }
+
+    /**
+     * Registers a listener to be told whenever a user is updated or deleted, e.g to drop any
+     * copy of them they hold
+     *
+     * @param listener Consumer of the id of the user
+     */
+    public void addUserListener(Consumer<Long> listener) {
+        userListeners.add(listener);
+    }
+
+    /**
+     * Tells all user listeners that a user has changed
+     *
+     * @param userId ID of the user
+     */
+    private void notifyUserListeners(Long userId) {
+        userListeners.forEach(listener -> listener.accept(userId));
     }
 
     /**
@@ -160,8 +199,10 @@ public class UserRepository {
      * @param newTaggable The new tagged object after this user's changes
      */
     public void updateUsedTags(User user, Taggable oldTaggable, Taggable newTaggable) {
-        user.updateUserTags(oldTaggable, newTaggable);
-        for (UsedTag usedTag : user.usedTags) {
+        // Works on its own copy, as the user given may be shared between requests
+        User found = ebeanServer.find(User.class, user.id);
+        found.updateUserTags(oldTaggable, newTaggable);
+        for (UsedTag usedTag : found.usedTags) {
             if (usedTag.tag != null && usedTag.tag.id == null) {
                 usedTag.tag = ebeanServer.find(Tag.class)
                     .where()
@@ -170,7 +211,8 @@ public class UserRepository {
                     .orElse(null);
             }
         }
-        ebeanServer.saveAll(user.usedTags);
+        ebeanServer.saveAll(found.usedTags);
+        notifyUserListeners(found.id);
     }
 
     /**
@@ -183,8 +225,10 @@ public class UserRepository {
      * @param taggable The original tagged object before this user's changes
      */
     public void updateUsedTags(User user, Taggable taggable) {
-        user.updateUserTags(taggable);
-        for (UsedTag usedTag : user.usedTags) {
+        // Works on its own copy, as the user given may be shared between requests
+        User found = ebeanServer.find(User.class, user.id);
+        found.updateUserTags(taggable);
+        for (UsedTag usedTag : found.usedTags) {
             if (usedTag.tag != null && usedTag.tag.id == null) {
                 usedTag.tag = ebeanServer.find(Tag.class)
                     .where()
@@ -193,7 +237,8 @@ public class UserRepository {
                     .orElse(null);
             }
         }
-        ebeanServer.saveAll(user.usedTags);
+        ebeanServer.saveAll(found.usedTags);
+        notifyUserListeners(found.id);
     }
 
     /**
@@ -214,28 +259,79 @@ public class UserRepository {
     }
 
     /**
-     * Inserts a follower follower pair
+     * Inserts a follower follower pair, and adds the followed user's events to the follower's
+     * news feed timeline
      *
      * @param followerUser the object to add
      * @return the guid of the inserted followerUser
      */
     public CompletableFuture<Long> insertFollower(FollowerUser followerUser) {
+        if (followerUser.followTime == null) {
+            followerUser.followTime = LocalDateTime.now();
+        }
         return supplyAsync(() -> {
-            ebeanServer.insert(followerUser);
+            try (Transaction transaction = ebeanServer.beginTransaction()) {
+                ebeanServer.insert(followerUser);
+                newsFeedEventRepository
+                    .addFollowedUserToTimeline(followerUser.followerId, followerUser.userId);
+                transaction.commit();
+            }
+            followerListeners.forEach(listener -> listener.accept(followerUser, true));
             return followerUser.guid;
         }, executionContext);
     }
 
     /**
-     * Deletes a user follower pair
+     * Deletes a user follower pair, and removes the unfollowed user's events from the follower's
+     * news feed timeline
      *
      * @param id guid of the FollowerUser to delete
      * @return the number of rows that were deleted
      */
     public CompletableFuture<Long> deleteFollower(Long id) {
-        return supplyAsync(() ->
-                Long.valueOf(ebeanServer.delete(FollowerUser.class, id))
-            , executionContext);
+        return supplyAsync(() -> {
+            try (Transaction transaction = ebeanServer.beginTransaction()) {
+                FollowerUser followerUser = ebeanServer.find(FollowerUser.class, id);
+                Long rows = Long.valueOf(ebeanServer.delete(FollowerUser.class, id));
+                if (followerUser != null) {
+                    newsFeedEventRepository
+                        .removeFollowedUserFromTimeline(followerUser.followerId,
+                            followerUser.userId);
+                }
+                transaction.commit();
+
+                if (followerUser != null && rows > 0) {
+                    followerListeners.forEach(listener -> listener.accept(followerUser, false));
+                }
+                return rows;
+            }
+        }, executionContext);
+    }
+
+    /**
+     * Registers a listener to be called with each user follow or unfollow, once it has been
+     * committed
+     *
+     * @param listener Called with the follow, and true if it was added or false if removed
+     */
+    public void addFollowerListener(BiConsumer<FollowerUser, Boolean> listener) {
+        followerListeners.add(listener);
+    }
+
+    /**
+     * Gets every user follow that has not been removed
+     *
+     * @return List of pairs of the followed user id and the time they were followed
+     */
+    public List<Pair<Long, LocalDateTime>> getAllFollows() {
+        List<Pair<Long, LocalDateTime>> follows = new ArrayList<>();
+        ebeanServer.createSqlQuery("SELECT user_id, follow_time FROM FollowerUser WHERE deleted = 0")
+            .findEachRow(((resultSet, rowNum) -> {
+                Timestamp followTime = resultSet.getTimestamp(2);
+                follows.add(new Pair<>(resultSet.getLong(1),
+                    followTime == null ? null : followTime.toLocalDateTime()));
+            }));
+        return follows;
     }
 
     /**
@@ -1,15 +1,22 @@
 package util;
 
 import com.auth0.jwt.JWT;
+import com.auth0.jwt.JWTCreator;
 import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.algorithms.Algorithm;
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.time.Duration;
 import java.util.Base64;
+import java.util.Date;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
@@ -21,12 +28,97 @@ import javax.crypto.spec.PBEKeySpec;
  */
 public class CryptoManager {
 
+    private static final String ISSUER = "TravelEA";
+
+    // Start of hashes that store the number of iterations they were created with
+    private static final String HASH_PREFIX = "pbkdf2$";
+
+    // Number of iterations of hashes that do not store it
+    private static final int LEGACY_ITERATIONS = 10000;
+
+    private static final int KEY_LENGTH = 256;
+
+    // Most verified tokens remembered per secret, before expired ones are cleared out
+    private static final int MAX_VERIFIED_TOKENS = 10000;
+
+    // How long a verified token without an expiry is remembered for, before checking it again
+    private static final long VERIFIED_TOKEN_TTL = Duration.ofMinutes(10).toMillis();
+
+    // Algorithm and verifier of each secret, as they are safe to reuse and costly to build
+    private static final Map<String, TokenVerifier> VERIFIERS = new ConcurrentHashMap<>();
+
+    /**
+     * Verifies tokens signed with a single secret, remembering the tokens it has verified so
+     * the same token sent again is not decoded and checked again until it expires
+     */
+    private static class TokenVerifier {
+
+        private final Algorithm algorithm;
+        private final JWTVerifier verifier;
+
+        // User id and expiry time of each token verified, keyed by the token itself. Hashing the
+        // token first would cost about half as much as checking its signature again
+        private final Map<String, VerifiedToken> verified = new ConcurrentHashMap<>();
+
+        private TokenVerifier(String secret) {
+            algorithm = Algorithm.HMAC256(secret);
+            verifier = JWT.require(algorithm).withIssuer(ISSUER).build();
+        }
+
+        private Long verify(String token) {
+            long now = System.currentTimeMillis();
+            VerifiedToken entry = verified.get(token);
+            if (entry != null) {
+                if (entry.expiresAt > now) {
+                    return entry.userId;
+                }
+                verified.remove(token);
+            }
+
+            DecodedJWT jwt = verifier.verify(token);
+            Long userId = jwt.getClaim("userId").asLong();
+            if (userId == null) {
+                return null;
+            }
+
+            // Tokens with an expiry are remembered until it, others for a short time
+            long expiresAt = now + VERIFIED_TOKEN_TTL;
+            if (jwt.getExpiresAt() != null) {
+                expiresAt = Math.min(expiresAt, jwt.getExpiresAt().getTime());
+            }
+            if (verified.size() >= MAX_VERIFIED_TOKENS) {
+                verified.values().removeIf(x -> x.expiresAt <= now);
+                if (verified.size() >= MAX_VERIFIED_TOKENS) {
+                    verified.clear();
+                }
+            }
+            verified.put(token, new VerifiedToken(userId, expiresAt));
+            return userId;
+        }
+    }
+
+    /**
+     * User id of a token that has been verified, and when it should be checked again
+     */
+    private static class VerifiedToken {
+
+        private final Long userId;
+        private final long expiresAt;
+
+        private VerifiedToken(Long userId, long expiresAt) {
+            this.userId = userId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
     private CryptoManager() {
         throw new IllegalStateException("Utility class");
     }
 
     /**
-     * Check if a password attempt matches the existing salted hash.
+     * Check if a password attempt matches the existing salted hash. The hash is checked with the
+     * number of iterations it was created with, so hashes created before the number of
+     * iterations was changed still match.
      *
      * @param passwordToCheck New password being attempted
      * @param salt Salt data associated with user account (In string format)
@@ -35,43 +127,57 @@ public class CryptoManager {
      */
     public static boolean checkPasswordMatch(String passwordToCheck, String salt,
         String existingHashedPassword) throws NoSuchAlgorithmException, InvalidKeySpecException {
-        return checkPasswordMatch(passwordToCheck, Base64.getDecoder().decode(salt),
-            existingHashedPassword);
-    }
+        int iterations = LEGACY_ITERATIONS;
+        String existingHash = existingHashedPassword;
+
+        // Hashes stored as prefix$iterations$hash, older hashes as just the hash
+        if (existingHashedPassword.startsWith(HASH_PREFIX)) {
+            String[] parts = existingHashedPassword.split("\\$");
+            if (parts.length != 3) {
+                return false;
+            }
+            try {
+                iterations = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            existingHash = parts[2];
+        }
 
-    /**
-     * Check if a password attempt matches the existing salted hash.
-     *
-     * @param passwordToCheck New password being attempted
-     * @param salt Salt data associated with user account
-     * @param existingHashedPassword Existing password that has already been salted and hashed
-     * @return True if passwords match, false otherwise
-     */
-    private static boolean checkPasswordMatch(String passwordToCheck, byte[] salt,
-        String existingHashedPassword) throws NoSuchAlgorithmException, InvalidKeySpecException {
         // First hash the given password with salt
-        String newHashedPassword = hashPassword(passwordToCheck, salt);
+        String newHash = hash(passwordToCheck, Base64.getDecoder().decode(salt), iterations);
 
-        // Now return if this matches the existing hashed password
-        return existingHashedPassword.equals(newHashedPassword);
+        // Now return if this matches the existing hashed password, in constant time
+        return MessageDigest.isEqual(existingHash.getBytes(StandardCharsets.UTF_8),
+            newHash.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
-     * Hash a password with a given salt.
+     * Hash a password with a given salt. The number of iterations is stored along with the hash,
+     * so it can be checked after the number used for new hashes has changed.
      *
      * @param password Password to hash
      * @param salt Salt for password
+     * @param iterations Number of PBKDF2 iterations, the more the slower to hash and to crack
      * @return Salted and hashed password
      */
-    public static String hashPassword(String password, byte[] salt)
+    public static String hashPassword(String password, byte[] salt, int iterations)
         throws NoSuchAlgorithmException, InvalidKeySpecException {
-        // Define iterations and key length
-        Integer iterations = 10000;
-        Integer keyLength = 256;
+        return HASH_PREFIX + iterations + "$" + hash(password, salt, iterations);
+    }
 
-        // Now salt and hash the password
+    /**
+     * Salts and hashes a password with PBKDF2
+     *
+     * @param password Password to hash
+     * @param salt Salt for password
+     * @param iterations Number of iterations
+     * @return Base64 encoded hash
+     */
+    private static String hash(String password, byte[] salt, int iterations)
+        throws NoSuchAlgorithmException, InvalidKeySpecException {
         SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
-        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyLength);
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_LENGTH);
         SecretKey key = skf.generateSecret(spec);
         byte[] res = key.getEncoded();
         return Base64.getEncoder().encodeToString(res);
@@ -100,34 +206,44 @@ public class CryptoManager {
     }
 
     /**
-     * Generate JSON web token.
+     * Generate JSON web token that never expires.
      *
      * @return JWT
      */
     public static String createToken(Long userId, String secret) {
-        Algorithm algorithm;
-        algorithm = Algorithm.HMAC256(secret);
-        return JWT.create()
-            .withIssuer("TravelEA")
-            .withClaim("userId", userId)
-            .sign(algorithm);
+        return createToken(userId, secret, null);
     }
 
     /**
-     * Verifies the token has been generated legitimately and gets the user id.
+     * Generate JSON web token.
+     *
+     * @param userId ID of user the token is for
+     * @param secret The password from config
+     * @param validFor How long the token is valid for, null for it to never expire
+     * @return JWT
+     */
+    public static String createToken(Long userId, String secret, Duration validFor) {
+        JWTCreator.Builder builder = JWT.create()
+            .withIssuer(ISSUER)
+            .withClaim("userId", userId);
+        if (validFor != null) {
+            builder.withExpiresAt(new Date(System.currentTimeMillis() + validFor.toMillis()));
+        }
+        return builder.sign(VERIFIERS.computeIfAbsent(secret, TokenVerifier::new).algorithm);
+    }
+
+    /**
+     * Verifies the token has been generated legitimately and has not expired, and gets the user
+     * id. Tokens verified recently are remembered, so verifying the same token again is just a
+     * lookup.
      *
      * @param token The token to verify
      * @param secret The password from config
-     * @return The user's id
+     * @return The user's id, or null if the token is not valid
      */
     public static Long verifyToken(String token, String secret) {
         try {
-            Algorithm algorithm = Algorithm.HMAC256(secret);
-            JWTVerifier verifier = JWT.require(algorithm)
-                .withIssuer("TravelEA")
-                .build();
-            DecodedJWT jwt = verifier.verify(token);
-            return jwt.getClaim("userId").asLong();
+            return VERIFIERS.computeIfAbsent(secret, TokenVerifier::new).verify(token);
         } catch (JWTVerificationException e) {
             return null;
         }
@@ -0,0 +1,337 @@
+package util;
+
+import com.typesafe.config.Config;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import models.Destination;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import play.inject.ApplicationLifecycle;
+import repository.DestinationRepository;
+import util.objects.Pair;
+
+/**
+ * Finds and merges duplicate public destinations across the whole table, e.g after public
+ * destinations have been imported in bulk. Adding, editing or publishing a destination only merges
+ * the duplicates of that one destination, so duplicates among imported destinations are never
+ * found that way.
+ *
+ * Destinations are grouped by the grid cell they are in. Each cell is compared with its own and
+ * its neighbouring cells' destinations on a fork/join pool, using sorted neighbourhood blocking:
+ * the destinations are sorted by name, and each is only compared with the few either side of it.
+ * Each destination is merged into the oldest destination it is directly similar to, so a chain of
+ * similar destinations isn't merged into one whose ends aren't similar. Groups are merged in
+ * batched transactions.
+ */
+@Singleton
+public class DestinationDeduplicator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DestinationDeduplicator.class);
+
+    // Orders destinations by name, ignoring case, then by id so the order is total
+    private static final Comparator<Destination> NAME_ORDER = Comparator
+        .comparing((Destination destination) -> destination.name, String.CASE_INSENSITIVE_ORDER)
+        .thenComparing(destination -> destination.id);
+
+    private final DestinationRepository destinationRepository;
+
+    // Number of destinations either side of each one in name order that it is compared with
+    private final int window;
+
+    // Number of groups of duplicates merged in each transaction
+    private final int batchSize;
+
+    private final ForkJoinPool pool;
+
+    // Whether a job is running, so only one runs at once
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    // Progress of the current or last job
+    private volatile LocalDateTime startedAt = null;
+    private volatile LocalDateTime finishedAt = null;
+    private volatile long cellCount = 0;
+    private final AtomicLong cellsCompared = new AtomicLong();
+    private final AtomicLong comparisons = new AtomicLong();
+    private final AtomicLong duplicatesFound = new AtomicLong();
+    private final AtomicLong duplicatesMerged = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param destinationRepository Instance of DestinationRepository
+     * @param config Application config containing the deduplication settings
+     * @param lifecycle Application lifecycle, used to stop the pool on shutdown
+     */
+    @Inject
+    public DestinationDeduplicator(DestinationRepository destinationRepository, Config config,
+        ApplicationLifecycle lifecycle) {
+        this.destinationRepository = destinationRepository;
+        this.window = config.getInt("destinations.dedup.window");
+        this.batchSize = config.getInt("destinations.dedup.batchSize");
+        this.pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+        lifecycle.addStopHook(() -> {
+            pool.shutdownNow();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Starts finding and merging every duplicate public destination in the background, unless a
+     * job is already running
+     *
+     * @param ownerId Id of the user destinations are transferred to when merged into
+     * @return True if the job was started, false if one is already running
+     */
+    public boolean start(Long ownerId) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+
+        startedAt = LocalDateTime.now();
+        finishedAt = null;
+        cellCount = 0;
+        cellsCompared.set(0);
+        comparisons.set(0);
+        duplicatesFound.set(0);
+        duplicatesMerged.set(0);
+
+        CompletableFuture.runAsync(() -> deduplicate(ownerId), pool)
+            .whenComplete((result, error) -> {
+                if (error != null) {
+                    LOGGER.error("Destination deduplication failed", error);
+                }
+                finishedAt = LocalDateTime.now();
+                running.set(false);
+                LOGGER.info("Destination deduplication merged {} of {} duplicates found in {} "
+                    + "comparisons", duplicatesMerged.get(), duplicatesFound.get(),
+                    comparisons.get());
+            });
+        return true;
+    }
+
+    /**
+     * Gets whether a job is running
+     *
+     * @return True if a job is running
+     */
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Gets when the current or last job started
+     *
+     * @return Time the job started, or null if there hasn't been one
+     */
+    public LocalDateTime getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * Gets when the last job finished
+     *
+     * @return Time the job finished, or null if it is still running or there hasn't been one
+     */
+    public LocalDateTime getFinishedAt() {
+        return finishedAt;
+    }
+
+    /**
+     * Gets the number of grid cells with public destinations in them
+     *
+     * @return Number of cells
+     */
+    public long getCellCount() {
+        return cellCount;
+    }
+
+    /**
+     * Gets the number of cells whose destinations have been compared so far
+     *
+     * @return Number of cells compared
+     */
+    public long getCellsCompared() {
+        return cellsCompared.get();
+    }
+
+    /**
+     * Gets the number of pairs of destinations compared so far
+     *
+     * @return Number of comparisons
+     */
+    public long getComparisons() {
+        return comparisons.get();
+    }
+
+    /**
+     * Gets the number of destinations found to be duplicates of another so far
+     *
+     * @return Number of duplicates found
+     */
+    public long getDuplicatesFound() {
+        return duplicatesFound.get();
+    }
+
+    /**
+     * Gets the number of duplicates merged and deleted so far
+     *
+     * @return Number of duplicates merged
+     */
+    public long getDuplicatesMerged() {
+        return duplicatesMerged.get();
+    }
+
+    /**
+     * Gets how many pairs of destinations the current or last job compared per second
+     *
+     * @return Comparisons per second, or 0 if there hasn't been a job
+     */
+    public double getComparisonsPerSecond() {
+        LocalDateTime started = startedAt;
+        if (started == null) {
+            return 0;
+        }
+        LocalDateTime finished = finishedAt == null ? LocalDateTime.now() : finishedAt;
+        long millis = Math.max(1, Duration.between(started, finished).toMillis());
+        return comparisons.get() * 1000.0 / millis;
+    }
+
+    /**
+     * Finds every group of duplicate public destinations and merges each into its oldest
+     */
+    private void deduplicate(Long ownerId) {
+        List<Destination> destinations = destinationRepository.getPublicDestinationLocations()
+            .join();
+
+        // Group the destinations by grid cell
+        Map<Long, List<Destination>> cells = new HashMap<>();
+        for (Destination destination : destinations) {
+            cells.computeIfAbsent(getCell(destination), cell -> new ArrayList<>())
+                .add(destination);
+        }
+        cellCount = cells.size();
+
+        // Compare the cells in parallel on this pool
+        List<Pair<Long, Long>> duplicates = cells.keySet().parallelStream()
+            .flatMap(cell -> findDuplicates(cell, cells).stream())
+            .collect(Collectors.toList());
+
+        // Each group is the destinations directly similar to its smallest, i.e oldest, id. Ids are
+        // taken in order, so every destination is merged into the oldest one similar to it that
+        // isn't itself merged into another
+        Map<Long, List<Long>> similar = new TreeMap<>();
+        for (Pair<Long, Long> duplicate : duplicates) {
+            similar.computeIfAbsent(duplicate.getKey(), key -> new ArrayList<>())
+                .add(duplicate.getValue());
+        }
+        Map<Long, List<Long>> merges = new TreeMap<>();
+        Set<Long> merged = new HashSet<>();
+        for (Map.Entry<Long, List<Long>> group : similar.entrySet()) {
+            Long root = group.getKey();
+            if (merged.contains(root)) {
+                continue;
+            }
+            for (Long id : group.getValue()) {
+                if (merged.add(id)) {
+                    merges.computeIfAbsent(root, key -> new ArrayList<>()).add(id);
+                }
+            }
+        }
+        duplicatesFound.set(merges.values().stream().mapToLong(List::size).sum());
+
+        Map<Long, List<Long>> batch = new LinkedHashMap<>();
+        for (Map.Entry<Long, List<Long>> merge : merges.entrySet()) {
+            batch.put(merge.getKey(), merge.getValue());
+            if (batch.size() >= batchSize) {
+                duplicatesMerged.addAndGet(
+                    destinationRepository.mergeDestinations(batch, ownerId).join());
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            duplicatesMerged.addAndGet(
+                destinationRepository.mergeDestinations(batch, ownerId).join());
+        }
+    }
+
+    /**
+     * Finds the duplicates of the destinations in one cell. The destinations in the cell and its
+     * neighbours are sorted by name, and each destination in the cell is compared with the few
+     * either side of it in that order. Each pair is only reported by the cell of its smaller id.
+     *
+     * @return Pairs of ids of duplicate destinations, smaller id first
+     */
+    private List<Pair<Long, Long>> findDuplicates(Long cell,
+        Map<Long, List<Destination>> cells) {
+        int cellLat = (int) (cell >> 32);
+        int cellLng = (int) (long) cell;
+        List<Destination> neighbourhood = new ArrayList<>();
+        for (int latCell = cellLat - 1; latCell <= cellLat + 1; latCell++) {
+            for (int lngCell = cellLng - 1; lngCell <= cellLng + 1; lngCell++) {
+                neighbourhood.addAll(cells.getOrDefault(getCell(latCell, lngCell),
+                    Collections.emptyList()));
+            }
+        }
+        neighbourhood.sort(NAME_ORDER);
+
+        List<Pair<Long, Long>> duplicates = new ArrayList<>();
+        long compared = 0;
+        for (int i = 0; i < neighbourhood.size(); i++) {
+            Destination destination = neighbourhood.get(i);
+            if (!getCell(destination).equals(cell)) {
+                continue;
+            }
+
+            // Compare with the destinations either side of it in name order
+            int from = Math.max(0, i - window);
+            int to = Math.min(neighbourhood.size() - 1, i + window);
+            for (int j = from; j <= to; j++) {
+                Destination other = neighbourhood.get(j);
+                if (destination.id < other.id) {
+                    compared++;
+                    if (DestinationRepository.isSimilar(destination, other)) {
+                        duplicates.add(new Pair<>(destination.id, other.id));
+                    }
+                }
+            }
+        }
+
+        comparisons.addAndGet(compared);
+        cellsCompared.incrementAndGet();
+        return duplicates;
+    }
+
+    /**
+     * Gets the grid cell a destination is in
+     */
+    private static Long getCell(Destination destination) {
+        return getCell(DestinationRepository.getGridCell(destination.latitude),
+            DestinationRepository.getGridCell(destination.longitude));
+    }
+
+    /**
+     * Gets the key of a grid cell, with its latitude cell in the high half and longitude cell in
+     * the low half
+     */
+    private static Long getCell(int latCell, int lngCell) {
+        return ((long) latCell << 32) | (lngCell & 0xffffffffL);
+    }
+}
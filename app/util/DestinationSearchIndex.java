@@ -0,0 +1,542 @@
+package util;
+
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import com.typesafe.config.Config;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import models.Destination;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import play.inject.ApplicationLifecycle;
+import repository.DatabaseExecutionContext;
+import repository.DestinationRepository;
+import scala.concurrent.duration.Duration;
+import util.objects.GeoArea;
+import util.objects.Pair;
+
+/**
+ * Serves the destination search from an index held in memory, rather than matching every
+ * destination's name, type, country and district against the search in the database. Each
+ * destination is indexed under every trigram (three character run) of those fields, so the
+ * destinations containing a search are found by intersecting the destinations under each of the
+ * search's trigrams. Searches too short to have a trigram walk the destinations in sorted order
+ * instead, as do searches with no text. Every sort order the search offers is kept in memory too.
+ *
+ * Destinations are also kept in a grid over their coordinates, with the rows and the cells in each
+ * row sorted, so the destinations near a point or in a box are found by looking up the range of
+ * rows the area spans, then the range of cells in each of those rows.
+ *
+ * The index is kept current by reloading destinations as the repository changes them, and is
+ * rebuilt from the database on a schedule to pick up anything changed some other way, e.g a
+ * country being renamed. Searches wait for the destinations changed before them to be reloaded,
+ * so a user's search sees the changes they have just made. Until the first build is done,
+ * searches go to the database.
+ */
+@Singleton
+public class DestinationSearchIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DestinationSearchIndex.class);
+
+    // Length of the runs of characters destinations are indexed under
+    private static final int GRAM_LENGTH = 3;
+
+    // Size of the grid cells destinations are kept in, in degrees (0.1 = about 11km)
+    private static final double GRID_CELL_SIZE = 0.1;
+
+    // Orders destinations found near a point by distance, closest first, then by id
+    private static final Comparator<Pair<Long, Double>> DISTANCE_ORDER = Comparator
+        .comparing((Pair<Long, Double> x) -> x.getValue())
+        .thenComparing(Pair::getKey);
+
+    // Orders for each column destinations can be sorted by, as in the database: strings ignore
+    // case, and nulls come first. Ties are broken by id so each order is total
+    private static final Map<String, Comparator<Entry>> SORT_ORDERS = new HashMap<>();
+
+    static {
+        SORT_ORDERS.put("id", Comparator.comparing(entry -> entry.id));
+        SORT_ORDERS.put("user_id", sortOrder(entry -> entry.userId, Comparator.naturalOrder()));
+        SORT_ORDERS.put("name", sortOrder(entry -> entry.name, String.CASE_INSENSITIVE_ORDER));
+        SORT_ORDERS.put("type", sortOrder(entry -> entry.type, String.CASE_INSENSITIVE_ORDER));
+        SORT_ORDERS.put("district",
+            sortOrder(entry -> entry.district, String.CASE_INSENSITIVE_ORDER));
+        SORT_ORDERS.put("latitude", sortOrder(entry -> entry.latitude, Comparator.naturalOrder()));
+        SORT_ORDERS.put("longitude",
+            sortOrder(entry -> entry.longitude, Comparator.naturalOrder()));
+        SORT_ORDERS.put("country.name",
+            sortOrder(entry -> entry.countryName, String.CASE_INSENSITIVE_ORDER));
+    }
+
+    private final DestinationRepository destinationRepository;
+
+    // Index of every destination, or null until the first build is done. Guarded by lock
+    private Index index = null;
+
+    // Searches share the index, changes to it are made one at a time with no searches running
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Reloads of changed destinations, chained so they are applied in the order they were made.
+    // Guarded by reloadLock
+    private CompletableFuture<Void> reloads = CompletableFuture.completedFuture(null);
+    private final Object reloadLock = new Object();
+
+    // Destinations changed while a rebuild is running, which are reloaded once it is done in case
+    // the rebuild read them before they changed. Guarded by itself, along with rebuilding
+    private final Set<Long> changedDuringRebuild = new HashSet<>();
+    private boolean rebuilding = false;
+
+    /**
+     * Searchable fields of one destination. Never changed, a changed destination is replaced.
+     */
+    private static class Entry {
+
+        final Long id;
+        final Long userId;
+        final boolean isPublic;
+        final String name;
+        final String type;
+        final String district;
+        final String countryName;
+        final Double latitude;
+        final Double longitude;
+
+        // Lower case copies of the fields searched, leaving out any that are null
+        final List<String> searchFields = new ArrayList<>();
+
+        Entry(Destination destination) {
+            id = destination.id;
+            userId = destination.user == null ? null : destination.user.id;
+            isPublic = destination.isPublic;
+            name = destination.name;
+            type = destination.destType;
+            district = destination.district;
+            countryName = destination.country == null ? null : destination.country.name;
+            latitude = destination.latitude;
+            longitude = destination.longitude;
+
+            for (String field : new String[]{name, type, countryName, district}) {
+                if (field != null) {
+                    searchFields.add(field.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+
+        /**
+         * Checks whether any searched field contains a lower case search, or the search is empty
+         */
+        boolean matches(String search) {
+            return search.isEmpty()
+                || searchFields.stream().anyMatch(field -> field.contains(search));
+        }
+    }
+
+    /**
+     * Every destination, the destinations under each trigram, the destinations in each sort
+     * order, and the grid of destinations by row then column
+     */
+    private static class Index {
+
+        final Map<Long, Entry> entries = new HashMap<>();
+        final Map<Long, Set<Long>> postings = new HashMap<>();
+        final Map<String, TreeSet<Entry>> orders = new HashMap<>();
+        final TreeMap<Integer, TreeMap<Integer, Set<Entry>>> grid = new TreeMap<>();
+
+        Index() {
+            SORT_ORDERS.forEach((sortBy, order) -> orders.put(sortBy, new TreeSet<>(order)));
+        }
+
+        void put(Entry entry) {
+            remove(entry.id);
+            entries.put(entry.id, entry);
+            for (Long gram : grams(entry.searchFields)) {
+                postings.computeIfAbsent(gram, key -> new HashSet<>()).add(entry.id);
+            }
+            orders.values().forEach(order -> order.add(entry));
+            if (entry.latitude != null && entry.longitude != null) {
+                grid.computeIfAbsent(gridCell(entry.latitude), row -> new TreeMap<>())
+                    .computeIfAbsent(gridCell(entry.longitude), column -> new HashSet<>())
+                    .add(entry);
+            }
+        }
+
+        void remove(Long id) {
+            Entry entry = entries.remove(id);
+            if (entry == null) {
+                return;
+            }
+            for (Long gram : grams(entry.searchFields)) {
+                Set<Long> ids = postings.get(gram);
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+            orders.values().forEach(order -> order.remove(entry));
+            if (entry.latitude != null && entry.longitude != null) {
+                TreeMap<Integer, Set<Entry>> row = grid.get(gridCell(entry.latitude));
+                Set<Entry> cell = row.get(gridCell(entry.longitude));
+                cell.remove(entry);
+                if (cell.isEmpty()) {
+                    row.remove(gridCell(entry.longitude));
+                    if (row.isEmpty()) {
+                        grid.remove(gridCell(entry.latitude));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gets the destinations in the grid cells an area's box overlaps
+         */
+        List<Entry> inBox(GeoArea area) {
+            List<Entry> found = new ArrayList<>();
+            int west = gridCell(area.getWest());
+            int east = gridCell(area.getEast());
+            for (TreeMap<Integer, Set<Entry>> row : grid
+                .subMap(gridCell(area.getSouth()), true, gridCell(area.getNorth()), true)
+                .values()) {
+                if (area.crossesAntimeridian()) {
+                    row.tailMap(west, true).values().forEach(found::addAll);
+                    row.headMap(east, true).values().forEach(found::addAll);
+                } else {
+                    row.subMap(west, true, east, true).values().forEach(found::addAll);
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Gets the destinations under every trigram of a search, starting from the trigram with
+         * the fewest
+         */
+        Set<Long> candidates(String search) {
+            List<Set<Long>> matching = new ArrayList<>();
+            for (Long gram : grams(Collections.singletonList(search))) {
+                Set<Long> ids = postings.get(gram);
+                if (ids == null) {
+                    return Collections.emptySet();
+                }
+                matching.add(ids);
+            }
+            matching.sort(Comparator.comparingInt(Set::size));
+
+            Set<Long> candidates = new HashSet<>(matching.get(0));
+            for (Set<Long> ids : matching.subList(1, matching.size())) {
+                candidates.retainAll(ids);
+            }
+            return candidates;
+        }
+    }
+
+    /**
+     * Constructor which starts building the index, and the schedule that rebuilds it
+     *
+     * @param destinationRepository Instance of DestinationRepository
+     * @param config Application config containing the search settings
+     * @param actorSystem Actor system used to schedule the rebuilds
+     * @param executionContext Database execution context the rebuilds run on
+     * @param lifecycle Application lifecycle, used to stop the schedule on shutdown
+     */
+    @Inject
+    public DestinationSearchIndex(DestinationRepository destinationRepository, Config config,
+        ActorSystem actorSystem, DatabaseExecutionContext executionContext,
+        ApplicationLifecycle lifecycle) {
+        this.destinationRepository = destinationRepository;
+
+        destinationRepository.addDestinationListener(this::onChange);
+
+        long interval = config.getDuration("destinations.search.rebuildInterval",
+            TimeUnit.MILLISECONDS);
+        Cancellable rebuildSchedule = actorSystem.scheduler().schedule(
+            Duration.create(0, TimeUnit.MILLISECONDS),
+            Duration.create(interval, TimeUnit.MILLISECONDS),
+            this::rebuild,
+            executionContext);
+
+        lifecycle.addStopHook(() -> {
+            rebuildSchedule.cancel();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Gets a page of the destinations visible to a user that match a search, with the total number
+     * of pages. Searches the same fields, and sorts by the same columns, as
+     * DestinationRepository.getPagedDestinations, which is used until the index is built.
+     *
+     * @param userId Id of the user searching
+     * @param searchQuery Text to search the name, type, country and district for, or null
+     * @param onlyGetMine Whether to only get the user's own destinations, rather than theirs and
+     * public ones
+     * @param sortBy Column to sort by
+     * @param ascending Whether to sort ascending
+     * @param pageNum Page number to get
+     * @param pageSize Number of destinations per page
+     * @return Pair of the destinations on the page, and the total number of pages
+     */
+    public CompletableFuture<Pair<List<Destination>, Integer>> search(Long userId,
+        String searchQuery, Boolean onlyGetMine, String sortBy, Boolean ascending,
+        Integer pageNum, Integer pageSize) {
+        return pendingReloads().thenCompose(x -> searchIndex(userId, searchQuery, onlyGetMine,
+            sortBy, ascending, pageNum, pageSize));
+    }
+
+    /**
+     * Searches the index, or the database if it isn't built yet
+     */
+    private CompletableFuture<Pair<List<Destination>, Integer>> searchIndex(Long userId,
+        String searchQuery, Boolean onlyGetMine, String sortBy, Boolean ascending,
+        Integer pageNum, Integer pageSize) {
+        String search = searchQuery == null ? "" : searchQuery.toLowerCase(Locale.ROOT);
+        Predicate<Entry> visible = onlyGetMine
+            ? entry -> userId.equals(entry.userId)
+            : entry -> entry.isPublic || userId.equals(entry.userId);
+        int firstRow = (pageNum - 1) * pageSize;
+
+        List<Long> page = new ArrayList<>();
+        int count = 0;
+        lock.readLock().lock();
+        try {
+            if (index == null) {
+                return destinationRepository.getPagedDestinations(userId, searchQuery,
+                    onlyGetMine, sortBy, ascending, pageNum, pageSize)
+                    .thenApply(destinations -> new Pair<>(destinations.getList(),
+                        destinations.getTotalPageCount()));
+            }
+
+            String order = SORT_ORDERS.containsKey(sortBy) ? sortBy : "id";
+            if (search.length() < GRAM_LENGTH) {
+                // Walk the destinations in order, keeping those on the page
+                NavigableSet<Entry> entries = index.orders.get(order);
+                for (Entry entry : ascending ? entries : entries.descendingSet()) {
+                    if (visible.test(entry) && entry.matches(search)) {
+                        if (count >= firstRow && page.size() < pageSize) {
+                            page.add(entry.id);
+                        }
+                        count++;
+                    }
+                }
+            } else {
+                Comparator<Entry> comparator = SORT_ORDERS.get(order);
+                List<Entry> matches = index.candidates(search).stream()
+                    .map(index.entries::get)
+                    .filter(entry -> visible.test(entry) && entry.matches(search))
+                    .sorted(ascending ? comparator : comparator.reversed())
+                    .collect(Collectors.toList());
+                count = matches.size();
+                matches.stream()
+                    .skip(Math.max(0, firstRow))
+                    .limit(pageSize)
+                    .forEach(entry -> page.add(entry.id));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        int pageCount = (count + pageSize - 1) / pageSize;
+        return destinationRepository.getDestinationsInOrder(page)
+            .thenApply(destinations -> new Pair<>(destinations, pageCount));
+    }
+
+    /**
+     * Gets a page of the destinations visible to a user in an area, closest to its centre first,
+     * with the total number of pages. Until the index is built they are found in the database.
+     *
+     * @param userId Id of the user searching
+     * @param area Circle or bounding box to find destinations in
+     * @param pageNum Page number to get
+     * @param pageSize Number of destinations per page
+     * @return Pair of the destinations on the page, and the total number of pages
+     */
+    public CompletableFuture<Pair<List<Destination>, Integer>> nearby(Long userId, GeoArea area,
+        Integer pageNum, Integer pageSize) {
+        return pendingReloads().thenCompose(x -> nearbyIndex(userId, area, pageNum, pageSize));
+    }
+
+    /**
+     * Finds the destinations in an area in the index, or the database if it isn't built yet
+     */
+    private CompletableFuture<Pair<List<Destination>, Integer>> nearbyIndex(Long userId,
+        GeoArea area, Integer pageNum, Integer pageSize) {
+        List<Entry> inBox;
+        lock.readLock().lock();
+        try {
+            if (index == null) {
+                return destinationRepository.getSearchableDestinationsInBox(userId,
+                    area.getSouth(), area.getNorth(), area.getWest(), area.getEast())
+                    .thenCompose(destinations -> nearbyPage(destinations.stream()
+                        .map(Entry::new)
+                        .collect(Collectors.toList()), userId, area, pageNum, pageSize));
+            }
+            inBox = index.inBox(area);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return nearbyPage(inBox, userId, area, pageNum, pageSize);
+    }
+
+    /**
+     * Orders the visible destinations actually in an area by distance, and loads the page asked
+     * for
+     */
+    private CompletableFuture<Pair<List<Destination>, Integer>> nearbyPage(List<Entry> inBox,
+        Long userId, GeoArea area, Integer pageNum, Integer pageSize) {
+        List<Pair<Long, Double>> matches = inBox.stream()
+            .filter(entry -> entry.isPublic || userId.equals(entry.userId))
+            .filter(entry -> entry.latitude != null && entry.longitude != null
+                && area.contains(entry.latitude, entry.longitude))
+            .map(entry -> new Pair<>(entry.id, area.distanceTo(entry.latitude, entry.longitude)))
+            .sorted(DISTANCE_ORDER)
+            .collect(Collectors.toList());
+
+        List<Long> page = matches.stream()
+            .skip(Math.max(0, (pageNum - 1) * pageSize))
+            .limit(pageSize)
+            .map(Pair::getKey)
+            .collect(Collectors.toList());
+        int pageCount = (matches.size() + pageSize - 1) / pageSize;
+        return destinationRepository.getDestinationsInOrder(page)
+            .thenApply(destinations -> new Pair<>(destinations, pageCount));
+    }
+
+    /**
+     * Builds the index again from every destination in the database, then swaps it in. The old
+     * index keeps serving searches until then. Runs on a schedule, but can be called at any time.
+     */
+    public synchronized void rebuild() {
+        synchronized (changedDuringRebuild) {
+            rebuilding = true;
+            changedDuringRebuild.clear();
+        }
+
+        try {
+            Index built = new Index();
+            for (Destination destination : destinationRepository.getSearchableDestinations()) {
+                built.put(new Entry(destination));
+            }
+
+            lock.writeLock().lock();
+            try {
+                index = built;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to rebuild destination search index", e);
+        } finally {
+            Set<Long> changed;
+            synchronized (changedDuringRebuild) {
+                rebuilding = false;
+                changed = new HashSet<>(changedDuringRebuild);
+            }
+            if (!changed.isEmpty()) {
+                reload(changed);
+            }
+        }
+    }
+
+    /**
+     * Reloads destinations the repository has changed
+     */
+    private void onChange(Collection<Long> ids) {
+        synchronized (changedDuringRebuild) {
+            if (rebuilding) {
+                changedDuringRebuild.addAll(ids);
+            }
+        }
+        reload(ids);
+    }
+
+    /**
+     * Loads some destinations from the database once every earlier reload is done, and puts them
+     * in the index in place of their old entries. Destinations no longer found are removed.
+     */
+    private void reload(Collection<Long> ids) {
+        Set<Long> reloading = new HashSet<>(ids);
+        synchronized (reloadLock) {
+            reloads = reloads
+                .thenCompose(x -> destinationRepository.getSearchableDestinations(reloading))
+                .thenAccept(destinations -> {
+                    lock.writeLock().lock();
+                    try {
+                        if (index != null) {
+                            reloading.forEach(index::remove);
+                            destinations.forEach(destination ->
+                                index.put(new Entry(destination)));
+                        }
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                })
+                .exceptionally(e -> {
+                    LOGGER.error("Failed to reload destinations {} into search index", reloading,
+                        e);
+                    return null;
+                });
+        }
+    }
+
+    /**
+     * Gets a future completed once every reload started so far is done. Repositories notify their
+     * listeners before the futures of their changes complete, so this includes every change the
+     * caller has seen complete.
+     */
+    private CompletableFuture<Void> pendingReloads() {
+        synchronized (reloadLock) {
+            return reloads;
+        }
+    }
+
+    /**
+     * Gets the trigrams of some lower case strings, each packed into a long
+     */
+    private static Set<Long> grams(List<String> fields) {
+        Set<Long> grams = new HashSet<>();
+        for (String field : fields) {
+            for (int i = 0; i + GRAM_LENGTH <= field.length(); i++) {
+                long gram = 0;
+                for (int j = i; j < i + GRAM_LENGTH; j++) {
+                    gram = (gram << Character.SIZE) | field.charAt(j);
+                }
+                grams.add(gram);
+            }
+        }
+        return grams;
+    }
+
+    /**
+     * Gets the grid row or column a coordinate is in
+     */
+    private static int gridCell(double coordinate) {
+        return (int) Math.floor(coordinate / GRID_CELL_SIZE);
+    }
+
+    /**
+     * Builds a sort order on one column, with nulls first and ties broken by id
+     */
+    private static <T> Comparator<Entry> sortOrder(Function<Entry, T> column,
+        Comparator<? super T> order) {
+        return Comparator.comparing(column, Comparator.nullsFirst(order))
+            .thenComparing(entry -> entry.id);
+    }
+}
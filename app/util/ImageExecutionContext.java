@@ -0,0 +1,22 @@
+package util;
+
+import akka.actor.ActorSystem;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import play.libs.concurrent.CustomExecutionContext;
+
+/**
+ * Custom execution context for decoding, scaling and encoding images. This is CPU bound work, so
+ * it runs on one pool sized to the number of cores, shared by every request, rather than on the
+ * rendering or database thread pools.
+ *
+ * @link https://www.playframework.com/documentation/latest/ThreadPools
+ */
+@Singleton
+public class ImageExecutionContext extends CustomExecutionContext {
+
+    @Inject
+    public ImageExecutionContext(ActorSystem actorSystem) {
+        super(actorSystem, "image.dispatcher");
+    }
+}
@@ -0,0 +1,171 @@
+package util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes and resizes images. Images are decoded only as large as the biggest size they are
+ * needed at, so a thumbnail of a large photo never holds the full resolution photo in memory.
+ * Every size needed should be drawn from the one decoded image.
+ */
+public class ImageProcessor {
+
+    // Images are decoded at least this many times bigger than they are drawn, so drawing them
+    // smaller still smooths out the pixels that were skipped when decoding
+    private static final int OVERSAMPLING = 2;
+
+    /**
+     * Private constructor as this class only has static methods
+     */
+    private ImageProcessor() {
+    }
+
+    /**
+     * Decodes an image only as large as it needs to be to be drawn into a box of some size. Rows
+     * and columns of pixels are skipped while decoding, so a large image never has to be held in
+     * memory at full resolution. Images that already fit are decoded at full size.
+     *
+     * @param source Path of the image file
+     * @param width Width of the largest box the image will be drawn into
+     * @param height Height of the largest box the image will be drawn into
+     * @return Decoded image
+     * @throws IOException Thrown when the file can't be read, or isn't an image
+     */
+    public static BufferedImage decode(Path source, int width, int height) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(source.toFile())) {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + source);
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+
+                // Skip as many pixels as possible while keeping the scaled image oversampled
+                double shrink = Math.max((double) reader.getWidth(0) / width,
+                    (double) reader.getHeight(0) / height);
+                int subsampling = Math.max(1, (int) (shrink / OVERSAMPLING));
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Checks a file is an image that can be decoded, by reading its header. The pixels aren't
+     * decoded, so this is cheap enough to do for every upload.
+     *
+     * @param source Path of the image file
+     * @return True if the file is a supported image with a size
+     * @throws IOException Thrown when the file can't be read
+     */
+    public static boolean isImage(Path source) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(source.toFile())) {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                return false;
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return reader.getWidth(0) > 0 && reader.getHeight(0) > 0;
+            } catch (IOException e) {
+                // Recognised, but the header is corrupt
+                return false;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Draws an image into a box of some size on a white background. Images smaller than the box
+     * are centred at their own size, others are scaled down to fit it and centred.
+     *
+     * @param image Image to draw
+     * @param width Width of the box
+     * @param height Height of the box
+     * @return New image of the box
+     */
+    public static BufferedImage fit(BufferedImage image, int width, int height) {
+        BufferedImage fitted = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics2D = fitted.createGraphics();
+        graphics2D.setBackground(Color.WHITE);
+        graphics2D.setPaint(Color.WHITE);
+        graphics2D.fillRect(0, 0, width, height);
+        graphics2D.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+        // If image is smaller than the box then center with bars on each side
+        if (image.getWidth() < width && image.getHeight() < height) {
+            graphics2D.drawImage(image, width / 2 - image.getWidth() / 2,
+                height / 2 - image.getHeight() / 2, image.getWidth(), image.getHeight(), null);
+        } // Otherwise scale image down so the proportionally bigger side fills the box
+        else {
+            double scaleFactor = Math.min((double) width / image.getWidth(),
+                (double) height / image.getHeight());
+            int newWidth = (int) Math.floor(image.getWidth() * scaleFactor);
+            int newHeight = (int) Math.floor(image.getHeight() * scaleFactor);
+            graphics2D.drawImage(image, width / 2 - newWidth / 2, height / 2 - newHeight / 2,
+                newWidth, newHeight, null);
+        }
+        graphics2D.dispose();
+
+        return fitted;
+    }
+
+    /**
+     * Scales an image down to some width, keeping its proportions, on a white background.
+     * Images already narrower than the width are kept at their own size.
+     *
+     * @param image Image to scale
+     * @param width Widest the scaled image can be
+     * @return New scaled image
+     */
+    public static BufferedImage scaleToWidth(BufferedImage image, int width) {
+        int newWidth = Math.min(width, image.getWidth());
+        int newHeight = Math.max(1,
+            (int) Math.round(image.getHeight() * ((double) newWidth / image.getWidth())));
+        return fit(image, newWidth, newHeight);
+    }
+
+    /**
+     * Writes an image as a JPEG. It is written to a file of its own next to its destination then
+     * moved into place, so the destination is never read half written, and two writes of the same
+     * destination at once, e.g for two photos sharing an original, don't write the same file.
+     *
+     * @param image Image to write
+     * @param destination Path to write the JPEG to, replacing any file already there
+     * @throws IOException Thrown when the image can't be written
+     */
+    public static void writeJpeg(BufferedImage image, Path destination) throws IOException {
+        Path partial = Files.createTempFile(destination.getParent(),
+            destination.getFileName().toString(), ".part");
+        try {
+            if (!ImageIO.write(image, "jpg", partial.toFile())) {
+                throw new IOException("No JPEG writer available for " + destination);
+            }
+            Files.move(partial, destination, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package util;
+
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import com.typesafe.config.Config;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import play.inject.ApplicationLifecycle;
+import repository.DatabaseExecutionContext;
+import repository.NewsFeedEventRepository;
+import scala.concurrent.duration.Duration;
+import util.objects.Pair;
+
+/**
+ * Keeps every like of every news feed event in memory, so like statuses and like counts are read
+ * without going to the database, and liking does not wait on it either. Likes and unlikes are
+ * written to the Likes table behind the scenes, in batches on a schedule.
+ *
+ * The cache is rebuilt from the Likes table on startup, which also fixes the like count stored
+ * on any event that does not match the table.
+ */
+@Singleton
+public class LikeCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LikeCache.class);
+
+    private final NewsFeedEventRepository newsFeedEventRepository;
+
+    // Number of likes of each event. LongAdder spreads its count over several cells, so many
+    // users liking the same popular event at once do not contend with each other
+    private final Map<Long, LongAdder> likeCounts = new ConcurrentHashMap<>();
+
+    // IDs of the events each user has liked
+    private final Map<Long, Set<Long>> userLikes = new ConcurrentHashMap<>();
+
+    // Likes (true) and unlikes (false) not yet written, keyed by event id and user id. Only the
+    // latest change to each like is kept, so toggling back and forth only writes once
+    private final Map<SimpleImmutableEntry<Long, Long>, Boolean> pending =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Constructor which rebuilds the cache and starts the schedule that writes pending likes
+     *
+     * @param newsFeedEventRepository Instance of NewsFeedEventRepository
+     * @param config Application config containing the like settings
+     * @param actorSystem Actor system used to schedule writing the likes
+     * @param executionContext Database execution context the writes run on
+     * @param lifecycle Application lifecycle, used to write any pending likes on shutdown
+     */
+    @Inject
+    public LikeCache(NewsFeedEventRepository newsFeedEventRepository, Config config,
+        ActorSystem actorSystem, DatabaseExecutionContext executionContext,
+        ApplicationLifecycle lifecycle) {
+        this.newsFeedEventRepository = newsFeedEventRepository;
+        rebuild();
+
+        long interval = config.getDuration("likes.flushInterval", TimeUnit.MILLISECONDS);
+        Cancellable flushSchedule = actorSystem.scheduler().schedule(
+            Duration.create(interval, TimeUnit.MILLISECONDS),
+            Duration.create(interval, TimeUnit.MILLISECONDS),
+            this::flush,
+            executionContext);
+
+        lifecycle.addStopHook(() -> {
+            flushSchedule.cancel();
+            flush();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Likes an event for a user if they have not liked it, otherwise unlikes it
+     *
+     * @param eventId ID of event to like or unlike
+     * @param userId ID of user liking or unliking
+     * @return True if the event is now liked, false if it is now unliked
+     */
+    public boolean toggleLike(Long eventId, Long userId) {
+        Set<Long> liked = userLikes.computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet());
+
+        // Toggles by the same user are done one at a time, so the count can't drift
+        synchronized (liked) {
+            boolean nowLiked = !liked.remove(eventId);
+            if (nowLiked) {
+                liked.add(eventId);
+            }
+            likeCounts.computeIfAbsent(eventId, id -> new LongAdder()).add(nowLiked ? 1 : -1);
+            pending.put(new SimpleImmutableEntry<>(eventId, userId), nowLiked);
+            return nowLiked;
+        }
+    }
+
+    /**
+     * Gets whether a user has liked an event
+     *
+     * @param eventId ID of event
+     * @param userId ID of user
+     * @return True if liked, false otherwise
+     */
+    public boolean isLiked(Long eventId, Long userId) {
+        Set<Long> liked = userLikes.get(userId);
+        return liked != null && liked.contains(eventId);
+    }
+
+    /**
+     * Gets the number of likes an event has
+     *
+     * @param eventId ID of event
+     * @return Number of likes, 0 if the event has none or does not exist
+     */
+    public long getLikeCount(Long eventId) {
+        LongAdder count = likeCounts.get(eventId);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Writes all pending likes and unlikes to the database in one batch. If the write fails they
+     * are kept to be tried again, unless they have been changed since.
+     */
+    public synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        // Take each pending change out, so any made while writing are kept for next time
+        Map<SimpleImmutableEntry<Long, Long>, Boolean> batch = new HashMap<>();
+        for (SimpleImmutableEntry<Long, Long> key : pending.keySet()) {
+            Boolean liked = pending.remove(key);
+            if (liked != null) {
+                batch.put(key, liked);
+            }
+        }
+
+        List<Pair<Long, Long>> likes = new ArrayList<>();
+        List<Pair<Long, Long>> unlikes = new ArrayList<>();
+        batch.forEach((key, liked) ->
+            (liked ? likes : unlikes).add(new Pair<>(key.getKey(), key.getValue())));
+
+        try {
+            newsFeedEventRepository.writeLikes(likes, unlikes);
+        } catch (RuntimeException e) {
+            batch.forEach(pending::putIfAbsent);
+            LOGGER.error("Failed to write likes, will retry", e);
+        }
+    }
+
+    /**
+     * Writes any pending likes, then rebuilds the cache from the Likes table and fixes the like
+     * count of any event that does not match it
+     */
+    public synchronized void rebuild() {
+        flush();
+        try {
+            List<Pair<Long, Long>> likes = newsFeedEventRepository.getAllLikes();
+            likeCounts.clear();
+            userLikes.clear();
+            for (Pair<Long, Long> like : likes) {
+                likeCounts.computeIfAbsent(like.getKey(), id -> new LongAdder()).increment();
+                userLikes.computeIfAbsent(like.getValue(), id -> ConcurrentHashMap.newKeySet())
+                    .add(like.getKey());
+            }
+
+            int fixed = newsFeedEventRepository.reconcileLikeCounts();
+            if (fixed > 0) {
+                LOGGER.warn("Fixed the like count of {} news feed events", fixed);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to rebuild like cache", e);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package util;
+
+/**
+ * Decides whether two names are within some edit (Levenshtein) distance of each other. Cheap
+ * bounds on their distance are checked first: the difference in their lengths and the longer
+ * length, then how different the characters they are made of are. Only pairs these don't settle
+ * have their distance worked out, and only inside the band around the diagonal that an edit path
+ * within the limit can pass through, giving up as soon as a whole row is over the limit. The
+ * buffers used are kept per thread and reused between names.
+ */
+public class NameMatcher {
+
+    // Characters are counted in this many buckets. Characters that share a bucket can only make
+    // two names look more alike, so the count difference is still a lower bound on the distance
+    private static final int BUCKETS = 64;
+
+    // Distance given to cells outside the band, bigger than any limit but safe to add one to
+    private static final int OUT_OF_BAND = Integer.MAX_VALUE / 2;
+
+    // Largest distance two names can be apart and still be similar
+    private final int threshold;
+
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    /**
+     * Buffers reused by every comparison made on one thread
+     */
+    private static class Buffers {
+
+        // Difference in how many times each bucket of characters appears, all zero between uses
+        final int[] counts = new int[BUCKETS];
+
+        // Previous and current rows of edit distances, grown to fit the longest name seen
+        int[] previous = new int[16];
+        int[] current = new int[16];
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threshold Largest edit distance two names can be apart and still be similar
+     */
+    public NameMatcher(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Checks whether two names are within the threshold edit distance of each other
+     *
+     * @param left First name
+     * @param right Second name
+     * @return True if the names are similar
+     */
+    public boolean isSimilar(String left, String right) {
+        // Every character of difference in length takes an insertion or deletion, and no two
+        // names are further apart than the longer one is long
+        if (Math.abs(left.length() - right.length()) > threshold) {
+            return false;
+        } else if (Math.max(left.length(), right.length()) <= threshold) {
+            return true;
+        }
+
+        Buffers buffers = this.buffers.get();
+        if (countDistance(left, right, buffers.counts) > threshold) {
+            return false;
+        }
+        return bandedDistance(left, right, buffers) <= threshold;
+    }
+
+    /**
+     * Gets a lower bound on the edit distance between two names from the characters they are made
+     * of. An insertion or deletion changes the count of one character by one, and a substitution
+     * the counts of two characters by one each, so each edit closes the total difference in counts
+     * by at most two.
+     */
+    private int countDistance(String left, String right, int[] counts) {
+        for (int i = 0; i < left.length(); i++) {
+            counts[left.charAt(i) % BUCKETS]++;
+        }
+        for (int i = 0; i < right.length(); i++) {
+            counts[right.charAt(i) % BUCKETS]--;
+        }
+
+        // Clear the counts as they are summed, ready for the next use
+        int difference = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            difference += Math.abs(counts[i]);
+            counts[i] = 0;
+        }
+        return (difference + 1) / 2;
+    }
+
+    /**
+     * Gets the edit distance between two names, if it is within the threshold. Only the cells
+     * within the threshold of the diagonal are worked out, as any cell further out is already
+     * over the threshold.
+     *
+     * @return The edit distance, or a distance over the threshold if it is further than that
+     */
+    private int bandedDistance(String left, String right, Buffers buffers) {
+        int leftLength = left.length();
+        int rightLength = right.length();
+        if (leftLength == 0 || rightLength == 0) {
+            return Math.max(leftLength, rightLength);
+        }
+
+        if (buffers.previous.length <= rightLength) {
+            buffers.previous = new int[rightLength + 1];
+            buffers.current = new int[rightLength + 1];
+        }
+        int[] previous = buffers.previous;
+        int[] current = buffers.current;
+
+        // First row is the distance from the empty string, inside the band
+        int bandEnd = Math.min(rightLength, threshold);
+        for (int j = 0; j <= rightLength; j++) {
+            previous[j] = j <= bandEnd ? j : OUT_OF_BAND;
+        }
+
+        for (int i = 1; i <= leftLength; i++) {
+            char leftChar = left.charAt(i - 1);
+            int start = Math.max(1, i - threshold);
+            int end = Math.min(rightLength, i + threshold);
+
+            current[0] = i;
+            if (start > 1) {
+                current[start - 1] = OUT_OF_BAND;
+            }
+
+            int rowMinimum = current[start - 1];
+            for (int j = start; j <= end; j++) {
+                if (leftChar == right.charAt(j - 1)) {
+                    current[j] = previous[j - 1];
+                } else {
+                    current[j] = 1 + Math.min(Math.min(current[j - 1], previous[j]),
+                        previous[j - 1]);
+                }
+                rowMinimum = Math.min(rowMinimum, current[j]);
+            }
+            if (end < rightLength) {
+                current[end + 1] = OUT_OF_BAND;
+            }
+
+            // Distances never go down from one row to the next, so this pair is out of reach
+            if (rowMinimum > threshold) {
+                return rowMinimum;
+            }
+
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[rightLength];
+    }
+}
@@ -0,0 +1,145 @@
+package util;
+
+import akka.NotUsed;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.SourceQueueWithComplete;
+import com.typesafe.config.Config;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import models.NewsFeedEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import play.inject.ApplicationLifecycle;
+import repository.NewsFeedEventRepository;
+
+/**
+ * Pushes news feed events to the users connected to the live news feed as soon as they are
+ * added, so the frontend does not have to keep fetching the feed to find new activity. Each new
+ * event goes to the connected users whose timelines it was added to, i.e the followers of its
+ * user or destination.
+ *
+ * Each connection has its own bounded buffer. A connection reading slower than events arrive
+ * only holds back its own buffer, and once that is full its oldest events are dropped, so a slow
+ * client can never hold up adding events or take up more and more memory.
+ */
+@Singleton
+public class NewsFeedPublisher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NewsFeedPublisher.class);
+
+    // Number of events each connection can have waiting to be sent before dropping the oldest
+    private final int bufferSize;
+
+    // Longest a connection is left without sending anything, so idle connections are not closed
+    private final Duration keepAlive;
+
+    // Queues of the open connections of each user, keyed by user id
+    private final Map<Long, Set<SourceQueueWithComplete<NewsFeedEvent>>> connections =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Constructor which starts listening for new events
+     *
+     * @param newsFeedEventRepository Instance of NewsFeedEventRepository
+     * @param config Application config containing the live news feed settings
+     * @param lifecycle Application lifecycle, used to close every connection on shutdown
+     */
+    @Inject
+    public NewsFeedPublisher(NewsFeedEventRepository newsFeedEventRepository, Config config,
+        ApplicationLifecycle lifecycle) {
+        this.bufferSize = config.getInt("newsfeed.live.bufferSize");
+        this.keepAlive = config.getDuration("newsfeed.live.keepAlive");
+
+        newsFeedEventRepository.addEventListener(this::publish);
+
+        lifecycle.addStopHook(() -> {
+            connections.values()
+                .forEach(queues -> queues.forEach(SourceQueueWithComplete::complete));
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Creates a stream of the events added to a user's timeline from now on. The user is
+     * connected when the stream is run, and disconnected when it completes or is cancelled.
+     *
+     * @param userId ID of the user to stream events to
+     * @return Source of new events, which can be run any number of times
+     */
+    public Source<NewsFeedEvent, NotUsed> subscribe(Long userId) {
+        return Source.<NewsFeedEvent>queue(bufferSize, OverflowStrategy.dropHead())
+            .mapMaterializedValue(queue -> {
+                // Added and removed inside compute, so a user's set is never dropped mid add
+                connections.compute(userId, (id, queues) -> {
+                    Set<SourceQueueWithComplete<NewsFeedEvent>> updated =
+                        queues == null ? ConcurrentHashMap.newKeySet() : queues;
+                    updated.add(queue);
+                    return updated;
+                });
+                queue.watchCompletion().whenComplete((done, error) -> disconnect(userId, queue));
+                return NotUsed.getInstance();
+            });
+    }
+
+    /**
+     * Gets the longest a connection should go without sending anything. Connections that have
+     * been idle this long should be sent something, so they are not closed as timed out.
+     *
+     * @return Longest time a connection can be idle
+     */
+    public Duration getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Gets the number of open connections of a user
+     *
+     * @param userId ID of user
+     * @return Number of connections, 0 if the user is not connected
+     */
+    public int getConnectionCount(Long userId) {
+        Set<SourceQueueWithComplete<NewsFeedEvent>> queues = connections.get(userId);
+        return queues == null ? 0 : queues.size();
+    }
+
+    /**
+     * Offers a new event to every open connection of the users whose timelines it is on. Never
+     * waits on any connection, a full buffer just drops its oldest event.
+     *
+     * @param event Event that has just been added
+     * @param followerIds IDs of the users whose timelines it was added to
+     */
+    private void publish(NewsFeedEvent event, List<Long> followerIds) {
+        for (Long followerId : followerIds) {
+            Set<SourceQueueWithComplete<NewsFeedEvent>> queues = connections.get(followerId);
+            if (queues == null) {
+                continue;
+            }
+            for (SourceQueueWithComplete<NewsFeedEvent> queue : queues) {
+                queue.offer(event).whenComplete((result, error) -> {
+                    if (error != null) {
+                        LOGGER.debug("Failed to push news feed event to user {}", followerId,
+                            error);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Removes a connection once its stream has ended
+     */
+    private void disconnect(Long userId, SourceQueueWithComplete<NewsFeedEvent> queue) {
+        connections.computeIfPresent(userId, (id, queues) -> {
+            queues.remove(queue);
+            return queues.isEmpty() ? null : queues;
+        });
+    }
+}
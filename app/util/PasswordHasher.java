@@ -0,0 +1,160 @@
+package util;
+
+import com.typesafe.config.Config;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import play.inject.ApplicationLifecycle;
+
+/**
+ * Hashes and checks passwords on a small pool of threads of its own. Hashing is deliberately
+ * slow, so doing it on the shared pools would let a burst of logins starve every other request.
+ * Only a bounded number of hashes can wait for a thread, after which new ones are rejected
+ * straight away, so callers can tell the client to try again later rather than queueing forever.
+ */
+@Singleton
+public class PasswordHasher {
+
+    private final ThreadPoolExecutor executor;
+
+    // Number of PBKDF2 iterations new hashes are created with
+    private final int iterations;
+
+    // Total time spent hashing, and number of hashes, for the average latency
+    private final LongAdder hashNanos = new LongAdder();
+    private final LongAdder hashCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    /**
+     * Constructor which starts the hashing threads
+     *
+     * @param config Application config containing the password hashing settings
+     * @param lifecycle Application lifecycle, used to stop the threads on shutdown
+     */
+    @Inject
+    public PasswordHasher(Config config, ApplicationLifecycle lifecycle) {
+        int threads = config.getInt("passwords.threads");
+        this.iterations = config.getInt("passwords.iterations");
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(config.getInt("passwords.queueSize")),
+            runnable -> {
+                Thread thread = new Thread(runnable,
+                    "password-hasher-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+
+        lifecycle.addStopHook(() -> {
+            executor.shutdown();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Salts and hashes a new password
+     *
+     * @param password Password to hash
+     * @param salt Base64 encoded salt
+     * @return Future of the hash. Fails with a RejectedExecutionException if too many hashes are
+     * already waiting
+     */
+    public CompletableFuture<String> hashPassword(String password, String salt) {
+        return submit(() -> CryptoManager
+            .hashPassword(password, Base64.getDecoder().decode(salt), iterations));
+    }
+
+    /**
+     * Checks if a password attempt matches an existing hash
+     *
+     * @param password Password being attempted
+     * @param salt Base64 encoded salt of the existing hash
+     * @param existingHash Existing hash to check against
+     * @return Future of whether the password matches. Fails with a RejectedExecutionException if
+     * too many hashes are already waiting
+     */
+    public CompletableFuture<Boolean> checkPasswordMatch(String password, String salt,
+        String existingHash) {
+        return submit(() -> CryptoManager.checkPasswordMatch(password, salt, existingHash));
+    }
+
+    /**
+     * Gets the number of hashes waiting for a thread
+     *
+     * @return Queue depth
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Gets the average time taken to hash a password, not counting time spent waiting
+     *
+     * @return Average latency in milliseconds, 0 if nothing has been hashed yet
+     */
+    public double getAverageLatency() {
+        long count = hashCount.sum();
+        return count == 0 ? 0 : hashNanos.sum() / (count * 1e6);
+    }
+
+    /**
+     * Gets the number of hashes that have been done
+     *
+     * @return Number of hashes
+     */
+    public long getHashCount() {
+        return hashCount.sum();
+    }
+
+    /**
+     * Gets the number of hashes that were rejected because too many were waiting
+     *
+     * @return Number of rejected hashes
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * Work done by the hashing threads, which can throw the checked exceptions of hashing
+     */
+    private interface HashTask<T> {
+
+        T run() throws GeneralSecurityException;
+    }
+
+    /**
+     * Runs a hash on the hashing threads, timing how long it takes
+     */
+    private <T> CompletableFuture<T> submit(HashTask<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long start = System.nanoTime();
+                try {
+                    return task.run();
+                } catch (GeneralSecurityException e) {
+                    throw new CompletionException(e);
+                } finally {
+                    hashNanos.add(System.nanoTime() - start);
+                    hashCount.increment();
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            rejectedCount.increment();
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package util;
+
+import com.typesafe.config.Config;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Describes the photo files being served, and keeps the contents of the most recently served
+ * small ones (i.e thumbnails and small variants) in memory so they are not read from disk on
+ * every request. Cached contents are only used while the file's size and modified time are
+ * unchanged, so a file that is replaced is read again. The total size of the cached contents is
+ * capped.
+ */
+@Singleton
+public class PhotoFileCache {
+
+    /**
+     * A photo file as of when it was last looked at
+     */
+    public static class PhotoFile {
+
+        public final Path path;
+        public final long size;
+        public final long lastModified;
+
+        // Contents of the file, null if it is not cached
+        private final byte[] contents;
+
+        private PhotoFile(Path path, long size, long lastModified, byte[] contents) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.contents = contents;
+        }
+
+        /**
+         * Gets a strong validator of the file, which changes whenever the file does
+         *
+         * @return Quoted entity tag
+         */
+        public String getETag() {
+            return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+        }
+
+        /**
+         * Gets the contents of the file, if they are cached
+         *
+         * @return Contents of the file, null if they have to be read from disk
+         */
+        public byte[] getContents() {
+            return contents;
+        }
+    }
+
+    // Largest file whose contents are cached, in bytes
+    private final long maxFileSize;
+
+    // Largest total size of the cached contents, in bytes
+    private final long maxSize;
+
+    // Cached files by path, least recently used first
+    private final LinkedHashMap<Path, PhotoFile> files = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Total size of the cached contents
+    private long size = 0;
+
+    /**
+     * Constructor
+     *
+     * @param config Application config containing the photo serving settings
+     */
+    @Inject
+    public PhotoFileCache(Config config) {
+        this.maxFileSize = config.getBytes("photos.serving.maxCachedFileSize");
+        this.maxSize = config.getBytes("photos.serving.cacheSize");
+    }
+
+    /**
+     * Looks at a photo file, caching its contents if it is small enough
+     *
+     * @param path Path of the file
+     * @return The file, or null if there is no such file
+     * @throws IOException Thrown when the file can't be read
+     */
+    public PhotoFile get(Path path) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        long fileSize = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        synchronized (this) {
+            PhotoFile cached = files.get(path);
+            if (cached != null && cached.size == fileSize && cached.lastModified == lastModified) {
+                return cached;
+            }
+        }
+
+        if (fileSize > maxFileSize) {
+            return new PhotoFile(path, fileSize, lastModified, null);
+        }
+
+        // Read outside the lock, a file read twice at once is just cached twice
+        byte[] contents = Files.readAllBytes(path);
+        if (contents.length != fileSize) {
+            // Changed while being read, so don't cache it until it settles
+            return new PhotoFile(path, fileSize, lastModified, null);
+        }
+        PhotoFile file = new PhotoFile(path, fileSize, lastModified, contents);
+        put(file);
+        return file;
+    }
+
+    /**
+     * Gets the total size of the cached contents
+     *
+     * @return Size in bytes
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Caches a file, dropping the least recently used files until the cache is under its size
+     */
+    private synchronized void put(PhotoFile file) {
+        PhotoFile replaced = files.put(file.path, file);
+        size += file.size - (replaced == null ? 0 : replaced.size);
+
+        Iterator<Map.Entry<Path, PhotoFile>> eldest = files.entrySet().iterator();
+        while (size > maxSize && eldest.hasNext()) {
+            size -= eldest.next().getValue().size;
+            eldest.remove();
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import models.Photo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores uploaded photo files under the hash of their contents, so the same image uploaded any
+ * number of times is only stored, and has its thumbnails generated, once. Uploads are copied into
+ * the storage directory and hashed in the same pass, then either moved to their hashed name or
+ * discarded if a file with that name is already stored.
+ *
+ * Files are shared by every photo with the same contents, so they must only be deleted once the
+ * last of those photos is, which PhotoRepository keeps track of. They are moved aside while the
+ * photo is deleted and only deleted once that has committed, so they can be put back if it
+ * fails. Files that can't be deleted are left for PhotoStorageSweeper to find.
+ */
+@Singleton
+public class PhotoStorage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PhotoStorage.class);
+
+    // Directory photos are stored in
+    public static final Path STORAGE_DIRECTORY = Paths.get(System.getProperty("user.dir"),
+        "public", "storage", "photos");
+
+    // The storage directory inside the application, which the filename of every stored photo
+    // contains whether it is relative, absolute or from another machine
+    private static final Path STORAGE_PATH = Paths.get("public", "storage", "photos");
+
+    // Directory thumbnails are kept in, inside the directory of their originals
+    private static final String THUMBNAIL_DIRECTORY = "thumbnails";
+
+    // Directory profile photo thumbnails are kept in, inside the thumbnail directory
+    private static final String PROFILE_THUMBNAIL_DIRECTORY = "profile";
+
+    // Prefix of uploads that have been copied into storage but not yet stored under their hash
+    private static final String STAGING_PREFIX = ".upload-";
+
+    // Suffix of images that are still being written
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    // Prefix of files moved aside to be deleted once the photos using them have been
+    private static final String DELETED_PREFIX = ".deleted-";
+
+    private final PhotoVariants photoVariants;
+
+    /**
+     * An upload copied into the storage directory, waiting to be stored under its hash
+     */
+    public static class StagedFile {
+
+        // Filename the upload will be stored as
+        public final String filename;
+
+        // Where the upload has been copied to in the meantime
+        private final Path staged;
+
+        private StagedFile(String filename, Path staged) {
+            this.filename = filename;
+            this.staged = staged;
+        }
+    }
+
+    /**
+     * Stored files moved aside, waiting for the transaction deleting the last photos using them
+     * to commit before they are deleted
+     */
+    public static class DeletedFiles {
+
+        // Where each file was moved to, and where it was moved from
+        private final Map<Path, Path> moved = new LinkedHashMap<>();
+    }
+
+    @Inject
+    public PhotoStorage(PhotoVariants photoVariants) {
+        this.photoVariants = photoVariants;
+    }
+
+    /**
+     * Gets where a photo's file is inside the storage directory. Photos have held their files'
+     * paths in different forms, e.g relative to the application or absolute on another machine,
+     * so this is what to compare to find whether two of them are the same file.
+     *
+     * @param filename Filename of a photo
+     * @return Path of the file relative to the storage directory, or null if the filename isn't
+     * inside a storage directory
+     */
+    public static String storageKey(String filename) {
+        Path path;
+        try {
+            path = Paths.get(filename).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+
+        // The last storage directory in the path, in case a directory above has the same name
+        int depth = STORAGE_PATH.getNameCount();
+        for (int i = path.getNameCount() - depth - 1; i >= 0; i--) {
+            if (path.subpath(i, i + depth).equals(STORAGE_PATH)) {
+                return path.subpath(i + depth, path.getNameCount()).toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the path of a stored file in this application's storage directory
+     *
+     * @param storageKey Path of the file relative to the storage directory
+     * @return Path of the file
+     */
+    public static Path storedPath(String storageKey) {
+        return STORAGE_DIRECTORY.resolve(storageKey);
+    }
+
+    /**
+     * Gets the path of the thumbnail of a stored photo file
+     *
+     * @param original Path of the stored photo file
+     * @param profileSize Whether it is the thumbnail used when the photo is a profile photo
+     * @return Path of the thumbnail
+     */
+    public static Path thumbnailPath(Path original, boolean profileSize) {
+        Path directory = original.resolveSibling(THUMBNAIL_DIRECTORY);
+        if (profileSize) {
+            directory = directory.resolve(PROFILE_THUMBNAIL_DIRECTORY);
+        }
+        return directory.resolve(original.getFileName());
+    }
+
+    /**
+     * Gets the path of the stored photo file that a file in storage was made from, i.e the
+     * original of a thumbnail or variant
+     *
+     * @param file Path of a file in storage
+     * @return Path of its original, or the file itself if it is an original
+     */
+    public static Path originalPath(Path file) {
+        Path directory = file.getParent();
+        Path parent = directory == null ? null : directory.getParent();
+        if (parent == null || parent.getParent() == null) {
+            return file;
+        }
+
+        String directoryName = directory.getFileName().toString();
+        String parentName = parent.getFileName().toString();
+        if (directoryName.equals(THUMBNAIL_DIRECTORY)) {
+            return parent.resolve(file.getFileName());
+        } else if (directoryName.equals(PROFILE_THUMBNAIL_DIRECTORY)
+            && parentName.equals(THUMBNAIL_DIRECTORY)) {
+            return parent.getParent().resolve(file.getFileName());
+        } else if (parentName.equals(PhotoVariants.VARIANT_DIRECTORY)) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(PhotoVariants.VARIANT_EXTENSION)) {
+                name = name.substring(0,
+                    name.length() - PhotoVariants.VARIANT_EXTENSION.length());
+            }
+            return parent.getParent().resolve(name);
+        }
+        return file;
+    }
+
+    /**
+     * Checks whether a file in storage is one that is still being written or deleted, i.e a
+     * staged upload, a half written image or a file moved aside to be deleted. Ones that are old
+     * were left behind by a failed upload or delete, or a crash.
+     *
+     * @param file Path of a file in storage
+     * @return True if the file is still being written or deleted, or was abandoned part way
+     */
+    public static boolean isPartial(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(STAGING_PREFIX) || name.startsWith(DELETED_PREFIX)
+            || name.endsWith(PARTIAL_SUFFIX);
+    }
+
+    /**
+     * Copies an upload into a storage directory, hashing it as it is copied. The upload is not
+     * stored until it is committed.
+     *
+     * @param upload Path of the uploaded file
+     * @param directory Storage directory to store it in
+     * @param extension File extension to store it with, e.g jpg
+     * @return The staged upload, with the filename it will be stored as
+     * @throws IOException Thrown when the upload can't be copied
+     */
+    public StagedFile stage(Path upload, Path directory, String extension) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+
+        Path staged = Files.createTempFile(directory, STAGING_PREFIX, "." + extension);
+        try (InputStream input = new DigestInputStream(Files.newInputStream(upload), digest)) {
+            Files.copy(input, staged, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(staged);
+            throw e;
+        }
+
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return new StagedFile(directory.resolve(hash + "." + extension).toString(), staged);
+    }
+
+    /**
+     * Stores a staged upload under its hash. If a file is already stored under that hash, it has
+     * the same contents, so it is kept and the upload is discarded. Should only be called once a
+     * photo using the file has been added, so the file can't be deleted in the meantime.
+     *
+     * @param file Staged upload
+     * @throws IOException Thrown when the upload can't be moved into place
+     */
+    public void commit(StagedFile file) throws IOException {
+        Path stored = Paths.get(file.filename);
+        if (Files.exists(stored)) {
+            Files.deleteIfExists(file.staged);
+        } else {
+            Files.move(file.staged, stored, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Discards a staged upload that won't be stored, e.g because adding its photo failed
+     *
+     * @param file Staged upload
+     */
+    public void discard(StagedFile file) {
+        deleteFile(file.staged);
+    }
+
+    /**
+     * Moves the stored files of a photo aside to be deleted, i.e the original, its thumbnails and
+     * its variants. Should only be called once no other photo uses the same file, while its
+     * PhotoFile row is locked. Once the file is moved, a photo added with the same contents
+     * stores it again rather than finding it about to be deleted.
+     *
+     * @param photo Photo whose files to move aside
+     * @return The files moved aside, to delete once the photo's deletion has committed, or put
+     * back if it fails
+     */
+    public DeletedFiles moveAside(Photo photo) {
+        DeletedFiles files = new DeletedFiles();
+        moveAside(localPath(photo.filename), files);
+        if (photo.thumbnailFilename != null) {
+            moveFileAside(localPath(photo.thumbnailFilename), files);
+        }
+        return files;
+    }
+
+    /**
+     * Gets where a photo's file is in this application's storage directory, whatever form its
+     * filename is in. Filenames that aren't inside a storage directory are used as they are.
+     */
+    private static Path localPath(String filename) {
+        String storageKey = storageKey(filename);
+        return storageKey == null ? Paths.get(filename) : storedPath(storageKey);
+    }
+
+    /**
+     * Moves a stored file, its thumbnails and its variants aside to be deleted, along with other
+     * files, e.g the rest of a batch of unused files. Should only be called once no photo uses
+     * the file, while its PhotoFile row is locked.
+     *
+     * @param original Path of the stored file
+     * @param files Files already moved aside, which these are added to, to delete once the
+     * file's deletion has committed or put back if it fails
+     */
+    public void moveAside(Path original, DeletedFiles files) {
+        moveFileAside(original, files);
+        moveFileAside(thumbnailPath(original, false), files);
+        moveFileAside(thumbnailPath(original, true), files);
+        for (Path variant : photoVariants.getVariantPaths(original)) {
+            moveFileAside(variant, files);
+        }
+    }
+
+    /**
+     * Deletes files that were moved aside, now that nothing can put them back
+     *
+     * @param files Files moved aside
+     * @return Number of bytes freed
+     */
+    public long delete(DeletedFiles files) {
+        long freed = 0;
+        for (Path aside : files.moved.keySet()) {
+            freed += deleteFile(aside);
+        }
+        return freed;
+    }
+
+    /**
+     * Puts files that were moved aside back where they were, e.g because deleting the photos
+     * using them failed
+     *
+     * @param files Files moved aside
+     */
+    public void restore(DeletedFiles files) {
+        for (Map.Entry<Path, Path> entry : files.moved.entrySet()) {
+            try {
+                Files.move(entry.getKey(), entry.getValue(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                LOGGER.error("Failed to put back {}", entry.getValue(), e);
+            }
+        }
+    }
+
+    /**
+     * Moves a file aside to be deleted, if it exists. A file that can't be moved is left where it
+     * is for the storage sweeper to find.
+     */
+    private static void moveFileAside(Path file, DeletedFiles files) {
+        Path aside = file.resolveSibling(DELETED_PREFIX + file.getFileName());
+        try {
+            Files.move(file, aside, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            files.moved.put(aside, file);
+        } catch (NoSuchFileException e) {
+            // Already gone, or never generated
+        } catch (IOException e) {
+            LOGGER.warn("Failed to move aside {}", file, e);
+        }
+    }
+
+    /**
+     * Deletes a file if it exists. A file that can't be deleted is left for the storage sweeper
+     * to try again.
+     *
+     * @param file Path of the file
+     * @return Number of bytes freed
+     */
+    static long deleteFile(Path file) {
+        try {
+            long size = Files.size(file);
+            Files.delete(file);
+            return size;
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            LOGGER.warn("Failed to delete {}", file, e);
+            return 0;
+        }
+    }
+}
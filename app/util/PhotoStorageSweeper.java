@@ -0,0 +1,299 @@
+package util;
+
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import com.typesafe.config.Config;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import play.inject.ApplicationLifecycle;
+import repository.PhotoRepository;
+import scala.concurrent.duration.Duration;
+import util.objects.Pair;
+
+/**
+ * Deletes stored photo files that no photo uses any more, on a schedule. These are left behind
+ * when photos are deleted along with their owner rather than one at a time, when a file can't be
+ * deleted straight away, and by uploads that failed part way through. The storage directory is
+ * walked and the files found are checked against the photos a batch at a time, in one query and
+ * one transaction per batch, along with every stored file that still has a PhotoFile row.
+ *
+ * Photos have held their files' paths in different forms, e.g relative to the application or
+ * absolute on another machine, so files are matched to photos on where they are inside the
+ * storage directory. Files with the same name as a photo's file that can't be resolved to a
+ * place in storage are never deleted, in case that photo uses them.
+ *
+ * The sweep runs on a single low priority thread and pauses between files, so it never takes much
+ * disk or database time away from requests. Files newer than a minimum age are never touched, as
+ * they may belong to an upload in progress.
+ */
+@Singleton
+public class PhotoStorageSweeper {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PhotoStorageSweeper.class);
+
+    // Extensions of the images photos are stored as, other files in storage are never deleted
+    private static final Set<String> IMAGE_EXTENSIONS = new HashSet<>(
+        Arrays.asList("jpg", "jpeg", "png"));
+
+    private final PhotoRepository photoRepository;
+
+    // Directory photos are stored in
+    private final Path photoDirectory;
+
+    // Number of files checked against the photos at once
+    private final int batchSize;
+
+    // Files modified more recently than this are left alone
+    private final long minAgeMillis;
+
+    // Pause after looking at each file, to limit how many are looked at per second
+    private final long pauseNanos;
+
+    // Single thread the sweep runs on
+    private final ExecutorService executor;
+
+    // Whether a sweep is queued or running, so a slow sweep isn't started twice
+    private final AtomicBoolean sweeping = new AtomicBoolean(false);
+
+    // Results of the last sweep, and of every sweep since starting
+    private volatile LocalDateTime lastSwept = null;
+    private volatile long lastFilesDeleted = 0;
+    private volatile long lastBytesFreed = 0;
+    private final LongAdder totalBytesFreed = new LongAdder();
+
+    /**
+     * Files and bytes reclaimed by one sweep
+     */
+    private static class Tally {
+
+        long files = 0;
+        long bytes = 0;
+    }
+
+    /**
+     * Constructor which starts the sweep schedule
+     *
+     * @param photoRepository Instance of PhotoRepository
+     * @param config Application config containing the sweeper settings
+     * @param actorSystem Actor system used to schedule the sweeps
+     * @param lifecycle Application lifecycle, used to stop the sweeps on shutdown
+     */
+    @Inject
+    public PhotoStorageSweeper(PhotoRepository photoRepository, Config config,
+        ActorSystem actorSystem, ApplicationLifecycle lifecycle) {
+        this.photoRepository = photoRepository;
+        this.photoDirectory = PhotoStorage.STORAGE_DIRECTORY;
+        this.batchSize = config.getInt("photos.sweeper.batchSize");
+        this.minAgeMillis = config.getDuration("photos.sweeper.minAge", TimeUnit.MILLISECONDS);
+        this.pauseNanos = TimeUnit.SECONDS.toNanos(1)
+            / config.getInt("photos.sweeper.maxFilesPerSecond");
+
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "photo-storage-sweeper");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+
+        long initialDelay = config.getDuration("photos.sweeper.initialDelay",
+            TimeUnit.MILLISECONDS);
+        long interval = config.getDuration("photos.sweeper.interval", TimeUnit.MILLISECONDS);
+        Cancellable sweepSchedule = actorSystem.scheduler().schedule(
+            Duration.create(initialDelay, TimeUnit.MILLISECONDS),
+            Duration.create(interval, TimeUnit.MILLISECONDS),
+            this::queueSweep,
+            actorSystem.dispatcher());
+
+        lifecycle.addStopHook(() -> {
+            sweepSchedule.cancel();
+            executor.shutdownNow();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Queues a sweep on the sweeper thread, unless one is already queued or running
+     */
+    public void queueSweep() {
+        if (sweeping.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                try {
+                    sweep();
+                } finally {
+                    sweeping.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Deletes every stored file no photo uses, along with its thumbnails, variants and PhotoFile
+     * row, and any abandoned partial files. Blocks until the sweep is done.
+     *
+     * @return Number of bytes freed
+     */
+    public long sweep() {
+        Tally tally = new Tally();
+        try {
+            sweepDirectories(tally);
+            sweepPhotoFileRows(tally);
+        } catch (RuntimeException e) {
+            LOGGER.error("Photo storage sweep failed", e);
+        }
+
+        lastSwept = LocalDateTime.now();
+        lastFilesDeleted = tally.files;
+        lastBytesFreed = tally.bytes;
+        totalBytesFreed.add(tally.bytes);
+        LOGGER.info("Photo storage sweep deleted {} unused files, freeing {} bytes",
+            tally.files, tally.bytes);
+        return tally.bytes;
+    }
+
+    /**
+     * Gets when the last sweep finished
+     *
+     * @return Time of the last sweep, or null if there hasn't been one yet
+     */
+    public LocalDateTime getLastSwept() {
+        return lastSwept;
+    }
+
+    /**
+     * Gets the number of unused stored files the last sweep deleted. Each counts along with its
+     * thumbnails and variants.
+     *
+     * @return Number of files deleted
+     */
+    public long getLastFilesDeleted() {
+        return lastFilesDeleted;
+    }
+
+    /**
+     * Gets the number of bytes the last sweep freed
+     *
+     * @return Bytes freed
+     */
+    public long getLastBytesFreed() {
+        return lastBytesFreed;
+    }
+
+    /**
+     * Gets the number of bytes freed by every sweep since the application started
+     *
+     * @return Bytes freed
+     */
+    public long getTotalBytesFreed() {
+        return totalBytesFreed.sum();
+    }
+
+    /**
+     * Walks the storage directory, checking the originals of the files found against the photos
+     * a batch at a time
+     */
+    private void sweepDirectories(Tally tally) {
+        long cutoff = System.currentTimeMillis() - minAgeMillis;
+        Set<String> batch = new TreeSet<>();
+        Deque<Path> directories = new ArrayDeque<>();
+        directories.push(photoDirectory);
+
+        while (!directories.isEmpty() && !Thread.currentThread().isInterrupted()) {
+            Path directory = directories.pop();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    LockSupport.parkNanos(pauseNanos);
+                    BasicFileAttributes attributes = Files.readAttributes(entry,
+                        BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        directories.push(entry);
+                    } else if (attributes.isRegularFile()
+                        && attributes.lastModifiedTime().toMillis() < cutoff) {
+                        if (PhotoStorage.isPartial(entry)) {
+                            tally.files++;
+                            tally.bytes += PhotoStorage.deleteFile(entry);
+                        } else if (isImage(entry)) {
+                            batch.add(photoDirectory.relativize(PhotoStorage.originalPath(entry))
+                                .toString());
+                        }
+                    }
+
+                    if (batch.size() >= batchSize) {
+                        sweepBatch(batch, tally);
+                        batch.clear();
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to sweep {}", directory, e);
+            }
+        }
+        if (!batch.isEmpty()) {
+            sweepBatch(batch, tally);
+        }
+    }
+
+    /**
+     * Checks whether a file in storage has the extension of a stored image
+     */
+    private static boolean isImage(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && IMAGE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    /**
+     * Goes through the PhotoFile rows a batch at a time, so rows left behind by photos deleted
+     * along with their owner are deleted even once their files are gone. Each row is checked under
+     * the filename it is kept under, whatever form that is in.
+     */
+    private void sweepPhotoFileRows(Tally tally) {
+        LocalDateTime storedBefore = LocalDateTime.now().minusNanos(
+            TimeUnit.MILLISECONDS.toNanos(minAgeMillis));
+        String after = "";
+        while (!Thread.currentThread().isInterrupted()) {
+            List<String> filenames = photoRepository
+                .getStoredFilenames(after, storedBefore, batchSize).join();
+            if (filenames.isEmpty()) {
+                return;
+            }
+            sweepBatch(filenames, tally);
+            after = filenames.get(filenames.size() - 1);
+            LockSupport.parkNanos(pauseNanos * filenames.size());
+        }
+    }
+
+    /**
+     * Deletes the stored files in a batch that no photo uses
+     *
+     * @param filenames Paths of the stored files relative to the storage directory, or the
+     * filenames of their PhotoFile rows
+     */
+    private void sweepBatch(Collection<String> filenames, Tally tally) {
+        Pair<Integer, Long> freed = photoRepository.deleteUnusedFiles(filenames).join();
+        tally.files += freed.getKey();
+        tally.bytes += freed.getValue();
+    }
+}
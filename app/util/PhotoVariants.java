@@ -0,0 +1,146 @@
+package util;
+
+import com.typesafe.config.Config;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves stored photos at smaller widths, so pages showing photos small don't have to download
+ * the originals. Only a fixed set of widths can be asked for. Each width of a photo is rendered
+ * the first time it is asked for and kept on disk next to the photo's thumbnail, then served
+ * straight from disk. Requests for a width that is already being rendered wait for that render
+ * rather than starting another.
+ */
+@Singleton
+public class PhotoVariants {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PhotoVariants.class);
+
+    // Directory variants are kept in, inside the directory of their originals
+    static final String VARIANT_DIRECTORY = "variants";
+
+    // Variants are always JPEGs, so are named after their original with this added
+    static final String VARIANT_EXTENSION = ".jpg";
+
+    // Only photos inside this directory have variants
+    private final Path photoDirectory;
+
+    // Widths that variants can be rendered at
+    private final Set<Integer> widths;
+
+    // Pool variants are rendered on
+    private final ImageExecutionContext imageExecutionContext;
+
+    // Renders in progress, keyed by the path of the variant being rendered
+    private final Map<Path, CompletableFuture<Path>> rendering = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param config Application config containing the variant settings
+     * @param imageExecutionContext Pool variants are rendered on
+     */
+    @Inject
+    public PhotoVariants(Config config, ImageExecutionContext imageExecutionContext) {
+        this.photoDirectory = Paths.get(System.getProperty("user.dir"), "public", "storage",
+            "photos").toAbsolutePath().normalize();
+        this.widths = new TreeSet<>(config.getIntList("photos.variants.widths"));
+        this.imageExecutionContext = imageExecutionContext;
+    }
+
+    /**
+     * Checks whether variants can be rendered at a width
+     *
+     * @param width Width to check
+     * @return True if the width is one of the configured widths
+     */
+    public boolean isAllowedWidth(int width) {
+        return widths.contains(width);
+    }
+
+    /**
+     * Gets the variant of a stored photo at some width, rendering it if it hasn't been already.
+     * Photos narrower than the width are kept at their own size.
+     *
+     * @param original Path of the stored photo
+     * @param width Width of the variant, which must be an allowed width
+     * @return Future of the path of the variant, or null if there is no such stored photo
+     */
+    public CompletableFuture<Path> getVariant(Path original, int width) {
+        Path source = original.toAbsolutePath().normalize();
+        if (!isAllowedWidth(width) || !source.startsWith(photoDirectory)
+            || !Files.isRegularFile(source)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Path variant = variantPath(source, width);
+        if (Files.exists(variant)) {
+            return CompletableFuture.completedFuture(variant);
+        }
+
+        CompletableFuture<Path> render = new CompletableFuture<>();
+        CompletableFuture<Path> inProgress = rendering.putIfAbsent(variant, render);
+        if (inProgress != null) {
+            return inProgress;
+        }
+        render.whenComplete((path, error) -> rendering.remove(variant, render));
+
+        // Another render may have finished between checking for the file and claiming it
+        if (Files.exists(variant)) {
+            render.complete(variant);
+            return render;
+        }
+
+        imageExecutionContext.execute(() -> {
+            try {
+                Files.createDirectories(variant.getParent());
+                ImageProcessor.writeJpeg(ImageProcessor.scaleToWidth(
+                    ImageProcessor.decode(source, width, Integer.MAX_VALUE), width), variant);
+                render.complete(variant);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Failed to render {} at width {}", source, width, e);
+                render.completeExceptionally(e);
+            }
+        });
+        return render;
+    }
+
+    /**
+     * Gets the paths every variant of a stored photo would be kept at, rendered or not, e.g to
+     * delete them once the photo itself has been deleted
+     *
+     * @param original Path of the stored photo
+     * @return Paths of its variants
+     */
+    public List<Path> getVariantPaths(Path original) {
+        Path source = original.toAbsolutePath().normalize();
+        List<Path> paths = new ArrayList<>();
+        for (int width : widths) {
+            paths.add(variantPath(source, width));
+        }
+        return paths;
+    }
+
+    /**
+     * Gets the path of the variant of a photo at some width. Variants are kept next to the
+     * photo's thumbnail directory, and named with a .jpg extension whatever the photo's own
+     * format, so they are served as the JPEGs they are.
+     */
+    private Path variantPath(Path source, int width) {
+        return source.resolveSibling(VARIANT_DIRECTORY).resolve(Integer.toString(width))
+            .resolve(source.getFileName() + VARIANT_EXTENSION);
+    }
+}
@@ -0,0 +1,208 @@
+package util;
+
+import com.typesafe.config.Config;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import models.User;
+import repository.ProfileRepository;
+import repository.UserRepository;
+
+/**
+ * Caches the user each authenticated request is made by, along with whether they have a
+ * profile, so most requests are authenticated without going to the database at all. Entries
+ * expire after a short time, and are dropped as soon as the user or their profile is changed.
+ * Only the most recently used users are kept, so the cache can't grow past a fixed size.
+ */
+@Singleton
+public class PrincipalCache {
+
+    /**
+     * A user, and whether they have a profile, as of when they were loaded. Principals are shared
+     * between requests, so the user is kept as a snapshot only the principal can see, and each
+     * request is given its own copy of it to read or change.
+     */
+    public static class Principal {
+
+        public final Long userId;
+        public final boolean admin;
+        public final boolean hasProfile;
+        private final User user;
+        private final long expiresAt;
+
+        private Principal(User user, boolean hasProfile, long expiresAt) {
+            this.user = copy(user);
+            this.userId = user.id;
+            this.admin = Boolean.TRUE.equals(user.admin);
+            this.hasProfile = hasProfile;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Gets a copy of the user as of when they were loaded, which nothing else holds
+         *
+         * @return New User with the cached user's details
+         */
+        public User getUser() {
+            return copy(user);
+        }
+
+        /**
+         * Copies the details of a user, leaving out their used tags, which are only ever read from
+         * a user loaded from the database
+         */
+        private static User copy(User user) {
+            User copy = new User();
+            copy.id = user.id;
+            copy.username = user.username;
+            copy.password = user.password;
+            copy.salt = user.salt;
+            copy.creationDate = user.creationDate;
+            copy.admin = user.admin;
+            copy.deleted = user.deleted;
+            return copy;
+        }
+    }
+
+    private final UserRepository userRepository;
+    private final ProfileRepository profileRepository;
+
+    // How long an entry is used for before it is loaded again, in milliseconds
+    private final long ttl;
+
+    // Cached principals by user id, least recently used first
+    private final Map<Long, Principal> principals;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    // Incremented on each invalidation, so a load that started before one is never cached
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Constructor which starts listening for changes to users and profiles
+     *
+     * @param userRepository Instance of UserRepository
+     * @param profileRepository Instance of ProfileRepository
+     * @param config Application config containing the principal cache settings
+     */
+    @Inject
+    public PrincipalCache(UserRepository userRepository, ProfileRepository profileRepository,
+        Config config) {
+        this.userRepository = userRepository;
+        this.profileRepository = profileRepository;
+        this.ttl = config.getDuration("auth.principalCache.ttl", TimeUnit.MILLISECONDS);
+
+        int maxSize = config.getInt("auth.principalCache.maxSize");
+        this.principals = Collections.synchronizedMap(
+            new LinkedHashMap<Long, Principal>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Principal> eldest) {
+                    return size() > maxSize;
+                }
+            });
+
+        userRepository.addUserListener(this::invalidate);
+        profileRepository.addProfileListener(this::invalidate);
+    }
+
+    /**
+     * Gets a user and whether they have a profile, from the cache if it holds an entry that has
+     * not expired, otherwise from the database
+     *
+     * @param userId ID of user to get
+     * @return Principal of the user, or null if no such user exists
+     */
+    public CompletableFuture<Principal> get(Long userId) {
+        Principal cached = principals.get(userId);
+        if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+            hits.increment();
+            return CompletableFuture.completedFuture(cached);
+        }
+        misses.increment();
+
+        long loadGeneration = generation.get();
+        return userRepository.findID(userId).thenCombine(profileRepository.findID(userId),
+            (user, profile) -> {
+                if (user == null) {
+                    principals.remove(userId);
+                    return null;
+                }
+                Principal principal = new Principal(user, profile != null,
+                    System.currentTimeMillis() + ttl);
+                synchronized (generation) {
+                    if (loadGeneration == generation.get()) {
+                        principals.put(userId, principal);
+                    }
+                }
+                return principal;
+            });
+    }
+
+    /**
+     * Drops the cached principal of a user, so they are loaded again on their next request
+     *
+     * @param userId ID of user
+     */
+    public void invalidate(Long userId) {
+        synchronized (generation) {
+            generation.incrementAndGet();
+            principals.remove(userId);
+        }
+    }
+
+    /**
+     * Drops every cached principal, e.g after users have been changed outside of the repositories
+     */
+    public void invalidateAll() {
+        synchronized (generation) {
+            generation.incrementAndGet();
+            principals.clear();
+        }
+    }
+
+    /**
+     * Gets the number of times a principal was found in the cache
+     *
+     * @return Number of hits
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of times a principal had to be loaded from the database
+     *
+     * @return Number of misses
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the fraction of lookups that were found in the cache
+     *
+     * @return Hit rate between 0 and 1, 0 if nothing has been looked up yet
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Gets the number of principals currently cached, including any that have expired but not
+     * yet been loaded again
+     *
+     * @return Number of principals cached
+     */
+    public int size() {
+        return principals.size();
+    }
+}
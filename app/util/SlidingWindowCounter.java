@@ -0,0 +1,207 @@
+package util;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import util.objects.Pair;
+
+/**
+ * Counts things (e.g follows) per id over a sliding window of time, as well as in total. Each id
+ * has a ring of fixed size time buckets covering the window, so old counts fall out of the window
+ * bucket by bucket without having to remember every single thing counted.
+ *
+ * The ids with the highest counts in the window are kept ranked as counts change, so getting the
+ * top ids takes constant time. All methods are synchronized, as counts change far less often than
+ * they are read.
+ */
+public class SlidingWindowCounter {
+
+    // Orders by count in the window then id, both highest first
+    private static final Comparator<Pair<Long, Long>> TOP_ORDER = Collections.reverseOrder(
+        Comparator.comparing((Pair<Long, Long> x) -> x.getValue()).thenComparing(Pair::getKey));
+
+    private final long bucketMillis;
+    private final int bucketCount;
+    private final int topSize;
+
+    // Window of each id that has been counted in the window
+    private final Map<Long, Window> windows = new HashMap<>();
+
+    // Total count of each id, regardless of when it was counted
+    private final Map<Long, Long> totals = new HashMap<>();
+
+    // Ids and window counts of the top ids, in order. Replaced rather than modified
+    private volatile List<Pair<Long, Long>> top = Collections.emptyList();
+
+    /**
+     * Ring of buckets for a single id. Each slot holds the count of one bucket of time, and the
+     * number of that bucket since the epoch, so slots left over from a previous lap of the ring
+     * can be recognised as expired.
+     */
+    private class Window {
+
+        private final long[] counts = new long[bucketCount];
+        private final long[] buckets = new long[bucketCount];
+        private long sum = 0;
+
+        /**
+         * Empties every slot whose bucket has fallen out of the window
+         *
+         * @param now Number of the current bucket
+         */
+        private void expire(long now) {
+            for (int i = 0; i < bucketCount; i++) {
+                if (counts[i] != 0 && buckets[i] <= now - bucketCount) {
+                    sum -= counts[i];
+                    counts[i] = 0;
+                }
+            }
+        }
+
+        /**
+         * Adds to the count of a bucket, if it is still in the window
+         *
+         * @param bucket Number of the bucket to add to
+         * @param now Number of the current bucket
+         * @param amount Amount to add, negative to take away
+         */
+        private void add(long bucket, long now, long amount) {
+            if (bucket <= now - bucketCount || bucket > now) {
+                return;
+            }
+
+            int slot = (int) (bucket % bucketCount);
+            if (buckets[slot] != bucket) {
+                sum -= counts[slot];
+                counts[slot] = 0;
+                buckets[slot] = bucket;
+            }
+            counts[slot] += amount;
+            sum += amount;
+        }
+    }
+
+    /**
+     * Creates an empty counter
+     *
+     * @param window Length of the sliding window
+     * @param bucket Length of each bucket of time in the window, smaller is more accurate
+     * @param topSize Number of top ids to keep ranked
+     */
+    public SlidingWindowCounter(Duration window, Duration bucket, int topSize) {
+        this.bucketMillis = bucket.toMillis();
+        this.bucketCount = (int) Math.max(1, window.toMillis() / bucketMillis);
+        this.topSize = topSize;
+    }
+
+    /**
+     * Counts one thing for an id
+     *
+     * @param id ID to count for
+     * @param time Time the thing happened
+     */
+    public synchronized void increment(Long id, Instant time) {
+        totals.merge(id, 1L, Long::sum);
+        change(id, time, 1);
+    }
+
+    /**
+     * Takes back something that was counted for an id. It is only taken out of the window if
+     * the time it happened is still in the window.
+     *
+     * @param id ID to take the count back from
+     * @param time Time the thing being taken back happened
+     */
+    public synchronized void decrement(Long id, Instant time) {
+        totals.computeIfPresent(id, (key, total) -> total > 1 ? total - 1 : null);
+        change(id, time, -1);
+    }
+
+    /**
+     * Gets the total count of an id
+     *
+     * @param id ID to get the count of
+     * @return Total count, 0 if nothing has been counted
+     */
+    public synchronized long getTotal(Long id) {
+        return totals.getOrDefault(id, 0L);
+    }
+
+    /**
+     * Gets the ids with the highest counts in the window
+     *
+     * @return Pairs of id and count in the window, highest first
+     */
+    public List<Pair<Long, Long>> getTop() {
+        return top;
+    }
+
+    /**
+     * Drops everything counted
+     */
+    public synchronized void clear() {
+        windows.clear();
+        totals.clear();
+        top = Collections.emptyList();
+    }
+
+    /**
+     * Moves the window up to now, dropping any counts that have fallen out of it, and ranks the
+     * top ids again. Should be called at least once per bucket of time.
+     */
+    public synchronized void advance() {
+        long now = bucketOf(Instant.now());
+        List<Pair<Long, Long>> ranked = new ArrayList<>();
+        windows.values().removeIf(window -> {
+            window.expire(now);
+            return window.sum <= 0;
+        });
+        windows.forEach((id, window) -> ranked.add(new Pair<>(id, window.sum)));
+
+        ranked.sort(TOP_ORDER);
+        top = Collections.unmodifiableList(
+            new ArrayList<>(ranked.subList(0, Math.min(topSize, ranked.size()))));
+    }
+
+    /**
+     * Changes the window count of an id and moves it to its new place in the top ids
+     */
+    private void change(Long id, Instant time, long amount) {
+        long now = bucketOf(Instant.now());
+        Window window = windows.computeIfAbsent(id, key -> new Window());
+        window.add(bucketOf(time), now, amount);
+
+        List<Pair<Long, Long>> updated = new ArrayList<>(top);
+        boolean wasTop = updated.removeIf(x -> x.getKey().equals(id));
+
+        // An id falling out of the top may let any other id in, so everything is ranked again
+        if (wasTop && amount < 0) {
+            advance();
+            return;
+        }
+
+        if (window.sum > 0) {
+            Pair<Long, Long> entry = new Pair<>(id, window.sum);
+            int index = Collections.binarySearch(updated, entry, TOP_ORDER);
+            updated.add(index < 0 ? -index - 1 : index, entry);
+        } else {
+            windows.remove(id);
+        }
+        if (updated.size() > topSize) {
+            updated.remove(updated.size() - 1);
+        }
+        top = Collections.unmodifiableList(updated);
+    }
+
+    /**
+     * Gets the number of the bucket some time falls in
+     */
+    private long bucketOf(Instant time) {
+        return time.toEpochMilli() / bucketMillis;
+    }
+}
@@ -0,0 +1,130 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import models.Photo;
+import models.enums.PhotoState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import repository.PhotoRepository;
+
+/**
+ * Generates the thumbnails of uploaded photos in the background, so uploading only has to store
+ * the originals. Each photo is processing until its thumbnail has been written, then its
+ * thumbnail filename is filled in. Photos left processing when the application stopped are
+ * picked up again when it starts.
+ */
+@Singleton
+public class ThumbnailGenerator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ThumbnailGenerator.class);
+
+    // Dimensions of thumbnail images
+    private static final int THUMB_WIDTH = 400;
+    private static final int THUMB_HEIGHT = 266;
+    private static final int PROFILE_THUMB_WIDTH = 150;
+    private static final int PROFILE_THUMB_HEIGHT = 150;
+
+    private final PhotoRepository photoRepository;
+    private final ImageExecutionContext imageExecutionContext;
+
+    /**
+     * Constructor which queues any photos that are still waiting for their thumbnails
+     *
+     * @param photoRepository Instance of PhotoRepository
+     * @param imageExecutionContext Pool thumbnails are generated on
+     */
+    @Inject
+    public ThumbnailGenerator(PhotoRepository photoRepository,
+        ImageExecutionContext imageExecutionContext) {
+        this.photoRepository = photoRepository;
+        this.imageExecutionContext = imageExecutionContext;
+
+        photoRepository.getPhotosByProcessingState(PhotoState.PROCESSING)
+            .thenAccept(photos -> photos.forEach(this::generate))
+            .exceptionally(e -> {
+                LOGGER.error("Failed to queue photos waiting for thumbnails", e);
+                return null;
+            });
+    }
+
+    /**
+     * Queues a photo to have its thumbnail generated from its stored original. Profile photos get
+     * a smaller, square thumbnail. Photos sharing a stored file share its thumbnails too, so if
+     * the thumbnail already exists it is used as it is.
+     *
+     * @param photo Photo that has been added, with its original already stored
+     * @return Future of the photo's processing state once it has been processed
+     */
+    public CompletableFuture<PhotoState> generate(Photo photo) {
+        Long photoId = photo.guid;
+        boolean profileSize = Boolean.TRUE.equals(photo.usedForProfile);
+        String filename = photo.filename;
+        Path original = Paths.get(filename);
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return writeThumbnail(original, profileSize);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, imageExecutionContext).handle((thumbnail, error) -> {
+            if (error != null) {
+                LOGGER.warn("Failed to generate thumbnail of photo {}", photoId, error);
+                return photoRepository.setThumbnail(photoId, null, PhotoState.FAILED)
+                    .thenApply(updated -> PhotoState.FAILED);
+            }
+            return photoRepository.setThumbnail(photoId, thumbnail, PhotoState.READY)
+                .thenCompose(updated -> {
+                    String storageKey = PhotoStorage.storageKey(filename);
+                    if (updated || storageKey == null) {
+                        return CompletableFuture.completedFuture(PhotoState.READY);
+                    }
+                    // The photo was deleted while it was being processed, so the thumbnail
+                    // may have been written for a file no photo uses any more. It is deleted
+                    // along with the file, unless another photo still uses it
+                    return photoRepository
+                        .deleteUnusedFiles(Collections.singletonList(storageKey))
+                        .thenApply(freed -> PhotoState.READY);
+                });
+        }).thenCompose(state -> state);
+    }
+
+    /**
+     * Reads an original and writes its thumbnail, scaling it down to fit the thumbnail size and
+     * filling the rest with white, unless another photo with the same original already has. The
+     * original is decoded once, at no more than the resolution the thumbnail needs.
+     *
+     * @param original Path of the stored original
+     * @param profileSize Whether to use the profile photo thumbnail size
+     * @return Filename of the thumbnail
+     * @throws IOException Thrown when the original can't be read as an image, or the thumbnail
+     * can't be written
+     */
+    private String writeThumbnail(Path original, boolean profileSize) throws IOException {
+        int thumbWidth = profileSize ? PROFILE_THUMB_WIDTH : THUMB_WIDTH;
+        int thumbHeight = profileSize ? PROFILE_THUMB_HEIGHT : THUMB_HEIGHT;
+
+        Path thumbnail = PhotoStorage.thumbnailPath(original, profileSize);
+        if (Files.exists(thumbnail)) {
+            return thumbnail.toString();
+        }
+
+        // Decoded only as large as the thumbnail needs, never at full resolution
+        BufferedImage thumbImage = ImageProcessor.fit(
+            ImageProcessor.decode(original, thumbWidth, thumbHeight), thumbWidth, thumbHeight);
+
+        Files.createDirectories(thumbnail.getParent());
+        ImageProcessor.writeJpeg(thumbImage, thumbnail);
+
+        return thumbnail.toString();
+    }
+}
@@ -0,0 +1,242 @@
+package util;
+
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import com.typesafe.config.Config;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import models.NewsFeedEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import play.inject.ApplicationLifecycle;
+import repository.DatabaseExecutionContext;
+import repository.NewsFeedEventRepository;
+import scala.concurrent.duration.Duration;
+import util.objects.PageCursor;
+import util.objects.Pair;
+
+/**
+ * Serves the explore feed from trending scores that are stored on each event. The scores are
+ * updated by the repository as events are added, liked and unliked, and decayed for every event
+ * on a schedule. The top trending events are kept ranked in memory, so most pages of the explore
+ * feed are served without going to the database for their order at all, and deeper pages use the
+ * index on the scores.
+ */
+@Singleton
+public class TrendingEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TrendingEngine.class);
+
+    // Orders by trending score then guid, both highest first
+    private static final Comparator<Pair<Long, Double>> TRENDING_ORDER = Collections.reverseOrder(
+        Comparator.comparing((Pair<Long, Double> x) -> x.getValue()).thenComparing(Pair::getKey));
+
+    private final NewsFeedEventRepository newsFeedEventRepository;
+
+    // Number of top trending events kept ranked in memory
+    private final int topSize;
+
+    // Ids and scores of the top trending events, in trending order. Replaced rather than modified
+    private volatile List<Pair<Long, Double>> ranking = Collections.emptyList();
+
+    // Whether ranking holds every event, rather than just the top ones
+    private volatile boolean complete = false;
+
+    // Whether the scores have been decayed and ranked at least once
+    private volatile boolean ranked = false;
+
+    // Number of events, as of the last time they were ranked
+    private volatile int eventCount = 0;
+
+    // Time the events were last ranked at
+    private volatile LocalDateTime rankedAt = LocalDateTime.now();
+
+    /**
+     * Constructor which starts the schedule that decays and re-ranks all trending scores
+     *
+     * @param newsFeedEventRepository Instance of NewsFeedEventRepository
+     * @param config Application config containing the trending settings
+     * @param actorSystem Actor system used to schedule decaying the scores
+     * @param executionContext Database execution context the decay runs on
+     * @param lifecycle Application lifecycle, used to stop the schedule on shutdown
+     */
+    @Inject
+    public TrendingEngine(NewsFeedEventRepository newsFeedEventRepository, Config config,
+        ActorSystem actorSystem, DatabaseExecutionContext executionContext,
+        ApplicationLifecycle lifecycle) {
+        this.newsFeedEventRepository = newsFeedEventRepository;
+        this.topSize = config.getInt("trending.topSize");
+
+        newsFeedEventRepository.addTrendingListener(this::updateScore);
+
+        long interval = config.getDuration("trending.decayInterval", TimeUnit.MILLISECONDS);
+        Cancellable decaySchedule = actorSystem.scheduler().schedule(
+            Duration.create(0, TimeUnit.MILLISECONDS),
+            Duration.create(interval, TimeUnit.MILLISECONDS),
+            this::decay,
+            executionContext);
+
+        lifecycle.addStopHook(() -> {
+            decaySchedule.cancel();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Recalculates the trending score of every event as they get older, then re-ranks the top
+     * trending events in memory. Runs on a schedule, but can be called at any time.
+     */
+    public void decay() {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            newsFeedEventRepository.decayTrendingScores();
+
+            // Read the new ranking while holding the lock, so no score updates are lost
+            synchronized (this) {
+                List<Pair<Long, Double>> top = newsFeedEventRepository
+                    .getTopTrendingScores(topSize);
+                eventCount = newsFeedEventRepository.countEvents();
+                complete = top.size() < topSize;
+                ranking = Collections.unmodifiableList(top);
+                rankedAt = now;
+                ranked = true;
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to decay trending scores", e);
+        }
+    }
+
+    /**
+     * Gets a page of events in trending order, with the total number of pages
+     *
+     * @param pageNum Page number to get
+     * @param pageSize Number of events per page
+     * @return Pair of the events on the page, and the total number of pages
+     */
+    public CompletableFuture<Pair<List<NewsFeedEvent>, Integer>> getPage(Integer pageNum,
+        Integer pageSize) {
+        List<Pair<Long, Double>> snapshot = ranking;
+        int firstRow = (pageNum - 1) * pageSize;
+
+        CompletableFuture<List<NewsFeedEvent>> events;
+        if (ranked && (complete || firstRow + pageSize <= snapshot.size())) {
+            events = newsFeedEventRepository.getEventsInOrder(snapshot.stream()
+                .skip(firstRow)
+                .limit(pageSize)
+                .map(Pair::getKey)
+                .collect(Collectors.toList()));
+        } else {
+            events = newsFeedEventRepository.getEventsByTrendingScore(firstRow, pageSize);
+        }
+
+        // Until the first ranking there is no count kept, so it is fetched
+        return events.thenApply(page -> {
+            int count = ranked ? eventCount : newsFeedEventRepository.countEvents();
+            return new Pair<>(page, (count + pageSize - 1) / pageSize);
+        });
+    }
+
+    /**
+     * Gets the page of events straight after some cursor in trending order
+     *
+     * @param cursor Position of the last event of the previous page, null for the first page
+     * @param pageSize Number of events per page
+     * @return Pair of the events on the page, and the cursor to the next page (null if none)
+     */
+    public CompletableFuture<Pair<List<NewsFeedEvent>, PageCursor>> getPageAfter(
+        PageCursor cursor, Integer pageSize) {
+        List<Pair<Long, Double>> snapshot = ranking;
+        int start = cursor == null ? 0 : positionAfter(snapshot, cursor);
+
+        // Get one more than needed, so we know whether there is another page after this one
+        if (ranked && (complete || start + pageSize + 1 <= snapshot.size())) {
+            List<Pair<Long, Double>> entries = snapshot.subList(start,
+                Math.min(start + pageSize + 1, snapshot.size()));
+            PageCursor nextCursor = null;
+            if (entries.size() > pageSize) {
+                Pair<Long, Double> last = entries.get(pageSize - 1);
+                nextCursor = new PageCursor(rankedAt, last.getKey(), last.getValue());
+                entries = entries.subList(0, pageSize);
+            }
+
+            PageCursor next = nextCursor;
+            return newsFeedEventRepository.getEventsInOrder(entries.stream()
+                .map(Pair::getKey)
+                .collect(Collectors.toList()))
+                .thenApply(events -> new Pair<>(events, next));
+        }
+
+        CompletableFuture<List<NewsFeedEvent>> events = cursor == null
+            ? newsFeedEventRepository.getEventsByTrendingScore(0, pageSize + 1)
+            : newsFeedEventRepository
+                .getEventsByTrendingScoreAfter(cursor.getScore(), cursor.getGuid(), pageSize + 1);
+
+        return events.thenApply(found -> {
+            if (found.size() <= pageSize) {
+                return new Pair<>(found, null);
+            }
+            List<NewsFeedEvent> page = new ArrayList<>(found.subList(0, pageSize));
+            NewsFeedEvent last = page.get(pageSize - 1);
+            return new Pair<>(page, new PageCursor(rankedAt, last.guid, last.trendingScore));
+        });
+    }
+
+    /**
+     * Moves an event to its new place in the ranking when its score changes. The ranking always
+     * stays the exact top of all events, so an event that falls below the lowest ranked event is
+     * dropped from it, until the next decay ranks everything again.
+     *
+     * @param eventId ID of event whose score has changed
+     * @param score New trending score of the event, null if it is no longer ranked on its own
+     */
+    private synchronized void updateScore(Long eventId, Double score) {
+        if (!ranked) {
+            return;
+        }
+
+        List<Pair<Long, Double>> updated = new ArrayList<>(ranking);
+        boolean wasRanked = updated.removeIf(x -> x.getKey().equals(eventId));
+
+        if (score == null) {
+            if (wasRanked) {
+                ranking = Collections.unmodifiableList(updated);
+            }
+            return;
+        }
+
+        Pair<Long, Double> entry = new Pair<>(eventId, score);
+        int index = Collections.binarySearch(updated, entry, TRENDING_ORDER);
+        index = index < 0 ? -index - 1 : index;
+
+        // Only rank the event if it is above the lowest ranked event, or everything is ranked
+        if (complete || index < updated.size()) {
+            updated.add(index, entry);
+        }
+        if (updated.size() > topSize) {
+            updated.remove(updated.size() - 1);
+            complete = false;
+        }
+        ranking = Collections.unmodifiableList(updated);
+    }
+
+    /**
+     * Finds the index of the first ranked event that comes after a cursor in trending order
+     *
+     * @param snapshot Ranking to search
+     * @param cursor Position of the last event of the previous page
+     * @return Index of the first event after the cursor
+     */
+    private int positionAfter(List<Pair<Long, Double>> snapshot, PageCursor cursor) {
+        int index = Collections.binarySearch(snapshot,
+            new Pair<>(cursor.getGuid(), cursor.getScore()), TRENDING_ORDER);
+        return index < 0 ? -index - 1 : index + 1;
+    }
+}
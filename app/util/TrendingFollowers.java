@@ -0,0 +1,234 @@
+package util;
+
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import com.typesafe.config.Config;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import models.Destination;
+import models.Profile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import play.inject.ApplicationLifecycle;
+import repository.DatabaseExecutionContext;
+import repository.DestinationRepository;
+import repository.ProfileRepository;
+import repository.UserRepository;
+import scala.concurrent.duration.Duration;
+import util.objects.Pair;
+
+/**
+ * Keeps track of which users and destinations have gained the most followers recently, so the
+ * trending users and destinations can be served without going to the database. Follows are
+ * counted in memory over a sliding window as they happen, along with each one's total number of
+ * followers, and the top profiles and destinations are loaded whenever the top changes.
+ */
+@Singleton
+public class TrendingFollowers {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TrendingFollowers.class);
+
+    private final UserRepository userRepository;
+    private final DestinationRepository destinationRepository;
+    private final ProfileRepository profileRepository;
+
+    private final SlidingWindowCounter userFollows;
+    private final SlidingWindowCounter destinationFollows;
+
+    // Top profiles and destinations, in trending order. Replaced rather than modified
+    private volatile List<Profile> trendingUsers = Collections.emptyList();
+    private volatile List<Destination> trendingDestinations = Collections.emptyList();
+
+    // Incremented on each load, so a slow load never overwrites the result of a newer one
+    private final AtomicLong userGeneration = new AtomicLong();
+    private final AtomicLong destinationGeneration = new AtomicLong();
+
+    /**
+     * Constructor which loads every follow, and starts the schedule that moves the window along
+     *
+     * @param userRepository Instance of UserRepository
+     * @param destinationRepository Instance of DestinationRepository
+     * @param profileRepository Instance of ProfileRepository
+     * @param config Application config containing the trending settings
+     * @param actorSystem Actor system used to schedule moving the window
+     * @param executionContext Database execution context the refreshes run on
+     * @param lifecycle Application lifecycle, used to stop the schedule on shutdown
+     */
+    @Inject
+    public TrendingFollowers(UserRepository userRepository,
+        DestinationRepository destinationRepository, ProfileRepository profileRepository,
+        Config config, ActorSystem actorSystem, DatabaseExecutionContext executionContext,
+        ApplicationLifecycle lifecycle) {
+        this.userRepository = userRepository;
+        this.destinationRepository = destinationRepository;
+        this.profileRepository = profileRepository;
+
+        java.time.Duration window = config.getDuration("trending.followers.window");
+        java.time.Duration bucket = config.getDuration("trending.followers.bucket");
+        int topSize = config.getInt("trending.followers.topSize");
+        userFollows = new SlidingWindowCounter(window, bucket, topSize);
+        destinationFollows = new SlidingWindowCounter(window, bucket, topSize);
+
+        userRepository.addFollowerListener((follower, followed) ->
+            count(userFollows, follower.userId, follower.followTime, followed,
+                this::loadTrendingUsers));
+        destinationRepository.addFollowerListener((follower, followed) ->
+            count(destinationFollows, follower.destinationId, follower.followTime, followed,
+                this::loadTrendingDestinations));
+
+        rebuild();
+
+        long interval = config.getDuration("trending.followers.refreshInterval",
+            TimeUnit.MILLISECONDS);
+        Cancellable refreshSchedule = actorSystem.scheduler().schedule(
+            Duration.create(interval, TimeUnit.MILLISECONDS),
+            Duration.create(interval, TimeUnit.MILLISECONDS),
+            this::refresh,
+            executionContext);
+
+        lifecycle.addStopHook(() -> {
+            refreshSchedule.cancel();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Gets the users who have gained the most followers recently, with their follower counts
+     *
+     * @return List of trending profiles, most followed first
+     */
+    public List<Profile> getTrendingUsers() {
+        return trendingUsers;
+    }
+
+    /**
+     * Gets the destinations that have gained the most followers recently, with their follower
+     * counts
+     *
+     * @return List of trending destinations, most followed first
+     */
+    public List<Destination> getTrendingDestinations() {
+        return trendingDestinations;
+    }
+
+    /**
+     * Moves the window along, dropping follows that have fallen out of it, and loads the top
+     * profiles and destinations again so any changes to them are picked up. Runs on a schedule.
+     */
+    public void refresh() {
+        try {
+            userFollows.advance();
+            destinationFollows.advance();
+            CompletableFuture.allOf(loadTrendingUsers(), loadTrendingDestinations()).join();
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to refresh trending followers", e);
+        }
+    }
+
+    /**
+     * Drops everything counted, then counts every follow in the database again
+     */
+    public synchronized void rebuild() {
+        try {
+            userFollows.clear();
+            destinationFollows.clear();
+            for (Pair<Long, LocalDateTime> follow : userRepository.getAllFollows()) {
+                userFollows.increment(follow.getKey(), toInstant(follow.getValue()));
+            }
+            for (Pair<Long, LocalDateTime> follow : destinationRepository.getAllFollows()) {
+                destinationFollows.increment(follow.getKey(), toInstant(follow.getValue()));
+            }
+            refresh();
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to rebuild trending followers", e);
+        }
+    }
+
+    /**
+     * Counts a follow or unfollow, and loads the top again if it was or now is in the top
+     */
+    private void count(SlidingWindowCounter counter, Long id, LocalDateTime followTime,
+        boolean followed, Runnable load) {
+        boolean wasTop = isTop(counter, id);
+        if (followed) {
+            counter.increment(id, toInstant(followTime));
+        } else {
+            counter.decrement(id, toInstant(followTime));
+        }
+        if (wasTop || isTop(counter, id)) {
+            load.run();
+        }
+    }
+
+    /**
+     * Loads the profiles of the top users, with their follower counts
+     */
+    private CompletableFuture<Void> loadTrendingUsers() {
+        long generation = userGeneration.incrementAndGet();
+        List<Long> ids = topIds(userFollows);
+        return profileRepository.findIDs(ids).thenAccept(found -> {
+            List<Profile> ordered = inOrder(ids, found, x -> x.userId);
+            ordered.forEach(x -> x.followerUsersCount = userFollows.getTotal(x.userId));
+            synchronized (userGeneration) {
+                if (generation == userGeneration.get()) {
+                    trendingUsers = ordered;
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the top destinations, with their follower counts
+     */
+    private CompletableFuture<Void> loadTrendingDestinations() {
+        long generation = destinationGeneration.incrementAndGet();
+        List<Long> ids = topIds(destinationFollows);
+        return destinationRepository.getDestinationsByIds(ids).thenAccept(found -> {
+            List<Destination> ordered = inOrder(ids, found, x -> x.id);
+            ordered.forEach(x -> x.followerCount = destinationFollows.getTotal(x.id));
+            synchronized (destinationGeneration) {
+                if (generation == destinationGeneration.get()) {
+                    trendingDestinations = ordered;
+                }
+            }
+        });
+    }
+
+    private static boolean isTop(SlidingWindowCounter counter, Long id) {
+        return counter.getTop().stream().anyMatch(x -> x.getKey().equals(id));
+    }
+
+    private static List<Long> topIds(SlidingWindowCounter counter) {
+        return counter.getTop().stream().map(Pair::getKey).collect(Collectors.toList());
+    }
+
+    /**
+     * Puts found entities in the order of the ids given, leaving out ids with nothing found
+     */
+    private static <T> List<T> inOrder(List<Long> ids, List<T> found, Function<T, Long> getId) {
+        Map<Long, T> byId = found.stream().collect(Collectors.toMap(getId, x -> x));
+        return Collections.unmodifiableList(ids.stream()
+            .map(byId::get)
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList()));
+    }
+
+    /**
+     * Converts a follow time to an instant, treating follows with no time as long ago
+     */
+    private static Instant toInstant(LocalDateTime time) {
+        return time == null ? Instant.EPOCH : time.atZone(ZoneId.systemDefault()).toInstant();
+    }
+}
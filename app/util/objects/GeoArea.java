@@ -0,0 +1,150 @@
+package util.objects;
+
+/**
+ * An area of the map to find destinations in, either a circle around a point or a bounding box.
+ * Either way it has a centre that distances are measured from, and a box around it that can be
+ * looked up in a grid. A box whose west edge is east of its east edge crosses the 180th meridian.
+ */
+public class GeoArea {
+
+    // Mean radius of the earth, in kilometres
+    private static final double EARTH_RADIUS_KM = 6371.0;
+
+    private final double centreLatitude;
+    private final double centreLongitude;
+
+    // Radius of a circle in kilometres, null for a bounding box
+    private final Double radius;
+
+    private final double south;
+    private final double north;
+    private final double west;
+    private final double east;
+
+    private GeoArea(double centreLatitude, double centreLongitude, Double radius, double south,
+        double north, double west, double east) {
+        this.centreLatitude = centreLatitude;
+        this.centreLongitude = centreLongitude;
+        this.radius = radius;
+        this.south = south;
+        this.north = north;
+        this.west = west;
+        this.east = east;
+    }
+
+    /**
+     * Creates the area within a distance of a point. Its box is the smallest one around the
+     * circle, which is every longitude if the circle covers a pole.
+     *
+     * @param latitude Latitude of the centre
+     * @param longitude Longitude of the centre
+     * @param radius Radius in kilometres
+     * @return Circular area
+     */
+    public static GeoArea circle(double latitude, double longitude, double radius) {
+        double angle = radius / EARTH_RADIUS_KM;
+        double latitudeDelta = Math.toDegrees(angle);
+        double south = latitude - latitudeDelta;
+        double north = latitude + latitudeDelta;
+        if (south <= -90 || north >= 90) {
+            return new GeoArea(latitude, longitude, radius, Math.max(south, -90),
+                Math.min(north, 90), -180, 180);
+        }
+
+        // Widest the circle gets in longitude, which is north of its centre in the south and
+        // south of its centre in the north
+        double longitudeDelta = Math.toDegrees(
+            Math.asin(Math.sin(angle) / Math.cos(Math.toRadians(latitude))));
+        return new GeoArea(latitude, longitude, radius, south, north,
+            wrapLongitude(longitude - longitudeDelta), wrapLongitude(longitude + longitudeDelta));
+    }
+
+    /**
+     * Creates the area inside a bounding box. Distances are measured from its centre.
+     *
+     * @param south Latitude of the south edge
+     * @param west Longitude of the west edge
+     * @param north Latitude of the north edge
+     * @param east Longitude of the east edge, west of the west edge if the box crosses the 180th
+     * meridian
+     * @return Bounding box area
+     */
+    public static GeoArea box(double south, double west, double north, double east) {
+        double width = east >= west ? east - west : east - west + 360;
+        return new GeoArea((south + north) / 2, wrapLongitude(west + width / 2), null, south,
+            north, west, east);
+    }
+
+    public double getSouth() {
+        return south;
+    }
+
+    public double getNorth() {
+        return north;
+    }
+
+    public double getWest() {
+        return west;
+    }
+
+    public double getEast() {
+        return east;
+    }
+
+    /**
+     * Checks whether the area's box crosses the 180th meridian
+     *
+     * @return True if the west edge is east of the east edge
+     */
+    public boolean crossesAntimeridian() {
+        return west > east;
+    }
+
+    /**
+     * Checks whether a point is in the area
+     *
+     * @param latitude Latitude of the point
+     * @param longitude Longitude of the point
+     * @return True if the point is in the area
+     */
+    public boolean contains(double latitude, double longitude) {
+        if (latitude < south || latitude > north) {
+            return false;
+        } else if (radius != null) {
+            return distanceTo(latitude, longitude) <= radius;
+        } else if (crossesAntimeridian()) {
+            return longitude >= west || longitude <= east;
+        } else {
+            return longitude >= west && longitude <= east;
+        }
+    }
+
+    /**
+     * Gets the great circle distance from the centre of the area to a point, using the haversine
+     * formula
+     *
+     * @param latitude Latitude of the point
+     * @param longitude Longitude of the point
+     * @return Distance in kilometres
+     */
+    public double distanceTo(double latitude, double longitude) {
+        double latitudeDelta = Math.toRadians(latitude - centreLatitude);
+        double longitudeDelta = Math.toRadians(longitude - centreLongitude);
+        double haversine = Math.pow(Math.sin(latitudeDelta / 2), 2)
+            + Math.cos(Math.toRadians(centreLatitude)) * Math.cos(Math.toRadians(latitude))
+            * Math.pow(Math.sin(longitudeDelta / 2), 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(haversine)));
+    }
+
+    /**
+     * Brings a longitude back between -180 and 180
+     */
+    private static double wrapLongitude(double longitude) {
+        if (longitude < -180) {
+            return longitude + 360;
+        } else if (longitude > 180) {
+            return longitude - 360;
+        }
+        return longitude;
+    }
+}
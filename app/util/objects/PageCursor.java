@@ -0,0 +1,94 @@
+package util.objects;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * An opaque position in a news feed, used for keyset (cursor) pagination. Points at the last item
+ * of a page by its created time and guid, so the next page can start straight after it rather
+ * than skipping over an offset.
+ *
+ * For feeds ordered by a score (e.g explore), the score of the last item is carried as well, and
+ * created is the time the scores were calculated at so that later pages rank the same way.
+ */
+public class PageCursor {
+
+    private static final String SEPARATOR = "_";
+
+    private final LocalDateTime created;
+    private final Long guid;
+    private final Double score;
+
+    /**
+     * Creates a cursor for a feed ordered by created time
+     *
+     * @param created Created time of the last item on the page
+     * @param guid Guid of the last item on the page
+     */
+    public PageCursor(LocalDateTime created, Long guid) {
+        this(created, guid, null);
+    }
+
+    /**
+     * Creates a cursor for a feed ordered by score
+     *
+     * @param created Time the scores were calculated at
+     * @param guid Guid of the last item on the page
+     * @param score Score of the last item on the page
+     */
+    public PageCursor(LocalDateTime created, Long guid, Double score) {
+        this.created = created;
+        this.guid = guid;
+        this.score = score;
+    }
+
+    public LocalDateTime getCreated() {
+        return created;
+    }
+
+    public Long getGuid() {
+        return guid;
+    }
+
+    public Double getScore() {
+        return score;
+    }
+
+    /**
+     * Encodes this cursor into the url safe string handed to the frontend
+     *
+     * @return Encoded cursor
+     */
+    public String encode() {
+        String raw = created + SEPARATOR + guid + (score == null ? "" : SEPARATOR + score);
+        return Base64.getUrlEncoder().withoutPadding()
+            .encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a cursor string given by the frontend
+     *
+     * @param cursor Encoded cursor, null or empty for the first page
+     * @return The decoded cursor, or null if the first page was requested
+     * @throws IllegalArgumentException If the cursor is not one that was created by encode()
+     */
+    public static PageCursor decode(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor),
+                StandardCharsets.UTF_8).split(SEPARATOR);
+            if (parts.length < 2 || parts.length > 3) {
+                throw new IllegalArgumentException("Malformed cursor");
+            }
+            return new PageCursor(LocalDateTime.parse(parts[0]), Long.valueOf(parts[1]),
+                parts.length == 3 ? Double.valueOf(parts[2]) : null);
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed cursor", e);
+        }
+    }
+}
@@ -7,6 +7,7 @@ public class PagingResponse<T> {
     public List<T> data;
     public Integer requestOrder;
     public Integer totalNumberPages;
+    public String nextCursor;
 
     /**
      * Constructor to initialize a paging response object, this is the only chance to set values
@@ -21,6 +22,19 @@ public class PagingResponse<T> {
         this.totalNumberPages = totalNumberPages;
     }
 
+    /**
+     * Constructor to initialize a cursor paged response, where no total page count is calculated
+     *
+     * @param data The collection of data returned for the current page / pagesize
+     * @param requestOrder The order this request was sent in, keeps track of which request is most recent
+     * @param nextCursor Cursor to request the next page with, or null if this was the last page
+     */
+    public PagingResponse(List<T> data, Integer requestOrder, String nextCursor) {
+        this.data = data;
+        this.requestOrder = requestOrder;
+        this.nextCursor = nextCursor;
+    }
+
     /**
      * Empty constructor for getting class when deserializing
      */
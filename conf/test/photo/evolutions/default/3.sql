@@ -0,0 +1,73 @@
+-- !Ups
+
+-- Thumbnails are generated in the background after upload, so a photo has none until then
+ALTER TABLE Photo MODIFY COLUMN thumbnail_filename VARCHAR(256) NULL;
+ALTER TABLE Photo ADD COLUMN processing_state VARCHAR(16) NOT NULL DEFAULT 'READY';
+
+-- Create PhotoFile table, which has a row for each stored photo file however many photos use it
+CREATE TABLE IF NOT EXISTS PhotoFile
+  (
+    filename              VARCHAR(256) NOT NULL,
+    stored                DATETIME DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (filename)
+  );
+
+-- Grid cells used to find similar destinations
+ALTER TABLE Destination ADD COLUMN lat_cell INT;
+ALTER TABLE Destination ADD COLUMN lng_cell INT;
+CREATE INDEX destination_cell_index ON Destination (lat_cell, lng_cell);
+
+-- Like counts and trending scores of news feed events, and the event each is grouped into
+ALTER TABLE NewsFeedEvent ADD COLUMN like_count INT NOT NULL DEFAULT 0;
+ALTER TABLE NewsFeedEvent ADD COLUMN trending_score DOUBLE NOT NULL DEFAULT 0;
+ALTER TABLE NewsFeedEvent ADD COLUMN group_id INT;
+ALTER TABLE NewsFeedEvent ADD CONSTRAINT news_feed_event_group_fk
+  FOREIGN KEY (group_id) REFERENCES NewsFeedEvent(guid) ON DELETE SET NULL;
+CREATE INDEX trending_index ON NewsFeedEvent (trending_score, guid);
+CREATE INDEX group_index ON NewsFeedEvent (group_id);
+
+-- Create NewsFeedTimeline table, which stores a per follower inbox of news feed events
+-- that is appended to when an event is written (fan out on write)
+CREATE TABLE IF NOT EXISTS NewsFeedTimeline
+  (
+    guid              INT NOT NULL AUTO_INCREMENT,
+    follower_id       INT NOT NULL,
+    event_id          INT NOT NULL,
+    created           DATETIME DEFAULT CURRENT_TIMESTAMP,
+    FOREIGN KEY (follower_id) REFERENCES User(id) ON DELETE CASCADE,
+    FOREIGN KEY (event_id) REFERENCES NewsFeedEvent(guid) ON DELETE CASCADE,
+    PRIMARY KEY (guid),
+    INDEX timeline_index (follower_id, created, event_id),
+    UNIQUE (follower_id, event_id)
+  );
+
+-- Fan out the existing events into the timelines of everyone following their user or destination
+INSERT INTO NewsFeedTimeline (follower_id, event_id, created)
+  SELECT F.follower_id, E.guid, E.created FROM NewsFeedEvent E
+    JOIN FollowerUser F ON F.user_id = E.user_id AND F.deleted = 0
+  UNION
+  SELECT F.follower_id, E.guid, E.created FROM NewsFeedEvent E
+    JOIN FollowerDestination F ON F.destination_id = E.dest_id AND F.deleted = 0;
+
+-- Count the existing likes onto their events for the trending scores, which are calculated
+-- when the application starts
+UPDATE NewsFeedEvent E SET like_count = (SELECT COUNT(*) FROM Likes L WHERE L.event_id = E.guid AND L.deleted = 0);
+
+-- Put the existing destinations into their grid cells
+UPDATE Destination SET lat_cell = FLOOR(latitude * 1000), lng_cell = FLOOR(longitude * 1000) WHERE lat_cell IS NULL;
+
+-- !Downs
+DROP TABLE NewsFeedTimeline;
+ALTER TABLE NewsFeedEvent DROP CONSTRAINT news_feed_event_group_fk;
+DROP INDEX group_index ON NewsFeedEvent;
+DROP INDEX trending_index ON NewsFeedEvent;
+ALTER TABLE NewsFeedEvent DROP COLUMN group_id;
+ALTER TABLE NewsFeedEvent DROP COLUMN trending_score;
+ALTER TABLE NewsFeedEvent DROP COLUMN like_count;
+DROP INDEX destination_cell_index ON Destination;
+ALTER TABLE Destination DROP COLUMN lng_cell;
+ALTER TABLE Destination DROP COLUMN lat_cell;
+DROP TABLE PhotoFile;
+ALTER TABLE Photo DROP COLUMN processing_state;
+UPDATE Photo SET thumbnail_filename = filename WHERE thumbnail_filename IS NULL;
+ALTER TABLE Photo MODIFY COLUMN thumbnail_filename VARCHAR(256) NOT NULL;
@@ -1,6 +1,7 @@
 $(document).ready(function () {
     getUserId().then(userId => {
         mainFeed = new NewsFeed(userId, 'main-feed',
-            newsFeedRouter.controllers.backend.NewsFeedController.getMainNewsFeed().url);
+            newsFeedRouter.controllers.backend.NewsFeedController.getMainNewsFeed().url,
+            newsFeedRouter.controllers.backend.NewsFeedController.getLiveNewsFeed().url);
     });
 });
\ No newline at end of file
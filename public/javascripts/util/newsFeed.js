@@ -9,8 +9,9 @@ class NewsFeed {
      * @param {Number} userId - ID of logged in user for suggesting tags
      * @param {String} id - ID for instance of class to define differences per page
      * @param {String} URL - URL of the newsfeed
+     * @param {String} liveURL - URL of the stream of new events, null if the feed is not live
      */
-    constructor(userId, id, URL) {
+    constructor(userId, id, URL, liveURL = null) {
         this.PAGE_SIZE = 4;
         this.EMPTY_NEWS_FEED = 'Nothing in the news feed!';
         this.NO_MORE_LOAD = 'Nothing more to load!';
@@ -19,15 +20,57 @@ class NewsFeed {
         this.URL = URL;
         this.feed = $(`#${this.id}`);
         this.pageNumber = 0;
+        this.cursor = '';
         this.data = {};
         this.getPage();
         $(window).scroll(this.scrollHandler.bind(this));
+        if (liveURL) {
+            this.listenForNewEvents(liveURL);
+        }
+    }
+
+    /**
+     * Adds new events to the top of the feed as the server pushes them, rather than fetching
+     * the feed again to look for them. The browser reconnects by itself if the stream drops.
+     *
+     * @param {String} liveURL - URL of the stream of new events
+     */
+    listenForNewEvents(liveURL) {
+        const source = new EventSource(liveURL);
+        source.onmessage = (message) => {
+            this.addNewEvent(JSON.parse(message.data));
+        };
+        $(window).on('beforeunload', () => source.close());
+    }
+
+    /**
+     * Puts a card for a new event at the top of the feed. A new event can take over a group of
+     * earlier events, so any card already showing one of its events is removed first.
+     *
+     * @param {Object} event - news feed response item of the new event
+     */
+    addNewEvent(event) {
+        const createCard = NewsFeedEventTypes[event.eventType];
+        if (typeof createCard !== "function") {
+            return;
+        }
+        for (const eventId of event.eventIds) {
+            this.feed.find(`.likes-button[data-event-id="${eventId}"]`)
+            .closest('.news-feed-wrapper').remove();
+        }
+        this.feed.find('.empty-feed-splash').css({"display": "none"});
+        this.feed.find('#explore-btn').css({"display": "none"});
+        this.feed.find(".news-feed-body").prepend(createCard(event));
     }
 
     /**
      * Gets next page of data
      */
     getPage() {
+        // A null cursor means the last page has already been loaded
+        if (this.cursor === null) {
+            return;
+        }
         const url = this.createURL();
         get(url)
         .then(response => {
@@ -37,14 +80,15 @@ class NewsFeed {
             }
             response.json()
             .then(json => {
-                if (response.status !== 200 || json.totalNumberPages
-                    <= this.pageNumber) {
-                    this.noMorePages();
-                    return;
-                }
                 if (this.insertData(json.requestOrder, json.data)) {
                     this.createCards(json.data);
-                    this.pageNumber++;
+                    if (json.data.length) {
+                        this.pageNumber++;
+                    }
+                    this.cursor = json.nextCursor;
+                    if (this.cursor === null) {
+                        this.noMorePages();
+                    }
                 }
             });
         });
@@ -68,7 +112,7 @@ class NewsFeed {
     }
 
     /**
-     * Creates an updated url for the news feed with page number and size
+     * Creates an updated url for the news feed with the cursor to the next page and page size
      */
     createURL() {
         const pageNumber = this.pageNumber + 1;
@@ -76,7 +120,7 @@ class NewsFeed {
             this.URL,
             window.location.origin
         );
-        url.searchParams.append("pageNum", pageNumber);
+        url.searchParams.append("cursor", this.cursor);
         url.searchParams.append("pageSize", this.PAGE_SIZE);
         url.searchParams.append("requestOrder", pageNumber);
         return url;
@@ -195,8 +239,11 @@ const NewsFeedEventTypes = {
  * @param {string} message event message
  * @param {string} time string timestamp
  * @param {number} eventIds the guids of the events being displayed
+ * @param {Object} likeCounts number of likes of each event, keyed by guid
+ * @param {Object} liked whether the user has liked each event, keyed by guid
  */
-function createWrapperCard(thumbnail, message, time, eventIds) {
+function createWrapperCard(thumbnail, message, time, eventIds, likeCounts,
+    liked) {
     const eventId = eventIds[0];
 
     const template = $("#news-feed-card-wrapper").get(0);
@@ -214,22 +261,8 @@ function createWrapperCard(thumbnail, message, time, eventIds) {
     likeButton.attr('data-event-id', eventId);
     likeButton.attr('id', 'event-id-' + eventId);
 
-    const url = newsFeedRouter.controllers.backend.NewsFeedController.toggleLikeStatus(
-        eventId).url;
-    get(url)
-    .then(response => {
-        response.json()
-        .then(data => {
-            if (response.status !== 200) {
-                toast("Error", "Unable to get like status",
-                    "danger", 5000);
-            } else {
-                likeButton.attr('data-liked', data);
-                updateLikeButton(likeButton, true);
-                updateLikeNumber(likeCounter, eventId);
-            }
-        });
-    });
+    // Likes come with the news feed response, so there is no need to fetch them
+    showLikes(likeButton, likeCounter, liked[eventId], likeCounts[eventId]);
     likeButton.click(function () {
         likeUnlikeEvent(eventId)
     });
@@ -308,27 +341,17 @@ function updateLikeButton(eventLikeButton, noAnimation = false) {
 }
 
 /**
- * Updates the like counter on an event with the number from the backend
+ * Shows the like status and like count of an event on its card
+ * @param {Object} likeButton the JQuery html object of the card like button
  * @param {Object} likeCounter the JQuery html object of the card like number field
- * @param {Number} eventId the id of the event to get the like count for
+ * @param {boolean} liked whether the user has liked the event
+ * @param {Number} likeCount the number of likes the event has
  */
-function updateLikeNumber(likeCounter, eventId) {
-    const url = newsFeedRouter.controllers.backend.NewsFeedController.getLikeCount(
-        eventId).url;
-    get(url)
-    .then(response => {
-        response.json()
-        .then(data => {
-            if (response.status !== 200) {
-                toast("Error", "Unable to get like count for an event",
-                    "danger", 5000);
-            } else {
-                const numberOfLikes = data.likeCount;
-                likeCounter.data('likes', numberOfLikes);
-                likeCounter.text(countFormatter(numberOfLikes));
-            }
-        })
-    });
+function showLikes(likeButton, likeCounter, liked, likeCount) {
+    likeButton.attr('data-liked', String(liked));
+    updateLikeButton(likeButton, true);
+    likeCounter.data('likes', likeCount);
+    likeCounter.text(countFormatter(likeCount));
 }
 
 /**
@@ -370,7 +393,8 @@ function createDestinationWrapperCard(event) {
                     </a>
                     ${event.message}`;
     return createWrapperCard(event.thumbnail, message,
-        this.formatDate(event.created), event.eventIds);
+        this.formatDate(event.created), event.eventIds, event.likeCounts,
+        event.liked);
 }
 
 /**
@@ -386,7 +410,8 @@ function createUserWrapperCard(event) {
         ${event.message}`;
 
     return createWrapperCard(event.thumbnail, message,
-        this.formatDate(event.created), event.eventIds);
+        this.formatDate(event.created), event.eventIds, event.likeCounts,
+        event.liked);
 }
 
 /******************************
@@ -418,7 +443,7 @@ function newProfilePhotoCard(event) {
     const photoCard = $(template.content.cloneNode(true));
 
     photoCard.find('.photo-picture').attr("src",
-        "../user_content/" + event.data.filename);
+        "../user_content/" + event.data.filename + "?size=640");
     photoCard.find('.baguette-image').attr("href",
         "../user_content/" + event.data.filename);
     setTimeout(() => baguetteBox.run('.photo-row'), 100);
@@ -504,7 +529,9 @@ function multipleGalleryPhotos(event) {
     for (const i in photos) {
         photoDatas.push({
             eventId: event.eventIds[i],
-            tags: photos[i].tags
+            tags: photos[i].tags,
+            liked: event.liked[event.eventIds[i]],
+            likeCount: event.likeCounts[event.eventIds[i]]
         });
 
         photoCard.find(".main-carousel").attr("id", photoCardId);
@@ -566,6 +593,11 @@ function updateMultyCard(photoDatas, direction, card) {
     const likeButton = card.find('.likes-button');
     //Update get and update photoId
     let photoId = parseInt(carouselInner.data('photo-id'));
+
+    // Remember the likes shown for this photo, which may have changed since loading
+    photoDatas[photoId].liked = likeButton.attr('data-liked') === "true";
+    photoDatas[photoId].likeCount = likeCounter.data('likes');
+
     photoId = direction === 'left' ? (photoId + 1) % photoDatas.length : photoId
         - 1;
     if (photoId < 0) {
@@ -578,23 +610,9 @@ function updateMultyCard(photoDatas, direction, card) {
     likeButton.data('event-id', eventId);
     likeButton.attr('id', 'event-id-' + eventId);
 
-    //get and update likes
-    const url = newsFeedRouter.controllers.backend.NewsFeedController.toggleLikeStatus(
-        eventId).url;
-    get(url)
-    .then(response => {
-        response.json()
-        .then(data => {
-            if (response.status !== 200) {
-                toast("Error", "Unable to get like status",
-                    "danger", 5000);
-            } else {
-                likeButton.attr('data-liked', data);
-                updateLikeButton(likeButton, true);
-                updateLikeNumber(likeCounter, eventId);
-            }
-        })
-    });
+    //update likes
+    showLikes(likeButton, likeCounter, photoDatas[photoId].liked,
+        photoDatas[photoId].likeCount);
     likeButton.unbind('click');
     likeButton.click(function () {
         likeUnlikeEvent(eventId)
@@ -23,6 +23,10 @@ import play.mvc.Http.Cookie;
 import play.test.Helpers;
 import play.test.WithApplication;
 import repository.DestinationRepository;
+import util.DestinationSearchIndex;
+import util.LikeCache;
+import util.PrincipalCache;
+import util.TrendingFollowers;
 
 public abstract class ControllersTest extends WithApplication {
 
@@ -82,6 +86,13 @@ public abstract class ControllersTest extends WithApplication {
     void applyEvolutions(String evolutionsRoute) {
         Evolutions.applyEvolutions(db,
             Evolutions.fromClassLoader(getClass().getClassLoader(), evolutionsRoute));
+
+        // Likes, follows, users and the destination search are held in memory, so reload them
+        // from the new data
+        fakeApp.injector().instanceOf(LikeCache.class).rebuild();
+        fakeApp.injector().instanceOf(TrendingFollowers.class).rebuild();
+        fakeApp.injector().instanceOf(PrincipalCache.class).invalidateAll();
+        fakeApp.injector().instanceOf(DestinationSearchIndex.class).rebuild();
     }
 
     /**
@@ -89,6 +100,8 @@ public abstract class ControllersTest extends WithApplication {
      */
     @After
     public void cleanupEvolutions() {
+        // Write any likes still held in memory before their tables are dropped
+        fakeApp.injector().instanceOf(LikeCache.class).flush();
         Evolutions.cleanupEvolutions(db);
     }
 
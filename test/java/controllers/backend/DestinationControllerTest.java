@@ -24,6 +24,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -104,6 +105,167 @@ public class DestinationControllerTest extends controllers.backend.ControllersTe
         assertEquals(8, destinations.size());
     }
 
+    /**
+     * Gets a page of destinations as a user and deserializes it
+     */
+    private PagingResponse<Destination> getDestinationPage(Http.Cookie cookie, String uri)
+        throws IOException {
+        Http.RequestBuilder request = Helpers.fakeRequest()
+            .method(GET)
+            .cookie(cookie)
+            .uri(DEST_URL_SLASH + uri);
+
+        Result result = route(fakeApp, request);
+        assertEquals(OK, result.status());
+
+        ObjectMapper mapper = new ObjectMapper();
+        return mapper.convertValue(mapper.readTree(Helpers.contentAsString(result)),
+            new TypeReference<PagingResponse<Destination>>(){});
+    }
+
+    @Test
+    public void searchDestinations() throws IOException {
+        // User 2's own Eiffel Tower is private, so only user 1's are found
+        PagingResponse<Destination> response = getDestinationPage(adminAuthCookie,
+            "search?searchQuery=EIFFEL&sortBy=name&ascending=true");
+
+        List<Long> ids = response.data.stream().map(x -> x.id).collect(Collectors.toList());
+        assertEquals(Arrays.asList(1L, 2L, 3L), ids);
+        assertEquals("Russian Federation", response.data.get(0).country.name);
+        assertEquals((Integer) 1, response.totalNumberPages);
+    }
+
+    @Test
+    public void searchDestinationsPaged() throws IOException {
+        // User 2 sees their own two destinations and the two public ones
+        PagingResponse<Destination> response = getDestinationPage(nonAdminAuthCookie,
+            "search?sortBy=id&ascending=true&pageNum=2&pageSize=3");
+
+        assertEquals(1, response.data.size());
+        assertEquals((Long) 10L, response.data.get(0).id);
+        assertEquals((Integer) 2, response.totalNumberPages);
+    }
+
+    @Test
+    public void searchDestinationsOnlyMine() throws IOException {
+        PagingResponse<Destination> response = getDestinationPage(nonAdminAuthCookie,
+            "search?searchQuery=tower&onlyGetMine=true&sortBy=name&ascending=false");
+
+        List<Long> ids = response.data.stream().map(x -> x.id).collect(Collectors.toList());
+        assertEquals(Arrays.asList(7L, 8L), ids);
+    }
+
+    @Test
+    public void getNearbyDestinationsRadius() throws IOException {
+        PagingResponse<Destination> response = getDestinationPage(adminAuthCookie,
+            "nearby?lat=48.8583&lng=2.2945&radius=1");
+
+        // Closest first, then by id. User 2's Eiffel Tower is private
+        List<Long> ids = response.data.stream().map(x -> x.id).collect(Collectors.toList());
+        assertEquals(Arrays.asList(1L, 9L, 2L, 3L, 10L), ids);
+        assertEquals((Integer) 1, response.totalNumberPages);
+    }
+
+    @Test
+    public void getNearbyDestinationsBox() throws IOException {
+        PagingResponse<Destination> response = getDestinationPage(nonAdminAuthCookie,
+            "nearby?minLat=51&minLng=-1&maxLat=52&maxLng=1");
+
+        assertEquals(1, response.data.size());
+        assertEquals((Long) 7L, response.data.get(0).id);
+    }
+
+    @Test
+    public void getNearbyDestinationsNoArea() {
+        Http.RequestBuilder request = Helpers.fakeRequest()
+            .method(GET)
+            .cookie(adminAuthCookie)
+            .uri(DEST_URL_SLASH + "nearby?lat=48.8583&lng=2.2945");
+
+        Result result = route(fakeApp, request);
+        assertEquals(BAD_REQUEST, result.status());
+    }
+
+    /**
+     * Gets the ids of the destinations on the first page of a search or nearby request
+     */
+    private List<Long> getDestinationPageIds(Http.Cookie cookie, String uri) throws IOException {
+        return getDestinationPage(cookie, uri).data.stream()
+            .map(x -> x.id)
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    public void searchSeesOwnChanges() throws IOException {
+        // Add a destination, and search for it straight away
+        ObjectNode node = Json.newObject();
+        node.put("name", "Kaikoura Peninsula");
+        node.put("destType", "Walkway");
+        node.put("district", "Canterbury");
+        node.put("latitude", 10.0);
+        node.put("longitude", 20.0);
+        CountryDefinition countryDefinition = new CountryDefinition();
+        countryDefinition.id = 1L;
+        node.set("country", Json.toJson(countryDefinition));
+        User user = new User();
+        user.id = 1L;
+        node.set("user", Json.toJson(user));
+        node.set("tags", Json.toJson(new HashSet<Tag>()));
+
+        Result result = route(fakeApp, Helpers.fakeRequest()
+            .method(POST)
+            .bodyJson(node)
+            .cookie(adminAuthCookie)
+            .uri(CREATE_DEST_URL));
+        assertEquals(OK, result.status());
+        Long id = new ObjectMapper().readValue(Helpers.contentAsString(result), Long.class);
+
+        assertEquals(Collections.singletonList(id),
+            getDestinationPageIds(adminAuthCookie, "search?searchQuery=kaikoura"));
+        assertEquals(Collections.singletonList(id),
+            getDestinationPageIds(adminAuthCookie, "nearby?lat=10&lng=20&radius=1"));
+
+        // Rename it
+        Destination destination = getDestination(id.intValue());
+        assertNotNull(destination);
+        destination.name = "Hanmer Springs";
+        result = route(fakeApp, Helpers.fakeRequest()
+            .method(PUT)
+            .bodyJson(Json.toJson(destination))
+            .cookie(adminAuthCookie)
+            .uri(DEST_URL_SLASH + id));
+        assertEquals(OK, result.status());
+
+        assertEquals(Collections.emptyList(),
+            getDestinationPageIds(adminAuthCookie, "search?searchQuery=kaikoura"));
+        assertEquals(Collections.singletonList(id),
+            getDestinationPageIds(adminAuthCookie, "search?searchQuery=hanmer"));
+
+        // Make it public, so other users find it
+        assertEquals(Collections.emptyList(),
+            getDestinationPageIds(nonAdminAuthCookie, "search?searchQuery=hanmer"));
+        result = route(fakeApp, Helpers.fakeRequest()
+            .method(PUT)
+            .cookie(adminAuthCookie)
+            .uri(MAKE_PUBLIC_URL + id));
+        assertEquals(OK, result.status());
+
+        assertEquals(Collections.singletonList(id),
+            getDestinationPageIds(nonAdminAuthCookie, "search?searchQuery=hanmer"));
+
+        // Delete it
+        result = route(fakeApp, Helpers.fakeRequest()
+            .method(PUT)
+            .cookie(adminAuthCookie)
+            .uri(DEST_URL_SLASH + id + "/delete"));
+        assertEquals(OK, result.status());
+
+        assertEquals(Collections.emptyList(),
+            getDestinationPageIds(adminAuthCookie, "search?searchQuery=hanmer"));
+        assertEquals(Collections.emptyList(),
+            getDestinationPageIds(nonAdminAuthCookie, "nearby?lat=10&lng=20&radius=1"));
+    }
+
     @Test
     public void getDestination() throws IOException {
         // Retrieve destination and check response was OK
@@ -1,7 +1,9 @@
 package controllers.backend;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static play.mvc.Http.Status.BAD_REQUEST;
 import static play.mvc.Http.Status.NOT_FOUND;
 import static play.mvc.Http.Status.OK;
 import static play.test.Helpers.GET;
@@ -9,6 +11,7 @@ import static play.test.Helpers.PUT;
 import static play.test.Helpers.route;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import java.io.IOException;
@@ -47,6 +50,54 @@ public class NewsFeedControllerTest extends controllers.backend.ControllersTest
         assertEquals(OK, result.status());
     }
 
+    @Test
+    public void getNewsFeedEventCursor() {
+        Http.RequestBuilder request = Helpers.fakeRequest()
+            .method(GET)
+            .cookie(adminAuthCookie)
+            .uri("/api/user/1/newsfeed?cursor=");
+
+        // Get result and check it succeeded
+        Result result = route(fakeApp, request);
+        assertEquals(OK, result.status());
+    }
+
+    @Test
+    public void getNewsFeedEventInvalidCursor() {
+        Http.RequestBuilder request = Helpers.fakeRequest()
+            .method(GET)
+            .cookie(adminAuthCookie)
+            .uri("/api/user/1/newsfeed?cursor=notacursor");
+
+        // Get result and check it failed
+        Result result = route(fakeApp, request);
+        assertEquals(BAD_REQUEST, result.status());
+    }
+
+    @Test
+    public void getNewsFeedEventIncludesLikes() throws IOException {
+        Http.RequestBuilder request = Helpers.fakeRequest()
+            .method(GET)
+            .cookie(adminAuthCookie)
+            .uri("/api/user/2/newsfeed");
+
+        Result result = route(fakeApp, request);
+        assertEquals(OK, result.status());
+
+        // Find the card for event 2, which admin has liked
+        JsonNode items = new ObjectMapper().readTree(Helpers.contentAsString(result)).get("data");
+        JsonNode likedItem = null;
+        for (JsonNode item : items) {
+            if (item.get("eventIds").get(0).asLong() == 2) {
+                likedItem = item;
+            }
+        }
+
+        assertNotNull(likedItem);
+        assertEquals(1, likedItem.get("likeCounts").get("2").asLong());
+        assertTrue(likedItem.get("liked").get("2").asBoolean());
+    }
+
     @Test
     public void likeNewsFeedEvent() throws IOException {
         // Create request to like a news feed event
@@ -2,12 +2,17 @@ package controllers.backend;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.apache.commons.io.FileUtils.getFile;
+import static org.awaitility.Awaitility.await;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static play.mvc.Http.Status.BAD_REQUEST;
 import static play.mvc.Http.Status.CREATED;
 import static play.mvc.Http.Status.FORBIDDEN;
 import static play.mvc.Http.Status.NOT_FOUND;
+import static play.mvc.Http.Status.NOT_MODIFIED;
 import static play.mvc.Http.Status.OK;
+import static play.mvc.Http.Status.PARTIAL_CONTENT;
 import static play.test.Helpers.route;
 
 import akka.stream.javadsl.FileIO;
@@ -18,14 +23,19 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import models.Photo;
 import models.Tag;
+import models.enums.PhotoState;
+import org.apache.commons.io.FileUtils;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.Test;
@@ -50,6 +60,8 @@ public class PhotoControllerTest extends controllers.backend.ControllersTest {
                 file.deleteOnExit();
             }
         }
+        FileUtils.deleteQuietly(new File("./public/storage/photos/test/variants"));
+        FileUtils.deleteQuietly(new File("./public/storage/photos/test/thumbnails/profile"));
         directory = new File("./public/storage/photos/test/thumbnails");
         for (File file : Objects.requireNonNull(directory.listFiles())) {
             if (!file.getName().equals("placeholder.txt") && !file.getName().equals("test.jpeg")) {
@@ -108,6 +120,160 @@ public class PhotoControllerTest extends controllers.backend.ControllersTest {
         assertEquals(CREATED, result.status());
     }
 
+    @Test
+    public void testFileUploadNotImage() {
+        // One valid photo, and one file that claims to be an image but isn't
+        List<Http.MultipartFormData.Part<Source<ByteString, ?>>> partsList = new ArrayList<>();
+        partsList.add(new Http.MultipartFormData.DataPart("isTest", "true"));
+        partsList.add(new Http.MultipartFormData.FilePart<>("picture", "testPhoto.png", "image/png",
+            FileIO.fromPath(getFile("./public/images/favicon.png").toPath()),
+            "form-data"));
+        partsList.add(new Http.MultipartFormData.FilePart<>("picture", "notPhoto.png", "image/png",
+            FileIO.fromPath(getFile("./conf/routes").toPath()),
+            "form-data"));
+
+        Http.RequestBuilder request = Helpers.fakeRequest().uri("/api/photo")
+            .method("POST")
+            .cookie(adminAuthCookie)
+            .bodyMultipart(
+                partsList,
+                play.libs.Files.singletonTemporaryFileCreator(),
+                fakeApp.asScala().materializer()
+            );
+
+        // Neither photo is saved
+        Result result = route(fakeApp, request);
+        assertEquals(BAD_REQUEST, result.status());
+    }
+
+    @Test
+    public void uploadGeneratesThumbnail() throws IOException {
+        Result result = route(fakeApp,
+            uploadProfilePhotoRequest(getFile("./public/images/favicon.png").toPath()));
+        assertEquals(CREATED, result.status());
+
+        // The photo is added before its thumbnail has been generated
+        Photo uploaded = new ObjectMapper().readValue(Helpers.contentAsString(result), Photo.class);
+        assertEquals(PhotoState.PROCESSING, uploaded.processingState);
+
+        // Then the thumbnail is generated in the background
+        await().atMost(10, TimeUnit.SECONDS)
+            .until(() -> getPhotoById(uploaded.guid).processingState == PhotoState.READY);
+        Photo photo = getPhotoById(uploaded.guid);
+        assertNotNull(photo.thumbnailFilename);
+        assertTrue(new File(photo.thumbnailFilename).exists());
+    }
+
+    @Test
+    public void uploadUndecodableRecordsFailed() throws IOException {
+        // Only the header of a PNG, so it passes as an image when uploaded but can't be decoded
+        Path truncated = Files.createTempFile("truncated", ".png");
+        byte[] png = Files.readAllBytes(getFile("./public/images/favicon.png").toPath());
+        Files.write(truncated, Arrays.copyOf(png, 33));
+
+        Result result = route(fakeApp, uploadProfilePhotoRequest(truncated));
+        Files.delete(truncated);
+        assertEquals(CREATED, result.status());
+
+        Photo uploaded = new ObjectMapper().readValue(Helpers.contentAsString(result), Photo.class);
+        await().atMost(10, TimeUnit.SECONDS)
+            .until(() -> getPhotoById(uploaded.guid).processingState == PhotoState.FAILED);
+        assertNull(getPhotoById(uploaded.guid).thumbnailFilename);
+    }
+
+    /**
+     * Creates a request to upload a file as the admin's profile photo, which responds with the
+     * added photo
+     *
+     * @param file Path of the file to upload
+     * @return Upload request
+     */
+    private Http.RequestBuilder uploadProfilePhotoRequest(Path file) {
+        List<Http.MultipartFormData.Part<Source<ByteString, ?>>> partsList = new ArrayList<>();
+        partsList.add(new Http.MultipartFormData.DataPart("isTest", "true"));
+        partsList.add(new Http.MultipartFormData.DataPart("profilePhotoName", "profile.png"));
+        partsList.add(new Http.MultipartFormData.FilePart<>("picture", "profile.png", "image/png",
+            FileIO.fromPath(file), "form-data"));
+
+        return Helpers.fakeRequest().uri("/api/photo")
+            .method("POST")
+            .cookie(adminAuthCookie)
+            .bodyMultipart(
+                partsList,
+                play.libs.Files.singletonTemporaryFileCreator(),
+                fakeApp.asScala().materializer()
+            );
+    }
+
+    /**
+     * Gets a photo as it is stored
+     *
+     * @param id ID of the photo
+     * @return The photo
+     */
+    private Photo getPhotoById(Long id) throws IOException {
+        Result result = route(fakeApp, Helpers.fakeRequest().uri("/api/photo/" + id)
+            .method("GET")
+            .cookie(adminAuthCookie));
+        assertEquals(OK, result.status());
+        return new ObjectMapper().readValue(Helpers.contentAsString(result), Photo.class);
+    }
+
+    @Test
+    public void getPhotoVariant() throws IOException {
+        // Store a photo to get a variant of
+        File photo = new File("./public/storage/photos/test/variant.png");
+        FileUtils.copyFile(getFile("./public/images/favicon.png"), photo);
+
+        Http.RequestBuilder request = Helpers.fakeRequest()
+            .uri("/user_content/" + photo.getAbsolutePath() + "?size=160")
+            .method("GET");
+
+        // Check the variant was rendered as a JPEG and stored next to the photo
+        Result result = route(fakeApp, request);
+        assertEquals(OK, result.status());
+        assertEquals("image/jpeg", result.contentType().orElse(null));
+        assertTrue(new File("./public/storage/photos/test/variants/160/variant.png.jpg").exists());
+    }
+
+    @Test
+    public void getPhotoNotModified() {
+        String uri = "/user_content/" + new File("./public/images/favicon.png").getAbsolutePath();
+
+        // Get the photo, which should be sent with its validators
+        Result result = route(fakeApp, Helpers.fakeRequest().uri(uri).method("GET"));
+        assertEquals(OK, result.status());
+        String eTag = result.header("ETag").orElse(null);
+        assertNotNull(eTag);
+
+        // Get it again as a browser that already has it would
+        Result cachedResult = route(fakeApp, Helpers.fakeRequest().uri(uri).method("GET")
+            .header("If-None-Match", eTag));
+        assertEquals(NOT_MODIFIED, cachedResult.status());
+    }
+
+    @Test
+    public void getPhotoRange() {
+        Http.RequestBuilder request = Helpers.fakeRequest()
+            .uri("/user_content/" + new File("./public/images/favicon.png").getAbsolutePath())
+            .header("Range", "bytes=0-9")
+            .method("GET");
+
+        Result result = route(fakeApp, request);
+        assertEquals(PARTIAL_CONTENT, result.status());
+        assertEquals(10, Helpers.contentAsBytes(result).length());
+    }
+
+    @Test
+    public void getPhotoVariantInvalidSize() {
+        Http.RequestBuilder request = Helpers.fakeRequest()
+            .uri("/user_content/test.jpeg?size=123")
+            .method("GET");
+
+        Result result = route(fakeApp, request);
+        assertEquals(BAD_REQUEST, result.status());
+    }
+
     @Test
     public void PhotoToDestLinking() {
         //create request with no body
@@ -1,10 +1,12 @@
 package controllers.backend;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static play.mvc.Http.Status.FORBIDDEN;
 import static play.mvc.Http.Status.NOT_FOUND;
 import static play.mvc.Http.Status.OK;
+import static play.mvc.Http.Status.SERVICE_UNAVAILABLE;
 import static play.test.Helpers.BAD_REQUEST;
 import static play.test.Helpers.GET;
 import static play.test.Helpers.POST;
@@ -17,18 +19,23 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.ebean.PagedList;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import models.Profile;
 import models.UsedTag;
 import models.User;
 import org.junit.Before;
 import org.junit.Test;
+import play.Application;
 import play.libs.Json;
 import play.mvc.Http;
 import play.mvc.Result;
 import play.test.Helpers;
+import util.CryptoManager;
+import util.PasswordHasher;
 import util.objects.PagingResponse;
 
 public class UserControllerTest extends controllers.backend.ControllersTest {
@@ -87,6 +94,37 @@ public class UserControllerTest extends controllers.backend.ControllersTest {
         assertEquals(FORBIDDEN, result.status());
     }
 
+    @Test
+    public void searchUsersExpiredToken() {
+        Http.Cookie expiredCookie = Http.Cookie.builder("JWT-Auth",
+            CryptoManager.createToken(1L, fakeApp.config().getString("play.http.secret.key"),
+                Duration.ofMinutes(-1)))
+            .withPath("/").build();
+
+        Http.RequestBuilder request = Helpers.fakeRequest()
+            .method(GET)
+            .cookie(expiredCookie)
+            .uri("/api/user/search");
+
+        Result result = route(fakeApp, request);
+        assertEquals(FORBIDDEN, result.status());
+    }
+
+    @Test
+    public void verifyTokenRemembersOnlyThatToken() {
+        String secret = fakeApp.config().getString("play.http.secret.key");
+        String token = CryptoManager.createToken(2L, secret);
+        assertEquals((Long) 2L, CryptoManager.verifyToken(token, secret));
+
+        // Verified again from memory, while a copy with a changed signature is still checked
+        assertEquals((Long) 2L, CryptoManager.verifyToken(token, secret));
+        int changed = token.length() - 10;
+        String tampered = token.substring(0, changed)
+            + (token.charAt(changed) == 'A' ? 'B' : 'A') + token.substring(changed + 1);
+        assertNull(CryptoManager.verifyToken(tampered, secret));
+        assertNull(CryptoManager.verifyToken(token, secret + "other"));
+    }
+
     @Test
     public void createValidUser() throws IOException {
         // Create new json object node
@@ -128,6 +166,44 @@ public class UserControllerTest extends controllers.backend.ControllersTest {
         assertEquals(BAD_REQUEST, result.status());
     }
 
+    @Test
+    public void createUserWhenHashingBusy() {
+        // Separate app with a single hashing thread and room for one hash to wait for it
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("db.default.driver", "org.h2.Driver");
+        settings.put("db.default.url", "jdbc:h2:mem:busyhashing;MODE=MySQL;");
+        settings.put("passwords.threads", 1);
+        settings.put("passwords.queueSize", 1);
+        Application busyApp = Helpers.fakeApplication(settings);
+        Helpers.start(busyApp);
+
+        try {
+            // Occupy the thread and the queue with checks against a hash with many iterations,
+            // which take seconds each
+            PasswordHasher passwordHasher = busyApp.injector().instanceOf(PasswordHasher.class);
+            String salt = CryptoManager.generateNewSalt();
+            String slowHash = "pbkdf2$2000000$" + salt;
+            passwordHasher.checkPasswordMatch("password", salt, slowHash);
+            passwordHasher.checkPasswordMatch("password", salt, slowHash);
+
+            ObjectNode node = Json.newObject();
+            node.put("username", "catsinhats123@live.com");
+            node.put("password", "MeowMeow123");
+
+            Http.RequestBuilder request = Helpers.fakeRequest()
+                .method(POST)
+                .bodyJson(node)
+                .uri("/api/user");
+
+            // The new user's password can't be hashed, so they are told to try again later
+            Result result = route(busyApp, request);
+            assertEquals(SERVICE_UNAVAILABLE, result.status());
+            assertEquals(1, passwordHasher.getRejectedCount());
+        } finally {
+            Helpers.stop(busyApp);
+        }
+    }
+
     @Test
     public void createUserInvalidUsername() {
         // Create new json object node
@@ -218,6 +294,30 @@ public class UserControllerTest extends controllers.backend.ControllersTest {
         assertEquals(OK, result.status());
     }
 
+    @Test
+    public void loginCreatedUser() {
+        // Create a new user, whose password is hashed with the configured iterations
+        ObjectNode node = Json.newObject();
+        node.put("username", "catsinhats@live.com");
+        node.put("password", "0hYeahYeah");
+
+        Http.RequestBuilder createRequest = Helpers.fakeRequest()
+            .method(POST)
+            .bodyJson(node)
+            .uri("/api/user");
+        assertEquals(OK, route(fakeApp, createRequest).status());
+
+        // Create request to login as the new user
+        Http.RequestBuilder request = Helpers.fakeRequest()
+            .method(POST)
+            .bodyJson(node)
+            .uri("/api/login");
+
+        // Get result and check OK was sent back
+        Result result = route(fakeApp, request);
+        assertEquals(OK, result.status());
+    }
+
     @Test
     public void loginInvalidPassword() {
         //Invalid password
@@ -0,0 +1,223 @@
+package repository;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import models.CountryDefinition;
+import models.Destination;
+import models.User;
+import org.junit.Before;
+import org.junit.Test;
+import play.db.ebean.EbeanConfig;
+import play.inject.ApplicationLifecycle;
+import util.DestinationDeduplicator;
+
+public class DestinationDeduplicatorTest extends repository.RepositoryTest {
+
+    private static DestinationRepository destinationRepository;
+
+    @Before
+    public void runEvolutions() {
+        applyEvolutions("test/destination/");
+    }
+
+    @Before
+    public void instantiateRepository() {
+        destinationRepository = fakeApp.injector().instanceOf(DestinationRepository.class);
+    }
+
+    /**
+     * Adds a public destination straight to the database, as a bulk import would, without merging
+     * it with its duplicates
+     *
+     * @return Id of the destination
+     */
+    private Long addPublicDestination(String name, double latitude, double longitude) {
+        User user = new User();
+        user.id = 1L;
+
+        CountryDefinition countryDefinition = new CountryDefinition();
+        countryDefinition.id = 1L;
+
+        Destination destination = new Destination();
+        destination.name = name;
+        destination.user = user;
+        destination.country = countryDefinition;
+        destination.destType = "Imported";
+        destination.district = "Imported";
+        destination.latitude = latitude;
+        destination.longitude = longitude;
+        destination.isPublic = true;
+
+        return destinationRepository.addDestination(destination).join();
+    }
+
+    /**
+     * Creates a deduplicator with its own settings
+     */
+    private DestinationDeduplicator createDeduplicator(DestinationRepository repository,
+        int window, int batchSize) {
+        Config config = ConfigFactory.parseString(
+            "destinations.dedup { window = " + window + ", batchSize = " + batchSize + " }")
+            .withFallback(fakeApp.injector().instanceOf(Config.class));
+        return new DestinationDeduplicator(repository, config,
+            fakeApp.injector().instanceOf(ApplicationLifecycle.class));
+    }
+
+    /**
+     * Creates a repository that uses the same database as the application's
+     */
+    private DestinationRepository createRepository(
+        CompletableFuture<List<Destination>> locations, List<Integer> batchSizes) {
+        return new DestinationRepository(fakeApp.injector().instanceOf(EbeanConfig.class),
+            fakeApp.injector().instanceOf(DatabaseExecutionContext.class),
+            fakeApp.injector().instanceOf(NewsFeedEventRepository.class)) {
+
+            @Override
+            public CompletableFuture<List<Destination>> getPublicDestinationLocations() {
+                return locations == null ? super.getPublicDestinationLocations() : locations;
+            }
+
+            @Override
+            public CompletableFuture<Integer> mergeDestinations(
+                Map<Long, ? extends Collection<Long>> merges, Long ownerId) {
+                batchSizes.add(merges.size());
+                return super.mergeDestinations(merges, ownerId);
+            }
+        };
+    }
+
+    /**
+     * Runs a job to completion
+     */
+    private void deduplicate(DestinationDeduplicator deduplicator) {
+        assertTrue(deduplicator.start(2L));
+        await().atMost(10, TimeUnit.SECONDS).until(() -> !deduplicator.isRunning());
+        assertNotNull(deduplicator.getFinishedAt());
+    }
+
+    private boolean isMerged(Long id) {
+        return destinationRepository.getDestination(id).join() == null;
+    }
+
+    @Test
+    public void mergesGroupIntoOldest() {
+        Long oldest = addPublicDestination("Lake Tekapo", 30.0005, 30.0005);
+        Long second = addPublicDestination("Lake Tekapo NZ", 30.0006, 30.0006);
+        Long third = addPublicDestination("Lake Tekapoo", 30.0004, 30.0004);
+
+        DestinationDeduplicator deduplicator = createDeduplicator(destinationRepository, 20, 100);
+        deduplicate(deduplicator);
+
+        assertFalse(isMerged(oldest));
+        assertTrue(isMerged(second));
+        assertTrue(isMerged(third));
+        assertEquals(Long.valueOf(2),
+            destinationRepository.getDestination(oldest).join().user.id);
+
+        // The seeded public destinations 9 and 10 are duplicates too
+        assertFalse(isMerged(9L));
+        assertTrue(isMerged(10L));
+        assertEquals(3, deduplicator.getDuplicatesFound());
+        assertEquals(3, deduplicator.getDuplicatesMerged());
+    }
+
+    @Test
+    public void mergesAcrossNeighbouringCells() {
+        // Each coordinate is just either side of a cell boundary
+        Long first = addPublicDestination("Rangitoto", 10.0004, 20.0002);
+        Long second = addPublicDestination("Rangitoto Island", 9.9998, 19.9996);
+
+        deduplicate(createDeduplicator(destinationRepository, 20, 100));
+
+        assertFalse(isMerged(first));
+        assertTrue(isMerged(second));
+    }
+
+    @Test
+    public void comparesOnlyWithinWindow() {
+        // Destinations in a neighbouring cell, too far away to be merged with either pair, which
+        // come between each pair in name order
+        addPublicDestination("Harbour A", 40.0005, 40.0018);
+        addPublicDestination("Quay A", 50.0005, 50.0018);
+        addPublicDestination("Quay B", 50.0005, 50.0018);
+
+        // Two places apart in name order, so compared with a window of two
+        Long harbour = addPublicDestination("Harbour", 40.0005, 40.0005);
+        Long harbourView = addPublicDestination("Harbour View", 40.0006, 40.0005);
+
+        // Three places apart, so never compared
+        Long quay = addPublicDestination("Quay", 50.0005, 50.0005);
+        Long quayWest = addPublicDestination("Quay West", 50.0006, 50.0005);
+
+        deduplicate(createDeduplicator(destinationRepository, 2, 100));
+
+        assertFalse(isMerged(harbour));
+        assertTrue(isMerged(harbourView));
+        assertFalse(isMerged(quay));
+        assertFalse(isMerged(quayWest));
+    }
+
+    @Test
+    public void doesNotMergeChainOfDissimilar() {
+        // Each is close enough to the next to be similar, but the ends are too far apart
+        Long first = addPublicDestination("Milford Sound", 60.0002, 60.0005);
+        Long middle = addPublicDestination("Milford Sound", 60.0009, 60.0005);
+        Long last = addPublicDestination("Milford Sound", 60.0016, 60.0005);
+
+        deduplicate(createDeduplicator(destinationRepository, 20, 100));
+
+        assertFalse(isMerged(first));
+        assertTrue(isMerged(middle));
+        assertFalse(isMerged(last));
+    }
+
+    @Test
+    public void mergesInBatches() {
+        addPublicDestination("Cathedral Cove", 70.0005, 70.0005);
+        addPublicDestination("Cathedral Cove Beach", 70.0006, 70.0005);
+        addPublicDestination("Hot Water Beach", 71.0005, 71.0005);
+        addPublicDestination("Hot Water Beach", 71.0006, 71.0005);
+
+        // Along with the seeded duplicates, there are three groups
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        DestinationDeduplicator deduplicator = createDeduplicator(
+            createRepository(null, batchSizes), 20, 2);
+        deduplicate(deduplicator);
+
+        assertEquals(Arrays.asList(2, 1), batchSizes);
+        assertEquals(3, deduplicator.getDuplicatesMerged());
+    }
+
+    @Test
+    public void startsOneJobAtATime() {
+        // The job waits for the destinations until they are given to it
+        CompletableFuture<List<Destination>> locations = new CompletableFuture<>();
+        DestinationDeduplicator deduplicator = createDeduplicator(
+            createRepository(locations, new CopyOnWriteArrayList<>()), 20, 100);
+
+        assertTrue(deduplicator.start(2L));
+        assertFalse(deduplicator.start(2L));
+        assertTrue(deduplicator.isRunning());
+
+        locations.complete(Collections.emptyList());
+        await().atMost(10, TimeUnit.SECONDS).until(() -> !deduplicator.isRunning());
+
+        // Another can be started once it has finished
+        deduplicate(deduplicator);
+    }
+}
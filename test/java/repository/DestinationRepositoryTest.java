@@ -8,8 +8,10 @@ import static org.junit.Assert.assertTrue;
 
 import java.lang.reflect.Array;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletionException;
 import models.CountryDefinition;
@@ -92,6 +94,14 @@ public class DestinationRepositoryTest extends repository.RepositoryTest {
         assertTrue(checkFirstDestination(destination));
     }
 
+    @Test
+    public void getDestinationsByIds() {
+        List<Destination> destinations = destinationRepository.getDestinationsByIds(Arrays.asList(1L, 99999L)).join();
+
+        assertEquals(1, destinations.size());
+        assertTrue(checkFirstDestination(destinations.get(0)));
+    }
+
     @Test
     public void getDestinationByIdDoesNotExist() {
         Destination destination = destinationRepository.getDestination(99999L).join();
@@ -243,6 +253,30 @@ public class DestinationRepositoryTest extends repository.RepositoryTest {
         assertEquals(3, similarDestinations.size());
     }
 
+    @Test
+    public void mergeDestinations() {
+        Map<Long, List<Long>> merges = new HashMap<>();
+        merges.put(1L, Arrays.asList(2L, 3L));
+
+        assertEquals((Integer) 2, destinationRepository.mergeDestinations(merges, 1L).join());
+        assertNull(destinationRepository.getDestination(2L).join());
+        assertNull(destinationRepository.getDestination(3L).join());
+        assertNotNull(destinationRepository.getDestination(1L).join());
+    }
+
+    @Test
+    public void getSimilarDestinationsAcrossCellBoundary() {
+        // Just over the edge of the cell the other Eiffel Towers are in
+        Destination destination = destinationRepository.getDestination(1L).join();
+        destination.id = null;
+        destination.latitude = 48.85799;
+
+        List<Destination> similarDestinations = destinationRepository
+            .getSimilarDestinations(destination);
+
+        assertEquals(4, similarDestinations.size());
+    }
+
     @Test
     public void getDestinationTravellerTypeRequest() {
         List<Destination> destinations = destinationRepository.getAllDestinationsWithRequests()
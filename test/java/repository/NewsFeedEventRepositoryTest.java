@@ -1,30 +1,56 @@
 package repository;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
-
+import static org.junit.Assert.fail;
+
+import akka.actor.ActorSystem;
+import akka.stream.Materializer;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import akka.stream.javadsl.Sink;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import play.libs.Json;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
 import models.User;
 import models.NewsFeedEvent;
 import models.Destination;
+import models.FollowerUser;
 import models.Photo;
 import models.Trip;
-import models.TrendingUser;
-import models.TrendingDestination;
 import models.Profile;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import play.db.ebean.EbeanConfig;
+import play.inject.ApplicationLifecycle;
 import io.ebean.PagedList;
+import util.LikeCache;
+import util.NewsFeedPublisher;
+import util.TrendingEngine;
+import util.TrendingFollowers;
+import util.objects.PageCursor;
+import util.objects.Pair;
 
 public class NewsFeedEventRepositoryTest extends repository.RepositoryTest {
 
     private static NewsFeedEventRepository newsFeedEventRepository;
+    private static UserRepository userRepository;
+    private static DestinationRepository destinationRepository;
+    private static TrendingEngine trendingEngine;
+    private static TrendingFollowers trendingFollowers;
 
     @Before
     public void runEvolutions() {
@@ -34,6 +60,10 @@ public class NewsFeedEventRepositoryTest extends repository.RepositoryTest {
     @BeforeClass
     public static void instantiateRepository() {
         newsFeedEventRepository = fakeApp.injector().instanceOf(NewsFeedEventRepository.class);
+        userRepository = fakeApp.injector().instanceOf(UserRepository.class);
+        destinationRepository = fakeApp.injector().instanceOf(DestinationRepository.class);
+        trendingEngine = fakeApp.injector().instanceOf(TrendingEngine.class);
+        trendingFollowers = fakeApp.injector().instanceOf(TrendingFollowers.class);
     }
 
     private boolean checkFirstEvent(NewsFeedEvent newsFeedEvent) {
@@ -78,6 +108,116 @@ public class NewsFeedEventRepositoryTest extends repository.RepositoryTest {
         assertEquals((Long) 5L, newsFeedEventRepository.addNewsFeedEvent(createEvent()).join());
     }
 
+    @Test
+    public void addEventGroupsIntoNewEvent() {
+        Long first = newsFeedEventRepository.addNewsFeedEvent(createEvent()).join();
+        Long second = newsFeedEventRepository.addNewsFeedEvent(createEvent()).join();
+
+        assertEquals(second, newsFeedEventRepository.getEvent(first).join().groupId);
+        assertNull(newsFeedEventRepository.getEvent(second).join().groupId);
+
+        Map<Long, List<NewsFeedEvent>> groups = newsFeedEventRepository
+            .getGroupedEvents(Collections.singletonList(second)).join();
+        assertEquals(1, groups.get(second).size());
+        assertEquals(first, groups.get(second).get(0).guid);
+    }
+
+    @Test
+    public void addEventsInSameBatchGroupTogether() {
+        List<Long> ids = new ArrayList<>();
+        for (CompletableFuture<Long> future : newsFeedEventRepository
+            .addNewsFeedEvents(Arrays.asList(createEvent(), createEvent(), createEvent()))) {
+            ids.add(future.join());
+        }
+
+        // Every earlier event ends up grouped into the last one
+        assertNull(newsFeedEventRepository.getEvent(ids.get(2)).join().groupId);
+        Map<Long, List<NewsFeedEvent>> groups = newsFeedEventRepository
+            .getGroupedEvents(Collections.singletonList(ids.get(2))).join();
+        assertEquals(2, groups.get(ids.get(2)).size());
+    }
+
+    @Test
+    public void addEventsRetriesFailedBatchOneAtATime() {
+        NewsFeedEvent invalid = createEvent();
+        invalid.userId = 99999L;
+        List<CompletableFuture<Long>> futures = newsFeedEventRepository
+            .addNewsFeedEvents(Arrays.asList(createEvent(), invalid, createEvent()));
+
+        // The invalid event fails the batch, but only itself once retried on its own
+        assertNotNull(newsFeedEventRepository.getEvent(futures.get(0).join()).join());
+        assertNotNull(newsFeedEventRepository.getEvent(futures.get(2).join()).join());
+        try {
+            futures.get(1).join();
+            fail();
+        } catch (CompletionException e) {
+            assertFalse(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void addEventsRejectedWhenQueueFull() {
+        // A repository whose queue only holds one event, which waits a while to be written
+        Config config = ConfigFactory.parseString(
+            "newsfeed.ingest { queueSize = 1, batchSize = 50, maxDelay = 200 milliseconds }")
+            .withFallback(fakeApp.injector().instanceOf(Config.class));
+        NewsFeedEventRepository smallQueueRepository = new NewsFeedEventRepository(
+            fakeApp.injector().instanceOf(EbeanConfig.class),
+            fakeApp.injector().instanceOf(DatabaseExecutionContext.class), config,
+            fakeApp.injector().instanceOf(ActorSystem.class),
+            fakeApp.injector().instanceOf(ApplicationLifecycle.class));
+
+        List<CompletableFuture<Long>> futures = smallQueueRepository
+            .addNewsFeedEvents(Arrays.asList(createEvent(), createEvent()));
+
+        // The second event is turned away straight away, the first is still written
+        assertTrue(futures.get(1).isCompletedExceptionally());
+        try {
+            futures.get(1).join();
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertNotNull(newsFeedEventRepository.getEvent(futures.get(0).join()).join());
+    }
+
+    @Test
+    public void groupedEventNotInFeed() {
+        Long first = newsFeedEventRepository.addNewsFeedEvent(createEvent()).join();
+        Long second = newsFeedEventRepository.addNewsFeedEvent(createEvent()).join();
+
+        List<NewsFeedEvent> events = newsFeedEventRepository
+            .getEventsAfterCursor(Collections.singletonList(1L), null, null, 10).join().getKey();
+        assertEquals(second, events.get(0).guid);
+        assertFalse(events.stream().anyMatch(x -> x.guid.equals(first)));
+    }
+
+    @Test
+    public void addEventPushedToConnectedFollowers() {
+        Materializer materializer = fakeApp.injector().instanceOf(Materializer.class);
+        NewsFeedPublisher publisher = fakeApp.injector().instanceOf(NewsFeedPublisher.class);
+
+        // Users 2 and 3 follow user 1, user 2 with two connections. User 5 follows neither user
+        // 1 nor destination 1
+        List<CompletionStage<List<NewsFeedEvent>>> followers = new ArrayList<>();
+        for (Long userId : new Long[]{2L, 2L, 3L}) {
+            followers.add(publisher.subscribe(userId).take(1).runWith(Sink.seq(), materializer));
+        }
+        CompletionStage<List<NewsFeedEvent>> notFollower = publisher.subscribe(5L)
+            .takeWithin(Duration.ofSeconds(1))
+            .runWith(Sink.seq(), materializer);
+        assertEquals(2, publisher.getConnectionCount(2L));
+
+        Long guid = newsFeedEventRepository.addNewsFeedEvent(createEvent()).join();
+
+        for (CompletionStage<List<NewsFeedEvent>> follower : followers) {
+            List<NewsFeedEvent> received = follower.toCompletableFuture().join();
+            assertEquals(1, received.size());
+            assertEquals(guid, received.get(0).guid);
+        }
+        assertTrue(notFollower.toCompletableFuture().join().isEmpty());
+    }
+
     @Test(expected = CompletionException.class)
     public void addEventPrimaryKeyError() {
         NewsFeedEvent newsFeedEvent = createEvent();
@@ -127,6 +267,192 @@ public class NewsFeedEventRepositoryTest extends repository.RepositoryTest {
         assertTrue(checkFirstEvent(eventFeed.getList().get(3)));
     }
 
+    @Test
+    public void timelineEventFeed() {
+        PagedList<NewsFeedEvent> eventFeed = newsFeedEventRepository.getPagedTimelineEvents(1L, 1, 10).join();
+        assertEquals(3, eventFeed.getList().size());
+        assertEquals(Long.valueOf(4), eventFeed.getList().get(0).guid);
+        for (NewsFeedEvent event : eventFeed.getList()) {
+            assertEquals(Long.valueOf(2), event.userId);
+        }
+    }
+
+    @Test
+    public void addEventFansOutToTimeline() {
+        Long guid = newsFeedEventRepository.addNewsFeedEvent(createEvent()).join();
+        PagedList<NewsFeedEvent> eventFeed = newsFeedEventRepository.getPagedTimelineEvents(2L, 1, 10).join();
+        assertEquals(2, eventFeed.getList().size());
+        assertEquals(guid, eventFeed.getList().get(0).guid);
+    }
+
+    @Test
+    public void followUserAddsToTimeline() {
+        FollowerUser followerUser = new FollowerUser();
+        followerUser.userId = 2L;
+        followerUser.followerId = 3L;
+        userRepository.insertFollower(followerUser).join();
+
+        PagedList<NewsFeedEvent> eventFeed = newsFeedEventRepository.getPagedTimelineEvents(3L, 1, 10).join();
+        assertEquals(4, eventFeed.getList().size());
+    }
+
+    @Test
+    public void unfollowUserRemovesFromTimeline() {
+        // User 1 unfollows user 2, but still follows destination 2 so that event is kept
+        userRepository.deleteFollower(4L).join();
+
+        PagedList<NewsFeedEvent> eventFeed = newsFeedEventRepository.getPagedTimelineEvents(1L, 1, 10).join();
+        assertEquals(1, eventFeed.getList().size());
+        assertEquals(Long.valueOf(2), eventFeed.getList().get(0).destId);
+    }
+
+    @Test
+    public void unfollowDestinationKeepsFollowedUserEvents() {
+        // User 1 unfollows destination 2, but still follows user 2 who created the event
+        destinationRepository.deleteFollower(3L).join();
+
+        PagedList<NewsFeedEvent> eventFeed = newsFeedEventRepository.getPagedTimelineEvents(1L, 1, 10).join();
+        assertEquals(3, eventFeed.getList().size());
+    }
+
+    @Test
+    public void cursorEventFeed() {
+        Pair<List<NewsFeedEvent>, PageCursor> firstPage = newsFeedEventRepository.getEventsAfterCursor(null, null, null, 3).join();
+        assertEquals(3, firstPage.getKey().size());
+        assertEquals(Long.valueOf(4), firstPage.getKey().get(0).guid);
+        assertNotNull(firstPage.getValue());
+
+        Pair<List<NewsFeedEvent>, PageCursor> secondPage = newsFeedEventRepository.getEventsAfterCursor(null, null, firstPage.getValue(), 3).join();
+        assertEquals(1, secondPage.getKey().size());
+        assertTrue(checkFirstEvent(secondPage.getKey().get(0)));
+        assertNull(secondPage.getValue());
+    }
+
+    @Test
+    public void cursorEventFeedEncoded() {
+        Pair<List<NewsFeedEvent>, PageCursor> firstPage = newsFeedEventRepository.getEventsAfterCursor(null, null, null, 2).join();
+        PageCursor cursor = PageCursor.decode(firstPage.getValue().encode());
+
+        Pair<List<NewsFeedEvent>, PageCursor> secondPage = newsFeedEventRepository.getEventsAfterCursor(null, null, cursor, 2).join();
+        assertEquals(2, secondPage.getKey().size());
+        assertEquals(Long.valueOf(2), secondPage.getKey().get(0).guid);
+        assertNull(secondPage.getValue());
+    }
+
+    @Test
+    public void cursorTimelineEventFeed() {
+        Pair<List<NewsFeedEvent>, PageCursor> firstPage = newsFeedEventRepository.getTimelineEventsAfterCursor(1L, null, 2).join();
+        assertEquals(2, firstPage.getKey().size());
+        assertEquals(Long.valueOf(4), firstPage.getKey().get(0).guid);
+        assertEquals(Long.valueOf(3), firstPage.getKey().get(1).guid);
+
+        Pair<List<NewsFeedEvent>, PageCursor> secondPage = newsFeedEventRepository.getTimelineEventsAfterCursor(1L, firstPage.getValue(), 2).join();
+        assertEquals(1, secondPage.getKey().size());
+        assertEquals(Long.valueOf(2), secondPage.getKey().get(0).guid);
+        assertNull(secondPage.getValue());
+    }
+
+    @Test
+    public void cursorTrendingEventFeed() {
+        trendingEngine.decay();
+        Pair<List<NewsFeedEvent>, PageCursor> firstPage = trendingEngine.getPageAfter(null, 3).join();
+        assertEquals(3, firstPage.getKey().size());
+        assertNotNull(firstPage.getValue().getScore());
+
+        Pair<List<NewsFeedEvent>, PageCursor> secondPage = trendingEngine.getPageAfter(firstPage.getValue(), 3).join();
+        assertEquals(1, secondPage.getKey().size());
+        assertNull(secondPage.getValue());
+        for (NewsFeedEvent event : firstPage.getKey()) {
+            assertNotEquals(event.guid, secondPage.getKey().get(0).guid);
+        }
+    }
+
+    @Test
+    public void trendingEventsLikedFirst() {
+        trendingEngine.decay();
+        Pair<List<NewsFeedEvent>, Integer> page = trendingEngine.getPage(1, 10).join();
+        assertEquals(4, page.getKey().size());
+        assertEquals(Integer.valueOf(1), page.getValue());
+        assertEquals(Long.valueOf(2), page.getKey().get(0).guid);
+    }
+
+    @Test
+    public void trendingEventsNewEventFirst() {
+        trendingEngine.decay();
+        Long guid = newsFeedEventRepository.addNewsFeedEvent(createEvent()).join();
+        Pair<List<NewsFeedEvent>, PageCursor> page = trendingEngine.getPageAfter(null, 1).join();
+        assertEquals(guid, page.getKey().get(0).guid);
+    }
+
+    @Test
+    public void writeLikesUpdatesTrendingScore() {
+        NewsFeedEvent before = newsFeedEventRepository.getEvent(1L).join();
+        newsFeedEventRepository.writeLikes(Collections.singletonList(new Pair<>(1L, 2L)),
+            Collections.emptyList());
+
+        NewsFeedEvent after = newsFeedEventRepository.getEvent(1L).join();
+        assertEquals(1, after.likeCount);
+        assertTrue(after.trendingScore > before.trendingScore);
+    }
+
+    @Test
+    public void writeUnlikesUpdatesLikeCount() {
+        newsFeedEventRepository.writeLikes(Collections.emptyList(),
+            Collections.singletonList(new Pair<>(2L, 1L)));
+        assertEquals(0, newsFeedEventRepository.getEvent(2L).join().likeCount);
+        assertNull(newsFeedEventRepository.getLikes(2L, 1L).join());
+    }
+
+    @Test
+    public void writeManyLikesAndUnlikes() {
+        List<Pair<Long, Long>> likes = new ArrayList<>();
+        for (long userId = 1; userId <= 6; userId++) {
+            likes.add(new Pair<>(1L, userId));
+            likes.add(new Pair<>(3L, userId));
+        }
+        // Users and events that don't exist are skipped
+        likes.add(new Pair<>(1L, 99999L));
+        likes.add(new Pair<>(99999L, 1L));
+        newsFeedEventRepository.writeLikes(likes, Collections.emptyList());
+        assertEquals(6, newsFeedEventRepository.getEvent(1L).join().likeCount);
+        assertEquals(6, newsFeedEventRepository.getEvent(3L).join().likeCount);
+
+        List<Pair<Long, Long>> unlikes = new ArrayList<>();
+        for (long userId = 1; userId <= 4; userId++) {
+            unlikes.add(new Pair<>(1L, userId));
+            unlikes.add(new Pair<>(3L, userId));
+        }
+        unlikes.add(new Pair<>(2L, 1L));
+        newsFeedEventRepository.writeLikes(Collections.emptyList(), unlikes);
+        assertEquals(2, newsFeedEventRepository.getEvent(1L).join().likeCount);
+        assertEquals(2, newsFeedEventRepository.getEvent(3L).join().likeCount);
+        assertEquals(0, newsFeedEventRepository.getEvent(2L).join().likeCount);
+        assertNotNull(newsFeedEventRepository.getLikes(1L, 5L).join());
+    }
+
+    @Test
+    public void writeLikesIgnoresExistingLike() {
+        newsFeedEventRepository.writeLikes(Collections.singletonList(new Pair<>(2L, 1L)),
+            Collections.emptyList());
+        assertEquals(1, newsFeedEventRepository.getEvent(2L).join().likeCount);
+    }
+
+    @Test
+    public void likeCacheTogglesAndWritesLike() {
+        LikeCache likeCache = fakeApp.injector().instanceOf(LikeCache.class);
+        assertTrue(likeCache.toggleLike(1L, 2L));
+        assertTrue(likeCache.isLiked(1L, 2L));
+        assertEquals(1, likeCache.getLikeCount(1L));
+
+        likeCache.flush();
+        assertEquals(1, newsFeedEventRepository.getEvent(1L).join().likeCount);
+
+        assertFalse(likeCache.toggleLike(1L, 2L));
+        assertEquals(0, likeCache.getLikeCount(1L));
+        likeCache.flush();
+        assertEquals(0, newsFeedEventRepository.getEvent(1L).join().likeCount);
+    }
+
     @Test
     public void cleanUpDestinationEvents() {
         Destination destination = new Destination();
@@ -143,6 +469,24 @@ public class NewsFeedEventRepositoryTest extends repository.RepositoryTest {
         assertEquals(Integer.valueOf(2), rows);
     }
 
+    @Test
+    public void cleanUpPhotoEventsHandsOverGroup() {
+        List<Long> ids = new ArrayList<>();
+        for (long refId = 20; refId < 23; refId++) {
+            NewsFeedEvent event = createEvent();
+            event.refId = refId;
+            ids.add(newsFeedEventRepository.addNewsFeedEvent(event).join());
+        }
+
+        // Deleting the latest event of the group leaves the one before it in charge of the rest
+        Photo photo = new Photo();
+        photo.guid = 22L;
+        assertEquals(Integer.valueOf(1), newsFeedEventRepository.cleanUpPhotoEvents(photo).join());
+        assertNull(newsFeedEventRepository.getEvent(ids.get(2)).join());
+        assertNull(newsFeedEventRepository.getEvent(ids.get(1)).join().groupId);
+        assertEquals(ids.get(1), newsFeedEventRepository.getEvent(ids.get(0)).join().groupId);
+    }
+
     @Test
     public void cleanUpTripEvents() {
         Trip trip = new Trip();
@@ -153,39 +497,64 @@ public class NewsFeedEventRepositoryTest extends repository.RepositoryTest {
 
     @Test
     public void trendingUsersOrdering() {
-        List<Profile> trendingUsers = newsFeedEventRepository.getTrendingUsers().join();
+        List<Profile> trendingUsers = trendingFollowers.getTrendingUsers();
         assertEquals(Long.valueOf(1), trendingUsers.get(0).userId);
         assertEquals(Long.valueOf(5), trendingUsers.get(1).userId);
     }
 
     @Test
     public void trendingUsersLength() {
-        List<Profile> trendingUsers = newsFeedEventRepository.getTrendingUsers().join();
+        List<Profile> trendingUsers = trendingFollowers.getTrendingUsers();
         assertEquals(5, trendingUsers.size());
     }
 
     @Test
     public void trendingUsersFollowersCount() {
-        List<Profile> trendingUsers = newsFeedEventRepository.getTrendingUsers().join();
+        List<Profile> trendingUsers = trendingFollowers.getTrendingUsers();
         assertEquals(Long.valueOf(3), trendingUsers.get(0).followerUsersCount);
     }
 
+    @Test
+    public void trendingUsersFollowAdded() {
+        FollowerUser followerUser = new FollowerUser();
+        followerUser.userId = 7L;
+        followerUser.followerId = 3L;
+        userRepository.insertFollower(followerUser).join();
+        trendingFollowers.refresh();
+
+        List<Profile> trendingUsers = trendingFollowers.getTrendingUsers();
+        assertEquals(Long.valueOf(7), trendingUsers.get(1).userId);
+        assertEquals(Long.valueOf(2), trendingUsers.get(1).followerUsersCount);
+    }
+
+    @Test
+    public void trendingUsersFollowRemoved() {
+        FollowerUser followerUser = userRepository.getFollower(1L, 2L).join();
+        userRepository.deleteFollower(followerUser.guid).join();
+        trendingFollowers.refresh();
+
+        List<Profile> trendingUsers = trendingFollowers.getTrendingUsers();
+        assertEquals(Long.valueOf(5), trendingUsers.get(0).userId);
+        assertEquals(Long.valueOf(1), trendingUsers.get(3).userId);
+        assertEquals(Long.valueOf(2), trendingUsers.get(3).followerUsersCount);
+    }
+
     @Test
     public void trendingDestinationsOrdering() {
-        List<Destination> trendingDestinations = newsFeedEventRepository.getTrendingDestinations().join();
+        List<Destination> trendingDestinations = trendingFollowers.getTrendingDestinations();
         assertEquals(Long.valueOf(3), trendingDestinations.get(0).id);
         assertEquals(Long.valueOf(1), trendingDestinations.get(1).id);
     }
 
     @Test
     public void trendingDestinationsLength() {
-        List<Destination> trendingDestinations = newsFeedEventRepository.getTrendingDestinations().join();
+        List<Destination> trendingDestinations = trendingFollowers.getTrendingDestinations();
         assertEquals(5, trendingDestinations.size());
     }
 
     @Test
     public void trendingDestinationsCount() {
-        List<Destination> trendingDestinations = newsFeedEventRepository.getTrendingDestinations().join();
+        List<Destination> trendingDestinations = trendingFollowers.getTrendingDestinations();
         assertEquals(Long.valueOf(3), trendingDestinations.get(0).id);
         assertEquals(Long.valueOf(1), trendingDestinations.get(1).id);
         assertEquals(Long.valueOf(2), trendingDestinations.get(0).followerCount);
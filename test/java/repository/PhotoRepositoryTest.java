@@ -6,14 +6,30 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import models.Photo;
+import models.PhotoFile;
 import models.Tag;
 import models.User;
+import models.enums.PhotoState;
 import org.junit.Before;
 import org.junit.Test;
+import util.PhotoStorageSweeper;
 import util.objects.Pair;
 
 public class PhotoRepositoryTest extends repository.RepositoryTest {
@@ -169,6 +185,179 @@ public class PhotoRepositoryTest extends repository.RepositoryTest {
         assertNull(deletedPhoto);
     }
 
+    @Test
+    public void deletePhotoSharedFile() throws IOException {
+        File file = new File("./public/storage/photos/test/shared.jpeg");
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+
+        // Add two photos using the same stored file
+        User user = userRepository.findID(1L).join();
+        Photo photo1 = createPhoto();
+        Photo photo2 = createPhoto();
+        photo1.filename = file.getPath();
+        photo2.filename = file.getPath();
+        List<Photo> newPhotos = new ArrayList<>();
+        newPhotos.add(photo1);
+        newPhotos.add(photo2);
+        photoRepository.addPhotos(newPhotos, user).join();
+
+        // The file is only deleted with the last photo using it
+        photoRepository.deletePhoto(photo1.guid).join();
+        assertTrue(file.exists());
+        photoRepository.deletePhoto(photo2.guid).join();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void deletePhotoSharedFileDifferentForms() throws IOException {
+        File file = new File("./public/storage/photos/test/shared.jpeg");
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+
+        // One photo holds the file's relative path, the other its absolute path from another
+        // machine, e.g after the application moved between deploys
+        User user = userRepository.findID(1L).join();
+        Photo relative = createPhoto();
+        Photo absolute = createPhoto();
+        relative.filename = file.getPath();
+        absolute.filename = "/srv/old/app/public/storage/photos/test/shared.jpeg";
+        photoRepository.addPhotos(Arrays.asList(relative, absolute), user).join();
+        assertEquals(Collections.singletonList("test/shared.jpeg"), photoRepository
+            .getStoredFilenames("", LocalDateTime.now().plusMinutes(1), 10).join());
+
+        // Both count as using the file
+        photoRepository.deletePhoto(relative.guid).join();
+        assertTrue(file.exists());
+        photoRepository.deletePhoto(absolute.guid).join();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void addPhotosSameFileConcurrently() {
+        User user = userRepository.findID(1L).join();
+        String filename = "./public/storage/photos/test/concurrent.jpeg";
+
+        // Several first uploads of the same contents, all adding the file's row at once
+        List<CompletableFuture<List<Photo>>> uploads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Photo photo = createPhoto();
+            photo.tags = new HashSet<>();
+            photo.filename = filename;
+            uploads.add(photoRepository.addPhotos(Collections.singletonList(photo), user));
+        }
+        for (CompletableFuture<List<Photo>> upload : uploads) {
+            assertNotNull(upload.join().get(0).guid);
+        }
+
+        // Every photo was added, sharing the one row kept under the file's place in storage
+        assertEquals(Collections.singletonList("test/concurrent.jpeg"), photoRepository
+            .getStoredFilenames("", LocalDateTime.now().plusMinutes(1), 10).join());
+        assertEquals(10, photoRepository.getAllUserPhotos(1L).join().size());
+    }
+
+    @Test
+    public void deleteUnusedFiles() throws IOException {
+        File file = new File("./public/storage/photos/test/unused.jpeg");
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+
+        Pair<Integer, Long> deleted = photoRepository
+            .deleteUnusedFiles(Collections.singletonList("test/unused.jpeg")).join();
+        assertEquals((Integer) 1, deleted.getKey());
+        assertEquals((Long) 3L, deleted.getValue());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void deleteUnusedFilesInUse() throws IOException {
+        File file = new File("./public/storage/photos/test/test2.jpeg");
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+
+        // Photo 2 uses this file through a relative filename, so it is kept
+        Pair<Integer, Long> deleted = photoRepository
+            .deleteUnusedFiles(Collections.singletonList("test/test2.jpeg")).join();
+        assertEquals((Integer) 0, deleted.getKey());
+        assertTrue(file.exists());
+        assertNotNull(photoRepository.getPhotoById(2L).join());
+        Files.delete(file.toPath());
+    }
+
+    @Test
+    public void deleteUnusedFilesBatch() throws IOException {
+        File used = new File("./public/storage/photos/test/test3.jpeg");
+        File unused = new File("./public/storage/photos/test/unused.jpeg");
+        Files.write(used.toPath(), new byte[]{1, 2, 3});
+        Files.write(unused.toPath(), new byte[]{1, 2, 3, 4});
+
+        // Only the file no photo uses is deleted
+        Pair<Integer, Long> deleted = photoRepository.deleteUnusedFiles(
+            Arrays.asList("test/test3.jpeg", "test/unused.jpeg")).join();
+        assertEquals((Integer) 1, deleted.getKey());
+        assertEquals((Long) 4L, deleted.getValue());
+        assertTrue(used.exists());
+        assertFalse(unused.exists());
+        Files.delete(used.toPath());
+    }
+
+    @Test
+    public void deleteUnusedFilesUnresolvedPhoto() {
+        // A photo whose file isn't in a storage directory might still be this one, so it is kept
+        Photo photo = photoRepository.getPhotoById(3L).join();
+        photo.filename = "/somewhere/else/test3.jpeg";
+        photoRepository.updatePhoto(photo).join();
+
+        assertEquals((Integer) 0, photoRepository
+            .deleteUnusedFiles(Collections.singletonList("test/test3.jpeg")).join().getKey());
+    }
+
+    @Test
+    public void deleteUnusedFilesLegacyRow() throws IOException {
+        File file = new File("./public/storage/photos/test/legacy.jpeg");
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+
+        // A row kept under a photo's filename, as rows were before they were kept under the
+        // file's place in storage
+        String filename = "./public/storage/photos/test/legacy.jpeg";
+        new PhotoFile(filename).save();
+
+        Pair<Integer, Long> deleted = photoRepository
+            .deleteUnusedFiles(Collections.singletonList(filename)).join();
+        assertEquals((Integer) 1, deleted.getKey());
+        assertFalse(file.exists());
+        assertEquals(Collections.emptyList(), photoRepository
+            .getStoredFilenames("", LocalDateTime.now().plusMinutes(1), 10).join());
+    }
+
+    @Test
+    public void sweepKeepsFilesOfRelativePhotos() throws IOException {
+        // Files of the seeded photos, which hold relative filenames, and one no photo uses. All
+        // are old enough to be swept
+        List<Path> used = Arrays.asList(
+            Paths.get("./public/storage/photos/test/test2.jpeg"),
+            Paths.get("./public/storage/photos/test/thumbnails/test2.jpeg"),
+            Paths.get("./public/storage/photos/test/test3.jpeg"));
+        Path unused = Paths.get("./public/storage/photos/test/swept.jpeg");
+        FileTime old = FileTime.from(Instant.now().minus(Duration.ofDays(1)));
+        for (Path file : used) {
+            Files.write(file, new byte[]{1, 2, 3});
+            Files.setLastModifiedTime(file, old);
+        }
+        Files.write(unused, new byte[]{1, 2, 3});
+        Files.setLastModifiedTime(unused, old);
+
+        try {
+            fakeApp.injector().instanceOf(PhotoStorageSweeper.class).sweep();
+
+            for (Path file : used) {
+                assertTrue(file.toString(), Files.exists(file));
+            }
+            assertFalse(Files.exists(unused));
+        } finally {
+            for (Path file : used) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(unused);
+        }
+    }
+
     @Test
     public void getPhotoById() {
         Photo photo = photoRepository.getPhotoById(2L).join();
@@ -224,4 +413,21 @@ public class PhotoRepositoryTest extends repository.RepositoryTest {
 
         photoRepository.updatePhoto(photo).join();
     }
+
+    @Test
+    public void setThumbnail() {
+        assertTrue(photoRepository.setThumbnail(2L, "./thumbnails/new.jpeg", PhotoState.READY)
+            .join());
+
+        Photo updatedPhoto = photoRepository.getPhotoById(2L).join();
+        assertEquals("./thumbnails/new.jpeg", updatedPhoto.thumbnailFilename);
+        assertEquals(PhotoState.READY, updatedPhoto.processingState);
+        assertEquals(1, photoRepository.getPhotosByProcessingState(PhotoState.READY).join()
+            .stream().filter(photo -> photo.guid.equals(2L)).count());
+    }
+
+    @Test
+    public void setThumbnailDeletedPhoto() {
+        assertFalse(photoRepository.setThumbnail(99L, null, PhotoState.FAILED).join());
+    }
 }
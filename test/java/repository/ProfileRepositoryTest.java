@@ -4,6 +4,7 @@ import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
+import java.util.Arrays;
 import java.util.List;
 import models.Profile;
 import org.junit.Before;
@@ -30,6 +31,12 @@ public class ProfileRepositoryTest extends repository.RepositoryTest {
         assertTrue(profile.deleted);
     }
 
+    @Test
+    public void findIDs() {
+        List<Profile> profiles = profileRepository.findIDs(Arrays.asList(1L, 2L, 99999L)).join();
+        assertEquals(2, profiles.size());
+    }
+
     @Test
     public void getProfileFollowerCounts() {
         Profile profile = profileRepository.getProfileFollowerCounts(1L).join();
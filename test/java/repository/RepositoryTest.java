@@ -12,6 +12,8 @@ import play.db.Database;
 import play.db.evolutions.Evolutions;
 import play.test.Helpers;
 import play.test.WithApplication;
+import util.LikeCache;
+import util.TrendingFollowers;
 
 
 public abstract class RepositoryTest extends WithApplication {
@@ -59,6 +61,10 @@ public abstract class RepositoryTest extends WithApplication {
     void applyEvolutions(String evolutionsRoute) {
         Evolutions.applyEvolutions(db,
             Evolutions.fromClassLoader(getClass().getClassLoader(), evolutionsRoute));
+
+        // Likes and follows are held in memory, so reload them from the new data
+        fakeApp.injector().instanceOf(LikeCache.class).rebuild();
+        fakeApp.injector().instanceOf(TrendingFollowers.class).rebuild();
     }
 
     /**
@@ -66,6 +72,8 @@ public abstract class RepositoryTest extends WithApplication {
      */
     @After
     public void cleanupEvolutions() {
+        // Write any likes still held in memory before their tables are dropped
+        fakeApp.injector().instanceOf(LikeCache.class).flush();
         Evolutions.cleanupEvolutions(db);
     }
 }
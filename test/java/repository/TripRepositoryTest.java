@@ -11,6 +11,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.CompletionException;
@@ -104,6 +105,14 @@ public class TripRepositoryTest extends repository.RepositoryTest {
         return trips;
     }
 
+    @Test
+    public void getTripsByIds() {
+        List<Trip> trips = tripRepository.getTripsByIds(Arrays.asList(2L, 99999L)).join();
+
+        assertEquals(1, trips.size());
+        assertTrue(checkSecondTrip(trips.get(0)));
+    }
+
     @Test
     public void insertTrip() {
         Trip trip = new Trip();
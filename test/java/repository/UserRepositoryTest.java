@@ -3,7 +3,9 @@ package repository;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import io.ebean.DataIntegrityException;
@@ -20,6 +22,7 @@ import models.UsedTag;
 import models.User;
 import org.junit.Before;
 import org.junit.Test;
+import util.PrincipalCache;
 
 public class UserRepositoryTest extends repository.RepositoryTest {
 
@@ -156,6 +159,44 @@ public class UserRepositoryTest extends repository.RepositoryTest {
         assertTrue(found);
     }
 
+    @Test
+    public void updateUserDropsCachedPrincipal() {
+        PrincipalCache principalCache = fakeApp.injector().instanceOf(PrincipalCache.class);
+        principalCache.invalidateAll();
+
+        PrincipalCache.Principal cached = principalCache.get(2L).join();
+        long misses = principalCache.getMissCount();
+        assertSame(cached, principalCache.get(2L).join());
+        assertEquals(misses, principalCache.getMissCount());
+
+        User user = userRepository.findID(2L).join();
+        user.admin = !cached.admin;
+        userRepository.updateUser(user).join();
+
+        assertEquals(user.admin, principalCache.get(2L).join().admin);
+        assertEquals(user.admin, principalCache.get(2L).join().getUser().admin);
+        assertEquals(misses + 1, principalCache.getMissCount());
+    }
+
+    @Test
+    public void cachedPrincipalGivesEachCallerOwnUser() {
+        PrincipalCache principalCache = fakeApp.injector().instanceOf(PrincipalCache.class);
+        principalCache.invalidateAll();
+
+        PrincipalCache.Principal principal = principalCache.get(2L).join();
+        User first = principal.getUser();
+        User second = principalCache.get(2L).join().getUser();
+        assertNotSame(first, second);
+        assertEquals(Long.valueOf(2), second.id);
+
+        // Changing one request's user doesn't change what the next request is given
+        first.admin = !principal.admin;
+        first.username = "changed@example.com";
+        User third = principalCache.get(2L).join().getUser();
+        assertEquals(principal.admin, third.admin);
+        assertEquals(second.username, third.username);
+    }
+
     @Test
     public void updateUserInvalidReferencedId() throws SQLException {
         User user = userRepository.findID(2L).join();
@@ -23,6 +23,9 @@ import play.mvc.Http.Cookie;
 import play.mvc.Result;
 import play.test.Helpers;
 import play.test.WithApplication;
+import util.LikeCache;
+import util.PrincipalCache;
+import util.TrendingFollowers;
 
 /**
  * This class will contain the generic tests and the  @before and @after we run in each  case. The
@@ -76,6 +79,8 @@ public class GenericTestSteps extends WithApplication {
      */
     @After
     public void cleanupEvolutions() {
+        // Write any likes still held in memory before their tables are dropped
+        fakeApp.injector().instanceOf(LikeCache.class).flush();
         Evolutions.cleanupEvolutions(db);
         stopApp();
     }
@@ -109,6 +114,11 @@ public class GenericTestSteps extends WithApplication {
     void applyEvolutions(String evolutionsRoute) {
         Evolutions.applyEvolutions(db,
             Evolutions.fromClassLoader(getClass().getClassLoader(), evolutionsRoute));
+
+        // Likes, follows and users are held in memory, so reload them from the new data
+        fakeApp.injector().instanceOf(LikeCache.class).rebuild();
+        fakeApp.injector().instanceOf(TrendingFollowers.class).rebuild();
+        fakeApp.injector().instanceOf(PrincipalCache.class).invalidateAll();
     }
 
     /*
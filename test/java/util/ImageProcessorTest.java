@@ -0,0 +1,160 @@
+package util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import javax.imageio.ImageIO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ImageProcessorTest {
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("images");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        for (Path file : Files.newDirectoryStream(directory)) {
+            Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Writes a black image with a white border to a file
+     *
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param format Format to write it as, png or jpg
+     * @return Path of the image file
+     */
+    private Path writeImage(int width, int height, String format) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(Color.WHITE);
+        graphics.fillRect(0, 0, width, height);
+        graphics.setPaint(Color.BLACK);
+        graphics.fillRect(1, 1, width - 2, height - 2);
+        graphics.dispose();
+
+        Path file = directory.resolve(width + "x" + height + "." + format);
+        ImageIO.write(image, format, file.toFile());
+        return file;
+    }
+
+    /**
+     * Checks an image decoded for a box is big enough to fill the box without being enlarged, and
+     * has kept the proportions of the original
+     */
+    private void assertDecodedFor(BufferedImage decoded, int originalWidth, int originalHeight,
+        int width, int height) {
+        double scale = Math.min((double) width / decoded.getWidth(),
+            (double) height / decoded.getHeight());
+        assertTrue(scale <= 1);
+        assertEquals((double) originalWidth / originalHeight,
+            (double) decoded.getWidth() / decoded.getHeight(), 0.01);
+    }
+
+    @Test
+    public void decodeSubsamplesPng() throws IOException {
+        BufferedImage decoded = ImageProcessor.decode(writeImage(1600, 1200, "png"), 400, 266);
+
+        assertTrue(decoded.getWidth() < 1600);
+        assertDecodedFor(decoded, 1600, 1200, 400, 266);
+    }
+
+    @Test
+    public void decodeSubsamplesJpeg() throws IOException {
+        BufferedImage decoded = ImageProcessor.decode(writeImage(3000, 2000, "jpg"), 150, 150);
+
+        assertTrue(decoded.getWidth() < 3000);
+        assertDecodedFor(decoded, 3000, 2000, 150, 150);
+    }
+
+    @Test
+    public void decodeSubsamplesTallImage() throws IOException {
+        BufferedImage decoded = ImageProcessor.decode(writeImage(500, 4001, "jpg"), 400, 266);
+
+        assertTrue(decoded.getHeight() < 4001);
+        assertDecodedFor(decoded, 500, 4001, 400, 266);
+    }
+
+    @Test
+    public void decodeSmallImageAtFullSize() throws IOException {
+        BufferedImage decoded = ImageProcessor.decode(writeImage(100, 50, "png"), 400, 266);
+
+        assertEquals(100, decoded.getWidth());
+        assertEquals(50, decoded.getHeight());
+    }
+
+    @Test(expected = IOException.class)
+    public void decodeNotImage() throws IOException {
+        ImageProcessor.decode(Paths.get("conf/routes"), 400, 266);
+    }
+
+    @Test
+    public void writeJpegSameDestinationAtOnce() throws IOException {
+        // As for two photos sharing an original, whose thumbnails are generated at the same time
+        BufferedImage image = new BufferedImage(400, 266, BufferedImage.TYPE_INT_RGB);
+        Path destination = directory.resolve("thumbnail.jpg");
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            writes.add(CompletableFuture.runAsync(() -> {
+                try {
+                    ImageProcessor.writeJpeg(image, destination);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+
+        // Every write succeeded, and left only the finished JPEG behind
+        assertArrayEquals(new String[]{"thumbnail.jpg"}, directory.toFile().list());
+        assertEquals(400, ImageIO.read(destination.toFile()).getWidth());
+    }
+
+    @Test
+    public void fitScalesDownKeepingProportions() {
+        BufferedImage image = new BufferedImage(1600, 400, BufferedImage.TYPE_INT_RGB);
+
+        // Scaled to 400x100 and centred, with white above and below
+        BufferedImage fitted = ImageProcessor.fit(image, 400, 266);
+        assertEquals(400, fitted.getWidth());
+        assertEquals(266, fitted.getHeight());
+        assertEquals(Color.BLACK.getRGB(), fitted.getRGB(200, 133));
+        assertEquals(Color.BLACK.getRGB(), fitted.getRGB(0, 133));
+        assertEquals(Color.WHITE.getRGB(), fitted.getRGB(200, 50));
+        assertEquals(Color.WHITE.getRGB(), fitted.getRGB(200, 216));
+    }
+
+    @Test
+    public void fitCentresSmallImage() {
+        BufferedImage image = new BufferedImage(100, 50, BufferedImage.TYPE_INT_RGB);
+
+        // Kept at its own size, in the middle of the box
+        BufferedImage fitted = ImageProcessor.fit(image, 400, 266);
+        assertEquals(400, fitted.getWidth());
+        assertEquals(266, fitted.getHeight());
+        assertEquals(Color.BLACK.getRGB(), fitted.getRGB(200, 133));
+        assertEquals(Color.WHITE.getRGB(), fitted.getRGB(140, 133));
+        assertEquals(Color.WHITE.getRGB(), fitted.getRGB(200, 100));
+    }
+}
@@ -0,0 +1,131 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.apache.commons.text.similarity.LevenshteinDistance;
+import org.junit.Test;
+
+public class NameMatcherTest {
+
+    // Characters random names are made of. Few of them so names often share characters, with
+    // some outside ASCII that are counted in the same bucket as another of them
+    private static final String ALPHABET = "abcA\u00e9\u00e1\u0101\u0141 ";
+
+    /**
+     * Checks a matcher agrees with the edit distance worked out in full
+     */
+    private void assertAgrees(int threshold, String left, String right) {
+        boolean expected = new LevenshteinDistance(threshold).apply(left, right) != -1;
+        assertEquals("'" + left + "' and '" + right + "' within " + threshold, expected,
+            new NameMatcher(threshold).isSimilar(left, right));
+    }
+
+    /**
+     * Creates a random name from the alphabet
+     */
+    private String randomName(Random random, int maxLength) {
+        StringBuilder name = new StringBuilder();
+        int length = random.nextInt(maxLength + 1);
+        for (int i = 0; i < length; i++) {
+            name.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return name.toString();
+    }
+
+    @Test
+    public void agreesWithLevenshteinOnRandomNames() {
+        Random random = new Random(42);
+        for (int threshold = 0; threshold <= 4; threshold++) {
+            NameMatcher matcher = new NameMatcher(threshold);
+            LevenshteinDistance distance = new LevenshteinDistance(threshold);
+            for (int i = 0; i < 5000; i++) {
+                String left = randomName(random, 14);
+                String right = random.nextBoolean() ? randomName(random, 14)
+                    : mutate(random, left, random.nextInt(threshold + 2));
+                assertEquals("'" + left + "' and '" + right + "' within " + threshold,
+                    distance.apply(left, right) != -1, matcher.isSimilar(left, right));
+            }
+        }
+    }
+
+    /**
+     * Makes some random edits to a name, so it is close to the original
+     */
+    private String mutate(Random random, String name, int edits) {
+        StringBuilder mutated = new StringBuilder(name);
+        for (int i = 0; i < edits; i++) {
+            char c = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            int position = random.nextInt(mutated.length() + 1);
+            int edit = mutated.length() == 0 ? 0 : random.nextInt(3);
+            if (edit == 0) {
+                mutated.insert(position, c);
+            } else if (edit == 1) {
+                mutated.deleteCharAt(Math.min(position, mutated.length() - 1));
+            } else {
+                mutated.setCharAt(Math.min(position, mutated.length() - 1), c);
+            }
+        }
+        return mutated.toString();
+    }
+
+    @Test
+    public void emptyNames() {
+        assertAgrees(0, "", "");
+        assertAgrees(2, "", "ab");
+        assertAgrees(2, "", "abc");
+        assertAgrees(2, "abc", "");
+        assertAgrees(0, "", "a");
+    }
+
+    @Test
+    public void lengthsAtBandEdge() {
+        // Lengths exactly the threshold apart, so only the corner of the band is reachable
+        assertAgrees(2, "Auckland", "Aucklandia");
+        assertAgrees(2, "Auckland", "xxAuckland");
+        assertAgrees(2, "Auckland", "Auxxckland");
+        assertAgrees(2, "Auckland", "Aucklanxxd");
+        assertAgrees(2, "Auckland", "Auckladnxx");
+
+        // And one past it
+        assertAgrees(2, "Auckland", "Aucklandiaa");
+        assertAgrees(2, "Auckland", "xxxAuckland");
+    }
+
+    @Test
+    public void nonAsciiNames() {
+        assertAgrees(1, "Z\u00fcrich", "Zurich");
+        assertAgrees(1, "\u0141\u00f3d\u017a", "Lodz");
+        assertAgrees(3, "\u0141\u00f3d\u017a", "Lodz");
+        assertAgrees(2, "S\u00e3o Paulo", "Sao Paolo");
+        assertAgrees(0, "\u00e9", "i");
+
+        // e acute is 233, which shares a bucket with i (105), so the character counts can't tell
+        // them apart and the distance has to
+        assertFalse(new NameMatcher(0).isSimilar("caf\u00e9", "cafi"));
+    }
+
+    @Test
+    public void distanceAtThreshold() {
+        // Christchurch to Christchurh is 1, to Cristchurh is 2 and to Cristchurhc is 3
+        NameMatcher matcher = new NameMatcher(2);
+        assertTrue(matcher.isSimilar("Christchurch", "Christchurh"));
+        assertTrue(matcher.isSimilar("Christchurch", "Cristchurh"));
+        assertFalse(matcher.isSimilar("Christchurch", "Cristchurhc"));
+
+        assertAgrees(2, "Christchurch", "Cristchurh");
+        assertAgrees(2, "Christchurch", "Cristchurhc");
+        assertAgrees(3, "kitten", "sitting");
+        assertAgrees(2, "kitten", "sitting");
+    }
+
+    @Test
+    public void shortNamesWithinThreshold() {
+        // No two names are further apart than the longer is long
+        assertTrue(new NameMatcher(3).isSimilar("abc", "xyz"));
+        assertAgrees(3, "abc", "xyz");
+        assertAgrees(2, "abc", "xyz");
+    }
+}